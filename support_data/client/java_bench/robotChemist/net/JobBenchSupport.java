@@ -0,0 +1,73 @@
+package robotChemist.net;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import com.kuka.task.ITaskLogger;
+
+/***
+ * Helpers shared by the job channel benchmarks.
+ * @author stoic-roboticist
+ *
+ */
+final class JobBenchSupport 
+{
+	private JobBenchSupport()
+	{
+	}
+	
+	/***
+	 * Creates a logger that discards everything, so that logging does not show up in the measurements.
+	 * @return a no-op RoboticsAPI logging interface.
+	 */
+	static ITaskLogger silentLogger()
+	{
+		return (ITaskLogger) Proxy.newProxyInstance(ITaskLogger.class.getClassLoader(), 
+				new Class<?>[] { ITaskLogger.class }, new InvocationHandler()
+		{
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) 
+			{
+				return null;
+			}
+		});
+	}
+	
+	/***
+	 * Creates a logger that prints the warnings and errors to the standard error stream, for the long running tools.
+	 * @return a RoboticsAPI logging interface.
+	 */
+	static ITaskLogger consoleLogger()
+	{
+		return (ITaskLogger) Proxy.newProxyInstance(ITaskLogger.class.getClassLoader(), 
+				new Class<?>[] { ITaskLogger.class }, new InvocationHandler()
+		{
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) 
+			{
+				if (("warn".equals(method.getName()) || "error".equals(method.getName())) && args != null)
+				{
+					System.err.println(String.format("%s %s", method.getName(), args[0]));
+				}
+				return null;
+			}
+		});
+	}
+	
+	/***
+	 * Builds a job info of the given length starting with the given prefix.
+	 * @param prefix - the start of the job info.
+	 * @param length - the length of the job info in characters.
+	 * @return the padded job info.
+	 */
+	static String jobInfo(String prefix, int length)
+	{
+		StringBuilder info = new StringBuilder(prefix);
+		while (info.length() < length)
+		{
+			info.append('_');
+		}
+		return info.toString();
+	}
+}
@@ -0,0 +1,90 @@
+package robotChemist.net;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/***
+ * Encoding and decoding throughput of the version 1 ({@link JobEncoder}, {@link JobDecoder}) and version 2 
+ * ({@link JobCodecV2}) job protocols. Run with {@code -prof gc} to get the bytes allocated per message.
+ * @author stoic-roboticist
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JobCodecBenchmark 
+{
+	// 0 stands for goto_charge, which version 2 sends as a single byte opcode
+	@Param({"0", "16", "256", "4096"})
+	public int infoLength;
+	
+	private JobMsg msg;
+	private JobEncoder encoder;
+	private JobDecoder decoder;
+	private JobCodecV2 codecV2;
+	private ByteBuffer encodeBuffer;
+	private ByteBuffer encodedV1;
+	private ByteBuffer encodedV2;
+	
+	@Setup
+	public void setup()
+	{
+		msg = new JobMsg(infoLength == 0 ? "goto_charge" : JobBenchSupport.jobInfo("job", infoLength), 1);
+		msg.setCorrelationId(42);
+		encoder = new JobEncoder();
+		decoder = new JobDecoder();
+		codecV2 = new JobCodecV2();
+		encodeBuffer = ByteBuffer.allocate(encoder.encodedLength(msg));
+		encodedV1 = encoder.encode(msg);
+		encodedV2 = codecV2.encode(msg);
+	}
+	
+	@Benchmark
+	public ByteBuffer encodeV1Reused()
+	{
+		encodeBuffer.clear();
+		encoder.encode(msg, encodeBuffer);
+		return encodeBuffer;
+	}
+	
+	@Benchmark
+	public ByteBuffer encodeV1()
+	{
+		return encoder.encode(msg);
+	}
+	
+	@Benchmark
+	public JobMsg decodeV1()
+	{
+		encodedV1.rewind();
+		return decoder.decode(encodedV1);
+	}
+	
+	@Benchmark
+	public ByteBuffer encodeV2()
+	{
+		return codecV2.encode(msg);
+	}
+	
+	@Benchmark
+	public JobMsg decodeV2()
+	{
+		encodedV2.rewind();
+		return codecV2.decode(encodedV2);
+	}
+}
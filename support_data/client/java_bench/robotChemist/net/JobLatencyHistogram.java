@@ -0,0 +1,126 @@
+package robotChemist.net;
+
+import java.util.Arrays;
+
+/***
+ * A fixed-size latency histogram in microseconds for runs lasting hours. Values below 64 us are counted exactly and
+ * larger ones in 32 buckets per power of two, so percentiles are within about 3% of the recorded values whatever the
+ * number of samples. Recording and reading are synchronized, each histogram is expected to be written by one thread.
+ * @author stoic-roboticist
+ *
+ */
+final class JobLatencyHistogram
+{
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int EXACT_LIMIT = 2 * SUB_BUCKETS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS + EXACT_LIMIT;
+
+	private final long[] counts = new long[BUCKETS];
+	private long total = 0;
+	private long max = 0;
+
+	/***
+	 * Counts one latency sample.
+	 * @param micros - the latency in microseconds.
+	 */
+	synchronized void record(long micros)
+	{
+		long value = Math.max(0, micros);
+		counts[indexOf(value)]++;
+		total++;
+		max = Math.max(max, value);
+	}
+
+	/***
+	 * Adds the samples of the given histogram to this one.
+	 * @param other - the histogram to add.
+	 */
+	void add(JobLatencyHistogram other)
+	{
+		long[] otherCounts;
+		long otherTotal;
+		long otherMax;
+		synchronized (other)
+		{
+			otherCounts = other.counts.clone();
+			otherTotal = other.total;
+			otherMax = other.max;
+		}
+		synchronized (this)
+		{
+			for (int i = 0; i < BUCKETS; i++)
+			{
+				counts[i] += otherCounts[i];
+			}
+			total += otherTotal;
+			max = Math.max(max, otherMax);
+		}
+	}
+
+	/***
+	 * Removes all the samples.
+	 */
+	synchronized void reset()
+	{
+		Arrays.fill(counts, 0);
+		total = 0;
+		max = 0;
+	}
+
+	synchronized long getCount()
+	{
+		return total;
+	}
+
+	synchronized long getMax()
+	{
+		return max;
+	}
+
+	/***
+	 * Gets the latency at the given percentile.
+	 * @param percentile - the percentile, from 0 to 100.
+	 * @return the upper bound of the bucket holding the percentile in microseconds, or 0 if there are no samples.
+	 */
+	synchronized long getPercentile(double percentile)
+	{
+		if (total == 0)
+		{
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			seen += counts[i];
+			if (seen >= rank)
+			{
+				return Math.min(max, upperBoundOf(i));
+			}
+		}
+		return max;
+	}
+
+	private static int indexOf(long value)
+	{
+		if (value < EXACT_LIMIT)
+		{
+			return (int) value;
+		}
+		// the shift keeps the top SUB_BUCKET_BITS + 1 bits of the value, i.e. a sub-bucket between 32 and 63
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return shift * SUB_BUCKETS + (int) (value >>> shift);
+	}
+
+	private static long upperBoundOf(int index)
+	{
+		if (index < EXACT_LIMIT)
+		{
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long subBucket = index - shift * SUB_BUCKETS;
+		return ((subBucket + 1) << shift) - 1;
+	}
+}
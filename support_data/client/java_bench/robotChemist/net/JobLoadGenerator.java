@@ -0,0 +1,415 @@
+package robotChemist.net;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import com.kuka.task.ITaskLogger;
+
+/***
+ * A standalone load generator for soak testing the job channel. It runs a job server against a number of clients in
+ * the same JVM, every client sending messages at a fixed rate that the server echoes back over the same session, and
+ * periodically reports the throughput, the round trip latency percentiles, the messages received out of order and the
+ * messages lost, e.g. evicted from a full inbound queue. Latencies are measured from the time a message was scheduled
+ * to be sent rather than the time it was actually sent, so a stalled channel shows up in the percentiles instead of
+ * merely lowering the send rate. Options are given as name=value arguments:
+ * <pre>
+ * transport=socket-v2   socket-v1, socket-v2 or loopback
+ * clients=4             number of clients
+ * rate=1000             messages per second sent by each client
+ * size=64               job info length of the messages in characters
+ * duration=3600         length of the run in seconds
+ * report=10             seconds between two reports
+ * threads=0             event loop threads shared by the endpoints, 0 for the default group
+ * port=30600            TCP port of the socket server
+ * verbose=false         print the channel warnings and errors
+ * </pre>
+ * @author stoic-roboticist
+ *
+ */
+public class JobLoadGenerator
+{
+	private static final String HOST = "127.0.0.1";
+	private static final String LOOPBACK_NAME = "load";
+	private static final String TOPIC = "load";
+	// number of sent messages whose send time is remembered, echoes of older ones are counted but not timed
+	private static final int WINDOW = 1 << 16;
+	private static final long DRAIN_TIMEOUT = 5000;
+
+	private final String transport;
+	private final int clientCount;
+	private final int rate;
+	private final int size;
+	private final long durationMillis;
+	private final long reportMillis;
+	private final int threads;
+	private final int port;
+	private final ITaskLogger logger;
+
+	private JobEventLoopGroup group;
+	private JobServerChannel server;
+	private List<LoadClient> clients;
+	private List<Thread> workers;
+	private volatile boolean sending = false;
+	private volatile boolean running = false;
+
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong reordered = new AtomicLong();
+	private final AtomicLong late = new AtomicLong();
+
+	/***
+	 * One client of the run, with its counters. Sequence numbers are carried in the job code so they survive every
+	 * protocol version.
+	 */
+	private class LoadClient
+	{
+		private final int index;
+		private final JobChannel channel;
+		private final AtomicLongArray scheduledAt = new AtomicLongArray(WINDOW);
+		private final AtomicLong clientSent = new AtomicLong();
+		private final JobLatencyHistogram latency = new JobLatencyHistogram();
+		private int highestSeq = -1;
+
+		LoadClient(int index, JobChannel channel)
+		{
+			this.index = index;
+			this.channel = channel;
+		}
+
+		void send()
+		{
+			long period = TimeUnit.SECONDS.toNanos(1) / rate;
+			long next = System.nanoTime();
+			String info = JobBenchSupport.jobInfo(TOPIC, size);
+			int seq = 0;
+			try
+			{
+				while (sending)
+				{
+					long delay = next - System.nanoTime();
+					if (delay > 0)
+					{
+						LockSupport.parkNanos(delay);
+						continue;
+					}
+					scheduledAt.set(seq & (WINDOW - 1), next);
+					channel.sendMessage(new JobMsg(info, seq));
+					clientSent.incrementAndGet();
+					sent.incrementAndGet();
+					seq++;
+					next += period;
+				}
+			}
+			catch (Exception e)
+			{
+				logger.error(String.format("client %d stopped sending: %s", index, e));
+			}
+		}
+
+		void receive()
+		{
+			LinkedBlockingQueue<JobMsg> queue = channel.getMessageQueue();
+			try
+			{
+				while (running)
+				{
+					JobMsg msg = queue.poll(100, TimeUnit.MILLISECONDS);
+					if (msg != null)
+					{
+						echoed(msg.getJobCode(), System.nanoTime());
+					}
+				}
+			}
+			catch (InterruptedException e)
+			{
+				// run finished
+			}
+		}
+
+		private void echoed(int seq, long now)
+		{
+			received.incrementAndGet();
+			if (seq < highestSeq)
+			{
+				reordered.incrementAndGet();
+			}
+			highestSeq = Math.max(highestSeq, seq);
+			if (clientSent.get() - seq > WINDOW)
+			{
+				// its send time was overwritten
+				late.incrementAndGet();
+				return;
+			}
+			latency.record(TimeUnit.NANOSECONDS.toMicros(now - scheduledAt.get(seq & (WINDOW - 1))));
+		}
+	}
+
+	public JobLoadGenerator(Map<String, String> options)
+	{
+		this.transport = option(options, "transport", "socket-v2");
+		this.clientCount = Integer.parseInt(option(options, "clients", "4"));
+		this.rate = Integer.parseInt(option(options, "rate", "1000"));
+		this.size = Integer.parseInt(option(options, "size", "64"));
+		this.durationMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(option(options, "duration", "3600")));
+		this.reportMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(option(options, "report", "10")));
+		this.threads = Integer.parseInt(option(options, "threads", "0"));
+		this.port = Integer.parseInt(option(options, "port", "30600"));
+		this.logger = Boolean.parseBoolean(option(options, "verbose", "false")) ? JobBenchSupport.consoleLogger()
+				: JobBenchSupport.silentLogger();
+		if (clientCount < 1 || rate < 1 || reportMillis < 1)
+		{
+			throw new IllegalArgumentException("clients, rate and report must be positive");
+		}
+	}
+
+	private static String option(Map<String, String> options, String name, String defaultValue)
+	{
+		String value = options.get(name);
+		return value != null ? value : defaultValue;
+	}
+
+	/***
+	 * Runs the load for the configured duration, printing a report line every report interval and a summary at the
+	 * end.
+	 * @throws Exception if the endpoints cannot be opened.
+	 */
+	public void run() throws Exception
+	{
+		open();
+		System.out.println(String.format("%s: %d clients x %d msg/s, %d chars, %d s", transport, clientCount, rate, size,
+				TimeUnit.MILLISECONDS.toSeconds(durationMillis)));
+		System.out.println(String.format("%8s %12s %10s %8s %8s %8s %8s %10s %10s %10s", "time_s", "received", "msg/s",
+				"p50_us", "p99_us", "p999_us", "max_us", "reordered", "in_flight", "evicted"));
+		JobLatencyHistogram total = new JobLatencyHistogram();
+		JobLatencyHistogram interval = new JobLatencyHistogram();
+		long start = System.currentTimeMillis();
+		long lastReceived = 0;
+		long lastReport = start;
+		sending = true;
+		running = true;
+		startWorkers();
+		while (lastReport - start < durationMillis)
+		{
+			long nextReport = Math.min(lastReport + reportMillis, start + durationMillis);
+			Thread.sleep(Math.max(0, nextReport - System.currentTimeMillis()));
+			long now = System.currentTimeMillis();
+			interval.reset();
+			for (LoadClient client : clients)
+			{
+				synchronized (client.latency)
+				{
+					interval.add(client.latency);
+					client.latency.reset();
+				}
+			}
+			total.add(interval);
+			long receivedNow = received.get();
+			print(now - start, receivedNow, (receivedNow - lastReceived) * 1000.0 / Math.max(1, now - lastReport), interval);
+			lastReceived = receivedNow;
+			lastReport = now;
+		}
+		sending = false;
+		drain();
+		running = false;
+		for (Thread worker : workers)
+		{
+			worker.join();
+		}
+		long elapsed = System.currentTimeMillis() - start;
+		System.out.println("summary:");
+		print(elapsed, received.get(), received.get() * 1000.0 / Math.max(1, elapsed), total);
+		System.out.println(String.format("sent %d, received %d, lost %d, reordered %d, too late to time %d", sent.get(),
+				received.get(), sent.get() - received.get(), reordered.get(), late.get()));
+		close();
+	}
+
+	private void open() throws Exception
+	{
+		if (threads > 0)
+		{
+			group = new JobEventLoopGroup(threads, logger);
+		}
+		boolean loopback = "loopback".equals(transport);
+		if (loopback)
+		{
+			server = new LoopbackJobServer(LOOPBACK_NAME, logger);
+		}
+		else
+		{
+			server = group != null ? new AsyncJobServer(HOST, port, logger, group) : new AsyncJobServer(HOST, port, logger);
+		}
+		server.start();
+		clients = new ArrayList<LoadClient>(clientCount);
+		for (int i = 0; i < clientCount; i++)
+		{
+			JobChannel channel;
+			if (loopback)
+			{
+				channel = group != null ? new LoopbackJobClient(LOOPBACK_NAME, logger, group)
+						: new LoopbackJobClient(LOOPBACK_NAME, logger);
+			}
+			else
+			{
+				AsyncJobClient socketClient = group != null ? new AsyncJobClient(HOST, port, logger, group)
+						: new AsyncJobClient(HOST, port, logger);
+				socketClient.setMaxProtocolVersion("socket-v1".equals(transport) ? 1 : 2);
+				channel = socketClient;
+			}
+			channel.start();
+			clients.add(new LoadClient(i, channel));
+		}
+		for (LoadClient client : clients)
+		{
+			while (!client.channel.isConnected())
+			{
+				Thread.sleep(10);
+			}
+		}
+		while (server.getSessionIds().size() < clientCount)
+		{
+			Thread.sleep(10);
+		}
+	}
+
+	private void startWorkers()
+	{
+		workers = new ArrayList<Thread>();
+		for (final int sessionId : server.getSessionIds())
+		{
+			workers.add(new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					echo(sessionId);
+				}
+			}, String.format("load-echo-%d", sessionId)));
+		}
+		for (final LoadClient client : clients)
+		{
+			workers.add(new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					client.receive();
+				}
+			}, String.format("load-receive-%d", client.index)));
+			workers.add(new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					client.send();
+				}
+			}, String.format("load-send-%d", client.index)));
+		}
+		for (Thread worker : workers)
+		{
+			worker.start();
+		}
+	}
+
+	private void echo(int sessionId)
+	{
+		LinkedBlockingQueue<JobMsg> queue = server.getMessageQueue(sessionId);
+		try
+		{
+			while (running && queue != null)
+			{
+				JobMsg msg = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (msg != null)
+				{
+					server.sendMessage(sessionId, msg.createReply(msg.getJobCode()));
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			// run finished
+		}
+	}
+
+	private void drain() throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+		while (sent.get() > received.get() && System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(10);
+		}
+	}
+
+	private void close() throws Exception
+	{
+		for (LoadClient client : clients)
+		{
+			client.channel.stop();
+		}
+		server.stop();
+		if (group != null)
+		{
+			group.shutdown();
+			group.awaitTermination(DRAIN_TIMEOUT);
+		}
+	}
+
+	private void print(long elapsedMillis, long receivedCount, double throughput, JobLatencyHistogram latency)
+	{
+		System.out.println(String.format("%8d %12d %10.0f %8d %8d %8d %8d %10d %10d %10d",
+				TimeUnit.MILLISECONDS.toSeconds(elapsedMillis), receivedCount, throughput, latency.getPercentile(50),
+				latency.getPercentile(99), latency.getPercentile(99.9), latency.getMax(), reordered.get(),
+				sent.get() - receivedCount, evicted()));
+	}
+
+	private long evicted()
+	{
+		// messages evicted or dropped by the inbound queues of both sides, the usual cause of lost messages
+		List<LinkedBlockingQueue<JobMsg>> queues = new ArrayList<LinkedBlockingQueue<JobMsg>>();
+		for (int sessionId : server.getSessionIds())
+		{
+			queues.add(server.getMessageQueue(sessionId));
+		}
+		for (LoadClient client : clients)
+		{
+			queues.add(client.channel.getMessageQueue());
+		}
+		long evicted = 0;
+		for (LinkedBlockingQueue<JobMsg> queue : queues)
+		{
+			if (queue instanceof JobInboundQueue)
+			{
+				JobInboundQueue inbound = (JobInboundQueue) queue;
+				evicted += inbound.getEvictedCount() + inbound.getExpiredCount() + inbound.getDroppedCount();
+			}
+		}
+		return evicted;
+	}
+
+	/***
+	 * Runs the load generator with the given name=value options.
+	 * @param args - the options, see {@link JobLoadGenerator}.
+	 * @throws Exception if the run fails.
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args)
+		{
+			int split = arg.indexOf('=');
+			if (split <= 0)
+			{
+				throw new IllegalArgumentException(String.format("expected name=value, got %s", arg));
+			}
+			options.put(arg.substring(0, split), arg.substring(split + 1));
+		}
+		new JobLoadGenerator(options).run();
+		System.exit(0);
+	}
+}
@@ -0,0 +1,85 @@
+package robotChemist.net;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/***
+ * Cost of finding a reply among other received messages, either by scanning the message queue with 
+ * {@link JobMsg#equals(Object)} as the processes used to, or through the {@link JobRequestTracker} and 
+ * {@link JobDispatcher} indexes.
+ * @author stoic-roboticist
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JobMatchBenchmark 
+{
+	// the number of unrelated messages waiting in the queue, or requests pending in the tracker
+	@Param({"0", "8", "64", "512"})
+	public int backlog;
+	
+	private LinkedBlockingQueue<JobMsg> queue;
+	private JobRequestTracker tracker;
+	private JobDispatcher dispatcher;
+	private JobDispatcher.Subscription subscription;
+	private JobMsg request;
+	private JobMsg reply;
+	private JobMsg expectedReply;
+	
+	@Setup
+	public void setup()
+	{
+		queue = new LinkedBlockingQueue<JobMsg>();
+		tracker = new JobRequestTracker();
+		dispatcher = new JobDispatcher(JobBenchSupport.silentLogger());
+		for (int i = 0; i < backlog; i++)
+		{
+			queue.offer(new JobMsg("status_" + i, i));
+			tracker.register(new JobMsg("request_" + i, 0), new JobMsg("request_" + i, 1), 0);
+			dispatcher.subscribe("status_" + i);
+		}
+		request = new JobMsg("goto_charge", 0);
+		reply = new JobMsg("goto_charge", 1);
+		expectedReply = new JobMsg("goto_charge", 1);
+		queue.offer(reply);
+		subscription = dispatcher.subscribe("goto_charge");
+	}
+	
+	@Benchmark
+	public boolean queueEquals()
+	{
+		boolean found = queue.remove(expectedReply);
+		queue.offer(reply);
+		return found;
+	}
+	
+	@Benchmark
+	public boolean trackerComplete()
+	{
+		tracker.register(request, expectedReply, 0);
+		return tracker.complete(reply);
+	}
+	
+	@Benchmark
+	public JobMsg dispatcherSubscription()
+	{
+		dispatcher.dispatch(reply);
+		return subscription.getQueue().poll();
+	}
+}
@@ -0,0 +1,171 @@
+package robotChemist.net;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kuka.task.ITaskLogger;
+
+/***
+ * Request to reply latency between a job client and server, reported as percentiles by the sample time mode. The 
+ * server side echoes every request from its own thread the way the KMR job server does, while a background thread
+ * sends unrelated messages at the given rate over the same connection.
+ * @author stoic-roboticist
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class JobRoundTripBenchmark 
+{
+	private static final String HOST = "127.0.0.1";
+	private static final int PORT = 30500;
+	private static final String LOOPBACK_NAME = "bench";
+	
+	// sockets negotiating the given job protocol version, or the in-JVM loopback transport
+	@Param({"socket-v1", "socket-v2", "loopback"})
+	public String transport;
+	
+	@Param({"16", "256", "4096"})
+	public int messageSize;
+	
+	// unrelated messages per second sent next to the measured requests
+	@Param({"0", "1000", "10000"})
+	public int backgroundRate;
+	
+	private JobServerChannel server;
+	private JobChannel client;
+	private Thread echoThread;
+	private Thread loadThread;
+	private volatile boolean running;
+	private JobMsg request;
+	
+	@Setup
+	public void setup() throws Exception
+	{
+		ITaskLogger logger = JobBenchSupport.silentLogger();
+		if ("loopback".equals(transport))
+		{
+			server = new LoopbackJobServer(LOOPBACK_NAME, logger);
+			client = new LoopbackJobClient(LOOPBACK_NAME, logger);
+		}
+		else
+		{
+			server = new AsyncJobServer(HOST, PORT, logger);
+			AsyncJobClient socketClient = new AsyncJobClient(HOST, PORT, logger);
+			socketClient.setMaxProtocolVersion("socket-v1".equals(transport) ? 1 : 2);
+			client = socketClient;
+		}
+		server.start();
+		client.start();
+		while (!client.isConnected() || server.getSessionIds().isEmpty())
+		{
+			Thread.sleep(10);
+		}
+		running = true;
+		echoThread = new Thread(new Runnable()
+		{
+			@Override
+			public void run() 
+			{
+				echo();
+			}
+		}, "bench-echo");
+		echoThread.start();
+		loadThread = new Thread(new Runnable()
+		{
+			@Override
+			public void run() 
+			{
+				sendBackgroundLoad();
+			}
+		}, "bench-load");
+		loadThread.start();
+		request = new JobMsg(JobBenchSupport.jobInfo("ping", messageSize), 0);
+		// let the protocol negotiation finish before measuring
+		client.sendRequest(request).get();
+	}
+	
+	private void echo()
+	{
+		try
+		{
+			while (running)
+			{
+				JobMsg msg = server.getMessageQueue().poll(100, TimeUnit.MILLISECONDS);
+				if (msg != null && msg.getJobInfo().startsWith("ping"))
+				{
+					server.sendMessage(msg.createReply(1));
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			// benchmark finished
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	private void sendBackgroundLoad()
+	{
+		if (backgroundRate <= 0)
+		{
+			return;
+		}
+		long period = TimeUnit.SECONDS.toNanos(1) / backgroundRate;
+		long next = System.nanoTime();
+		JobMsg load = new JobMsg(JobBenchSupport.jobInfo("load", messageSize), 0);
+		try
+		{
+			while (running)
+			{
+				client.sendMessage(load);
+				next += period;
+				long delay = next - System.nanoTime();
+				if (delay > 0)
+				{
+					LockSupport.parkNanos(delay);
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	@TearDown
+	public void tearDown() throws IOException, InterruptedException
+	{
+		running = false;
+		loadThread.join();
+		echoThread.join();
+		client.stop();
+		server.stop();
+	}
+	
+	@Benchmark
+	public JobMsg roundTrip() throws Exception
+	{
+		return client.sendRequest(request).get();
+	}
+}
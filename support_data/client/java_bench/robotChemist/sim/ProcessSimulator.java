@@ -0,0 +1,435 @@
+package robotChemist.sim;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.kuka.roboticsAPI.applicationModel.IApplicationData;
+import com.kuka.roboticsAPI.applicationModel.IProcessData;
+import com.kuka.roboticsAPI.applicationModel.RoboticsAPIApplicationState;
+import com.kuka.task.ITaskLogger;
+
+import robotChemist.interfaces.BatteryChargeManager;
+import robotChemist.interfaces.ChargingScheduler;
+import robotChemist.nodes.LBRArchmQNode;
+import robotChemist.processes.AutoCalibrationProcess;
+import robotChemist.processes.AutoChargingProcess;
+import robotChemist.processes.MaintenanceCoordinator;
+import robotChemist.processes.ProcessEventDispatcher;
+import robotChemist.processes.RosExecutionProcess;
+import robotChemist.processes.StateMachineProcess;
+import robotChemist.processes.TaskExecutionProcess;
+import robotChemist.utility.AppStateMonitor;
+import robotChemist.utility.LBRTaskExecutor;
+import robotChemist.utility.LBRTaskMonitor;
+import robotChemist.utility.RobotOpState;
+import robotChemist.utility.RobotOpState.OpState;
+
+/***
+ * A discrete-event simulator of the process stack. It runs the real {@link AutoChargingProcess},
+ * {@link AutoCalibrationProcess}, {@link RosExecutionProcess} and {@link TaskExecutionProcess} with the real
+ * {@link LBRTaskMonitor}, {@link RobotOpState} and {@link BatteryChargeManager} on a {@link Simulation}, against a
+ * simulated KMR base ({@link SimKmrBase}), battery ({@link SimBattery}), arm ({@link SimArm}) and ROS command feed
+ * ({@link SimWorkflow}). Simulated time jumps from one event to the next, so weeks of operation run in seconds, and the
+ * run reports the workflow throughput, the queueing delays of the commands and the time spent charging and
+ * calibrating. Options are given as name=value arguments:
+ * <pre>
+ * days=7                simulated time in days
+ * rate=6                mean number of commands arriving per hour
+ * tasks=Task:300        workflow task names with their mean durations in seconds, comma separated
+ * seed=1                seed of the random arrivals, tasks and durations
+ * soc=80                initial state of charge in percent
+ * min_charge=30         minimal charge in percent
+ * max_charge=90         maximal charge in percent
+ * calibration=480       maximal time without calibration in minutes
+ * reference=60          duration of a calibration of the arm in seconds
+ * charger_trip=120      drive from the workflow station to the charger in seconds
+ * calibration_trip=90   drive from the workflow station to the calibration station in seconds
+ * idle_drain=3          base discharge rate in percent per hour
+ * arm_drain=6           additional discharge rate while the arm moves in percent per hour
+ * drive_drain=10        additional discharge rate while the base drives in percent per hour
+ * charge_rate=40        charge rate in percent per hour
+ * poll=1000             sampling period of the state of charge in milliseconds
+ * scheduler=false       schedule charging from the command backlog, see ChargingScheduler
+ * coordinator=false     calibrate while docked for charging, see MaintenanceCoordinator
+ * report=24             simulated hours between two reports
+ * verbose=false         print the process log with the simulated time
+ * </pre>
+ * @author stoic-roboticist
+ *
+ */
+public class ProcessSimulator
+{
+	private static final long TIMER_TICK = 100;
+
+	private final long durationMillis;
+	private final long reportMillis;
+	private final boolean verbose;
+	private final boolean useScheduler;
+	private final boolean useCoordinator;
+	private final long pollMillis;
+	private final Map<String, Long> taskMillis;
+	private final ITaskLogger logger;
+
+	private final Simulation sim;
+	private final Random random;
+	private final SimBattery battery;
+	private final SimKmrBase base;
+	private final SimWorkflow workflow;
+	private final SimArm arm;
+	private final RobotOpState robotOpState;
+	private final LBRTaskMonitor taskMonitor;
+	private MaintenanceCoordinator coordinator;
+
+	// simulated time spent in every operational state, updated on every change
+	private final EnumMap<OpState, Long> opStateNanos;
+	private OpState opState;
+	private long opStateSince;
+
+	public ProcessSimulator(Map<String, String> options)
+	{
+		this.durationMillis = TimeUnit.DAYS.toMillis(Long.parseLong(option(options, "days", "7")));
+		this.reportMillis = TimeUnit.HOURS.toMillis(Long.parseLong(option(options, "report", "24")));
+		this.verbose = Boolean.parseBoolean(option(options, "verbose", "false"));
+		this.useScheduler = Boolean.parseBoolean(option(options, "scheduler", "false"));
+		this.useCoordinator = Boolean.parseBoolean(option(options, "coordinator", "false"));
+		this.pollMillis = Long.parseLong(option(options, "poll", "1000"));
+		this.taskMillis = parseTasks(option(options, "tasks", "Task:300"));
+		double rate = Double.parseDouble(option(options, "rate", "6"));
+		if (rate <= 0 || reportMillis < 1 || pollMillis < 1)
+		{
+			throw new IllegalArgumentException("rate, report and poll must be positive");
+		}
+
+		SimClock clock = new SimClock(System.currentTimeMillis());
+		this.logger = verbose ? clockLogger(clock) : silentLogger();
+		this.sim = new Simulation(clock, TIMER_TICK, logger);
+		this.random = new Random(Long.parseLong(option(options, "seed", "1")));
+		Map<String, Object> processData = new HashMap<String, Object>();
+		int minCharge = Integer.parseInt(option(options, "min_charge", "30"));
+		int maxCharge = Integer.parseInt(option(options, "max_charge", "90"));
+		processData.put("minimalChargeBattery", minCharge);
+		processData.put("maximalChargeBattery", maxCharge);
+		processData.put("tempMinimalChargeBattery", minCharge);
+		processData.put("tempMaximalChargeBattery", maxCharge);
+		processData.put("maximal_time_without_calibration", Integer.parseInt(option(options, "calibration", "480")));
+		processData.put("lastCalibrationOfArm", clock.currentTimeMillis() + "");
+		processData.put("AllowAutomatedCharging", true);
+		processData.put("AllowAutomatedArmCalibration", true);
+		IApplicationData appData = applicationData(processData);
+
+		this.battery = new SimBattery(clock, Double.parseDouble(option(options, "soc", "80")),
+				Double.parseDouble(option(options, "idle_drain", "3")), Double.parseDouble(option(options, "arm_drain", "6")),
+				Double.parseDouble(option(options, "drive_drain", "10")), Double.parseDouble(option(options, "charge_rate", "40")));
+		this.base = new SimKmrBase(sim, battery, seconds(option(options, "charger_trip", "120")),
+				seconds(option(options, "calibration_trip", "90")), logger);
+		BatteryChargeManager batteryManager = new BatteryChargeManager(battery, logger, appData);
+		this.arm = new SimArm(sim, base, battery, batteryManager, taskMillis, seconds(option(options, "reference", "60")),
+				random, appData, logger);
+		this.robotOpState = new RobotOpState();
+		this.taskMonitor = new LBRTaskMonitor();
+		final LBRArchmQNode lbrNode = new LBRArchmQNode("sim", logger);
+		this.workflow = new SimWorkflow(sim, lbrNode, new ArrayList<String>(taskMillis.keySet()), rate, random);
+		AppStateMonitor appStateMonitor = new AppStateMonitor(RoboticsAPIApplicationState.RESUMING);
+
+		this.opStateNanos = new EnumMap<OpState, Long>(OpState.class);
+		for (OpState state : OpState.values())
+		{
+			opStateNanos.put(state, 0L);
+		}
+		robotOpState.addListener(new RobotOpState.Listener()
+		{
+			@Override
+			public void onStateChanged(OpState oldState, OpState newState)
+			{
+				accountOpState(newState);
+			}
+		});
+		robotOpState.setCurrentState(OpState.IDLE);
+
+		AutoChargingProcess chargingProcess = new AutoChargingProcess(base, batteryManager, sim.getTimer(), taskMonitor, robotOpState, logger);
+		AutoCalibrationProcess calibrationProcess = new AutoCalibrationProcess(base, appData, clock, taskMonitor, robotOpState, logger);
+		if (useScheduler)
+		{
+			ChargingScheduler scheduler = new ChargingScheduler(new ChargingScheduler.Backlog()
+			{
+				@Override
+				public List<String> getPendingTaskNames()
+				{
+					List<String> names = new ArrayList<String>();
+					for (kmriiwa_chemist_msgs.LBRCommand cmd : lbrNode.getCommandBacklog())
+					{
+						names.add(cmd.getTaskName());
+					}
+					return names;
+				}
+			}, clock, logger);
+			scheduler.watch(taskMonitor);
+			batteryManager.setChargingScheduler(scheduler);
+		}
+		if (useCoordinator)
+		{
+			coordinator = new MaintenanceCoordinator(batteryManager, appData, clock, logger);
+			chargingProcess.setMaintenanceCoordinator(coordinator);
+			calibrationProcess.setMaintenanceCoordinator(coordinator);
+		}
+
+		ProcessEventDispatcher dispatcher = sim.getDispatcher();
+		StateMachineProcess[] processes = { chargingProcess, calibrationProcess,
+				new RosExecutionProcess(lbrNode, taskMonitor, robotOpState, logger),
+				new TaskExecutionProcess(arm, base, appStateMonitor, taskMonitor, robotOpState, logger) };
+		for (StateMachineProcess process : processes)
+		{
+			process.setTransitionLogging(verbose);
+			dispatcher.register(process);
+		}
+		dispatcher.watch(taskMonitor);
+		dispatcher.watch(robotOpState);
+		dispatcher.watch(appStateMonitor);
+		dispatcher.watch(lbrNode);
+		dispatcher.watch(batteryManager, pollMillis);
+	}
+
+	private static String option(Map<String, String> options, String name, String defaultValue)
+	{
+		String value = options.get(name);
+		return value != null ? value : defaultValue;
+	}
+
+	private static long seconds(String value)
+	{
+		return TimeUnit.SECONDS.toMillis(Long.parseLong(value));
+	}
+
+	private static Map<String, Long> parseTasks(String tasks)
+	{
+		Map<String, Long> durations = new LinkedHashMap<String, Long>();
+		for (String task : tasks.split(","))
+		{
+			int split = task.indexOf(':');
+			if (split <= 0)
+			{
+				throw new IllegalArgumentException(String.format("expected name:seconds, got %s", task));
+			}
+			durations.put(task.substring(0, split), seconds(task.substring(split + 1)));
+		}
+		return durations;
+	}
+
+	/***
+	 * Runs the simulation for the configured simulated time, printing a report line every report interval and a
+	 * summary at the end.
+	 * @throws InterruptedException if interrupted.
+	 */
+	public void run() throws InterruptedException
+	{
+		System.out.println(String.format("%d days, %d task types, scheduler %b, coordinator %b",
+				TimeUnit.MILLISECONDS.toDays(durationMillis), taskMillis.size(), useScheduler, useCoordinator));
+		System.out.println(String.format("%8s %8s %8s %8s %10s %10s %5s %8s %8s %8s %8s", "time_h", "arrived", "done",
+				"backlog", "p50_min", "p95_min", "soc", "charges", "calibs", "chrg_%", "calib_%"));
+		long start = System.nanoTime();
+		workflow.start(taskMonitor);
+		String failure = null;
+		try
+		{
+			// a task running past a report is not interrupted, the next report is not delayed by it
+			for (long report = reportMillis; getElapsedMillis() < durationMillis; report += reportMillis)
+			{
+				sim.runFor(Math.max(0, Math.min(report, durationMillis) - getElapsedMillis()));
+				print();
+			}
+		}
+		catch (RuntimeException e)
+		{
+			failure = e.toString();
+		}
+		long wallMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		long simMillis = getElapsedMillis();
+		accountOpState(opState);
+		System.out.println("summary:");
+		if (failure != null)
+		{
+			System.out.println(String.format("the processes stopped after %.1f h: %s", hours(simMillis), failure));
+		}
+		System.out.println(String.format("simulated %.1f h in %.2f s (x%.0f), %d events, %d dispatches", hours(simMillis),
+				wallMillis / 1000.0, (double) simMillis / wallMillis, sim.getEventCount(), sim.getDispatchCount()));
+		System.out.println(String.format("commands: %d arrived, %d done, %.2f per hour, %d waiting", workflow.getArrivedCount(),
+				workflow.getCompletedCount(), workflow.getCompletedCount() / Math.max(hours(simMillis), 1e-9), workflow.getBacklog()));
+		System.out.println(String.format("queueing delay: p50 %.1f min, p95 %.1f min, p99 %.1f min, max %.1f min",
+				minutes(workflow.getDelayPercentile(50)), minutes(workflow.getDelayPercentile(95)),
+				minutes(workflow.getDelayPercentile(99)), minutes(workflow.getDelayPercentile(100))));
+		StringBuilder states = new StringBuilder("op states:");
+		for (Map.Entry<OpState, Long> entry : opStateNanos.entrySet())
+		{
+			if (entry.getValue() > 0)
+			{
+				states.append(String.format(" %s %.1f%%", entry.getKey(), share(entry.getValue())));
+			}
+		}
+		System.out.println(states);
+		System.out.println(String.format("charger trips %d, calibration trips %d, calibrations %d (%d while docked), driving %.1f h",
+				base.getChargerTrips(), base.getCalibrationTrips(), arm.getReferenceCount(),
+				coordinator != null ? coordinator.getMergedTripCount() : 0, hours(TimeUnit.NANOSECONDS.toMillis(base.getDrivingNanos()))));
+		System.out.println(String.format("arm moving %.1f%%, battery empty %.1f min, final charge %d%%",
+				share(arm.getMovingNanos()), minutes(TimeUnit.NANOSECONDS.toMillis(battery.getEmptyNanos())), battery.getStateOfCharge()));
+		StringBuilder handlers = new StringBuilder("task handlers:");
+		for (LBRTaskExecutor.Registration registration : arm.getRegistrations())
+		{
+			if (registration.getInvocationCount() > 0)
+			{
+				handlers.append(String.format(" %s %d (%d failed, mean %.1f s, max %.1f s)", registration.getName(),
+						registration.getInvocationCount(), registration.getFailureCount(), registration.getMeanNanos() / 1e9,
+						registration.getMaxNanos() / 1e9));
+			}
+		}
+		System.out.println(handlers);
+	}
+
+	private void print()
+	{
+		accountOpState(opState);
+		System.out.println(String.format("%8.1f %8d %8d %8d %10.1f %10.1f %5d %8d %8d %8.1f %8.1f",
+				hours(getElapsedMillis()), workflow.getArrivedCount(),
+				workflow.getCompletedCount(), workflow.getBacklog(), minutes(workflow.getDelayPercentile(50)),
+				minutes(workflow.getDelayPercentile(95)), battery.getStateOfCharge(), base.getChargerTrips(),
+				arm.getReferenceCount(), share(opStateNanos.get(OpState.CHARGING)), share(opStateNanos.get(OpState.CALIBRATING))));
+	}
+
+	private void accountOpState(OpState newState)
+	{
+		long now = sim.getClock().nanoTime();
+		if (opState != null)
+		{
+			opStateNanos.put(opState, opStateNanos.get(opState) + now - opStateSince);
+		}
+		opState = newState;
+		opStateSince = now;
+	}
+
+	private long getElapsedMillis()
+	{
+		return TimeUnit.NANOSECONDS.toMillis(sim.getClock().getElapsedNanos());
+	}
+
+	private double share(long nanos)
+	{
+		return 100.0 * nanos / Math.max(1, sim.getClock().getElapsedNanos());
+	}
+
+	private static double hours(long millis)
+	{
+		return millis / 3600000.0;
+	}
+
+	private static double minutes(long millis)
+	{
+		return millis / 60000.0;
+	}
+
+	/***
+	 * Creates the process data of the application, held in the given map.
+	 * @param values - the values of the process data by name.
+	 * @return a RoboticsAPI application data interface only supporting the process data.
+	 */
+	private static IApplicationData applicationData(final Map<String, Object> values)
+	{
+		return (IApplicationData) Proxy.newProxyInstance(IApplicationData.class.getClassLoader(),
+				new Class<?>[] { IApplicationData.class }, new InvocationHandler()
+		{
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args)
+			{
+				if (!"getProcessData".equals(method.getName()))
+				{
+					throw new UnsupportedOperationException(String.format("the simulated application data has no %s", method.getName()));
+				}
+				return processData(values, (String) args[0]);
+			}
+		});
+	}
+
+	private static IProcessData processData(final Map<String, Object> values, final String name)
+	{
+		return (IProcessData) Proxy.newProxyInstance(IProcessData.class.getClassLoader(),
+				new Class<?>[] { IProcessData.class }, new InvocationHandler()
+		{
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args)
+			{
+				if ("getValue".equals(method.getName()))
+				{
+					return values.get(name);
+				}
+				if ("setValue".equals(method.getName()))
+				{
+					values.put(name, args[0]);
+					return null;
+				}
+				throw new UnsupportedOperationException(String.format("the simulated process data has no %s", method.getName()));
+			}
+		});
+	}
+
+	private static ITaskLogger silentLogger()
+	{
+		return (ITaskLogger) Proxy.newProxyInstance(ITaskLogger.class.getClassLoader(),
+				new Class<?>[] { ITaskLogger.class }, new InvocationHandler()
+		{
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args)
+			{
+				return null;
+			}
+		});
+	}
+
+	/***
+	 * Creates a logger printing everything to the standard output with the simulated time.
+	 * @param clock - the simulated clock.
+	 * @return a RoboticsAPI logging interface.
+	 */
+	private static ITaskLogger clockLogger(final SimClock clock)
+	{
+		return (ITaskLogger) Proxy.newProxyInstance(ITaskLogger.class.getClassLoader(),
+				new Class<?>[] { ITaskLogger.class }, new InvocationHandler()
+		{
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args)
+			{
+				if (args != null && args.length > 0)
+				{
+					System.out.println(String.format("%10.1f s %s %s", clock.getElapsedNanos() / 1e9, method.getName(), args[0]));
+				}
+				return null;
+			}
+		});
+	}
+
+	/***
+	 * Runs the simulator with the given name=value options.
+	 * @param args - the options, see {@link ProcessSimulator}.
+	 * @throws Exception if the run fails.
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args)
+		{
+			int split = arg.indexOf('=');
+			if (split <= 0)
+			{
+				throw new IllegalArgumentException(String.format("expected name=value, got %s", arg));
+			}
+			options.put(arg.substring(0, split), arg.substring(split + 1));
+		}
+		new ProcessSimulator(options).run();
+	}
+}
@@ -0,0 +1,139 @@
+package robotChemist.sim;
+
+import java.util.Map;
+import java.util.Random;
+
+import com.kuka.roboticsAPI.applicationModel.IApplicationData;
+import com.kuka.task.ITaskLogger;
+
+import robotChemist.interfaces.BatteryChargeManager;
+import robotChemist.utility.LBRTask;
+import robotChemist.utility.LBRTaskExecutor;
+
+/***
+ * A simulated arm executing the tasks of the {@link robotChemist.processes.TaskExecutionProcess}. Motions take their
+ * configured mean duration, give or take a quarter, during which the process thread is blocked as on the robot, see
+ * {@link Simulation#elapse(long)}. Workflow tasks wait for the base to arrive first. The motions are registered as task
+ * handlers in place of the ones of {@link LBRTaskExecutor}, priority tasks that do not move the arm, e.g. a charge
+ * override, are executed by the built-in handlers.
+ * @author stoic-roboticist
+ *
+ */
+public class SimArm extends LBRTaskExecutor
+{
+	private static final long DRIVE_POS_MILLIS = 5000;
+
+	private final Simulation sim;
+	private final SimKmrBase base;
+	private final SimBattery battery;
+	private final long referenceMillis;
+	private final Random random;
+	private long tasks = 0;
+	private long references = 0;
+	private long movingNanos = 0;
+
+	/***
+	 * Constructs an arm.
+	 * @param sim - the simulation.
+	 * @param base - the base the arm is mounted on.
+	 * @param battery - the battery drained while the arm moves.
+	 * @param batteryManager - the battery manager the charge overrides go to.
+	 * @param taskMillis - the mean duration of the workflow tasks by task name in milliseconds.
+	 * @param referenceMillis - the duration of a calibration of the arm in milliseconds.
+	 * @param random - the source of the duration variations.
+	 * @param appData - the process data the last calibration is recorded in.
+	 * @param logger - RoboticsAPI logging interface.
+	 */
+	public SimArm(Simulation sim, SimKmrBase base, SimBattery battery, BatteryChargeManager batteryManager, Map<String, Long> taskMillis, long referenceMillis, Random random, IApplicationData appData, ITaskLogger logger)
+	{
+		super(null, batteryManager, appData, sim.getClock(), logger);
+		this.sim = sim;
+		this.base = base;
+		this.battery = battery;
+		this.referenceMillis = referenceMillis;
+		this.random = random;
+		registerHandlers(taskMillis);
+	}
+
+	@Override
+	protected boolean executeWorkflowTasks(LBRTask task)
+	{
+		logger.warn(String.format("no duration is configured for the simulated task %s", task.getName()));
+		return false;
+	}
+
+	/***
+	 *
+	 * @return the number of workflow tasks executed.
+	 */
+	public long getTaskCount()
+	{
+		return tasks;
+	}
+
+	/***
+	 *
+	 * @return the number of calibrations of the arm.
+	 */
+	public long getReferenceCount()
+	{
+		return references;
+	}
+
+	/***
+	 *
+	 * @return the simulated time the arm spent moving in nanoseconds.
+	 */
+	public long getMovingNanos()
+	{
+		return movingNanos;
+	}
+
+	private void registerHandlers(Map<String, Long> taskMillis)
+	{
+		registerPriorityHandler("ReferenceArm", new Handler()
+		{
+			@Override
+			public boolean execute(LBRTask task)
+			{
+				move(referenceMillis);
+				appData.getProcessData("lastCalibrationOfArm").setValue(sim.getClock().currentTimeMillis() + "");
+				references++;
+				return true;
+			}
+		});
+		registerPriorityHandler("ArmDrivePos", new Handler()
+		{
+			@Override
+			public boolean execute(LBRTask task)
+			{
+				move(DRIVE_POS_MILLIS);
+				return true;
+			}
+		});
+		for (Map.Entry<String, Long> entry : taskMillis.entrySet())
+		{
+			final long mean = entry.getValue();
+			registerWorkflowHandler(entry.getKey(), new Handler()
+			{
+				@Override
+				public boolean execute(LBRTask task)
+				{
+					sim.elapse(base.getMillisToArrival());
+					move((long) (mean * (0.75 + 0.5 * random.nextDouble())));
+					tasks++;
+					return true;
+				}
+			});
+		}
+	}
+
+	private void move(long millis)
+	{
+		long start = sim.getClock().nanoTime();
+		battery.setArmMoving(true);
+		sim.elapse(millis);
+		battery.setArmMoving(false);
+		movingNanos += sim.getClock().nanoTime() - start;
+	}
+}
@@ -0,0 +1,155 @@
+package robotChemist.sim;
+
+import java.util.concurrent.TimeUnit;
+
+import robotChemist.interfaces.BatteryChargeManager;
+
+/***
+ * A simulated battery management system. The state of charge drains at a base rate, plus a rate of its own while the
+ * arm moves and while the base drives, and rises at the charge rate once the charging and both charging relays are
+ * enabled. The level is integrated over the simulated time whenever it is read or a load changes.
+ * @author stoic-roboticist
+ *
+ */
+public class SimBattery implements BatteryChargeManager.Battery
+{
+	// the status codes read by BatteryChargeManager#isChargingProcessNotWorking()
+	private static final int STATUS_CHARGING = 1;
+	private static final int STATUS_DISCHARGING = 2;
+	private static final double HOUR = TimeUnit.HOURS.toNanos(1);
+
+	private final SimClock clock;
+	private final double idleDrain;
+	private final double armDrain;
+	private final double driveDrain;
+	private final double chargeRate;
+
+	// in percent
+	private double level;
+	private long lastUpdate;
+	private boolean chargingEnable = false;
+	private boolean chargingRelay = false;
+	private boolean externalRelay = false;
+	private boolean armMoving = false;
+	private boolean baseDriving = false;
+	private long emptyNanos = 0;
+
+	/***
+	 * Constructs a battery.
+	 * @param clock - the simulated clock.
+	 * @param level - the initial state of charge in percent.
+	 * @param idleDrain - the base discharge rate in percent per hour.
+	 * @param armDrain - the additional discharge rate while the arm moves in percent per hour.
+	 * @param driveDrain - the additional discharge rate while the base drives in percent per hour.
+	 * @param chargeRate - the charge rate in percent per hour.
+	 */
+	public SimBattery(SimClock clock, double level, double idleDrain, double armDrain, double driveDrain, double chargeRate)
+	{
+		this.clock = clock;
+		this.level = level;
+		this.idleDrain = idleDrain;
+		this.armDrain = armDrain;
+		this.driveDrain = driveDrain;
+		this.chargeRate = chargeRate;
+		this.lastUpdate = clock.nanoTime();
+	}
+
+	@Override
+	public int getStateOfCharge()
+	{
+		update();
+		return (int) level;
+	}
+
+	@Override
+	public int getStatus()
+	{
+		return isCharging() ? STATUS_CHARGING : STATUS_DISCHARGING;
+	}
+
+	@Override
+	public boolean getChargingEnable()
+	{
+		return chargingEnable;
+	}
+
+	@Override
+	public void setChargingEnable(boolean enable)
+	{
+		update();
+		chargingEnable = enable;
+	}
+
+	@Override
+	public void setChargingRelayEnable(boolean enable)
+	{
+		update();
+		chargingRelay = enable;
+	}
+
+	@Override
+	public void setExternalChargingRelayEnabled(boolean enable)
+	{
+		update();
+		externalRelay = enable;
+	}
+
+	public void setArmMoving(boolean armMoving)
+	{
+		update();
+		this.armMoving = armMoving;
+	}
+
+	public void setBaseDriving(boolean baseDriving)
+	{
+		update();
+		this.baseDriving = baseDriving;
+	}
+
+	/***
+	 *
+	 * @return true if the charging and both charging relays are enabled.
+	 */
+	public boolean isCharging()
+	{
+		return chargingEnable && chargingRelay && externalRelay;
+	}
+
+	/***
+	 *
+	 * @return the simulated time spent with an empty battery in nanoseconds.
+	 */
+	public long getEmptyNanos()
+	{
+		update();
+		return emptyNanos;
+	}
+
+	private void update()
+	{
+		long now = clock.nanoTime();
+		long elapsed = now - lastUpdate;
+		lastUpdate = now;
+		if (elapsed <= 0)
+		{
+			return;
+		}
+		double rate = isCharging() ? chargeRate : -idleDrain;
+		if (armMoving)
+		{
+			rate -= armDrain;
+		}
+		if (baseDriving)
+		{
+			rate -= driveDrain;
+		}
+		double next = level + rate * elapsed / HOUR;
+		if (next <= 0)
+		{
+			// the part of the interval spent empty
+			emptyNanos += level > 0 ? (long) (elapsed * -next / (level - next)) : elapsed;
+			next = 0;
+		}
+		level = Math.min(100, next);
+	}
+}
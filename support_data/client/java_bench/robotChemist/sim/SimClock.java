@@ -0,0 +1,66 @@
+package robotChemist.sim;
+
+import java.util.concurrent.TimeUnit;
+
+import robotChemist.utility.ProcessClock;
+
+/***
+ * A simulated {@link ProcessClock} whose time only moves when the {@link Simulation} advances it, from one event to
+ * the next, so that simulated time runs as fast as the events can be processed. The clock is not thread safe, it is
+ * read and advanced by the simulation thread only.
+ * @author stoic-roboticist
+ *
+ */
+public class SimClock implements ProcessClock
+{
+	private final long originMillis;
+	private long nanos = 0;
+
+	/***
+	 * Constructs a clock starting at the given wall clock time.
+	 * @param originMillis - the wall clock time of the start of the simulation in milliseconds since the epoch.
+	 */
+	public SimClock(long originMillis)
+	{
+		this.originMillis = originMillis;
+	}
+
+	@Override
+	public long nanoTime()
+	{
+		return nanos;
+	}
+
+	@Override
+	public long currentTimeMillis()
+	{
+		return originMillis + TimeUnit.NANOSECONDS.toMillis(nanos);
+	}
+
+	/***
+	 * Advances the clock by the given time at once, nothing else happens meanwhile.
+	 * @param nanos - the time to wait in nanoseconds.
+	 */
+	@Override
+	public void sleepNanos(long nanos)
+	{
+		advanceTo(this.nanos + Math.max(0, nanos));
+	}
+
+	/***
+	 *
+	 * @return the simulated time since the start of the simulation in nanoseconds.
+	 */
+	public long getElapsedNanos()
+	{
+		return nanos;
+	}
+
+	void advanceTo(long time)
+	{
+		if (time - nanos > 0)
+		{
+			nanos = time;
+		}
+	}
+}
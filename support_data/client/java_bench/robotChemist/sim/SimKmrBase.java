@@ -0,0 +1,220 @@
+package robotChemist.sim;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.kuka.task.ITaskLogger;
+
+import robotChemist.net.JobChannel;
+import robotChemist.net.JobDispatcher;
+import robotChemist.net.JobFuture;
+import robotChemist.net.JobMsg;
+
+/***
+ * A simulated KMR base job server, standing in for the job channel of the processes. The base answers the requests of
+ * the charging and calibration processes once it drove to the charger or the calibration station and back to the
+ * workflow station, and the workflow waits for it to arrive, see {@link #getMillisToArrival()}. Request timeouts are
+ * not simulated, the processes wait for their replies indefinitely.
+ * @author stoic-roboticist
+ *
+ */
+public class SimKmrBase implements JobChannel
+{
+	private final Simulation sim;
+	private final SimBattery battery;
+	private final long chargerTripMillis;
+	private final long calibrationTripMillis;
+	private final JobDispatcher dispatcher;
+	private final LinkedBlockingQueue<JobMsg> msgQueue;
+	private int correlationId = 0;
+	// the simulated time at which the base ends its current drive
+	private long arrival;
+	private long chargerTrips = 0;
+	private long calibrationTrips = 0;
+	private long drivingNanos = 0;
+
+	private ITaskLogger logger;
+
+	/***
+	 * Constructs a base.
+	 * @param sim - the simulation.
+	 * @param battery - the battery drained while driving.
+	 * @param chargerTripMillis - the time to drive from the workflow station to the charger in milliseconds.
+	 * @param calibrationTripMillis - the time to drive from the workflow station to the calibration station in
+	 * milliseconds.
+	 * @param logger - RoboticsAPI logging interface.
+	 */
+	public SimKmrBase(Simulation sim, SimBattery battery, long chargerTripMillis, long calibrationTripMillis, ITaskLogger logger)
+	{
+		this.sim = sim;
+		this.battery = battery;
+		this.chargerTripMillis = chargerTripMillis;
+		this.calibrationTripMillis = calibrationTripMillis;
+		this.dispatcher = new JobDispatcher(logger);
+		this.msgQueue = new LinkedBlockingQueue<JobMsg>();
+		this.arrival = sim.getClock().nanoTime();
+		this.logger = logger;
+	}
+
+	@Override
+	public void start()
+	{
+	}
+
+	@Override
+	public void stop()
+	{
+	}
+
+	@Override
+	public void sendMessage(JobMsg job)
+	{
+		receive(new JobMsg(job), null);
+	}
+
+	@Override
+	public JobFuture sendRequest(JobMsg request)
+	{
+		return sendRequest(request, 0);
+	}
+
+	@Override
+	public JobFuture sendRequest(JobMsg request, long timeoutMillis)
+	{
+		return sendRequest(request, new JobMsg(request.getJobInfo(), 1), timeoutMillis);
+	}
+
+	@Override
+	public JobFuture sendRequest(JobMsg request, JobMsg expectedReply, long timeoutMillis)
+	{
+		JobMsg sent = new JobMsg(request);
+		sent.setCorrelationId(++correlationId);
+		JobFuture future = new JobFuture(sent, expectedReply, sent.getCorrelationId(), 0);
+		receive(sent, future);
+		return future;
+	}
+
+	@Override
+	public JobDispatcher getDispatcher()
+	{
+		return dispatcher;
+	}
+
+	@Override
+	public LinkedBlockingQueue<JobMsg> getMessageQueue()
+	{
+		return msgQueue;
+	}
+
+	@Override
+	public boolean isConnected()
+	{
+		return true;
+	}
+
+	/***
+	 *
+	 * @return the simulated time until the base ends its current drive in milliseconds, 0 if it stands still.
+	 */
+	public long getMillisToArrival()
+	{
+		return Math.max(0, TimeUnit.NANOSECONDS.toMillis(arrival - sim.getClock().nanoTime()));
+	}
+
+	public long getChargerTrips()
+	{
+		return chargerTrips;
+	}
+
+	public long getCalibrationTrips()
+	{
+		return calibrationTrips;
+	}
+
+	/***
+	 *
+	 * @return the simulated time spent driving in nanoseconds.
+	 */
+	public long getDrivingNanos()
+	{
+		return drivingNanos;
+	}
+
+	private void receive(JobMsg msg, JobFuture future)
+	{
+		String jobInfo = msg.getJobInfo();
+		if (jobInfo.equals("goto_charge"))
+		{
+			chargerTrips++;
+			drive(chargerTripMillis, future);
+		}
+		else if (jobInfo.equals("done_charging"))
+		{
+			drive(chargerTripMillis, future);
+		}
+		else if (jobInfo.equals("goto_calibrate"))
+		{
+			calibrationTrips++;
+			drive(calibrationTripMillis, future);
+		}
+		else if (jobInfo.equals("done_calibrating"))
+		{
+			drive(calibrationTripMillis, future);
+		}
+		else
+		{
+			// started_charging, need_to_resume and the like are acknowledged at once
+			if (!jobInfo.equals("started_charging") && !jobInfo.equals("need_to_resume"))
+			{
+				logger.warn(String.format("the simulated base acknowledges an unknown job: %s", jobInfo));
+			}
+			reply(future, 0);
+		}
+	}
+
+	// the base answers once it arrived, drives are queued behind each other
+	private void drive(long tripMillis, final JobFuture future)
+	{
+		long now = sim.getClock().nanoTime();
+		long start = Math.max(now, arrival);
+		long trip = TimeUnit.MILLISECONDS.toNanos(tripMillis);
+		arrival = start + trip;
+		drivingNanos += trip;
+		sim.schedule(TimeUnit.NANOSECONDS.toMillis(start - now), new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				battery.setBaseDriving(true);
+			}
+		});
+		sim.schedule(TimeUnit.NANOSECONDS.toMillis(arrival - now), new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				battery.setBaseDriving(false);
+			}
+		});
+		reply(future, TimeUnit.NANOSECONDS.toMillis(arrival - now));
+	}
+
+	private void reply(final JobFuture future, long delayMillis)
+	{
+		if (future == null)
+		{
+			return;
+		}
+		sim.schedule(delayMillis, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				JobMsg expected = future.getExpectedReply();
+				JobMsg reply = new JobMsg(expected.getJobInfo(), expected.getJobCode());
+				reply.setCorrelationId(future.getCorrelationId());
+				future.complete(reply);
+			}
+		});
+	}
+}
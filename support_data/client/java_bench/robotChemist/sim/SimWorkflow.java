@@ -0,0 +1,180 @@
+package robotChemist.sim;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.ros.message.MessageFactory;
+import org.ros.node.NodeConfiguration;
+
+import robotChemist.nodes.LBRArchmQNode;
+import robotChemist.utility.LBRTask;
+import robotChemist.utility.LBRTaskMonitor;
+
+/***
+ * A simulated workflow manager feeding the ROS command queue of the {@link LBRArchmQNode}, in place of the
+ * <em>[robot_name]/lbr/command</em> topic. Commands arrive at random with a given mean rate, each one a task picked
+ * at random among the configured ones, and wait in the workflow manager while the command queue of the node is full.
+ * The time from the arrival of a command to the start of its execution is recorded as its queueing delay.
+ * @author stoic-roboticist
+ *
+ */
+public class SimWorkflow
+{
+	private final Simulation sim;
+	private final LBRArchmQNode lbrNode;
+	private final List<String> taskNames;
+	private final double meanInterarrivalMillis;
+	private final Random random;
+	private final MessageFactory messageFactory;
+	private final LinkedList<kmriiwa_chemist_msgs.LBRCommand> waiting;
+	// arrival times of the commands not started yet by sequence number
+	private final Map<Integer, Long> arrivals;
+	private final List<Long> delays;
+	private int cmdSeq = 0;
+	private long completed = 0;
+
+	/***
+	 * Constructs a workflow.
+	 * @param sim - the simulation.
+	 * @param lbrNode - the node whose command queue is fed.
+	 * @param taskNames - the names of the tasks the commands are picked among.
+	 * @param commandsPerHour - the mean arrival rate of the commands.
+	 * @param random - the source of the arrivals and tasks.
+	 */
+	public SimWorkflow(Simulation sim, LBRArchmQNode lbrNode, List<String> taskNames, double commandsPerHour, Random random)
+	{
+		this.sim = sim;
+		this.lbrNode = lbrNode;
+		this.taskNames = taskNames;
+		this.meanInterarrivalMillis = TimeUnit.HOURS.toMillis(1) / commandsPerHour;
+		this.random = random;
+		this.messageFactory = NodeConfiguration.newPrivate().getTopicMessageFactory();
+		this.waiting = new LinkedList<kmriiwa_chemist_msgs.LBRCommand>();
+		this.arrivals = new HashMap<Integer, Long>();
+		this.delays = new ArrayList<Long>();
+	}
+
+	/***
+	 * Starts the arrivals of the commands and watches their execution.
+	 * @param taskMonitor - the task monitor shared by the processes.
+	 */
+	public void start(LBRTaskMonitor taskMonitor)
+	{
+		taskMonitor.addListener(new LBRTaskMonitor.Listener()
+		{
+			@Override
+			public void onTaskChanged(LBRTask task)
+			{
+				taskChanged(task);
+			}
+		});
+		scheduleArrival();
+	}
+
+	/***
+	 *
+	 * @return the number of commands arrived.
+	 */
+	public int getArrivedCount()
+	{
+		return cmdSeq;
+	}
+
+	/***
+	 *
+	 * @return the number of commands whose execution finished.
+	 */
+	public long getCompletedCount()
+	{
+		return completed;
+	}
+
+	/***
+	 *
+	 * @return the number of commands arrived and not started yet.
+	 */
+	public int getBacklog()
+	{
+		return arrivals.size();
+	}
+
+	/***
+	 * Gets a percentile of the queueing delays of the started commands.
+	 * @param percentile - the percentile between 0 and 100.
+	 * @return the queueing delay in milliseconds, 0 if no command started.
+	 */
+	public long getDelayPercentile(double percentile)
+	{
+		if (delays.isEmpty())
+		{
+			return 0;
+		}
+		List<Long> sorted = new ArrayList<Long>(delays);
+		Collections.sort(sorted);
+		int index = (int) Math.ceil(percentile / 100 * sorted.size()) - 1;
+		return TimeUnit.NANOSECONDS.toMillis(sorted.get(Math.max(0, Math.min(sorted.size() - 1, index))));
+	}
+
+	private void scheduleArrival()
+	{
+		// exponential interarrival times, the commands arriving as a Poisson process
+		long delay = (long) (-meanInterarrivalMillis * Math.log(1 - random.nextDouble()));
+		sim.schedule(delay, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				arrive();
+				scheduleArrival();
+			}
+		});
+	}
+
+	private void arrive()
+	{
+		kmriiwa_chemist_msgs.LBRCommand cmd = messageFactory.newFromType(kmriiwa_chemist_msgs.LBRCommand._TYPE);
+		cmd.setCmdSeq(++cmdSeq);
+		cmd.setTaskName(taskNames.get(random.nextInt(taskNames.size())));
+		cmd.setTaskParameters(new ArrayList<String>());
+		cmd.setPriorityTask(false);
+		arrivals.put(cmd.getCmdSeq(), sim.getClock().nanoTime());
+		waiting.add(cmd);
+		feed();
+	}
+
+	private void feed()
+	{
+		while (!waiting.isEmpty() && lbrNode.getCommandBacklog().size() < LBRArchmQNode.COMMAND_QUEUE_CAPACITY)
+		{
+			lbrNode.offerCommand(waiting.poll());
+		}
+	}
+
+	private void taskChanged(LBRTask task)
+	{
+		if (task == null || task.getSeq() < 0)
+		{
+			return;
+		}
+		if (task.getStatus() == kmriiwa_chemist_msgs.TaskStatus.EXECUTING)
+		{
+			Long arrival = arrivals.remove(task.getSeq());
+			if (arrival != null)
+			{
+				delays.add(sim.getClock().nanoTime() - arrival);
+			}
+		}
+		else if (task.getStatus() == kmriiwa_chemist_msgs.TaskStatus.FINISHED)
+		{
+			completed++;
+		}
+		// the command was taken off the queue of the node once assigned
+		feed();
+	}
+}
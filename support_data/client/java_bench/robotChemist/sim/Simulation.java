@@ -0,0 +1,210 @@
+package robotChemist.sim;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.kuka.task.ITaskLogger;
+
+import robotChemist.processes.ProcessEventDispatcher;
+import robotChemist.utility.ProcessTimer;
+
+/***
+ * The discrete-event core of the simulation. It owns the {@link SimClock}, the {@link ProcessTimer} and the
+ * {@link ProcessEventDispatcher} the processes run on, and the events of the simulated stand-ins, e.g. a base trip
+ * ending or a command arriving. Everything runs on the thread calling {@link #runFor(long)}: the woken processes are
+ * run until they settle, then the clock jumps to the earliest of the next event, the next timer expiry and the next
+ * process wake, so that idle time costs nothing.<br>
+ * <br>
+ * Work that blocks the process thread on the robot, e.g. an arm motion, is simulated with {@link #elapse(long)}, which
+ * advances the clock running the events and the timer but not the processes, as the real dispatching thread would be
+ * blocked meanwhile.
+ * @author stoic-roboticist
+ *
+ */
+public class Simulation
+{
+	// a process stack still running after that many dispatches without the clock moving is livelocked
+	private static final int MAX_SETTLE_DISPATCHES = 100000;
+	private static final int TIMER_WHEEL_SIZE = 512;
+
+	private static final class Event implements Comparable<Event>
+	{
+		private final long time;
+		private final long sequence;
+		private final Runnable action;
+
+		Event(long time, long sequence, Runnable action)
+		{
+			this.time = time;
+			this.sequence = sequence;
+			this.action = action;
+		}
+
+		@Override
+		public int compareTo(Event other)
+		{
+			if (time != other.time)
+			{
+				return time - other.time < 0 ? -1 : 1;
+			}
+			return sequence < other.sequence ? -1 : (sequence > other.sequence ? 1 : 0);
+		}
+	}
+
+	private final SimClock clock;
+	private final ProcessTimer timer;
+	private final ProcessEventDispatcher dispatcher;
+	private final PriorityQueue<Event> events;
+	private long sequence = 0;
+	private long eventCount = 0;
+	private long dispatchCount = 0;
+
+	/***
+	 * Constructs a simulation.
+	 * @param clock - the simulated clock.
+	 * @param timerTickMillis - the tick of the process timer in milliseconds.
+	 * @param logger - RoboticsAPI logging interface.
+	 */
+	public Simulation(SimClock clock, long timerTickMillis, ITaskLogger logger)
+	{
+		this.clock = clock;
+		this.timer = new ProcessTimer(clock, timerTickMillis, TIMER_WHEEL_SIZE, logger);
+		this.dispatcher = new ProcessEventDispatcher(clock, logger);
+		this.events = new PriorityQueue<Event>();
+	}
+
+	public SimClock getClock()
+	{
+		return clock;
+	}
+
+	/***
+	 *
+	 * @return the timer the processes schedule their delays on, advanced by the simulation.
+	 */
+	public ProcessTimer getTimer()
+	{
+		return timer;
+	}
+
+	/***
+	 *
+	 * @return the dispatcher the processes are registered with, run by the simulation.
+	 */
+	public ProcessEventDispatcher getDispatcher()
+	{
+		return dispatcher;
+	}
+
+	/***
+	 *
+	 * @return the number of events run since the simulation was created.
+	 */
+	public long getEventCount()
+	{
+		return eventCount;
+	}
+
+	/***
+	 *
+	 * @return the number of process dispatches since the simulation was created.
+	 */
+	public long getDispatchCount()
+	{
+		return dispatchCount;
+	}
+
+	/***
+	 * Schedules an action to be run once the given simulated delay elapsed. Actions due at the same time run in the
+	 * order they were scheduled.
+	 * @param delayMillis - the delay in milliseconds.
+	 * @param action - the action, run on the simulation thread.
+	 */
+	public void schedule(long delayMillis, Runnable action)
+	{
+		long time = clock.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+		events.add(new Event(time, sequence++, action));
+	}
+
+	/***
+	 * Runs the processes and the events for the given simulated time.
+	 * @param millis - the simulated time in milliseconds.
+	 * @throws InterruptedException if interrupted.
+	 */
+	public void runFor(long millis) throws InterruptedException
+	{
+		long end = clock.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+		while (true)
+		{
+			settle();
+			long next = earliest(end, dispatcher.nanosToNextWake());
+			if (clock.nanoTime() - end >= 0)
+			{
+				return;
+			}
+			advanceTo(next);
+		}
+	}
+
+	/***
+	 * Advances the clock by the given simulated time without running the processes, for the work blocking the
+	 * process thread. The events and the timer keep running meanwhile.
+	 * @param millis - the simulated time in milliseconds.
+	 */
+	public void elapse(long millis)
+	{
+		long end = clock.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis));
+		while (clock.nanoTime() - end < 0)
+		{
+			advanceTo(earliest(end, -1));
+		}
+	}
+
+	private void settle() throws InterruptedException
+	{
+		int dispatches = 0;
+		while (dispatcher.dispatch(0) > 0)
+		{
+			dispatchCount++;
+			if (++dispatches > MAX_SETTLE_DISPATCHES)
+			{
+				throw new IllegalStateException(String.format("the processes did not settle after %d dispatches", dispatches));
+			}
+		}
+	}
+
+	// the earliest of the given end, the next event, the next timer expiry and the given process wake delay
+	private long earliest(long end, long nanosToWake)
+	{
+		long now = clock.nanoTime();
+		long next = end;
+		Event head = events.peek();
+		if (head != null && head.time - next < 0)
+		{
+			next = head.time;
+		}
+		long nanosToExpiry = timer.nanosToNextExpiry();
+		if (nanosToExpiry >= 0 && now + nanosToExpiry - next < 0)
+		{
+			next = now + nanosToExpiry;
+		}
+		if (nanosToWake >= 0 && now + nanosToWake - next < 0)
+		{
+			next = now + nanosToWake;
+		}
+		return next;
+	}
+
+	private void advanceTo(long time)
+	{
+		clock.advanceTo(time);
+		Event head;
+		while ((head = events.peek()) != null && head.time - clock.nanoTime() <= 0)
+		{
+			events.poll();
+			eventCount++;
+			head.action.run();
+		}
+		timer.advance();
+	}
+}
@@ -1,28 +1,103 @@
 package robotChemist.interfaces;
 
-import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.kuka.generated.ioAccess.BMSIOGroup;
 import com.kuka.generated.ioAccess.ExternalControlIOGroup;
 import com.kuka.roboticsAPI.applicationModel.IApplicationData;
 import com.kuka.task.ITaskLogger;
 
+import robotChemist.utility.ProcessTimer;
+
 public class BatteryChargeManager 
 {
+	/***
+	 * The battery management system and charging relays of the robot.
+	 */
+	public interface Battery
+	{
+		int getStateOfCharge();
+		
+		int getStatus();
+		
+		boolean getChargingEnable();
+		
+		void setChargingEnable(boolean enable);
+		
+		void setChargingRelayEnable(boolean enable);
+		
+		void setExternalChargingRelayEnabled(boolean enable);
+	}
+	
+	// delay between two steps of switching the charging on or off
+	private static final long SWITCHING_STEP_DELAY = 1000;
 	
 	private ITaskLogger logger;
 	private IApplicationData appData;
 	
-	private BMSIOGroup bms;
-
-	private ExternalControlIOGroup externalControl;
+	private Battery bms;
+	
+	// which of the charging thresholds were crossed at the previous poll, -1 before the first one
+	private int crossedThresholds = -1;
+	
+	private ChargingScheduler chargingScheduler;
+	// set by a charge override until the next charging is done
+	private volatile boolean overrideActive = false;
+	
+	public BatteryChargeManager(final BMSIOGroup bms, final ExternalControlIOGroup externalControl, ITaskLogger logger, IApplicationData appData)
+	{
+		this(new Battery()
+		{
+			@Override
+			public int getStateOfCharge()
+			{
+				return bms.getStateOfCharge();
+			}
+			
+			@Override
+			public int getStatus()
+			{
+				return bms.getStatus();
+			}
+			
+			@Override
+			public boolean getChargingEnable()
+			{
+				return bms.getChargingEnable();
+			}
+			
+			@Override
+			public void setChargingEnable(boolean enable)
+			{
+				bms.setChargingEnable(enable);
+			}
+			
+			@Override
+			public void setChargingRelayEnable(boolean enable)
+			{
+				bms.setChargingRelayEnable(enable);
+			}
+			
+			@Override
+			public void setExternalChargingRelayEnabled(boolean enable)
+			{
+				externalControl.setChargingRelayEnabled(enable);
+			}
+		}, logger, appData);
+	}
 	
-	public BatteryChargeManager(BMSIOGroup bms, ExternalControlIOGroup externalControl, ITaskLogger logger, IApplicationData appData)
+	/***
+	 * Constructs a battery manager for the given battery, e.g. a simulated one.
+	 * @param battery - the battery management system and charging relays.
+	 * @param logger - RoboticsAPI logging interface.
+	 * @param appData - the process data holding the charging thresholds.
+	 */
+	public BatteryChargeManager(Battery battery, ITaskLogger logger, IApplicationData appData)
 	{
 		this.logger = logger;
 		this.appData = appData;
-		this.bms = bms;
-		this.externalControl = externalControl;
+		this.bms = battery;
 	}
 	
 	public int getStateOfCharge()
@@ -30,9 +105,46 @@ public class BatteryChargeManager
 		return bms.getStateOfCharge();
 	}
 	
+	/***
+	 * Makes the given scheduler decide when to charge and up to which charge, from the command backlog and the
+	 * measured discharge rate, instead of the fixed thresholds. Charge overrides still take effect immediately.
+	 * @param chargingScheduler - the charging scheduler.
+	 */
+	public void setChargingScheduler(ChargingScheduler chargingScheduler)
+	{
+		this.chargingScheduler = chargingScheduler;
+	}
+	
 	public boolean isChargingNeeded()
 	{
-		return bms.getStateOfCharge() <= (Integer) appData.getProcessData("tempMinimalChargeBattery").getValue();
+		int stateOfCharge = bms.getStateOfCharge();
+		int minimalCharge = (Integer) appData.getProcessData("tempMinimalChargeBattery").getValue();
+		if (chargingScheduler != null)
+		{
+			chargingScheduler.recordStateOfCharge(stateOfCharge, bms.getChargingEnable());
+			if (!overrideActive)
+			{
+				return chargingScheduler.isChargingNeeded(stateOfCharge, minimalCharge);
+			}
+		}
+		return stateOfCharge <= minimalCharge;
+	}
+	
+	/***
+	 * Chooses the charge at which the charging about to start is done, see
+	 * {@link ChargingScheduler#getChargeTarget(int, int, int)}. Does nothing without a charging scheduler or if the
+	 * charge was overridden.
+	 */
+	public void planChargeTarget()
+	{
+		if (chargingScheduler != null && !overrideActive)
+		{
+			int target = chargingScheduler.getChargeTarget(getStateOfCharge(),
+					(Integer) appData.getProcessData("tempMinimalChargeBattery").getValue(),
+					(Integer) appData.getProcessData("maximalChargeBattery").getValue());
+			appData.getProcessData("tempMaximalChargeBattery").setValue(target);
+			logger.info(String.format("Robot will charge to %d%%", target));
+		}
 	}
 	
 	public boolean isChargingDone()
@@ -40,24 +152,105 @@ public class BatteryChargeManager
 		return bms.getStateOfCharge() > (Integer) appData.getProcessData("tempMaximalChargeBattery").getValue();
 	}
 	
-	public void startCharging() throws InterruptedException 
+	/***
+	 * Samples the state of charge against the charging thresholds, for the callers that want to react when one is
+	 * crossed instead of checking them continuously.
+	 * @return true if charging became needed or done, or the charging process stopped working, since the previous
+	 * call.
+	 */
+	public synchronized boolean pollThresholds()
 	{
-		Thread.sleep(1000);
-		bms.setChargingEnable(true);
-		Thread.sleep(1000);
-		bms.setChargingRelayEnable(true);
-		Thread.sleep(1000);
-		externalControl.setChargingRelayEnabled(true);
+		int crossed = (isChargingNeeded() ? 1 : 0) | (isChargingDone() ? 2 : 0) | (isChargingProcessNotWorking() ? 4 : 0);
+		boolean changed = crossed != crossedThresholds;
+		crossedThresholds = crossed;
+		return changed;
 	}
 	
-	public void stopCharging() throws InterruptedException 
+	/***
+	 * Switches the charging on one step per second, enabling the charging, then the charging relay, then the external
+	 * charging relay, without blocking the caller.
+	 * @param timer - the timer running the steps.
+	 * @param settleMillis - the time to let the charging settle after the last step in milliseconds.
+	 * @return a timeout expiring once the charging is switched on and settled, cancelled if a step failed.
+	 */
+	public ProcessTimer.Timeout startCharging(ProcessTimer timer, long settleMillis)
 	{
-		Thread.sleep(1000);
-		bms.setChargingEnable(false);
-		Thread.sleep(1000);
-		bms.setChargingRelayEnable(false);
-		Thread.sleep(1000);
-		externalControl.setChargingRelayEnabled(false);
+		return switchCharging(timer, true, settleMillis);
+	}
+	
+	/***
+	 * Switches the charging off one step per second, in the same order as it is switched on, without blocking the
+	 * caller.
+	 * @param timer - the timer running the steps.
+	 * @return a timeout expiring once the charging is switched off, cancelled if a step failed.
+	 */
+	public ProcessTimer.Timeout stopCharging(ProcessTimer timer)
+	{
+		return switchCharging(timer, false, 0);
+	}
+	
+	private ProcessTimer.Timeout switchCharging(ProcessTimer timer, final boolean enable, long settleMillis)
+	{
+		// the timer expires timeouts in deadline order, then scheduling order, so the steps run in sequence and before
+		// the returned timeout scheduled after them
+		final AtomicReference<ProcessTimer.Timeout> switched = new AtomicReference<ProcessTimer.Timeout>();
+		// a step may run before the returned timeout is scheduled, e.g. after a pause of the scheduling thread, so a
+		// failure is recorded for the timeout to be cancelled by whichever side comes last
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		for (int i = 1; i <= 3; i++)
+		{
+			final int step = i;
+			timer.schedule(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					ProcessTimer.Timeout timeout = switched.get();
+					if (failed.get() || (timeout != null && timeout.isCancelled()))
+					{
+						return;
+					}
+					try
+					{
+						switchChargingStep(step, enable);
+					}
+					catch (RuntimeException e)
+					{
+						// the remaining steps are skipped and the caller sees the switching cancelled
+						failed.set(true);
+						timeout = switched.get();
+						if (timeout != null)
+						{
+							timeout.cancel();
+						}
+						throw e;
+					}
+				}
+			}, step*SWITCHING_STEP_DELAY);
+		}
+		ProcessTimer.Timeout timeout = timer.schedule(null, 3*SWITCHING_STEP_DELAY + settleMillis);
+		switched.set(timeout);
+		if (failed.get())
+		{
+			timeout.cancel();
+		}
+		return timeout;
+	}
+	
+	private void switchChargingStep(int step, boolean enable)
+	{
+		if (step == 1)
+		{
+			bms.setChargingEnable(enable);
+		}
+		else if (step == 2)
+		{
+			bms.setChargingRelayEnable(enable);
+		}
+		else
+		{
+			bms.setExternalChargingRelayEnabled(enable);
+		}
 	}
 	
 	public boolean isChargingProcessNotWorking() 
@@ -65,13 +258,16 @@ public class BatteryChargeManager
 		return bms.getStatus() == 2 && bms.getChargingEnable() && bms.getStateOfCharge() < 50;
 	}
 	
+	/***
+	 * Resets the charging thresholds to the configured minimal and maximal charge once charging is done, ending any
+	 * charge override. When to charge next is then left to the charging scheduler, if any.
+	 */
 	public void updateChargingProcessData()
 	{
-		Random rand = new Random();
-		int newMaximalCharge = (Integer) appData.getProcessData("maximalChargeBattery").getValue() + (int) Math.floor(rand.nextDouble() * 11d - 5d);
-		appData.getProcessData("tempMaximalChargeBattery").setValue(newMaximalCharge);
-		int newTempMinimalCharge = Math.min(99,(Integer) appData.getProcessData("minimalChargeBattery").getValue() + (int) Math.floor(rand.nextDouble() * 11d - 5d));
+		appData.getProcessData("tempMaximalChargeBattery").setValue(appData.getProcessData("maximalChargeBattery").getValue());
+		int newTempMinimalCharge = Math.min(99,(Integer) appData.getProcessData("minimalChargeBattery").getValue());
 		appData.getProcessData("tempMinimalChargeBattery").setValue(newTempMinimalCharge);
+		overrideActive = false;
 	}
 	
 	public boolean forceStartCharging(int targetMaxCharge)
@@ -83,6 +279,7 @@ public class BatteryChargeManager
 			logger.info(String.format("Charge override command received. Robot will charge to %d%%", targetMaxCharge));
 			appData.getProcessData("tempMaximalChargeBattery").setValue(targetMaxCharge);
 			appData.getProcessData("tempMinimalChargeBattery").setValue(getStateOfCharge()+1);
+			overrideActive = true;
 			chargeOverriden = true;
 		}
 		else
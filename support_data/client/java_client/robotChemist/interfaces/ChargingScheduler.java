@@ -0,0 +1,293 @@
+package robotChemist.interfaces;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.kuka.task.ITaskLogger;
+
+import robotChemist.nodes.LBRArchmQNode;
+import robotChemist.utility.LBRTask;
+import robotChemist.utility.LBRTaskMonitor;
+import robotChemist.utility.ProcessClock;
+
+/***
+ * Decides when the robot charges and up to which state of charge from the command backlog, the measured discharge
+ * rate and the measured task durations, in place of fixed thresholds. Set on the {@link BatteryChargeManager}, it
+ * moves the charging into the idle windows of the workflow:
+ * <ul>
+ * <li>while commands are waiting, charging at the minimal charge is deferred as long as the backlog can be completed
+ * without dropping more than {@link #MAX_DEFERRAL} percent below it, and the charge target is lowered to what the
+ * backlog needs so that the robot is back sooner;</li>
+ * <li>once the robot has been idle for {@link #IDLE_WINDOW}, it charges up to {@link #OPPORTUNISTIC_MARGIN} percent
+ * above the minimal charge, to the maximal charge.</li>
+ * </ul>
+ * The state of charge never drops more than {@link #MAX_DEFERRAL} percent below the minimal charge before charging.
+ * @author stoic-roboticist
+ *
+ */
+public class ChargingScheduler
+{
+	/***
+	 * The source of the commands waiting to be executed.
+	 */
+	public interface Backlog
+	{
+		/***
+		 *
+		 * @return the task names of the waiting commands, the next one first.
+		 */
+		List<String> getPendingTaskNames();
+	}
+
+	/***
+	 * The largest number of percents the state of charge may drop below the minimal charge while charging is deferred.
+	 */
+	public static final int MAX_DEFERRAL = 5;
+	/***
+	 * The number of percents above the minimal charge below which an idle robot charges.
+	 */
+	public static final int OPPORTUNISTIC_MARGIN = 10;
+	/***
+	 * The time the robot must have been idle before charging opportunistically, in milliseconds.
+	 */
+	public static final long IDLE_WINDOW = 2*60*1000;
+
+	// assumed until measured
+	private static final double DEFAULT_DISCHARGE_RATE = 15.0;
+	private static final long DEFAULT_TASK_DURATION = 3*60*1000;
+	// weight of a new sample in the moving averages
+	private static final double SMOOTHING = 0.2;
+	// charge kept on top of the needs of the backlog when charging to a lowered target
+	private static final int TARGET_MARGIN = 10;
+	private static final double HOUR = TimeUnit.HOURS.toNanos(1);
+
+	private final Backlog backlog;
+	private final ProcessClock clock;
+
+	// in percent per hour
+	private double dischargeRate = DEFAULT_DISCHARGE_RATE;
+	private int lastLevel = -1;
+	private long lastLevelTime;
+
+	private double meanTaskDuration = DEFAULT_TASK_DURATION;
+	private Map<String, Double> meanTaskDurations;
+	private LBRTask runningTask;
+	private long runningTaskStart;
+	private long idleSince;
+	private boolean deferring = false;
+
+	private ITaskLogger logger;
+
+	/***
+	 * Constructs a scheduler for the commands queued by the given node.
+	 * @param lbrNode - the ROS node receiving the commands.
+	 * @param logger - RoboticsAPI logging interface.
+	 */
+	public ChargingScheduler(final LBRArchmQNode lbrNode, ITaskLogger logger)
+	{
+		this(new Backlog()
+		{
+			@Override
+			public List<String> getPendingTaskNames()
+			{
+				List<String> names = new ArrayList<String>();
+				for (kmriiwa_chemist_msgs.LBRCommand cmd : lbrNode.getCommandBacklog())
+				{
+					names.add(cmd.getTaskName());
+				}
+				return names;
+			}
+		}, ProcessClock.SYSTEM, logger);
+	}
+
+	/***
+	 * Constructs a scheduler.
+	 * @param backlog - the source of the waiting commands.
+	 * @param clock - the time source, e.g. a simulated clock.
+	 * @param logger - RoboticsAPI logging interface.
+	 */
+	public ChargingScheduler(Backlog backlog, ProcessClock clock, ITaskLogger logger)
+	{
+		this.backlog = backlog;
+		this.clock = clock;
+		this.meanTaskDurations = new HashMap<String, Double>();
+		this.idleSince = clock.nanoTime();
+		this.logger = logger;
+	}
+
+	/***
+	 * Measures the durations of the tasks executed through the given task monitor.
+	 * @param taskMonitor - the task monitor shared by the processes.
+	 */
+	public void watch(LBRTaskMonitor taskMonitor)
+	{
+		taskMonitor.addListener(new LBRTaskMonitor.Listener()
+		{
+			@Override
+			public void onTaskChanged(LBRTask task)
+			{
+				taskChanged(task);
+			}
+		});
+	}
+
+	/***
+	 * Records a sample of the state of charge, from which the discharge rate is measured while not charging.
+	 * @param stateOfCharge - the state of charge in percent.
+	 * @param charging - true if the battery is being charged.
+	 */
+	public synchronized void recordStateOfCharge(int stateOfCharge, boolean charging)
+	{
+		long now = clock.nanoTime();
+		if (!charging && lastLevel >= 0 && stateOfCharge < lastLevel)
+		{
+			// the state of charge is reported in whole percents, so the rate is measured between two drops
+			double rate = (lastLevel - stateOfCharge) * HOUR / Math.max(1, now - lastLevelTime);
+			dischargeRate += SMOOTHING * (rate - dischargeRate);
+		}
+		if (charging || stateOfCharge != lastLevel)
+		{
+			lastLevel = stateOfCharge;
+			lastLevelTime = now;
+		}
+	}
+
+	/***
+	 * Decides whether the robot should go charging now.
+	 * @param stateOfCharge - the state of charge in percent.
+	 * @param minimalCharge - the minimal charge in percent.
+	 * @return true if the robot should charge.
+	 */
+	public synchronized boolean isChargingNeeded(int stateOfCharge, int minimalCharge)
+	{
+		if (stateOfCharge <= minimalCharge - MAX_DEFERRAL)
+		{
+			return true;
+		}
+		if (isBusy())
+		{
+			if (stateOfCharge > minimalCharge)
+			{
+				return false;
+			}
+			// defer as long as the backlog can be completed above the deferral limit
+			boolean defer = stateOfCharge - getBacklogCharge() > minimalCharge - MAX_DEFERRAL;
+			if (defer != deferring)
+			{
+				deferring = defer;
+				if (defer)
+				{
+					logger.info(String.format("Charging deferred at %d%%: %d commands waiting", stateOfCharge, backlog.getPendingTaskNames().size()));
+				}
+			}
+			return !defer;
+		}
+		deferring = false;
+		if (stateOfCharge <= minimalCharge)
+		{
+			return true;
+		}
+		if (stateOfCharge <= minimalCharge + OPPORTUNISTIC_MARGIN && clock.nanoTime() - idleSince >= TimeUnit.MILLISECONDS.toNanos(IDLE_WINDOW))
+		{
+			logger.info(String.format("Charging in an idle window at %d%%", stateOfCharge));
+			return true;
+		}
+		return false;
+	}
+
+	/***
+	 * Chooses the state of charge up to which the robot charges: the maximal charge if idle, otherwise enough to
+	 * complete the backlog with a margin, so that the robot is back to the waiting commands sooner.
+	 * @param stateOfCharge - the state of charge in percent.
+	 * @param minimalCharge - the minimal charge in percent.
+	 * @param maximalCharge - the maximal charge in percent.
+	 * @return the charge target in percent.
+	 */
+	public synchronized int getChargeTarget(int stateOfCharge, int minimalCharge, int maximalCharge)
+	{
+		if (!isBusy())
+		{
+			return maximalCharge;
+		}
+		int needed = minimalCharge + (int) Math.ceil(getBacklogCharge()) + TARGET_MARGIN;
+		return Math.min(maximalCharge, Math.max(needed, Math.max(stateOfCharge, minimalCharge) + TARGET_MARGIN));
+	}
+
+	/***
+	 *
+	 * @return the measured discharge rate in percent per hour.
+	 */
+	public synchronized double getDischargeRate()
+	{
+		return dischargeRate;
+	}
+
+	/***
+	 *
+	 * @return the time needed to execute the waiting commands and the rest of the running task in milliseconds.
+	 */
+	public synchronized long getBacklogMillis()
+	{
+		double millis = 0;
+		for (String name : backlog.getPendingTaskNames())
+		{
+			millis += getMeanTaskDuration(name);
+		}
+		if (runningTask != null)
+		{
+			long elapsed = TimeUnit.NANOSECONDS.toMillis(clock.nanoTime() - runningTaskStart);
+			millis += Math.max(0, getMeanTaskDuration(runningTask.getName()) - elapsed);
+		}
+		return (long) millis;
+	}
+
+	/***
+	 * Gets the measured duration of a task.
+	 * @param taskName - the name of the task.
+	 * @return the mean duration of the task in milliseconds, or of all the tasks if it was never executed.
+	 */
+	public synchronized double getMeanTaskDuration(String taskName)
+	{
+		Double mean = meanTaskDurations.get(taskName);
+		return mean != null ? mean : meanTaskDuration;
+	}
+
+	private double getBacklogCharge()
+	{
+		return dischargeRate * TimeUnit.MILLISECONDS.toNanos(getBacklogMillis()) / HOUR;
+	}
+
+	private boolean isBusy()
+	{
+		return runningTask != null || !backlog.getPendingTaskNames().isEmpty();
+	}
+
+	private synchronized void taskChanged(LBRTask task)
+	{
+		long now = clock.nanoTime();
+		if (task != null && task.getStatus() == kmriiwa_chemist_msgs.TaskStatus.EXECUTING)
+		{
+			if (runningTask != task)
+			{
+				runningTask = task;
+				runningTaskStart = now;
+			}
+			return;
+		}
+		if (runningTask != null && task == runningTask)
+		{
+			if (task.getStatus() == kmriiwa_chemist_msgs.TaskStatus.FINISHED)
+			{
+				double duration = TimeUnit.NANOSECONDS.toMillis(now - runningTaskStart);
+				Double mean = meanTaskDurations.get(task.getName());
+				meanTaskDurations.put(task.getName(), mean != null ? mean + SMOOTHING * (duration - mean) : duration);
+				meanTaskDuration += SMOOTHING * (duration - meanTaskDuration);
+			}
+			runningTask = null;
+			idleSince = now;
+		}
+	}
+}
@@ -1,43 +1,74 @@
 package robotChemist.net;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.util.Iterator;
-import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 
 import com.kuka.task.ITaskLogger;
 
 /***
  * This class allows asynchronous communication with an AsyncJobServer using sockets such that jobs messages 
- * can be exchanged between the arm and the base easily and with no blocking.
+ * can be exchanged between the arm and the base easily and with no blocking. Once the server answered the protocol
+ * negotiation, the client sends periodic heartbeats to detect a dead server, and it reconnects automatically with an
+ * exponential backoff whenever the connection is lost. 
+ * Messages sent while disconnected are kept and written once the connection is re-established. The socket is served by
+ * a {@link JobEventLoop} that can be shared with other endpoints through a {@link JobEventLoopGroup}.
  * @author stoic-roboticist
  *
  */
-public class AsyncJobClient {
+public class AsyncJobClient implements JobChannel {
 	
+	private static final long DEFAULT_HEARTBEAT_INTERVAL = 1000;
+	private static final long DEFAULT_DEAD_PEER_TIMEOUT = 5000;
+	private static final long DEFAULT_MIN_RECONNECT_DELAY = 100;
+	private static final long DEFAULT_MAX_RECONNECT_DELAY = 10000;
+	private static final long NEGOTIATION_TIMEOUT = 1000;
+	
+	private InetSocketAddress serverAddress;
 	private SocketChannel client;
-	private Selector selector;
-	private ByteBuffer outBuffer;
-	private ByteBuffer inBuffer;
+	private SelectionKey clientKey;
+	private volatile JobEventLoopGroup group;
+	private volatile JobEventLoop loop;
+	private JobEventHandler handler;
+	
+	private JobInboundQueue inBoundMsgQueue;
+	private JobOutboundQueue outBoundMsgQueue;
+	private JobRequestTracker requestTracker;
+	private JobDispatcher dispatcher;
+	private JobJournal journal;
+	private ConcurrentSkipListMap<Long, JobMsg> journaledRequests;
+	private List<JobFuture> recoveredRequests;
 	
-	private LinkedBlockingQueue<JobMsg> inBoundMsgQueue;
-	private JobMsg outMessage;
-	private ExecutorService thread;
+	private volatile boolean running = false;
+	private boolean stopped = false;
+	private volatile boolean connected = false;
 	
-	private boolean running = false;
-	private boolean connected = false;
+	private JobStreamDecoder decoder;
+	private List<JobMsg> normalInbound;
 	
-	private JobEncoder encoder;
-	private JobDecoder decoder;
+	private volatile long heartbeatInterval = DEFAULT_HEARTBEAT_INTERVAL;
+	private volatile long deadPeerTimeout = DEFAULT_DEAD_PEER_TIMEOUT;
+	private volatile long minReconnectDelay = DEFAULT_MIN_RECONNECT_DELAY;
+	private volatile long maxReconnectDelay = DEFAULT_MAX_RECONNECT_DELAY;
+	// only accessed by the event loop thread, all in System.nanoTime() milliseconds
+	private long lastReceived;
+	private long lastHeartbeat;
+	private long reconnectAt = -1;
+	private long reconnectDelay;
+	private long negotiationDeadline = -1;
+	private volatile int protocolVersion = JobControl.PROTOCOL_V1;
+	private volatile int maxProtocolVersion = JobControl.PROTOCOL_V1;
+	// set once the server failed to answer the negotiation, only accessed by the event loop thread
+	private boolean legacyServer = false;
+	// set once the server answered the negotiation and thus echoes heartbeats, only accessed by the event loop thread
+	private boolean heartbeatsSupported = false;
 	
 	private ITaskLogger logger;
 	
@@ -50,78 +81,187 @@ public class AsyncJobClient {
 	 */
 	public AsyncJobClient(String remoteAddr, int port, ITaskLogger logger) throws IOException
 	{
-		this.selector = Selector.open();
-		this.client = SocketChannel.open();
-		client.configureBlocking(false);
-		client.connect(new InetSocketAddress(remoteAddr, port));
-		client.register(this.selector, SelectionKey.OP_CONNECT | SelectionKey.OP_READ);
-		this.thread = Executors.newSingleThreadExecutor();
-		this.inBuffer = ByteBuffer.allocate(256);
-		this.outBuffer = ByteBuffer.allocate(256);
-		inBoundMsgQueue = new LinkedBlockingQueue<JobMsg>(); 
+		this(remoteAddr, port, logger, JobEventLoopGroup.acquireDefault(logger));
+	}
+	
+	/***
+	 * Constructs the AsyncJobClient object using the AsyncJobServer TCP/IP information, with its requests made durable
+	 * in the journal stored in the given file, see {@link #setJournal(JobJournal)}. The requests left pending by the
+	 * previous run are recovered at once, so they can be handed over to the process checkpoint before the processes
+	 * are run.
+	 * @param remoteAddr - the AsyncJobServer TCP/IP address.
+	 * @param port - the AsyncJobServer TCP/IP port.
+	 * @param journalFile - the journal file, created if needed.
+	 * @param logger - RoboticsAPI logging interface.
+	 * @throws IOException if any of the underlying {@link SocketChannel} methods fail or the journal cannot be opened.
+	 */
+	public AsyncJobClient(String remoteAddr, int port, File journalFile, ITaskLogger logger) throws IOException
+	{
+		this(remoteAddr, port, logger);
+		setJournal(new JobJournal(journalFile));
+	}
+	
+	/***
+	 * Constructs the AsyncJobClient object using the AsyncJobServer TCP/IP information, served by one of the event
+	 * loops of the given group.
+	 * @param remoteAddr - the AsyncJobServer TCP/IP address.
+	 * @param port - the AsyncJobServer TCP/IP port.
+	 * @param logger - RoboticsAPI logging interface.
+	 * @param group - the event loops shared with other endpoints.
+	 */
+	public AsyncJobClient(String remoteAddr, int port, ITaskLogger logger, JobEventLoopGroup group)
+	{
+		this.serverAddress = new InetSocketAddress(remoteAddr, port);
+		this.group = group;
+		this.loop = group.next();
+		inBoundMsgQueue = new JobInboundQueue();
+		outBoundMsgQueue = new JobOutboundQueue();
+		requestTracker = new JobRequestTracker();
+		dispatcher = new JobDispatcher(logger);
+		journaledRequests = new ConcurrentSkipListMap<Long, JobMsg>();
+		recoveredRequests = new ArrayList<JobFuture>();
 		this.logger = logger;
-		this.encoder = new JobEncoder();
-		this.decoder = new JobDecoder();
+		this.decoder = new JobStreamDecoder();
+		this.normalInbound = new ArrayList<JobMsg>();
+		this.reconnectDelay = minReconnectDelay;
+		this.handler = new JobEventHandler()
+		{
+			@Override
+			public void handleKey(SelectionKey key) 
+			{
+				handleSelectedKey(key);
+			}
+
+			@Override
+			public long beforeSelect() 
+			{
+				requestTracker.expire(System.nanoTime());
+				inBoundMsgQueue.evictExpired(System.nanoTime());
+				checkConnection();
+				if (connected && outBoundMsgQueue.isFlushRequested())
+				{
+					clientKey.interestOps(clientKey.interestOps() | SelectionKey.OP_WRITE);
+				}
+				return millisToNextEvent();
+			}
+		};
+	}
+	
+	/***
+	 * Configures the keepalive heartbeats. Any message received from the server counts as a sign of life; if nothing is
+	 * received for the given timeout the connection is considered dead and is re-established. Heartbeats are only sent
+	 * on connections where the server answered the protocol negotiation, servers talked to with version 1 without
+	 * negotiation do not echo them and are never probed.
+	 * @param intervalMillis - the period between heartbeats in milliseconds, or 0 to disable heartbeats.
+	 * @param deadPeerTimeoutMillis - the silence in milliseconds after which the server is considered dead.
+	 */
+	public void setHeartbeat(long intervalMillis, long deadPeerTimeoutMillis)
+	{
+		this.heartbeatInterval = intervalMillis;
+		this.deadPeerTimeout = deadPeerTimeoutMillis;
+		loop.wakeup();
+	}
+	
+	/***
+	 * Configures the exponential backoff used between reconnection attempts.
+	 * @param minDelayMillis - the delay before the first attempt in milliseconds.
+	 * @param maxDelayMillis - the upper bound the delay doubles up to in milliseconds.
+	 */
+	public void setReconnectBackoff(long minDelayMillis, long maxDelayMillis)
+	{
+		this.minReconnectDelay = minDelayMillis;
+		this.maxReconnectDelay = maxDelayMillis;
+	}
+	
+	/***
+	 * Makes every request sent with {@link #sendRequest(JobMsg, JobMsg, long)} durable by recording it in the given 
+	 * journal until its reply is received. Requests left pending by a previous run are registered again and replayed
+	 * once connected, see {@link #getRecoveredRequests()}. Unacknowledged requests are also replayed after every 
+	 * reconnection, so the server may receive a request more than once and must tolerate repeated requests that are
+	 * not idempotent, such as "goto_charge". Cancelled requests, e.g. by {@link #stop()}, 
+	 * are no longer replayed but stay in the journal for the next run. Must be called before {@link #start()}.
+	 * @param journal - the journal to record requests in.
+	 */
+	public void setJournal(JobJournal journal)
+	{
+		this.journal = journal;
+		requestTracker.reserveCorrelationIds(journal.getMaxCorrelationId());
+		for (JobJournal.Entry entry : journal.getRecoveredEntries())
+		{
+			JobFuture future = requestTracker.registerRecovered(entry.getRequest(), entry.getExpectedReply());
+			trackJournalEntry(future, entry.getSeq());
+			recoveredRequests.add(future);
+			logger.info(String.format("recovered pending request from the job journal: %s", entry.getRequest()));
+		}
+	}
+	
+	/***
+	 * Gets the futures of the requests recovered from the journal when it was set, so that the application can 
+	 * resume waiting for their replies.
+	 * @return the recovered request futures in the order they were originally sent.
+	 */
+	public List<JobFuture> getRecoveredRequests()
+	{
+		return new ArrayList<JobFuture>(recoveredRequests);
+	}
+	
+	/***
+	 * Sets the highest job protocol version offered to the server on the next connection. By default version 1 is used
+	 * without negotiation, since legacy servers take the negotiation message for a job and do not serve reconnections.
+	 * Only servers that negotiate, such as {@link AsyncJobServer}, should be offered version 2. Messages are held until
+	 * the server answered the negotiation; a server that does not answer within a second is disconnected and talked to
+	 * with version 1 from the next connection on, until the client is started again, so that both sides never disagree
+	 * on the format of a live connection.
+	 * @param version - the highest protocol version to be used, 1 or 2.
+	 */
+	public void setMaxProtocolVersion(int version)
+	{
+		this.maxProtocolVersion = Math.max(JobControl.PROTOCOL_V1, Math.min(version, JobControl.PROTOCOL_LATEST));
+	}
+	
+	/***
+	 * 
+	 * @return the job protocol version negotiated for the current connection.
+	 */
+	public int getProtocolVersion()
+	{
+		return protocolVersion;
 	}
 	
 	/***
 	 * Start communicating with the AsyncJobServer such that messages can be exchanged.
-	 * This method launches a separate thread to handle the connection.
+	 * The connection is handled by the event loop thread the client is bound to.
 	 */
 	public void start()
 	{
+		if (!rebind())
+		{
+			return;
+		}
 		running = true;
-		thread.execute(new Runnable() 
+		loop.attach(handler);
+		loop.execute(new Runnable()
 		{
-
 			@Override
-			public void run() {
-				do
+			public void run() 
+			{
+				legacyServer = false;
+				try
 				{
-					try 
-					{
-						if (selector.select() <= 0)
-						{
-							continue;
-						}
-						Set<SelectionKey> selectedKeys = selector.selectedKeys();
-			            Iterator<SelectionKey> iter = selectedKeys.iterator();
-			            while (iter.hasNext())
-			            {
-			            	SelectionKey key = iter.next();
-			            	if (key.isConnectable())
-			            	{
-			            		establishConnection(key);
-			            	}
-			            	if (key.isReadable())
-			            	{
-			            		SocketChannel sc = (SocketChannel) key.channel();
-			            		if (sc == client)
-			            		{
-			            			readMessageFromBuffer();
-			            		}
-			            	}
-			            	iter.remove();
-			            }
-					}
-					catch (IOException e)
-					{
-						logger.error(e.getMessage());
-						running = false;
-					}
-					catch (InterruptedException e)
-					{
-						logger.error(e.getMessage());
-						running = false;
-					}
+					openConnection();
+				}
+				catch (IOException e)
+				{
+					logger.error(e.getMessage());
+					closeConnection();
 				}
-				while(running && connected);
 			}
 		});
 	}
 	
 	/***
-	 * Terminates the connection with the AsyncJobServer and stops the connection thread.
+	 * Terminates the connection with the AsyncJobServer. The event loop is woken up so this method returns as soon 
+	 * as the socket is closed.
 	 * This method has to be called when terminating any application using the AsyncJobClient class. If the client
 	 * is already terminated then this method does nothing.
 	 * @throws InterruptedException
@@ -131,65 +271,444 @@ public class AsyncJobClient {
 	{
 		running = false;
 		connected = false;
-		if (!thread.awaitTermination(5, TimeUnit.SECONDS))
+		loop.executeAndWait(new Runnable()
+		{
+			@Override
+			public void run() 
+			{
+				loop.detach(handler);
+				if (client != null)
+				{
+					try
+					{
+						client.close();
+					}
+					catch (IOException e)
+					{
+						logger.error(e.getMessage());
+					}
+				}
+			}
+		});
+		requestTracker.cancelAll();
+		release();
+	}
+	
+	// a client started again after being stopped is bound to a loop anew, its group may have been shut down meanwhile
+	private synchronized boolean rebind()
+	{
+		if (stopped)
 		{
-			thread.shutdownNow();
+			try
+			{
+				group = JobEventLoopGroup.reacquire(group, logger);
+			}
+			catch (IOException e)
+			{
+				logger.error(e.getMessage());
+				return false;
+			}
+			loop = group.next();
+			stopped = false;
+		}
+		return true;
+	}
+
+	private synchronized void release()
+	{
+		if (!stopped)
+		{
+			stopped = true;
+			loop.unbind();
+			JobEventLoopGroup.releaseDefault(group);
+		}
+	}
+	
+	private void handleSelectedKey(SelectionKey key)
+	{
+		try
+		{
+			handleKey(key);
+		}
+		catch (IOException e)
+		{
+			logger.error(e.getMessage());
+			closeConnection();
+		}
+	}
+	
+	private void handleKey(SelectionKey key) throws IOException
+	{
+		if (key.channel() != client || !key.isValid())
+		{
+			return;
+		}
+		if (key.isConnectable())
+		{
+			establishConnection(key);
+		}
+		if (key.isValid() && key.isReadable())
+		{
+			readMessageFromBuffer();
+		}
+		if (key.isValid() && key.isWritable())
+		{
+			sendMessagesFromQueue();
+		}
+	}
+	
+	private void openConnection() throws IOException
+	{
+		client = SocketChannel.open();
+		JobEventLoop.configureSocket(client);
+		boolean connectedImmediately = client.connect(serverAddress);
+		clientKey = loop.register(client, SelectionKey.OP_CONNECT | SelectionKey.OP_READ, handler);
+		if (connectedImmediately)
+		{
+			establishConnection(clientKey);
 		}
-		client.close();
 	}
 	
 	private void establishConnection(SelectionKey key) throws IOException
 	{
 		logger.info("establishing connection");
-		client = (SocketChannel) key.channel();
-		while (client.isConnectionPending()) 
+		if (!client.finishConnect())
 		{
-			client.finishConnect();
-         }
+			return;
+		}
+		key.interestOps(SelectionKey.OP_READ);
 		connected = true;
+		reconnectDelay = minReconnectDelay;
+		lastReceived = nowMillis();
+		lastHeartbeat = lastReceived;
 		logger.info("connection complete");
+		protocolVersion = JobControl.PROTOCOL_V1;
+		if (maxProtocolVersion > JobControl.PROTOCOL_V1 && !legacyServer)
+		{
+			// regular messages wait until the server answered so that they are encoded with the agreed version
+			outBoundMsgQueue.sendHandshake(new JobMsg(JobControl.HELLO, JobControl.hello(maxProtocolVersion, JobOpcodes.count())));
+			outBoundMsgQueue.setHeld(true);
+			negotiationDeadline = lastReceived + NEGOTIATION_TIMEOUT;
+		}
+		replayJournal();
+		if (outBoundMsgQueue.isFlushRequested())
+		{
+			key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+		}
+	}
+	
+	private void replayJournal()
+	{
+		for (Map.Entry<Long, JobMsg> entry : journaledRequests.entrySet())
+		{
+			if (journal.isPending(entry.getKey()) && !outBoundMsgQueue.isQueued(entry.getValue()))
+			{
+				logger.info(String.format("replaying unacknowledged request: %s", entry.getValue()));
+				outBoundMsgQueue.enqueue(entry.getValue());
+			}
+		}
+	}
+	
+	private void trackJournalEntry(JobFuture future, final long seq)
+	{
+		journaledRequests.put(seq, future.getRequest());
+		future.addListener(new JobFuture.Listener()
+		{
+			@Override
+			public void onComplete(JobFuture future) 
+			{
+				// no future waits for the reply of a cancelled request anymore, so it is no longer replayed by this 
+				// client; it stays in the journal file and is only registered again when recovered by the next run
+				journaledRequests.remove(seq);
+				if (!future.isCancelled())
+				{
+					journal.acknowledge(seq);
+				}
+			}
+		});
+	}
+	
+	private void closeConnection()
+	{
+		if (connected)
+		{
+			logger.warn(String.format("connection to the AsyncJobServer lost, reconnecting in %d ms", reconnectDelay));
+		}
+		connected = false;
+		try
+		{
+			if (client != null)
+			{
+				client.close();
+			}
+		}
+		catch (IOException e)
+		{
+			logger.error(e.getMessage());
+		}
+		decoder.reset();
+		// a partially written message is sent again in full on the next connection
+		outBoundMsgQueue.rewind();
+		negotiationDeadline = -1;
+		heartbeatsSupported = false;
+		protocolVersion = JobControl.PROTOCOL_V1;
+		reconnectAt = nowMillis() + reconnectDelay;
+		reconnectDelay = Math.min(reconnectDelay * 2, maxReconnectDelay);
+	}
+	
+	private void checkConnection()
+	{
+		long now = nowMillis();
+		if (connected && negotiationDeadline >= 0 && now - negotiationDeadline >= 0)
+		{
+			// a slow server may still switch to the new version on this connection, so it is not used any further
+			logger.warn("AsyncJobServer did not answer the protocol negotiation, reconnecting with job protocol version 1");
+			legacyServer = true;
+			reconnectDelay = minReconnectDelay;
+			closeConnection();
+			return;
+		}
+		if (connected)
+		{
+			if (isHeartbeatEnabled() && now - lastReceived > deadPeerTimeout)
+			{
+				logger.warn(String.format("no message received from the AsyncJobServer for %d ms", now - lastReceived));
+				closeConnection();
+			}
+			else if (isHeartbeatEnabled() && now - lastHeartbeat >= heartbeatInterval)
+			{
+				lastHeartbeat = now;
+				outBoundMsgQueue.enqueue(new JobMsg(JobControl.HEARTBEAT, 0));
+				clientKey.interestOps(clientKey.interestOps() | SelectionKey.OP_WRITE);
+			}
+		}
+		else if (reconnectAt >= 0 && now - reconnectAt >= 0)
+		{
+			reconnectAt = -1;
+			try
+			{
+				openConnection();
+			}
+			catch (IOException e)
+			{
+				logger.error(e.getMessage());
+				closeConnection();
+			}
+		}
 	}
 	
-	private void readMessageFromBuffer() throws IOException, InterruptedException
+	private void finishNegotiation(int helloCode)
+	{
+		int version = JobControl.versionOf(helloCode);
+		negotiationDeadline = -1;
+		protocolVersion = version;
+		// the server answers in the old format and switches right after its reply
+		decoder.setVersion(version);
+		outBoundMsgQueue.setVersion(version);
+		outBoundMsgQueue.setPeerOpcodeCount(JobControl.opcodeCountOf(helloCode));
+		outBoundMsgQueue.setHeld(false);
+		clientKey.interestOps(clientKey.interestOps() | SelectionKey.OP_WRITE);
+		// servers answering the negotiation also echo heartbeats
+		heartbeatsSupported = true;
+		lastHeartbeat = nowMillis();
+		if (version > JobControl.PROTOCOL_V1)
+		{
+			logger.info(String.format("using job protocol version %d", version));
+		}
+	}
+	
+	private boolean isHeartbeatEnabled()
+	{
+		return heartbeatInterval > 0 && heartbeatsSupported;
+	}
+	
+	private long millisToNextEvent()
+	{
+		long now = nowMillis();
+		long timeout = requestTracker.millisToNextDeadline(System.nanoTime());
+		timeout = earliest(timeout, inBoundMsgQueue.millisToNextExpiry(System.nanoTime()));
+		if (connected && isHeartbeatEnabled())
+		{
+			timeout = earliest(timeout, Math.max(1, lastHeartbeat + heartbeatInterval - now));
+			timeout = earliest(timeout, Math.max(1, lastReceived + deadPeerTimeout + 1 - now));
+		}
+		if (connected && negotiationDeadline >= 0)
+		{
+			timeout = earliest(timeout, Math.max(1, negotiationDeadline - now));
+		}
+		else if (!connected && reconnectAt >= 0)
+		{
+			timeout = earliest(timeout, Math.max(1, reconnectAt - now));
+		}
+		return timeout;
+	}
+	
+	private static long earliest(long timeout, long candidate)
+	{
+		if (candidate == 0)
+		{
+			return timeout;
+		}
+		return timeout == 0 ? candidate : Math.min(timeout, candidate);
+	}
+	
+	private static long nowMillis()
+	{
+		return System.nanoTime() / 1000000;
+	}
+	
+	private void readMessageFromBuffer() throws IOException
 	{
 		synchronized(this)
 		{
-			inBuffer.clear();
-			int inLength = client.read(inBuffer);
-			inBuffer.flip();
+			int inLength = decoder.readFrom(client);
 			if (inLength > 0)
 			{
-				JobMsg inMessage = decoder.decode(inBuffer);
-				inBoundMsgQueue.put(inMessage);
+				lastReceived = nowMillis();
+			}
+			// urgent messages are handed over as soon as decoded, the normal ones once the whole read is decoded
+			JobMsg inMessage = decoder.nextMessage();
+			while (inMessage != null)
+			{
+				if (JobPriority.of(inMessage) == JobPriority.URGENT)
+				{
+					handleMessage(inMessage);
+				}
+				else
+				{
+					normalInbound.add(inMessage);
+				}
+				inMessage = decoder.nextMessage();
+			}
+			for (JobMsg msg : normalInbound)
+			{
+				handleMessage(msg);
+			}
+			normalInbound.clear();
+			if (inLength < 0)
+			{
+				logger.warn("connection closed by the AsyncJobServer");
+				closeConnection();
 			}
 		}
 	}
 	
-	private void sendMessageFromBuffer() throws IOException
+	private void handleMessage(JobMsg inMessage)
+	{
+		if (negotiationDeadline >= 0 && JobControl.HELLO.equals(inMessage.getJobInfo()))
+		{
+			finishNegotiation(inMessage.getJobCode());
+		}
+		else if (inMessage.getJobInfo().startsWith(JobControl.UNKNOWN_OPCODE))
+		{
+			logger.warn(String.format("dropping a message with an opcode unknown to this client: %s", inMessage));
+		}
+		else if (!JobControl.isControl(inMessage) && !requestTracker.complete(inMessage) 
+				&& !dispatcher.dispatch(inMessage))
+		{
+			inBoundMsgQueue.offer(inMessage);
+		}
+	}
+	
+	private void sendMessagesFromQueue() throws IOException
 	{
-		encoder.encode(outMessage, outBuffer);
-		client.write(outBuffer);
-		//System.out.println("sending " + outMessage);
-		outMessage = null;
+		if (outBoundMsgQueue.flush(client))
+		{
+			clientKey.interestOps(clientKey.interestOps() & ~SelectionKey.OP_WRITE);
+		}
 	}
 	
 	/***
-	 * Sends the given {@link JobMsg} to the server asynchronously.
+	 * Sends the given {@link JobMsg} to the server asynchronously. The message is only queued and this method
+	 * returns immediately; the event loop writes it once the socket is writable. Messages sent before the
+	 * connection is established, or while it is being re-established, are kept in the queue and written once it completes.
 	 * @param job - the message to be sent.
 	 * @throws IOException
 	 */
-	public synchronized void sendMessage(JobMsg job) throws IOException
+	public void sendMessage(JobMsg job) throws IOException
+	{
+		if (outBoundMsgQueue.enqueue(job))
+		{
+			loop.wakeup();
+		}
+	}
+	
+	/***
+	 * Sends the given request to the server and returns a future that is completed as soon as its reply is received. 
+	 * The reply is expected to have the same job info as the request and a job code of 1, which is the convention used
+	 * by the KMR job server to acknowledge a job.
+	 * @param request - the request to be sent.
+	 * @return the {@link JobFuture} completed with the reply.
+	 * @throws IOException
+	 */
+	public JobFuture sendRequest(JobMsg request) throws IOException
+	{
+		return sendRequest(request, 0);
+	}
+	
+	/***
+	 * Sends the given request to the server and returns a future that is completed as soon as its reply is received 
+	 * or failed with a {@link java.util.concurrent.TimeoutException} if no reply arrives in time. The reply is expected
+	 * to have the same job info as the request and a job code of 1.
+	 * @param request - the request to be sent.
+	 * @param timeoutMillis - the time to wait for the reply in milliseconds, or 0 to wait indefinitely.
+	 * @return the {@link JobFuture} completed with the reply.
+	 * @throws IOException
+	 */
+	public JobFuture sendRequest(JobMsg request, long timeoutMillis) throws IOException
+	{
+		return sendRequest(request, new JobMsg(request.getJobInfo(), 1), timeoutMillis);
+	}
+	
+	/***
+	 * Sends the given request to the server and returns a future that is completed as soon as the expected reply
+	 * is received. Matched replies are consumed and do not show up in the message queue.
+	 * @param request - the request to be sent.
+	 * @param expectedReply - a message with the job info and code the reply is expected to have.
+	 * @param timeoutMillis - the time to wait for the reply in milliseconds, or 0 to wait indefinitely.
+	 * @return the {@link JobFuture} completed with the reply.
+	 * @throws IOException
+	 */
+	public JobFuture sendRequest(JobMsg request, JobMsg expectedReply, long timeoutMillis) throws IOException
+	{
+		JobFuture future = requestTracker.register(request, expectedReply, timeoutMillis);
+		if (journal != null)
+		{
+			try
+			{
+				trackJournalEntry(future, journal.append(request, expectedReply));
+			}
+			catch (IOException e)
+			{
+				future.cancel(false);
+				throw e;
+			}
+		}
+		sendMessage(request);
+		if (timeoutMillis > 0)
+		{
+			// recompute the select timeout with the new deadline
+			loop.wakeup();
+		}
+		return future;
+	}
+	
+	/***
+	 * Gets the dispatcher routing received messages to the subscribers of their job info, e.g. 
+	 * {@code getDispatcher().subscribe("goto_charge")} gives a queue of its own to the goto_charge messages.
+	 * @return the {@link JobDispatcher} of this client.
+	 */
+	public JobDispatcher getDispatcher()
 	{
-		
-		outMessage = job;
-		sendMessageFromBuffer();
+		return dispatcher;
 	}
 	
 	/***
-	 * Gets the messages queue received from the client.
-	 * @return  the received message queue LinkedBlockingQueue<JobMsg>.
+	 * Gets the messages queue received from the server that no subscriber or pending request took. The queue evicts
+	 * messages left unconsumed, see {@link JobInboundQueue}.
+	 * @return  the received message queue.
 	 */
-	public LinkedBlockingQueue<JobMsg> getMessageQueue()
+	public JobInboundQueue getMessageQueue()
 	{
 		return inBoundMsgQueue;
 	}
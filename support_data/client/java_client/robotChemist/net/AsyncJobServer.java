@@ -2,15 +2,14 @@ package robotChemist.net;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.util.Iterator;
-import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
@@ -22,25 +21,34 @@ import com.kuka.task.ITaskLogger;
  * can be exchanged between the arm and the base easily and with no blocking. Because of the way KMRiiwa is setup
  * such that LBR programs can be launched from the KMR Nav controller, this server is expected to be running on the KMR
  * Nav controller before launching any programs on the LBR controller that uses AsyncJobClient to communicate.
+ * The server accepts any number of concurrent clients, each one handled as a separate {@link JobSession}. Sessions
+ * whose client sends heartbeats are closed once it stays silent for the dead peer timeout, so that half-open
+ * connections left behind by a reconnecting client do not linger. Its sockets are served by a {@link JobEventLoop} 
+ * that can be shared with other endpoints through a {@link JobEventLoopGroup}.
  * @author stoic-roboticist
  *
  */
-public class AsyncJobServer {
+public class AsyncJobServer implements JobServerChannel {
 	
-	private ServerSocketChannel server;
-	private SocketChannel client;
-	private Selector selector;
-	private ByteBuffer outBuffer;
-	private ByteBuffer inBuffer;
+	private static final long DEFAULT_DEAD_PEER_TIMEOUT = 15000;
 	
-	private LinkedBlockingQueue<JobMsg> inBoundMsgQueue;
-	private JobMsg outMessage;
+	private ServerSocketChannel server;
+	private JobEventLoopGroup group;
+	private JobEventLoop loop;
+	private JobEventHandler acceptHandler;
 	
-	private ExecutorService thread;
-	private boolean running = false;
+	private ConcurrentSkipListMap<Integer, JobSession> sessions;
+	private ConcurrentLinkedQueue<JobSession> flushRequests;
+	private LinkedBlockingQueue<JobMsg> noSessionMsgQueue;
+	// only accessed by the event loop thread
+	private List<JobMsg> normalInbound;
+	private int nextSessionId = 1;
+	private volatile int topicCapacity = JobInboundQueue.DEFAULT_TOPIC_CAPACITY;
+	private volatile long timeToLive = JobInboundQueue.DEFAULT_TIME_TO_LIVE;
+	private volatile long deadPeerTimeout = DEFAULT_DEAD_PEER_TIMEOUT;
 	
-	private JobEncoder encoder;
-	private JobDecoder decoder;
+	private volatile boolean running = false;
+	private boolean stopped = false;
 	
 	private ITaskLogger logger;
 	
@@ -53,81 +61,86 @@ public class AsyncJobServer {
 	 */
 	public AsyncJobServer(String localAddress, int port, ITaskLogger logger) throws IOException
 	{
-		this.selector = Selector.open();
-		this.server = ServerSocketChannel.open();
-		this.server.socket().bind(new InetSocketAddress(localAddress, port));
-		this.server.configureBlocking(false);
-		this.server.register(this.selector, SelectionKey.OP_ACCEPT);
-		this.thread = Executors.newSingleThreadExecutor();
-		this.inBuffer = ByteBuffer.allocate(256);
-		this.outBuffer = ByteBuffer.allocate(256);
-		this.inBoundMsgQueue = new LinkedBlockingQueue<JobMsg>();
+		this(localAddress, port, logger, JobEventLoopGroup.acquireDefault(logger));
+	}
+	
+	/***
+	 * Constructs the AsyncJobServer object using the AsyncJobServer TCP/IP information, served by one of the event
+	 * loops of the given group.
+	 * @param localAddress - the TCP/IP address to be used by the server.
+	 * @param port - the TCP/IP port to be used by the server.
+	 * @param logger - RoboticsAPI logging interface.
+	 * @param group - the event loops shared with other endpoints.
+	 * @throws IOException if any of the underlying {@link ServerSocketChannel} methods fail.
+	 */
+	public AsyncJobServer(String localAddress, int port, ITaskLogger logger, JobEventLoopGroup group) throws IOException
+	{
+		this.group = group;
+		this.loop = group.next();
+		try
+		{
+			this.server = ServerSocketChannel.open();
+			this.server.socket().bind(new InetSocketAddress(localAddress, port));
+			this.server.configureBlocking(false);
+		}
+		catch (IOException e)
+		{
+			release();
+			throw e;
+		}
+		this.acceptHandler = new JobEventHandler()
+		{
+			@Override
+			public void handleKey(SelectionKey key) 
+			{
+				registerClients();
+			}
+
+			@Override
+			public long beforeSelect() 
+			{
+				requestPendingWrites();
+				long now = System.nanoTime();
+				return earliest(reapDeadSessions(now), evictExpiredMessages(now));
+			}
+		};
+		this.sessions = new ConcurrentSkipListMap<Integer, JobSession>();
+		this.flushRequests = new ConcurrentLinkedQueue<JobSession>();
+		this.noSessionMsgQueue = new LinkedBlockingQueue<JobMsg>();
+		this.normalInbound = new ArrayList<JobMsg>();
 		this.logger = logger;
-		this.encoder = new JobEncoder();
-		this.decoder = new JobDecoder();
-		
 	}
 	
 	/***
 	 * Start the server to begin communicating with any AsyncJobClient that try to connect
 	 * such that messages can be exchanged.
-	 * This method launches a separate thread to handle the connection.
+	 * The connections are handled by the event loop thread the server is bound to.
 	 */
 	public void start()
 	{
 		running = true;
-		thread.execute(new Runnable() 
+		loop.attach(acceptHandler);
+		loop.execute(new Runnable()
 		{
-
 			@Override
-			public void run() {
-				while (running)
+			public void run() 
+			{
+				try
 				{
-					try
-					{
-						if (selector.select() <= 0)
-						{
-							continue;
-						}
-			            Set<SelectionKey> selectedKeys = selector.selectedKeys();
-			            Iterator<SelectionKey> iter = selectedKeys.iterator();
-			            while (iter.hasNext())
-			            {
-			            	SelectionKey key = iter.next();
-			            	if (key.isAcceptable())
-			            	{
-			            		registerClient();
-			            	}			            	
-			            	if (key.isReadable())
-			            	{
-			            		SocketChannel sc = (SocketChannel) key.channel();
-			            		if (sc == client)
-			            		{
-			            			readMessageFromBuffer();
-			            		}
-			            	}
-			            	iter.remove();
-			            }
-					}
-					catch (IOException e)
-					{
-						logger.error(e.getMessage());
-						running = false;
-					}
-					catch (InterruptedException e)
-					{
-						logger.error(e.getMessage());
-						running = false;
-					}
+					loop.register(server, SelectionKey.OP_ACCEPT, acceptHandler);
+				}
+				catch (IOException e)
+				{
+					logger.error(e.getMessage());
+					running = false;
 				}
-				
 			}
-			
 		});
 	}
 	
 	/***
-	 * Terminates the server and thus the established connection,and also stops the connection thread.
+	 * Terminates the server and thus all the established sessions. The event loop is woken up so this method returns
+	 * as soon as the sockets are closed.
 	 * This method has to be called when terminating any application using the AsyncJobServer class.
 	 * @throws InterruptedException
 	 * @throws IOException
@@ -135,67 +148,382 @@ public class AsyncJobServer {
 	public void stop() throws InterruptedException, IOException
 	{
 		running = false;
-		//thread.shutdown();
-		if (!thread.awaitTermination(5, TimeUnit.SECONDS))
+		loop.executeAndWait(new Runnable()
+		{
+			@Override
+			public void run() 
+			{
+				loop.detach(acceptHandler);
+				for (JobSession session : sessions.values())
+				{
+					session.close();
+				}
+				sessions.clear();
+				try
+				{
+					server.close();
+				}
+				catch (IOException e)
+				{
+					logger.error(e.getMessage());
+				}
+			}
+		});
+		release();
+	}
+	
+	private synchronized void release()
+	{
+		if (!stopped)
+		{
+			stopped = true;
+			loop.unbind();
+			JobEventLoopGroup.releaseDefault(group);
+		}
+	}
+	
+	private void registerClients()
+	{
+		try
+		{
+			SocketChannel client = server.accept();
+			while (client != null)
+			{
+				registerClient(client);
+				client = server.accept();
+			}
+		}
+		catch (IOException e)
+		{
+			logger.error(String.format("failed to accept a client: %s", e.getMessage()));
+		}
+	}
+	
+	private void registerClient(SocketChannel client) throws IOException
+	{
+		JobEventLoop.configureSocket(client);
+		final JobSession session = new JobSession(nextSessionId++, this, client);
+		session.getMessageQueue().setTopicCapacity(topicCapacity);
+		session.getMessageQueue().setTimeToLive(timeToLive);
+		session.setKey(loop.register(client, SelectionKey.OP_READ, new JobEventHandler()
+		{
+			@Override
+			public void handleKey(SelectionKey key) 
+			{
+				handleSession(session);
+			}
+
+			@Override
+			public long beforeSelect() 
+			{
+				return 0;
+			}
+		}));
+		sessions.put(session.getId(), session);
+		logger.info(String.format("client registeration complete: %s", session));
+	}
+	
+	private void handleSession(JobSession session)
+	{
+		SelectionKey key = session.getKey();
+		try
+		{
+			if (key.isReadable())
+			{
+				readMessageFromBuffer(session);
+			}
+			if (session.isOpen() && key.isValid() && key.isWritable())
+			{
+				sendMessagesFromQueue(session);
+			}
+		}
+		catch (IOException e)
+		{
+			logger.error(String.format("%s failed: %s", session, e.getMessage()));
+			closeSession(session);
+		}
+	}
+	
+	private void closeSession(JobSession session)
+	{
+		sessions.remove(session.getId());
+		session.close();
+	}
+	
+	private void requestPendingWrites()
+	{
+		JobSession session;
+		while ((session = flushRequests.poll()) != null)
+		{
+			SelectionKey key = session.getKey();
+			if (session.isOpen() && key.isValid())
+			{
+				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+			}
+		}
+	}
+	
+	private long reapDeadSessions(long now)
+	{
+		long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(deadPeerTimeout);
+		if (timeoutNanos <= 0)
 		{
-			thread.shutdownNow();
+			return 0;
 		}
-		if (client != null)
+		long timeout = 0;
+		for (JobSession session : sessions.values())
 		{
-			client.close();
+			// clients that never sent a heartbeat may legitimately stay silent
+			if (!session.isHeartbeating())
+			{
+				continue;
+			}
+			long silence = now - session.getLastReceived();
+			if (silence >= timeoutNanos)
+			{
+				logger.warn(String.format("no message received from %s for %d ms, closing it", session, 
+						TimeUnit.NANOSECONDS.toMillis(silence)));
+				closeSession(session);
+			}
+			else
+			{
+				timeout = earliest(timeout, Math.max(1, TimeUnit.NANOSECONDS.toMillis(timeoutNanos - silence)));
+			}
 		}
-		selector.close();
-		server.close();
+		return timeout;
 	}
 	
-	private void registerClient() throws IOException
+	private long evictExpiredMessages(long now)
 	{
-		if (client == null)
+		long timeout = 0;
+		for (JobSession session : sessions.values())
 		{
-			client = server.accept();
-	        client.configureBlocking(false);
-	        client.register(selector, SelectionKey.OP_READ);
-    		logger.info("client registeration complete");
+			JobInboundQueue queue = session.getMessageQueue();
+			queue.evictExpired(now);
+			timeout = earliest(timeout, queue.millisToNextExpiry(now));
 		}
+		return timeout;
 	}
 	
-	private void readMessageFromBuffer() throws IOException, InterruptedException
+	private static long earliest(long timeout, long candidate)
 	{
-		inBuffer.clear();
-		int inLength = client.read(inBuffer);
-		inBuffer.flip();
+		if (candidate == 0)
+		{
+			return timeout;
+		}
+		return timeout == 0 ? candidate : Math.min(timeout, candidate);
+	}
+	
+	private void readMessageFromBuffer(JobSession session) throws IOException
+	{
+		JobStreamDecoder decoder = session.getDecoder();
+		int inLength = decoder.readFrom(session.getChannel());
 		if (inLength > 0)
 		{
-			JobMsg inMessage = decoder.decode(inBuffer);
-			inBoundMsgQueue.put(inMessage);
+			session.setLastReceived(System.nanoTime());
+		}
+		// urgent messages are handed over as soon as decoded, the normal ones once the whole read is decoded
+		JobMsg inMessage = decoder.nextMessage();
+		while (inMessage != null)
+		{
+			if (JobPriority.of(inMessage) == JobPriority.URGENT)
+			{
+				handleMessage(session, inMessage);
+			}
+			else
+			{
+				normalInbound.add(inMessage);
+			}
+			inMessage = decoder.nextMessage();
+		}
+		for (JobMsg msg : normalInbound)
+		{
+			handleMessage(session, msg);
+		}
+		normalInbound.clear();
+		if (inLength < 0)
+		{
+			logger.warn(String.format("client closed the connection: %s", session));
+			closeSession(session);
+		}
+	}
+	
+	private void handleMessage(JobSession session, JobMsg inMessage)
+	{
+		if (JobControl.HEARTBEAT.equals(inMessage.getJobInfo()))
+		{
+			session.setHeartbeating();
+			enqueue(session, inMessage.createReply(1));
+		}
+		else if (JobControl.HELLO.equals(inMessage.getJobInfo()))
+		{
+			negotiateProtocol(session, inMessage.getJobCode());
+		}
+		else if (inMessage.getJobInfo().startsWith(JobControl.UNKNOWN_OPCODE))
+		{
+			logger.warn(String.format("%s sent a message with an opcode unknown to this server: %s", session, inMessage));
+		}
+		else
+		{
+			session.getMessageQueue().offer(inMessage);
+		}
+	}
+	
+	private void negotiateProtocol(JobSession session, int helloCode)
+	{
+		int version = Math.max(JobControl.PROTOCOL_V1, Math.min(JobControl.versionOf(helloCode), JobControl.PROTOCOL_LATEST));
+		// clients that did not send their opcode count expect a bare version in reply
+		int reply = JobControl.hasOpcodeCount(helloCode) ? JobControl.hello(version, JobOpcodes.count()) : version;
+		// the reply is written in the old format ahead of any message encoded with the new one
+		session.getOutboundQueue().sendHandshake(new JobMsg(JobControl.HELLO, reply));
+		session.getOutboundQueue().setVersion(version);
+		session.getOutboundQueue().setPeerOpcodeCount(JobControl.opcodeCountOf(helloCode));
+		session.getDecoder().setVersion(version);
+		SelectionKey key = session.getKey();
+		key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+		logger.info(String.format("%s uses job protocol version %d", session, version));
+	}
+	
+	private void sendMessagesFromQueue(JobSession session) throws IOException
+	{
+		SelectionKey key = session.getKey();
+		if (session.getOutboundQueue().flush(session.getChannel()))
+		{
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
 		}
 	}
 	
-	private void sendMessageFromBuffer() throws IOException
+	void enqueue(JobSession session, JobMsg msg)
 	{
-		encoder.encode(outMessage, outBuffer);
-		client.write(outBuffer);	
-		outMessage = null;
+		if (session.getOutboundQueue().enqueue(msg))
+		{
+			flushRequests.offer(session);
+			loop.wakeup();
+		}
 	}
 	
 	/***
-	 * Sends the given {@link JobMsg} to the client asynchronously.
-	 * @param job - the message to be sent.
+	 * Limits the messages kept in the inbound queue of every session, see {@link JobInboundQueue}.
+	 * @param topicCapacity - the number of messages of the same job info that may wait, or 0 for no limit.
+	 * @param timeToLiveMillis - the time in milliseconds a message may wait, or 0 to keep messages until consumed.
+	 */
+	public void setInboundLimits(int topicCapacity, long timeToLiveMillis)
+	{
+		this.topicCapacity = topicCapacity;
+		this.timeToLive = timeToLiveMillis;
+		for (JobSession session : sessions.values())
+		{
+			session.getMessageQueue().setTopicCapacity(topicCapacity);
+			session.getMessageQueue().setTimeToLive(timeToLiveMillis);
+		}
+	}
+	
+	/***
+	 * Sets the silence after which the session of a client sending heartbeats is considered dead and closed. It must 
+	 * be longer than the heartbeat interval of the clients. Clients that never sent a heartbeat are not affected.
+	 * @param deadPeerTimeoutMillis - the timeout in milliseconds, or 0 to never close silent sessions.
+	 */
+	public void setDeadPeerTimeout(long deadPeerTimeoutMillis)
+	{
+		this.deadPeerTimeout = deadPeerTimeoutMillis;
+		loop.wakeup();
+	}
+	
+	/***
+	 * Sends the given {@link JobMsg} asynchronously to the most recently connected client, the one whose messages are
+	 * read from {@link #getMessageQueue()}. The message is only queued and this method returns immediately; the event
+	 * loop writes it once the socket is writable. If no client is connected the message is dropped. With several 
+	 * clients connected at once, use {@link JobSession#send(JobMsg)} to reply to a given one and 
+	 * {@link #broadcast(JobMsg)} to reach them all.
+	 * @param msg - the message to be sent.
 	 * @throws IOException
 	 */
-	public synchronized void sendMessage(JobMsg msg) throws IOException
+	public void sendMessage(JobMsg msg) throws IOException
+	{
+		Map.Entry<Integer, JobSession> newest = sessions.lastEntry();
+		if (newest == null || !newest.getValue().send(msg))
+		{
+			logger.warn(String.format("no client connected, dropping message: %s", msg));
+		}
+	}
+	
+	/***
+	 * Sends the given {@link JobMsg} asynchronously to all the connected clients. If no client is connected the 
+	 * message is dropped.
+	 * @param msg - the message to be sent.
+	 */
+	public void broadcast(JobMsg msg)
 	{
-		outMessage = msg;
-		sendMessageFromBuffer();
+		if (sessions.isEmpty())
+		{
+			logger.warn(String.format("no client connected, dropping message: %s", msg));
+			return;
+		}
+		for (JobSession session : sessions.values())
+		{
+			enqueue(session, msg);
+		}
 	}
 	
 	/***
-	 * Gets the messages queue received from the client.
-	 * @return  the received message queue LinkedBlockingQueue<JobMsg>.
+	 * Sends the given {@link JobMsg} asynchronously to the client of the given session only.
+	 * @param sessionId - the id of the destination session.
+	 * @param msg - the message to be sent.
+	 * @return true if the message was queued, false if no such session is open.
+	 */
+	public boolean sendMessage(int sessionId, JobMsg msg)
+	{
+		JobSession session = sessions.get(sessionId);
+		if (session == null || !session.isOpen())
+		{
+			logger.warn(String.format("session %d is not connected, dropping message: %s", sessionId, msg));
+			return false;
+		}
+		enqueue(session, msg);
+		return true;
+	}
+	
+	/***
+	 * Gets the ids of the currently open sessions in the order they connected.
+	 * @return a snapshot list of session ids.
+	 */
+	public List<Integer> getSessionIds()
+	{
+		return new ArrayList<Integer>(sessions.keySet());
+	}
+	
+	/***
+	 * Gets an open session by its id.
+	 * @param sessionId - the session id.
+	 * @return the {@link JobSession} or null if no such session is open.
+	 */
+	public JobSession getSession(int sessionId)
+	{
+		return sessions.get(sessionId);
+	}
+	
+	/***
+	 * Gets the messages queue received from the most recently connected client. This keeps the single client behaviour
+	 * of the server: a client that reconnects, e.g. over a half-open connection not closed yet, is followed to its new
+	 * session. It is unsuitable with several clients connected at once; use {@link #getMessageQueue(int)} to read the 
+	 * messages of a given session. As the queue changes with the session, it should be fetched again on every read.
+	 * @return  the received message queue LinkedBlockingQueue<JobMsg>, or an empty queue if no client is connected.
 	 */
 	public LinkedBlockingQueue<JobMsg> getMessageQueue()
 	{
-		return inBoundMsgQueue;
+		Map.Entry<Integer, JobSession> newest = sessions.lastEntry();
+		return newest != null ? newest.getValue().getMessageQueue() : noSessionMsgQueue;
+	}
+	
+	/***
+	 * Gets the messages queue received from the client of the given session.
+	 * @param sessionId - the session id.
+	 * @return the received message queue LinkedBlockingQueue<JobMsg>, or null if no such session is open.
+	 */
+	public LinkedBlockingQueue<JobMsg> getMessageQueue(int sessionId)
+	{
+		JobSession session = sessions.get(sessionId);
+		return session != null ? session.getMessageQueue() : null;
 	}
 
 }
@@ -0,0 +1,81 @@
+package robotChemist.net;
+
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/***
+ * The client side of a job channel to the KMR base, implemented over sockets by {@link AsyncJobClient} and inside the 
+ * JVM by {@link LoopbackJobClient}. Messages are delivered in the order they were sent. Replies matched by 
+ * {@link #sendRequest(JobMsg, JobMsg, long)} go to their future, other messages to the subscribers of their job info
+ * and only the remaining ones show up in the message queue.
+ * @author stoic-roboticist
+ *
+ */
+public interface JobChannel 
+{
+	/***
+	 * Start communicating with the server such that messages can be exchanged.
+	 */
+	void start();
+	
+	/***
+	 * Terminates the connection with the server and cancels the pending requests.
+	 * @throws InterruptedException
+	 * @throws IOException
+	 */
+	void stop() throws InterruptedException, IOException;
+	
+	/***
+	 * Sends the given {@link JobMsg} to the server asynchronously. Messages sent while disconnected are kept and 
+	 * delivered once connected.
+	 * @param job - the message to be sent.
+	 * @throws IOException
+	 */
+	void sendMessage(JobMsg job) throws IOException;
+	
+	/***
+	 * Sends the given request and waits indefinitely for a reply with the same job info and a job code of 1.
+	 * @param request - the request to be sent.
+	 * @return the {@link JobFuture} completed with the reply.
+	 * @throws IOException
+	 */
+	JobFuture sendRequest(JobMsg request) throws IOException;
+	
+	/***
+	 * Sends the given request and waits for a reply with the same job info and a job code of 1.
+	 * @param request - the request to be sent.
+	 * @param timeoutMillis - the time to wait for the reply in milliseconds, or 0 to wait indefinitely.
+	 * @return the {@link JobFuture} completed with the reply.
+	 * @throws IOException
+	 */
+	JobFuture sendRequest(JobMsg request, long timeoutMillis) throws IOException;
+	
+	/***
+	 * Sends the given request and waits for the expected reply.
+	 * @param request - the request to be sent.
+	 * @param expectedReply - a message with the job info and code the reply is expected to have.
+	 * @param timeoutMillis - the time to wait for the reply in milliseconds, or 0 to wait indefinitely.
+	 * @return the {@link JobFuture} completed with the reply.
+	 * @throws IOException
+	 */
+	JobFuture sendRequest(JobMsg request, JobMsg expectedReply, long timeoutMillis) throws IOException;
+	
+	/***
+	 * Gets the dispatcher routing received messages to their topic subscribers. Replies matched to a request are
+	 * not dispatched, and messages without a subscriber end up in the message queue.
+	 * @return the {@link JobDispatcher} of this channel.
+	 */
+	JobDispatcher getDispatcher();
+	
+	/***
+	 * Gets the messages queue received from the server that no subscriber or pending request took.
+	 * @return  the received message queue LinkedBlockingQueue<JobMsg>.
+	 */
+	LinkedBlockingQueue<JobMsg> getMessageQueue();
+	
+	/***
+	 * 
+	 * @return true if connected to the server.
+	 */
+	boolean isConnected();
+}
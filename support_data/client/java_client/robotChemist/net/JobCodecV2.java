@@ -0,0 +1,350 @@
+package robotChemist.net;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/***
+ * Encoder and decoder of the version 2 job protocol. A frame is laid out as:<br>
+ * <br>
+ * - varint: length of the rest of the frame.<br>
+ * - varint: opcode of the job info from {@link JobOpcodes}, or 0 followed by a varint length and the UTF-8 job info.<br>
+ * - zigzag varint: job code.<br>
+ * - varint: correlation id, 0 if none.<br>
+ * - byte: flags, bit 0 marks an urgent message, the other bits are reserved and 0.<br>
+ * - varint: number of payload fields, each one encoded as a varint key, a type byte and the value.<br>
+ * <br>
+ * Int and state of charge values are zigzag varints, longs zigzag 64 bit varints, doubles and poses raw IEEE 754
+ * values and strings a varint length followed by UTF-8 bytes. Only the opcodes known by the peer are used, see 
+ * {@link #setPeerOpcodeCount(int)}, and a frame with an unknown opcode is decoded with a job info starting with
+ * "__opcode_" rather than failing the stream.
+ * @author stoic-roboticist
+ *
+ */
+public class JobCodecV2 
+{
+	/***
+	 * Largest frame length accepted by the decoder. Anything bigger is treated as a corrupt stream.
+	 */
+	public static final int MAX_FRAME_LENGTH = 1 << 20;
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int FLAG_URGENT = 0x01;
+	
+	private int peerOpcodeCount = JobOpcodes.count();
+	
+	/***
+	 * Limits the opcodes used by the encoder to the ones known by the peer, the job infos appended to the dictionary
+	 * after them are sent literally.
+	 * @param count - the number of opcodes known by the peer, {@link JobOpcodes#LITERAL} included.
+	 */
+	public void setPeerOpcodeCount(int count)
+	{
+		this.peerOpcodeCount = count;
+	}
+	
+	/***
+	 * Converts the given JobMsg into a newly allocated ByteBuffer of the exact encoded size.
+	 * @param job - the {@link JobMsg} to be encoded.
+	 * @return a ByteBuffer ready to be written to the communication channel.
+	 */
+	public ByteBuffer encode(JobMsg job)
+	{
+		int opcode = JobOpcodes.opcodeOf(job.getJobInfo());
+		if (opcode >= peerOpcodeCount)
+		{
+			opcode = JobOpcodes.LITERAL;
+		}
+		byte[] jobInfo = opcode == JobOpcodes.LITERAL ? job.getJobInfo().getBytes(UTF8) : null;
+		byte[][] texts = null;
+		JobPayload payload = job.getPayload();
+		
+		int bodyLen = varintSize(opcode);
+		if (jobInfo != null)
+		{
+			bodyLen += varintSize(jobInfo.length) + jobInfo.length;
+		}
+		bodyLen += varintSize(zigzag(job.getJobCode()));
+		bodyLen += varintSize(job.getCorrelationId());
+		bodyLen += 1;
+		int fieldCount = payload != null ? payload.size() : 0;
+		bodyLen += varintSize(fieldCount);
+		if (fieldCount > 0)
+		{
+			texts = new byte[fieldCount][];
+			for (int i = 0; i < fieldCount; i++)
+			{
+				bodyLen += varintSize(payload.getKey(i)) + 1;
+				switch (payload.getType(i))
+				{
+					case JobPayload.TYPE_INT:
+					case JobPayload.TYPE_SOC:
+						bodyLen += varintSize(zigzag((int) payload.getRawNumber(i)));
+						break;
+					case JobPayload.TYPE_LONG:
+						bodyLen += varlongSize(zigzag(payload.getRawNumber(i)));
+						break;
+					case JobPayload.TYPE_DOUBLE:
+					case JobPayload.TYPE_POSE:
+						bodyLen += 8 * payload.getRawValues(i).length;
+						break;
+					case JobPayload.TYPE_STRING:
+						texts[i] = payload.getRawText(i).getBytes(UTF8);
+						bodyLen += varintSize(texts[i].length) + texts[i].length;
+						break;
+				}
+			}
+		}
+		
+		ByteBuffer buffer = ByteBuffer.allocate(varintSize(bodyLen) + bodyLen);
+		putVarint(buffer, bodyLen);
+		putVarint(buffer, opcode);
+		if (jobInfo != null)
+		{
+			putVarint(buffer, jobInfo.length);
+			buffer.put(jobInfo);
+		}
+		putVarint(buffer, zigzag(job.getJobCode()));
+		putVarint(buffer, job.getCorrelationId());
+		buffer.put((byte) (job.isUrgent() ? FLAG_URGENT : 0));
+		putVarint(buffer, fieldCount);
+		for (int i = 0; i < fieldCount; i++)
+		{
+			putVarint(buffer, payload.getKey(i));
+			byte type = payload.getType(i);
+			buffer.put(type);
+			switch (type)
+			{
+				case JobPayload.TYPE_INT:
+				case JobPayload.TYPE_SOC:
+					putVarint(buffer, zigzag((int) payload.getRawNumber(i)));
+					break;
+				case JobPayload.TYPE_LONG:
+					putVarlong(buffer, zigzag(payload.getRawNumber(i)));
+					break;
+				case JobPayload.TYPE_DOUBLE:
+				case JobPayload.TYPE_POSE:
+					for (double v : payload.getRawValues(i))
+					{
+						buffer.putDouble(v);
+					}
+					break;
+				case JobPayload.TYPE_STRING:
+					putVarint(buffer, texts[i].length);
+					buffer.put(texts[i]);
+					break;
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+	
+	/***
+	 * Gets the total length of the encoded message starting at the buffer current position without
+	 * consuming any of its data.
+	 * @param buffer - the ByteBuffer that contains the (possibly partial) encoded message.
+	 * @return the number of bytes the whole message occupies, or -1 if not enough bytes are available 
+	 * yet to know it.
+	 * @throws IllegalStateException if the encoded frame length is invalid.
+	 */
+	public int frameLength(ByteBuffer buffer)
+	{
+		int pos = buffer.position();
+		int value = 0;
+		for (int shift = 0, i = 0; i < 5; i++, shift += 7)
+		{
+			if (pos + i >= buffer.limit())
+			{
+				return -1;
+			}
+			byte b = buffer.get(pos + i);
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+			{
+				if (value < 0 || value > MAX_FRAME_LENGTH)
+				{
+					break;
+				}
+				return i + 1 + value;
+			}
+		}
+		throw new IllegalStateException("Invalid frame length in the received stream");
+	}
+	
+	/***
+	 * Gets the encoded JobMsg from the supplied ByteBuffer by decoding its data. The buffer must hold the
+	 * whole frame, see {@link #frameLength(ByteBuffer)}.
+	 * @param buffer - the ByteBuffer that contains the encoded message.
+	 * @return decoded {@link JobMsg} from the input ByteBuffer.
+	 * @throws IllegalStateException if the frame is malformed.
+	 */
+	public JobMsg decode(ByteBuffer buffer)
+	{
+		int bodyLen = getVarint(buffer);
+		int end = buffer.position() + bodyLen;
+		int limit = buffer.limit();
+		buffer.limit(end);
+		try
+		{
+			return decodeBody(buffer, end);
+		}
+		finally
+		{
+			buffer.limit(limit);
+		}
+	}
+	
+	private JobMsg decodeBody(ByteBuffer buffer, int end)
+	{
+		JobMsg job = new JobMsg();
+		
+		int opcode = getVarint(buffer);
+		if (opcode == JobOpcodes.LITERAL)
+		{
+			byte[] jobInfo = new byte[getVarint(buffer)];
+			buffer.get(jobInfo);
+			job.setJobInfo(new String(jobInfo, UTF8));
+		}
+		else
+		{
+			String jobInfo = JobOpcodes.infoOf(opcode);
+			// the frame length is known so the rest of the stream stays readable
+			job.setJobInfo(jobInfo != null ? jobInfo : JobControl.UNKNOWN_OPCODE + opcode);
+		}
+		job.setJobCode(unzigzag(getVarint(buffer)));
+		job.setCorrelationId(getVarint(buffer));
+		byte flags = buffer.get();
+		job.setUrgent((flags & FLAG_URGENT) != 0);
+		int fieldCount = getVarint(buffer);
+		if (fieldCount > 0)
+		{
+			JobPayload payload = new JobPayload();
+			for (int i = 0; i < fieldCount; i++)
+			{
+				int key = getVarint(buffer);
+				byte type = buffer.get();
+				switch (type)
+				{
+					case JobPayload.TYPE_INT:
+					case JobPayload.TYPE_SOC:
+						payload.putRaw(key, type, unzigzag(getVarint(buffer)), null, null);
+						break;
+					case JobPayload.TYPE_LONG:
+						payload.putRaw(key, type, unzigzag(getVarlong(buffer)), null, null);
+						break;
+					case JobPayload.TYPE_DOUBLE:
+					case JobPayload.TYPE_POSE:
+						double[] values = new double[type == JobPayload.TYPE_POSE ? JobPayload.POSE_SIZE : 1];
+						for (int k = 0; k < values.length; k++)
+						{
+							values[k] = buffer.getDouble();
+						}
+						payload.putRaw(key, type, 0, values, null);
+						break;
+					case JobPayload.TYPE_STRING:
+						byte[] text = new byte[getVarint(buffer)];
+						buffer.get(text);
+						payload.putRaw(key, type, 0, null, new String(text, UTF8));
+						break;
+					default:
+						throw new IllegalStateException(String.format("Unknown payload field type %d in the received stream", type));
+				}
+			}
+			job.setPayload(payload);
+		}
+		// skip any trailing data added by a newer minor revision of the format
+		buffer.position(end);
+		return job;
+	}
+	
+	static int zigzag(int v)
+	{
+		return (v << 1) ^ (v >> 31);
+	}
+	
+	static long zigzag(long v)
+	{
+		return (v << 1) ^ (v >> 63);
+	}
+	
+	static int unzigzag(int v)
+	{
+		return (v >>> 1) ^ -(v & 1);
+	}
+	
+	static long unzigzag(long v)
+	{
+		return (v >>> 1) ^ -(v & 1);
+	}
+	
+	static int varintSize(int v)
+	{
+		int size = 1;
+		while ((v & ~0x7f) != 0)
+		{
+			v >>>= 7;
+			size++;
+		}
+		return size;
+	}
+	
+	static int varlongSize(long v)
+	{
+		int size = 1;
+		while ((v & ~0x7fL) != 0)
+		{
+			v >>>= 7;
+			size++;
+		}
+		return size;
+	}
+	
+	static void putVarint(ByteBuffer buffer, int v)
+	{
+		while ((v & ~0x7f) != 0)
+		{
+			buffer.put((byte) ((v & 0x7f) | 0x80));
+			v >>>= 7;
+		}
+		buffer.put((byte) v);
+	}
+	
+	static void putVarlong(ByteBuffer buffer, long v)
+	{
+		while ((v & ~0x7fL) != 0)
+		{
+			buffer.put((byte) ((v & 0x7f) | 0x80));
+			v >>>= 7;
+		}
+		buffer.put((byte) v);
+	}
+	
+	static int getVarint(ByteBuffer buffer)
+	{
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7)
+		{
+			byte b = buffer.get();
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+			{
+				return value;
+			}
+		}
+		throw new IllegalStateException("Malformed varint in the received stream");
+	}
+	
+	static long getVarlong(ByteBuffer buffer)
+	{
+		long value = 0;
+		for (int shift = 0; shift < 70; shift += 7)
+		{
+			byte b = buffer.get();
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+			{
+				return value;
+			}
+		}
+		throw new IllegalStateException("Malformed varint in the received stream");
+	}
+}
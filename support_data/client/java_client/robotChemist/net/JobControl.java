@@ -0,0 +1,79 @@
+package robotChemist.net;
+
+/***
+ * Job infos reserved for the control messages exchanged between {@link AsyncJobClient} and {@link AsyncJobServer}
+ * to manage the connection itself. Control messages are handled by the connection threads and never show up in
+ * the message queues.
+ * @author stoic-roboticist
+ *
+ */
+final class JobControl 
+{
+	/***
+	 * Keepalive probe sent by the client with code 0 and echoed back by the server with code 1.
+	 */
+	static final String HEARTBEAT = "__heartbeat";
+	
+	/***
+	 * Protocol negotiation sent by the client right after connecting, with the highest protocol version it supports
+	 * and the number of {@link JobOpcodes} it knows as job code, see {@link #hello(int, int)}. The server answers with
+	 * the negotiated version and its own number of opcodes. Both are always encoded with the version 1 format.
+	 */
+	static final String HELLO = "__hello";
+	
+	/***
+	 * Prefix of the job info given to a received message whose opcode is unknown. Such messages are dropped instead
+	 * of failing the connection.
+	 */
+	static final String UNKNOWN_OPCODE = "__opcode_";
+	
+	/***
+	 * The original format: a length-prefixed job info string followed by the job code.
+	 */
+	static final int PROTOCOL_V1 = 1;
+	
+	/***
+	 * The compact binary format with opcodes, varints, correlation ids and typed payloads, see {@link JobCodecV2}.
+	 */
+	static final int PROTOCOL_V2 = 2;
+	
+	/***
+	 * The highest protocol version supported by this implementation.
+	 */
+	static final int PROTOCOL_LATEST = PROTOCOL_V2;
+	
+	private JobControl()
+	{}
+	
+	static boolean isControl(JobMsg msg)
+	{
+		return msg.getJobInfo().startsWith("__");
+	}
+	
+	/***
+	 * Packs the job code of a negotiation message. Peers that predate the opcode count only send the version.
+	 * @param version - the protocol version.
+	 * @param opcodeCount - the number of opcodes known by the sender.
+	 * @return the job code.
+	 */
+	static int hello(int version, int opcodeCount)
+	{
+		return version | opcodeCount << 8;
+	}
+	
+	static int versionOf(int helloCode)
+	{
+		return helloCode & 0xff;
+	}
+	
+	static int opcodeCountOf(int helloCode)
+	{
+		int count = helloCode >>> 8;
+		return count > 0 ? count : JobOpcodes.INITIAL_COUNT;
+	}
+	
+	static boolean hasOpcodeCount(int helloCode)
+	{
+		return helloCode >>> 8 > 0;
+	}
+}
@@ -10,6 +10,15 @@ import java.nio.ByteBuffer;
  */
 public class JobDecoder 
 {
+	/***
+	 * Size in bytes of the fixed part of an encoded message, i.e. the job info length and the job code.
+	 */
+	public static final int HEADER_SIZE = 8;
+	
+	/***
+	 * Largest job info length accepted by the decoder. Anything bigger is treated as a corrupt stream.
+	 */
+	public static final int MAX_INFO_LENGTH = 1 << 20;
 	
 	/***
 	 * Gets the encoded JobMsg from the supplied ByteBuffer by decoding its data.
@@ -28,4 +37,26 @@ public class JobDecoder
 		
 		return job;
 	}
+	
+	/***
+	 * Gets the total length of the encoded message starting at the buffer current position without
+	 * consuming any of its data.
+	 * @param buffer - the ByteBuffer that contains the (possibly partial) encoded message.
+	 * @return the number of bytes the whole message occupies, or -1 if not enough bytes are available 
+	 * yet to know it.
+	 * @throws IllegalStateException if the encoded job info length is invalid.
+	 */
+	public int frameLength(ByteBuffer buffer)
+	{
+		if (buffer.remaining() < 4)
+		{
+			return -1;
+		}
+		int infoLen = buffer.getInt(buffer.position());
+		if (infoLen < 0 || infoLen > MAX_INFO_LENGTH)
+		{
+			throw new IllegalStateException(String.format("Invalid job info length %d in the received stream", infoLen));
+		}
+		return HEADER_SIZE + infoLen;
+	}
 }
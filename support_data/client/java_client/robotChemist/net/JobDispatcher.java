@@ -0,0 +1,201 @@
+package robotChemist.net;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import com.kuka.task.ITaskLogger;
+
+/***
+ * Routes received job messages to the subscribers of their job info. Subscriptions are indexed by job info, so
+ * dispatching a message costs a single hash lookup however many topics are subscribed, and every process only sees
+ * the messages meant for it instead of scanning a queue shared with the others. Messages no one subscribed to are left
+ * to the channel's general message queue.
+ * @author stoic-roboticist
+ *
+ */
+public class JobDispatcher
+{
+	/***
+	 * A callback receiving the messages of a topic. Listeners are called on the thread receiving the messages, the
+	 * event loop for socket channels, so they must not block.
+	 */
+	public interface Listener
+	{
+		void onMessage(JobMsg msg);
+	}
+
+	/***
+	 * A subscription to the messages of one job info, delivered either to a {@link Listener} or to a queue owned by
+	 * the subscription.
+	 */
+	public static final class Subscription
+	{
+		private final JobDispatcher dispatcher;
+		private final String topic;
+		private final Listener listener;
+		private final LinkedBlockingQueue<JobMsg> queue;
+
+		private Subscription(JobDispatcher dispatcher, String topic, Listener listener, LinkedBlockingQueue<JobMsg> queue)
+		{
+			this.dispatcher = dispatcher;
+			this.topic = topic;
+			this.listener = listener;
+			this.queue = queue;
+		}
+
+		/***
+		 *
+		 * @return the job info this subscription receives.
+		 */
+		public String getTopic()
+		{
+			return topic;
+		}
+
+		/***
+		 *
+		 * @return the queue the messages are delivered to, or null if they are delivered to a listener.
+		 */
+		public LinkedBlockingQueue<JobMsg> getQueue()
+		{
+			return queue;
+		}
+
+		/***
+		 * Stops delivering messages to this subscription.
+		 */
+		public void cancel()
+		{
+			dispatcher.remove(this);
+		}
+
+		private void deliver(JobMsg msg)
+		{
+			if (listener != null)
+			{
+				listener.onMessage(msg);
+			}
+			else
+			{
+				queue.offer(msg);
+			}
+		}
+	}
+
+	private final ConcurrentHashMap<String, CopyOnWriteArrayList<Subscription>> subscriptions;
+	private ITaskLogger logger;
+
+	/***
+	 * Constructs an empty dispatcher.
+	 * @param logger - RoboticsAPI logging interface, used to report failing listeners.
+	 */
+	public JobDispatcher(ITaskLogger logger)
+	{
+		this.subscriptions = new ConcurrentHashMap<String, CopyOnWriteArrayList<Subscription>>();
+		this.logger = logger;
+	}
+
+	/***
+	 * Subscribes a listener to the messages with the given job info.
+	 * @param jobInfo - the topic to subscribe to.
+	 * @param listener - the callback receiving the messages.
+	 * @return the subscription, to be cancelled once no longer needed.
+	 */
+	public Subscription subscribe(String jobInfo, Listener listener)
+	{
+		return add(new Subscription(this, jobInfo, listener, null));
+	}
+
+	/***
+	 * Subscribes a queue of its own to the messages with the given job info.
+	 * @param jobInfo - the topic to subscribe to.
+	 * @return the subscription holding the queue the messages are delivered to.
+	 */
+	public Subscription subscribe(String jobInfo)
+	{
+		return add(new Subscription(this, jobInfo, null, new LinkedBlockingQueue<JobMsg>()));
+	}
+
+	/***
+	 * Subscribes a listener to the messages with the job info of the given {@link JobOpcodes} opcode.
+	 * @param opcode - the opcode of the topic to subscribe to.
+	 * @param listener - the callback receiving the messages.
+	 * @return the subscription, to be cancelled once no longer needed.
+	 */
+	public Subscription subscribe(int opcode, Listener listener)
+	{
+		return subscribe(topicOf(opcode), listener);
+	}
+
+	/***
+	 * Subscribes a queue of its own to the messages with the job info of the given {@link JobOpcodes} opcode.
+	 * @param opcode - the opcode of the topic to subscribe to.
+	 * @return the subscription holding the queue the messages are delivered to.
+	 */
+	public Subscription subscribe(int opcode)
+	{
+		return subscribe(topicOf(opcode));
+	}
+
+	/***
+	 * Delivers the given message to every subscriber of its job info.
+	 * @param msg - the received message.
+	 * @return true if the message had at least one subscriber.
+	 */
+	public boolean dispatch(JobMsg msg)
+	{
+		CopyOnWriteArrayList<Subscription> subscribers = subscriptions.get(msg.getJobInfo());
+		if (subscribers == null || subscribers.isEmpty())
+		{
+			return false;
+		}
+		for (Subscription subscription : subscribers)
+		{
+			try
+			{
+				subscription.deliver(msg);
+			}
+			catch (RuntimeException e)
+			{
+				logger.error(String.format("subscriber of %s failed: %s", subscription.getTopic(), e));
+			}
+		}
+		return true;
+	}
+
+	private static String topicOf(int opcode)
+	{
+		String topic = JobOpcodes.infoOf(opcode);
+		if (topic == null)
+		{
+			throw new IllegalArgumentException(String.format("unknown job opcode: %d", opcode));
+		}
+		return topic;
+	}
+
+	private Subscription add(Subscription subscription)
+	{
+		CopyOnWriteArrayList<Subscription> subscribers = subscriptions.get(subscription.getTopic());
+		if (subscribers == null)
+		{
+			CopyOnWriteArrayList<Subscription> created = new CopyOnWriteArrayList<Subscription>();
+			subscribers = subscriptions.putIfAbsent(subscription.getTopic(), created);
+			if (subscribers == null)
+			{
+				subscribers = created;
+			}
+		}
+		subscribers.add(subscription);
+		return subscription;
+	}
+
+	private void remove(Subscription subscription)
+	{
+		CopyOnWriteArrayList<Subscription> subscribers = subscriptions.get(subscription.getTopic());
+		if (subscribers != null)
+		{
+			subscribers.remove(subscription);
+		}
+	}
+}
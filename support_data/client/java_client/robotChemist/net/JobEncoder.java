@@ -29,5 +29,31 @@ public class JobEncoder
 		
 		buffer.flip();
 	}
+	
+	/***
+	 * Converts the given JobMsg data into a newly allocated ByteBuffer of the exact encoded size.
+	 * @param job - the {@link JobMsg} whose data to be encoded.
+	 * @return a ByteBuffer ready to be written to the communication channel.
+	 */
+	public ByteBuffer encode(JobMsg job)
+	{
+		byte[] jobInfo = job.getJobInfo().getBytes();
+		ByteBuffer buffer = ByteBuffer.allocate(JobDecoder.HEADER_SIZE + jobInfo.length);
+		buffer.putInt(jobInfo.length);
+		buffer.put(jobInfo);
+		buffer.putInt(job.getJobCode());
+		buffer.flip();
+		return buffer;
+	}
+	
+	/***
+	 * Gets the number of bytes the given JobMsg occupies once encoded.
+	 * @param job - the {@link JobMsg} to be encoded.
+	 * @return the encoded message length in bytes.
+	 */
+	public int encodedLength(JobMsg job)
+	{
+		return JobDecoder.HEADER_SIZE + job.getJobInfo().getBytes().length;
+	}
 
 }
@@ -0,0 +1,25 @@
+package robotChemist.net;
+
+import java.nio.channels.SelectionKey;
+
+/***
+ * Callbacks through which a {@link JobEventLoop} drives the channel endpoints it hosts. All the methods are called
+ * from the loop thread only and must never block.
+ * @author stoic-roboticist
+ *
+ */
+interface JobEventHandler
+{
+	/***
+	 * Handles a selected key that was registered with this handler. Errors are handled by the endpoint itself.
+	 * @param key - the ready key.
+	 */
+	void handleKey(SelectionKey key);
+
+	/***
+	 * Called on every loop iteration before selecting, to run timers and update the interest ops of pending writes.
+	 * Only handlers attached with {@link JobEventLoop#attach(JobEventHandler)} are called.
+	 * @return the time in milliseconds until the handler has to be called again, or 0 if it has no deadline.
+	 */
+	long beforeSelect();
+}
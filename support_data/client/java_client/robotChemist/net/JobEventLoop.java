@@ -0,0 +1,392 @@
+package robotChemist.net;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.kuka.task.ITaskLogger;
+
+/***
+ * A single selector thread that hosts the sockets of any number of {@link AsyncJobClient} and {@link AsyncJobServer}
+ * endpoints. Endpoints hand work to the loop with {@link #execute(Runnable)} and wake it up when they queue messages,
+ * so one thread serves all of them. The loop measures how much of its time is spent handling events rather than
+ * waiting for them, see {@link #getUtilization()}.
+ * @author stoic-roboticist
+ *
+ */
+public class JobEventLoop implements Runnable
+{
+	private static final long UTILIZATION_WINDOW = 1000000000L;
+	private static final long STOP_TIMEOUT = 5000;
+	private static final long SELECT_ERROR_PAUSE = 100;
+
+	private final Selector selector;
+	private final Thread thread;
+	private final ConcurrentLinkedQueue<Runnable> tasks;
+	private final CopyOnWriteArrayList<JobEventHandler> handlers;
+	private final AtomicBoolean wakenUp;
+	private final AtomicLong wakeups;
+	private final AtomicInteger endpoints;
+	private volatile boolean running = false;
+
+	private ITaskLogger logger;
+
+	// written by the loop thread only
+	private volatile long iterations;
+	private volatile long busyNanos;
+	private volatile long idleNanos;
+	private volatile double utilization;
+	private long windowStart;
+	private long windowBusyNanos;
+
+	JobEventLoop(String name, ITaskLogger logger) throws IOException
+	{
+		this.selector = Selector.open();
+		this.thread = new Thread(this, name);
+		this.thread.setDaemon(true);
+		this.tasks = new ConcurrentLinkedQueue<Runnable>();
+		this.handlers = new CopyOnWriteArrayList<JobEventHandler>();
+		this.wakenUp = new AtomicBoolean(false);
+		this.wakeups = new AtomicLong();
+		this.endpoints = new AtomicInteger();
+		this.logger = logger;
+	}
+
+	void start()
+	{
+		running = true;
+		thread.start();
+	}
+
+	@Override
+	public void run()
+	{
+		windowStart = System.nanoTime();
+		while (running)
+		{
+			try
+			{
+				// any wakeup from now on interrupts the next select, earlier ones are seen by the handlers below
+				wakenUp.set(false);
+				long timeout = runTasks();
+				long selectStart = System.nanoTime();
+				int readyKeys;
+				if (!tasks.isEmpty())
+				{
+					readyKeys = selector.selectNow();
+				}
+				else
+				{
+					readyKeys = selector.select(timeout);
+				}
+				long selectEnd = System.nanoTime();
+				idleNanos += selectEnd - selectStart;
+				if (readyKeys > 0)
+				{
+					handleSelectedKeys();
+				}
+				accountBusyTime(selectEnd, System.nanoTime());
+				iterations++;
+			}
+			catch (IOException e)
+			{
+				// the other endpoints of the loop are still served, the select is retried after a pause
+				logger.error(String.format("%s failed to select: %s", thread.getName(), e.getMessage()));
+				pauseAfterError();
+			}
+		}
+		runTasks();
+		try
+		{
+			selector.close();
+		}
+		catch (IOException e)
+		{
+			logger.error(e.getMessage());
+		}
+	}
+
+	private void pauseAfterError()
+	{
+		try
+		{
+			Thread.sleep(SELECT_ERROR_PAUSE);
+		}
+		catch (InterruptedException e)
+		{
+			// the loop only stops once shut down
+		}
+	}
+
+	private long runTasks()
+	{
+		long start = System.nanoTime();
+		Runnable task;
+		while ((task = tasks.poll()) != null)
+		{
+			try
+			{
+				task.run();
+			}
+			catch (RuntimeException e)
+			{
+				logger.error(String.format("job event loop task failed: %s", e));
+			}
+		}
+		long timeout = 0;
+		for (JobEventHandler handler : handlers)
+		{
+			try
+			{
+				long next = handler.beforeSelect();
+				if (next > 0)
+				{
+					timeout = timeout == 0 ? next : Math.min(timeout, next);
+				}
+			}
+			catch (RuntimeException e)
+			{
+				logger.error(String.format("job event handler failed: %s", e));
+			}
+		}
+		accountBusyTime(start, System.nanoTime());
+		return timeout;
+	}
+
+	private void handleSelectedKeys()
+	{
+		Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+		while (iter.hasNext())
+		{
+			SelectionKey key = iter.next();
+			iter.remove();
+			if (!key.isValid())
+			{
+				continue;
+			}
+			try
+			{
+				((JobEventHandler) key.attachment()).handleKey(key);
+			}
+			catch (RuntimeException e)
+			{
+				logger.error(String.format("job event handler failed: %s", e));
+			}
+		}
+	}
+
+	private void accountBusyTime(long start, long end)
+	{
+		busyNanos += end - start;
+		windowBusyNanos += end - start;
+		if (end - windowStart >= UTILIZATION_WINDOW)
+		{
+			utilization = Math.min(1.0, (double) windowBusyNanos / (end - windowStart));
+			windowStart = end;
+			windowBusyNanos = 0;
+		}
+	}
+
+	/***
+	 * Queues the given task to be run by the loop thread on its next iteration.
+	 * @param task - the task to be run.
+	 */
+	public void execute(Runnable task)
+	{
+		tasks.offer(task);
+		wakeup();
+	}
+
+	/***
+	 * Runs the given task on the loop thread and waits for it to complete. The task is run directly if called from
+	 * the loop thread or if the loop is no longer running.
+	 * @param task - the task to be run.
+	 * @throws InterruptedException
+	 */
+	void executeAndWait(final Runnable task) throws InterruptedException
+	{
+		if (inEventLoop() || !running)
+		{
+			task.run();
+			return;
+		}
+		final CountDownLatch done = new CountDownLatch(1);
+		execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					task.run();
+				}
+				finally
+				{
+					done.countDown();
+				}
+			}
+		});
+		if (!done.await(STOP_TIMEOUT, TimeUnit.MILLISECONDS))
+		{
+			logger.warn(String.format("%s did not run the task in time", thread.getName()));
+		}
+	}
+
+	/***
+	 * Wakes up the loop thread so that it runs queued tasks and calls the attached handlers. Redundant wakeups are
+	 * coalesced until the loop selects again.
+	 */
+	public void wakeup()
+	{
+		if (!inEventLoop() && wakenUp.compareAndSet(false, true))
+		{
+			wakeups.incrementAndGet();
+			selector.wakeup();
+		}
+	}
+
+	/***
+	 *
+	 * @return true if called from the loop thread.
+	 */
+	public boolean inEventLoop()
+	{
+		return Thread.currentThread() == thread;
+	}
+
+	/***
+	 * Prepares a connected job socket to be served by a loop.
+	 * @param channel - the socket of the client or of a session.
+	 * @throws IOException if the socket cannot be configured.
+	 */
+	static void configureSocket(SocketChannel channel) throws IOException
+	{
+		channel.configureBlocking(false);
+		// small urgent messages must not be held back waiting for the acknowledgement of earlier ones
+		channel.socket().setTcpNoDelay(true);
+	}
+
+	SelectionKey register(SelectableChannel channel, int ops, JobEventHandler handler) throws ClosedChannelException
+	{
+		return channel.register(selector, ops, handler);
+	}
+
+	void attach(JobEventHandler handler)
+	{
+		handlers.add(handler);
+		wakeup();
+	}
+
+	void detach(JobEventHandler handler)
+	{
+		handlers.remove(handler);
+	}
+
+	void bind()
+	{
+		endpoints.incrementAndGet();
+	}
+
+	void unbind()
+	{
+		endpoints.decrementAndGet();
+	}
+
+	void shutdown()
+	{
+		running = false;
+		selector.wakeup();
+	}
+
+	boolean awaitTermination(long timeoutMillis) throws InterruptedException
+	{
+		if (inEventLoop())
+		{
+			return false;
+		}
+		thread.join(timeoutMillis);
+		return !thread.isAlive();
+	}
+
+	/***
+	 *
+	 * @return the name of the loop thread.
+	 */
+	public String getName()
+	{
+		return thread.getName();
+	}
+
+	/***
+	 *
+	 * @return the number of endpoints currently bound to this loop.
+	 */
+	public int getEndpointCount()
+	{
+		return endpoints.get();
+	}
+
+	/***
+	 *
+	 * @return the fraction of time, from 0 to 1, the loop spent handling events rather than waiting during the last
+	 * completed one second window.
+	 */
+	public double getUtilization()
+	{
+		return utilization;
+	}
+
+	/***
+	 *
+	 * @return the total time in nanoseconds spent handling events since the loop started.
+	 */
+	public long getBusyNanos()
+	{
+		return busyNanos;
+	}
+
+	/***
+	 *
+	 * @return the total time in nanoseconds spent waiting for events since the loop started.
+	 */
+	public long getIdleNanos()
+	{
+		return idleNanos;
+	}
+
+	/***
+	 *
+	 * @return the number of loop iterations since the loop started.
+	 */
+	public long getIterationCount()
+	{
+		return iterations;
+	}
+
+	/***
+	 *
+	 * @return the number of times other threads had to wake the selector up.
+	 */
+	public long getWakeupCount()
+	{
+		return wakeups.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("%s: %d endpoints, %.1f%% utilization, %d iterations, %d wakeups",
+				thread.getName(), endpoints.get(), utilization * 100, iterations, wakeups.get());
+	}
+}
@@ -0,0 +1,182 @@
+package robotChemist.net;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.kuka.task.ITaskLogger;
+
+/***
+ * A fixed set of {@link JobEventLoop} threads shared by {@link AsyncJobClient} and {@link AsyncJobServer} endpoints.
+ * Each endpoint is bound to the least busy loop when it is created, so the number of threads stays the same however
+ * many endpoints are opened. Endpoints constructed without a group use a default single-threaded group that is created
+ * with the first of them and shut down once the last one is stopped; an endpoint started again afterwards creates it
+ * anew.
+ * @author stoic-roboticist
+ *
+ */
+public class JobEventLoopGroup
+{
+	private static final long TERMINATION_TIMEOUT = 1000;
+
+	private static JobEventLoopGroup defaultGroup;
+	private static int defaultGroupUsers = 0;
+
+	private final List<JobEventLoop> loops;
+	private volatile boolean shutdown = false;
+	// set on the default group, only accessed while holding the class lock
+	private boolean shared = false;
+
+	/***
+	 * Constructs a group with a single event loop thread.
+	 * @param logger - RoboticsAPI logging interface.
+	 * @throws IOException if a selector cannot be opened.
+	 */
+	public JobEventLoopGroup(ITaskLogger logger) throws IOException
+	{
+		this(1, logger);
+	}
+
+	/***
+	 * Constructs a group and starts its event loop threads.
+	 * @param threads - the number of event loops, at least 1.
+	 * @param logger - RoboticsAPI logging interface.
+	 * @throws IOException if a selector cannot be opened.
+	 */
+	public JobEventLoopGroup(int threads, ITaskLogger logger) throws IOException
+	{
+		if (threads < 1)
+		{
+			throw new IllegalArgumentException(String.format("invalid number of event loops: %d", threads));
+		}
+		List<JobEventLoop> created = new ArrayList<JobEventLoop>(threads);
+		for (int i = 0; i < threads; i++)
+		{
+			created.add(new JobEventLoop(String.format("job-event-loop-%d", i), logger));
+		}
+		loops = Collections.unmodifiableList(created);
+		for (JobEventLoop loop : loops)
+		{
+			loop.start();
+		}
+	}
+
+	static synchronized JobEventLoopGroup acquireDefault(ITaskLogger logger) throws IOException
+	{
+		if (defaultGroup == null)
+		{
+			defaultGroup = new JobEventLoopGroup(logger);
+			defaultGroup.shared = true;
+		}
+		defaultGroupUsers++;
+		return defaultGroup;
+	}
+
+	/***
+	 * Gets the group a stopped endpoint is bound to when started again. The default group was released when the
+	 * endpoint stopped, so it is acquired again, and created anew if its last endpoint shut it down meanwhile.
+	 * @param group - the group the endpoint was bound to.
+	 * @param logger - RoboticsAPI logging interface.
+	 * @return the group to bind the endpoint to.
+	 * @throws IOException if the default group cannot be created.
+	 */
+	static synchronized JobEventLoopGroup reacquire(JobEventLoopGroup group, ITaskLogger logger) throws IOException
+	{
+		return group.shared ? acquireDefault(logger) : group;
+	}
+
+	static synchronized void releaseDefault(JobEventLoopGroup group)
+	{
+		if (group != defaultGroup)
+		{
+			return;
+		}
+		if (--defaultGroupUsers == 0)
+		{
+			defaultGroup = null;
+			group.shutdown();
+			try
+			{
+				group.awaitTermination(TERMINATION_TIMEOUT);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/***
+	 * Binds a new endpoint to the loop hosting the fewest endpoints. The endpoint unbinds itself once stopped.
+	 * @return the event loop the endpoint is bound to.
+	 */
+	synchronized JobEventLoop next()
+	{
+		if (shutdown)
+		{
+			throw new IllegalStateException("the job event loop group is shut down");
+		}
+		JobEventLoop next = loops.get(0);
+		for (JobEventLoop loop : loops)
+		{
+			if (loop.getEndpointCount() < next.getEndpointCount())
+			{
+				next = loop;
+			}
+		}
+		next.bind();
+		return next;
+	}
+
+	/***
+	 * Stops all the event loops promptly. Endpoints still using the group should be stopped first.
+	 */
+	public void shutdown()
+	{
+		shutdown = true;
+		for (JobEventLoop loop : loops)
+		{
+			loop.shutdown();
+		}
+	}
+
+	/***
+	 * Waits for the event loop threads to terminate after {@link #shutdown()}.
+	 * @param timeoutMillis - the time to wait for each loop in milliseconds.
+	 * @return true if all the loops terminated.
+	 * @throws InterruptedException
+	 */
+	public boolean awaitTermination(long timeoutMillis) throws InterruptedException
+	{
+		boolean terminated = true;
+		for (JobEventLoop loop : loops)
+		{
+			terminated &= loop.awaitTermination(timeoutMillis);
+		}
+		return terminated;
+	}
+
+	/***
+	 *
+	 * @return the event loops of this group, for monitoring their utilization.
+	 */
+	public List<JobEventLoop> getLoops()
+	{
+		return loops;
+	}
+
+	/***
+	 *
+	 * @return the average utilization of the event loops, from 0 to 1.
+	 */
+	public double getUtilization()
+	{
+		double total = 0;
+		for (JobEventLoop loop : loops)
+		{
+			total += loop.getUtilization();
+		}
+		return total / loops.size();
+	}
+}
@@ -0,0 +1,261 @@
+package robotChemist.net;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/***
+ * A future representing the reply to a request {@link JobMsg} sent over the job channel. It is completed
+ * by the connection thread as soon as the matching reply is received, or failed when its deadline passes
+ * before any reply arrives.
+ * @author stoic-roboticist
+ *
+ */
+public class JobFuture implements Future<JobMsg> 
+{
+	/***
+	 * A callback notified once a {@link JobFuture} is completed, failed or cancelled. Listeners are called
+	 * on the thread that completes the future, usually the connection thread, so they must not block.
+	 */
+	public interface Listener
+	{
+		void onComplete(JobFuture future);
+	}
+	
+	private final JobMsg request;
+	private final JobMsg expectedReply;
+	private final int correlationId;
+	private final long deadline;
+	
+	private JobMsg reply;
+	private Exception failure;
+	private boolean cancelled;
+	private boolean done;
+	private List<Listener> listeners;
+	
+	/***
+	 * Constructs a pending future.
+	 * @param request - the request message.
+	 * @param expectedReply - a message with the job info and code the reply is expected to have.
+	 * @param correlationId - the correlation id assigned to the request.
+	 * @param deadline - the {@link System#nanoTime()} after which the request times out, or 0 for no deadline.
+	 */
+	public JobFuture(JobMsg request, JobMsg expectedReply, int correlationId, long deadline)
+	{
+		this.request = request;
+		this.expectedReply = expectedReply;
+		this.correlationId = correlationId;
+		this.deadline = deadline;
+		this.listeners = new ArrayList<Listener>(1);
+	}
+	
+	/***
+	 * 
+	 * @return the request message of this future.
+	 */
+	public JobMsg getRequest()
+	{
+		return request;
+	}
+	
+	/***
+	 * 
+	 * @return a message with the job info and code the reply is expected to have.
+	 */
+	public JobMsg getExpectedReply()
+	{
+		return expectedReply;
+	}
+	
+	/***
+	 * 
+	 * @return the correlation id assigned to the request.
+	 */
+	public int getCorrelationId()
+	{
+		return correlationId;
+	}
+	
+	/***
+	 * 
+	 * @return the {@link System#nanoTime()} deadline of the request, or 0 if it has none.
+	 */
+	public long getDeadline()
+	{
+		return deadline;
+	}
+	
+	/***
+	 * Completes the future with the given reply.
+	 * @param reply - the received reply.
+	 * @return true if the future was completed by this call.
+	 */
+	public boolean complete(JobMsg reply)
+	{
+		synchronized (this)
+		{
+			if (done)
+			{
+				return false;
+			}
+			this.reply = reply;
+			done = true;
+			notifyAll();
+		}
+		notifyListeners();
+		return true;
+	}
+	
+	/***
+	 * Fails the future with the given exception.
+	 * @param e - the cause of the failure, e.g. a {@link TimeoutException}.
+	 * @return true if the future was failed by this call.
+	 */
+	public boolean fail(Exception e)
+	{
+		synchronized (this)
+		{
+			if (done)
+			{
+				return false;
+			}
+			this.failure = e;
+			done = true;
+			notifyAll();
+		}
+		notifyListeners();
+		return true;
+	}
+	
+	/***
+	 * Registers a listener that is called once the future is done. If it is already done, the listener is called
+	 * immediately on the calling thread.
+	 * @param listener - the listener to be notified.
+	 */
+	public void addListener(Listener listener)
+	{
+		synchronized (this)
+		{
+			if (!done)
+			{
+				listeners.add(listener);
+				return;
+			}
+		}
+		listener.onComplete(this);
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) 
+	{
+		synchronized (this)
+		{
+			if (done)
+			{
+				return false;
+			}
+			cancelled = true;
+			done = true;
+			notifyAll();
+		}
+		notifyListeners();
+		return true;
+	}
+
+	@Override
+	public synchronized boolean isCancelled() 
+	{
+		return cancelled;
+	}
+
+	@Override
+	public synchronized boolean isDone() 
+	{
+		return done;
+	}
+	
+	/***
+	 * 
+	 * @return true if the future completed with a reply, false if it is still pending, failed or was cancelled.
+	 */
+	public synchronized boolean isReplied()
+	{
+		return done && reply != null;
+	}
+	
+	/***
+	 * 
+	 * @return true if the future failed or was cancelled.
+	 */
+	public synchronized boolean isFailed()
+	{
+		return done && reply == null;
+	}
+	
+	/***
+	 * Gets the reply without waiting.
+	 * @return the reply, or null if no reply has been received.
+	 */
+	public synchronized JobMsg getNow()
+	{
+		return reply;
+	}
+
+	@Override
+	public synchronized JobMsg get() throws InterruptedException, ExecutionException 
+	{
+		while (!done)
+		{
+			wait();
+		}
+		return report();
+	}
+
+	@Override
+	public synchronized JobMsg get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException 
+	{
+		long remaining = unit.toNanos(timeout);
+		long end = System.nanoTime() + remaining;
+		while (!done)
+		{
+			if (remaining <= 0)
+			{
+				throw new TimeoutException("no reply received for " + request);
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			remaining = end - System.nanoTime();
+		}
+		return report();
+	}
+	
+	private JobMsg report() throws ExecutionException
+	{
+		if (cancelled)
+		{
+			throw new CancellationException("request cancelled: " + request);
+		}
+		if (failure != null)
+		{
+			throw new ExecutionException(failure);
+		}
+		return reply;
+	}
+	
+	private void notifyListeners()
+	{
+		List<Listener> toNotify;
+		synchronized (this)
+		{
+			toNotify = listeners;
+			listeners = new ArrayList<Listener>(0);
+		}
+		for (Listener listener : toNotify)
+		{
+			listener.onComplete(this);
+		}
+	}
+}
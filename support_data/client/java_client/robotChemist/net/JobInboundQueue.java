@@ -0,0 +1,457 @@
+package robotChemist.net;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/***
+ * The queue of received job messages no request or subscriber took. Unlike a plain {@link LinkedBlockingQueue} it
+ * never grows without bound: every job info may only have a limited number of messages waiting, the oldest one being
+ * evicted to make room for a new one, and messages waiting longer than the time to live are evicted as well. Inserting
+ * never blocks, messages that do not fit in the overall capacity are dropped. Evictions and drops are counted so they
+ * can be monitored.<br>
+ * Urgent messages, see {@link JobPriority}, have an inbound lane of their own: {@link #poll()}, {@link #take()} and 
+ * {@link #peek()} hand them out first, in their arrival order, however many normal messages wait ahead of them. They 
+ * are still part of the queue otherwise, so the size, iteration order, evictions and blocking behave as for a plain 
+ * queue in arrival order.
+ * @author stoic-roboticist
+ *
+ */
+public class JobInboundQueue extends LinkedBlockingQueue<JobMsg>
+{
+	private static final long serialVersionUID = 1L;
+
+	/***
+	 * The default number of messages of the same job info that may wait in the queue.
+	 */
+	public static final int DEFAULT_TOPIC_CAPACITY = 256;
+
+	/***
+	 * The default time in milliseconds a message may wait in the queue.
+	 */
+	public static final long DEFAULT_TIME_TO_LIVE = 300000;
+
+	private final ConcurrentHashMap<String, AtomicInteger> topicCounts;
+	// the urgent messages also queued in arrival order, taken first by the consumers
+	private final ConcurrentLinkedQueue<JobMsg> urgentLane;
+	private volatile int topicCapacity = DEFAULT_TOPIC_CAPACITY;
+	private volatile long timeToLive = TimeUnit.MILLISECONDS.toNanos(DEFAULT_TIME_TO_LIVE);
+
+	private final AtomicLong expiredCount;
+	private final AtomicLong evictedCount;
+	private final AtomicLong droppedCount;
+
+	/***
+	 * Constructs a queue with no overall capacity limit.
+	 */
+	public JobInboundQueue()
+	{
+		this(Integer.MAX_VALUE);
+	}
+
+	/***
+	 * Constructs a queue holding at most the given number of messages.
+	 * @param capacity - the overall capacity of the queue.
+	 */
+	public JobInboundQueue(int capacity)
+	{
+		super(capacity);
+		topicCounts = new ConcurrentHashMap<String, AtomicInteger>();
+		urgentLane = new ConcurrentLinkedQueue<JobMsg>();
+		expiredCount = new AtomicLong();
+		evictedCount = new AtomicLong();
+		droppedCount = new AtomicLong();
+	}
+
+	/***
+	 * Sets the number of messages of the same job info that may wait in the queue.
+	 * @param topicCapacity - the capacity per job info, or 0 for no limit.
+	 */
+	public void setTopicCapacity(int topicCapacity)
+	{
+		this.topicCapacity = topicCapacity;
+	}
+
+	/***
+	 * Sets the time a message may wait in the queue before being evicted.
+	 * @param timeToLiveMillis - the time to live in milliseconds, or 0 to keep messages until consumed.
+	 */
+	public void setTimeToLive(long timeToLiveMillis)
+	{
+		this.timeToLive = TimeUnit.MILLISECONDS.toNanos(timeToLiveMillis);
+	}
+
+	/***
+	 * Queues the given message, first evicting the expired messages and, if its job info is at capacity, the oldest
+	 * message with the same job info. Never blocks.
+	 * @return false if the message was dropped because the queue is full.
+	 */
+	@Override
+	public boolean offer(JobMsg msg)
+	{
+		long now = System.nanoTime();
+		evictExpired(now);
+		String topic = topicOf(msg);
+		int capacity = topicCapacity;
+		if (capacity > 0 && count(topic).get() >= capacity && recount(topic) >= capacity)
+		{
+			evictOldest(topic);
+		}
+		msg.setReceivedAt(now);
+		if (!super.offer(msg))
+		{
+			droppedCount.incrementAndGet();
+			return false;
+		}
+		count(topic).incrementAndGet();
+		if (JobPriority.of(msg) == JobPriority.URGENT)
+		{
+			urgentLane.offer(msg);
+		}
+		return true;
+	}
+
+	/***
+	 * Same as {@link #offer(JobMsg)}, the queue never blocks on insertion.
+	 */
+	@Override
+	public boolean offer(JobMsg msg, long timeout, TimeUnit unit)
+	{
+		return offer(msg);
+	}
+
+	/***
+	 * Same as {@link #offer(JobMsg)}, the queue never blocks on insertion.
+	 */
+	@Override
+	public void put(JobMsg msg)
+	{
+		offer(msg);
+	}
+
+	/***
+	 * Takes the oldest urgent message if any, otherwise the head of the queue.
+	 */
+	@Override
+	public JobMsg poll()
+	{
+		JobMsg urgent = pollUrgent();
+		return urgent != null ? urgent : taken(super.poll());
+	}
+
+	/***
+	 * Takes the oldest urgent message if any, otherwise waits for the head of the queue.
+	 */
+	@Override
+	public JobMsg poll(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		JobMsg urgent = pollUrgent();
+		return urgent != null ? urgent : taken(super.poll(timeout, unit));
+	}
+
+	/***
+	 * Takes the oldest urgent message if any, otherwise waits for the head of the queue.
+	 */
+	@Override
+	public JobMsg take() throws InterruptedException
+	{
+		JobMsg urgent = pollUrgent();
+		return urgent != null ? urgent : taken(super.take());
+	}
+
+	/***
+	 * Gets the oldest urgent message if any, otherwise the head of the queue, without taking it.
+	 */
+	@Override
+	public JobMsg peek()
+	{
+		JobMsg urgent;
+		while ((urgent = urgentLane.peek()) != null)
+		{
+			if (isQueued(urgent))
+			{
+				return urgent;
+			}
+			removeFromLane(urgent);
+		}
+		return super.peek();
+	}
+
+	/***
+	 *
+	 * @return the number of urgent messages waiting in the queue.
+	 */
+	public int getUrgentCount()
+	{
+		return urgentLane.size();
+	}
+
+	@Override
+	public boolean remove(Object o)
+	{
+		// the queued instance is the one accounted for, not the equal one given
+		for (Iterator<JobMsg> iter = super.iterator(); iter.hasNext();)
+		{
+			JobMsg queued = iter.next();
+			if (queued.equals(o))
+			{
+				iter.remove();
+				taken(queued);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public int drainTo(Collection<? super JobMsg> c)
+	{
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super JobMsg> c, int maxElements)
+	{
+		int drained = 0;
+		JobMsg msg;
+		while (drained < maxElements && (msg = poll()) != null)
+		{
+			c.add(msg);
+			drained++;
+		}
+		return drained;
+	}
+
+	@Override
+	public void clear()
+	{
+		super.clear();
+		topicCounts.clear();
+		urgentLane.clear();
+	}
+
+	@Override
+	public Iterator<JobMsg> iterator()
+	{
+		final Iterator<JobMsg> iter = super.iterator();
+		return new Iterator<JobMsg>()
+		{
+			private JobMsg last;
+
+			@Override
+			public boolean hasNext()
+			{
+				return iter.hasNext();
+			}
+
+			@Override
+			public JobMsg next()
+			{
+				last = iter.next();
+				return last;
+			}
+
+			@Override
+			public void remove()
+			{
+				iter.remove();
+				taken(last);
+			}
+		};
+	}
+
+	/***
+	 * Evicts the messages that waited longer than the time to live.
+	 * @param now - the current System.nanoTime().
+	 * @return the number of evicted messages.
+	 */
+	public int evictExpired(long now)
+	{
+		long ttl = timeToLive;
+		if (ttl <= 0)
+		{
+			return 0;
+		}
+		int expired = 0;
+		// messages are queued in arrival order so the expired ones are at the head
+		Iterator<JobMsg> iter = iterator();
+		while (iter.hasNext())
+		{
+			if (now - iter.next().getReceivedAt() < ttl)
+			{
+				break;
+			}
+			iter.remove();
+			expired++;
+		}
+		expiredCount.addAndGet(expired);
+		return expired;
+	}
+
+	/***
+	 * Gets the time until the oldest message expires.
+	 * @param now - the current System.nanoTime().
+	 * @return the time in milliseconds, at least 1, or 0 if no message is waiting or there is no time to live.
+	 */
+	public long millisToNextExpiry(long now)
+	{
+		long ttl = timeToLive;
+		// the oldest message, urgent or not
+		JobMsg head = super.peek();
+		if (ttl <= 0 || head == null)
+		{
+			return 0;
+		}
+		return Math.max(1, TimeUnit.NANOSECONDS.toMillis(head.getReceivedAt() + ttl - now));
+	}
+
+	/***
+	 *
+	 * @return the number of messages evicted because they outlived the time to live.
+	 */
+	public long getExpiredCount()
+	{
+		return expiredCount.get();
+	}
+
+	/***
+	 *
+	 * @return the number of messages evicted to make room for newer ones with the same job info.
+	 */
+	public long getEvictedCount()
+	{
+		return evictedCount.get();
+	}
+
+	/***
+	 *
+	 * @return the number of received messages dropped because the queue was full.
+	 */
+	public long getDroppedCount()
+	{
+		return droppedCount.get();
+	}
+
+	private void evictOldest(String topic)
+	{
+		Iterator<JobMsg> iter = iterator();
+		while (iter.hasNext())
+		{
+			if (topicOf(iter.next()).equals(topic))
+			{
+				iter.remove();
+				evictedCount.incrementAndGet();
+				return;
+			}
+		}
+	}
+
+	private JobMsg taken(JobMsg msg)
+	{
+		if (msg != null)
+		{
+			AtomicInteger count = topicCounts.get(topicOf(msg));
+			if (count != null && count.decrementAndGet() < 0)
+			{
+				count.set(0);
+			}
+			if (JobPriority.of(msg) == JobPriority.URGENT)
+			{
+				removeFromLane(msg);
+			}
+		}
+		return msg;
+	}
+
+	private JobMsg pollUrgent()
+	{
+		JobMsg urgent;
+		while ((urgent = urgentLane.poll()) != null)
+		{
+			// the message may have been taken meanwhile through the queue itself
+			if (removeQueued(urgent))
+			{
+				return taken(urgent);
+			}
+		}
+		return null;
+	}
+
+	private boolean isQueued(JobMsg msg)
+	{
+		for (Iterator<JobMsg> iter = super.iterator(); iter.hasNext();)
+		{
+			if (iter.next() == msg)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean removeQueued(JobMsg msg)
+	{
+		// by identity, equal messages are different entries
+		for (Iterator<JobMsg> iter = super.iterator(); iter.hasNext();)
+		{
+			if (iter.next() == msg)
+			{
+				iter.remove();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void removeFromLane(JobMsg msg)
+	{
+		for (Iterator<JobMsg> iter = urgentLane.iterator(); iter.hasNext();)
+		{
+			if (iter.next() == msg)
+			{
+				iter.remove();
+				return;
+			}
+		}
+	}
+
+	private int recount(String topic)
+	{
+		// the counts can drift through removal methods this class does not see, so they are checked before evicting
+		int actual = 0;
+		for (Iterator<JobMsg> iter = super.iterator(); iter.hasNext();)
+		{
+			if (topicOf(iter.next()).equals(topic))
+			{
+				actual++;
+			}
+		}
+		count(topic).set(actual);
+		return actual;
+	}
+
+	private AtomicInteger count(String topic)
+	{
+		AtomicInteger count = topicCounts.get(topic);
+		if (count == null)
+		{
+			AtomicInteger created = new AtomicInteger();
+			count = topicCounts.putIfAbsent(topic, created);
+			if (count == null)
+			{
+				count = created;
+			}
+		}
+		return count;
+	}
+
+	private static String topicOf(JobMsg msg)
+	{
+		return msg.getJobInfo() != null ? msg.getJobInfo() : "";
+	}
+}
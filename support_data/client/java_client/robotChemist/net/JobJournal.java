@@ -0,0 +1,381 @@
+package robotChemist.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/***
+ * An append-only journal of outbound job requests backed by a memory-mapped file. Every request is written to the
+ * journal before it is sent and its entry is marked as acknowledged once the reply is received; acknowledged entries 
+ * at the head of the journal are truncated. Requests still pending when the application stops are found again the
+ * next time the journal is opened so they can be replayed, which keeps the arm and the base in agreement about
+ * messages such as "done_charging" that were in flight during a restart.<br>
+ * <br>
+ * Appending only copies the encoded message into the mapped memory, which the operating system persists even if
+ * the JVM dies. Use {@link #setSyncOnWrite(boolean)} to also force every entry to the storage device.<br>
+ * <br>
+ * The file is split into two regions, only one of which holds the entries. When the active region is full, the
+ * pending entries are copied to the start of the other one before the header is switched over to it with a single
+ * write, so a crash while compacting leaves the journal as it was before. Each region thus holds half the capacity.
+ * <br>
+ * Replaying is at least once: a request whose reply was lost in a crash is sent again, so the base must tolerate
+ * receiving requests such as "goto_charge" twice. Replayed requests keep their correlation id, which lets version 2
+ * servers recognise them.
+ * @author stoic-roboticist
+ *
+ */
+public class JobJournal 
+{
+	/***
+	 * A pending journal entry.
+	 */
+	public static class Entry
+	{
+		private final long seq;
+		private final JobMsg request;
+		private final JobMsg expectedReply;
+		
+		Entry(long seq, JobMsg request, JobMsg expectedReply)
+		{
+			this.seq = seq;
+			this.request = request;
+			this.expectedReply = expectedReply;
+		}
+		
+		public long getSeq()
+		{
+			return seq;
+		}
+		
+		public JobMsg getRequest()
+		{
+			return request;
+		}
+		
+		public JobMsg getExpectedReply()
+		{
+			return expectedReply;
+		}
+	}
+	
+	/***
+	 * Default size of the journal file in bytes.
+	 */
+	public static final int DEFAULT_CAPACITY = 1 << 20;
+	
+	private static final int MAGIC = 0x4A4A524E;
+	private static final int FORMAT = 2;
+	private static final int HEADER_SIZE = 32;
+	// the head and the tail are written together as a single aligned long, the head in the high half
+	private static final int OFFSET_HEAD_TAIL = 8;
+	private static final int OFFSET_NEXT_SEQ = 16;
+	
+	private static final int ENTRY_HEADER_SIZE = 20;
+	private static final int STATE_PENDING = 1;
+	private static final int STATE_ACKED = 2;
+	
+	private RandomAccessFile file;
+	private MappedByteBuffer map;
+	private JobCodecV2 codec;
+	private int capacity;
+	private int regionSize;
+	// base offset of the region holding the entries
+	private int region;
+	private int head;
+	private int tail;
+	private long nextSeq;
+	private boolean syncOnWrite;
+	// pending entries in journal order: sequence number -> offset
+	private TreeMap<Long, Integer> offsets;
+	private List<Entry> recovered;
+	
+	/***
+	 * Opens the journal stored in the given file, creating it if needed. Pending entries left by a previous run are
+	 * available from {@link #getPendingEntries()}.
+	 * @param path - the journal file.
+	 * @param capacity - the journal size in bytes, of which half is available for entries, only used when the file is
+	 * created.
+	 * @throws IOException if the file cannot be opened or mapped.
+	 */
+	public JobJournal(File path, int capacity) throws IOException
+	{
+		this.file = new RandomAccessFile(path, "rw");
+		if (file.length() >= HEADER_SIZE)
+		{
+			capacity = (int) file.length();
+		}
+		this.capacity = capacity;
+		this.regionSize = (capacity - HEADER_SIZE) / 2;
+		this.map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		this.codec = new JobCodecV2();
+		this.offsets = new TreeMap<Long, Integer>();
+		this.recovered = new ArrayList<Entry>();
+		if (map.getInt(0) == MAGIC && map.getInt(4) == FORMAT)
+		{
+			recover();
+		}
+		else
+		{
+			region = HEADER_SIZE;
+			head = region;
+			tail = region;
+			nextSeq = 1;
+			map.putInt(0, MAGIC);
+			map.putInt(4, FORMAT);
+			writeHeader();
+		}
+	}
+	
+	/***
+	 * Opens the journal stored in the given file with the {@link #DEFAULT_CAPACITY}.
+	 * @param path - the journal file.
+	 * @throws IOException if the file cannot be opened or mapped.
+	 */
+	public JobJournal(File path) throws IOException
+	{
+		this(path, DEFAULT_CAPACITY);
+	}
+	
+	/***
+	 * Enables forcing every written entry to the storage device. This survives power loss but makes appending
+	 * orders of magnitude slower.
+	 * @param syncOnWrite - true to force every write.
+	 */
+	public synchronized void setSyncOnWrite(boolean syncOnWrite)
+	{
+		this.syncOnWrite = syncOnWrite;
+	}
+	
+	/***
+	 * Appends a request to the journal.
+	 * @param request - the request about to be sent.
+	 * @param expectedReply - a message with the job info and code the reply is expected to have.
+	 * @return the sequence number identifying the entry.
+	 * @throws IOException if the journal is full.
+	 */
+	public synchronized long append(JobMsg request, JobMsg expectedReply) throws IOException
+	{
+		ByteBuffer encodedRequest = codec.encode(request);
+		ByteBuffer encodedReply = codec.encode(expectedReply);
+		int length = ENTRY_HEADER_SIZE + encodedRequest.remaining() + encodedReply.remaining();
+		if (tail + length > region + regionSize)
+		{
+			compact();
+			if (tail + length > region + regionSize)
+			{
+				throw new IOException(String.format("job journal full, %d pending entries", offsets.size()));
+			}
+		}
+		long seq = nextSeq++;
+		int offset = tail;
+		map.putInt(offset, length);
+		map.putLong(offset + 8, seq);
+		map.putInt(offset + 16, encodedRequest.remaining());
+		map.position(offset + ENTRY_HEADER_SIZE);
+		map.put(encodedRequest);
+		map.put(encodedReply);
+		// the entry becomes visible only once it is completely written
+		map.putInt(offset + 4, STATE_PENDING);
+		tail += length;
+		writeHeader();
+		offsets.put(seq, offset);
+		if (syncOnWrite)
+		{
+			map.force();
+		}
+		return seq;
+	}
+	
+	/***
+	 * Marks an entry as acknowledged and truncates the head of the journal.
+	 * @param seq - the sequence number of the entry.
+	 */
+	public synchronized void acknowledge(long seq)
+	{
+		Integer offset = offsets.remove(seq);
+		if (offset == null)
+		{
+			return;
+		}
+		map.putInt(offset + 4, STATE_ACKED);
+		if (offsets.isEmpty())
+		{
+			head = region;
+			tail = region;
+		}
+		else
+		{
+			head = offsets.firstEntry().getValue();
+		}
+		writeHeader();
+		if (syncOnWrite)
+		{
+			map.force();
+		}
+	}
+	
+	/***
+	 * Gets the entries that were still pending when the journal was opened, in the order they were appended.
+	 * @return the recovered entries.
+	 */
+	public synchronized List<Entry> getRecoveredEntries()
+	{
+		return new ArrayList<Entry>(recovered);
+	}
+	
+	/***
+	 * 
+	 * @return true if the sequence number belongs to an entry that has not been acknowledged yet.
+	 */
+	public synchronized boolean isPending(long seq)
+	{
+		return offsets.containsKey(seq);
+	}
+	
+	/***
+	 * 
+	 * @return the number of entries that have not been acknowledged yet.
+	 */
+	public synchronized int getPendingCount()
+	{
+		return offsets.size();
+	}
+	
+	/***
+	 * Gets all the entries that have not been acknowledged yet, in the order they were appended.
+	 * @return the pending entries decoded from the journal.
+	 */
+	public synchronized List<Entry> getPendingEntries()
+	{
+		List<Entry> entries = new ArrayList<Entry>(offsets.size());
+		for (Map.Entry<Long, Integer> e : offsets.entrySet())
+		{
+			entries.add(readEntry(e.getValue()));
+		}
+		return entries;
+	}
+	
+	/***
+	 * 
+	 * @return the highest correlation id of the pending entries, or 0 if there is none.
+	 */
+	public synchronized int getMaxCorrelationId()
+	{
+		int max = 0;
+		for (Entry entry : getPendingEntries())
+		{
+			max = Math.max(max, entry.getRequest().getCorrelationId());
+		}
+		return max;
+	}
+	
+	/***
+	 * Flushes and closes the journal file.
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException
+	{
+		map.force();
+		file.close();
+	}
+	
+	private void recover()
+	{
+		long headTail = map.getLong(OFFSET_HEAD_TAIL);
+		head = (int) (headTail >>> 32);
+		tail = (int) headTail;
+		nextSeq = map.getLong(OFFSET_NEXT_SEQ);
+		region = head < HEADER_SIZE + regionSize ? HEADER_SIZE : HEADER_SIZE + regionSize;
+		if (head < HEADER_SIZE || head > tail || tail > region + regionSize)
+		{
+			region = HEADER_SIZE;
+			head = region;
+			tail = region;
+		}
+		int offset = head;
+		while (offset + ENTRY_HEADER_SIZE <= tail)
+		{
+			int length = map.getInt(offset);
+			if (length < ENTRY_HEADER_SIZE || offset + length > tail)
+			{
+				break;
+			}
+			if (map.getInt(offset + 4) == STATE_PENDING)
+			{
+				try
+				{
+					Entry entry = readEntry(offset);
+					offsets.put(entry.getSeq(), offset);
+					recovered.add(entry);
+					nextSeq = Math.max(nextSeq, entry.getSeq() + 1);
+				}
+				catch (RuntimeException e)
+				{
+					// a corrupt entry cannot be replayed, skip it
+				}
+			}
+			offset += length;
+		}
+		tail = offset;
+		head = offsets.isEmpty() ? tail : offsets.firstEntry().getValue();
+		writeHeader();
+	}
+	
+	private Entry readEntry(int offset)
+	{
+		int length = map.getInt(offset);
+		long seq = map.getLong(offset + 8);
+		int requestLen = map.getInt(offset + 16);
+		ByteBuffer data = map.duplicate();
+		data.limit(offset + length);
+		data.position(offset + ENTRY_HEADER_SIZE);
+		ByteBuffer request = data.slice();
+		request.limit(requestLen);
+		data.position(offset + ENTRY_HEADER_SIZE + requestLen);
+		return new Entry(seq, codec.decode(request), codec.decode(data));
+	}
+	
+	private void compact()
+	{
+		int target = region == HEADER_SIZE ? HEADER_SIZE + regionSize : HEADER_SIZE;
+		int offset = target;
+		// the entries are only copied to the other region, the active one is left intact until the header switches
+		for (Map.Entry<Long, Integer> e : offsets.entrySet())
+		{
+			int length = map.getInt(e.getValue());
+			ByteBuffer source = map.duplicate();
+			source.limit(e.getValue() + length);
+			source.position(e.getValue());
+			ByteBuffer destination = map.duplicate();
+			destination.position(offset);
+			destination.put(source);
+			e.setValue(offset);
+			offset += length;
+		}
+		if (syncOnWrite)
+		{
+			map.force();
+		}
+		region = target;
+		head = target;
+		tail = offset;
+		writeHeader();
+		if (syncOnWrite)
+		{
+			map.force();
+		}
+	}
+	
+	private void writeHeader()
+	{
+		map.putLong(OFFSET_NEXT_SEQ, nextSeq);
+		map.putLong(OFFSET_HEAD_TAIL, ((long) head << 32) | (tail & 0xFFFFFFFFL));
+	}
+}
@@ -10,6 +10,11 @@ public class JobMsg
 {
 	private int jobCode = 0;
 	private String jobInfo = "";
+	private int correlationId = 0;
+	private boolean urgent = false;
+	private JobPayload payload = null;
+	// System.nanoTime() when the message was queued on the receiving side, not part of the message
+	private long receivedAt = 0;
 	
 	public JobMsg()
 	{}
@@ -24,6 +29,22 @@ public class JobMsg
 	{
 		this.jobInfo = msg.jobInfo;
 		this.jobCode = msg.jobCode;
+		this.correlationId = msg.correlationId;
+		this.urgent = msg.urgent;
+		this.payload = msg.payload != null ? new JobPayload(msg.payload) : null;
+	}
+	
+	/***
+	 * Creates a reply to this message with the same job info, correlation id and urgency.
+	 * @param code - the job code of the reply.
+	 * @return the reply message.
+	 */
+	public JobMsg createReply(int code)
+	{
+		JobMsg reply = new JobMsg(jobInfo, code);
+		reply.correlationId = correlationId;
+		reply.urgent = urgent;
+		return reply;
 	}
 	
 	@Override
@@ -78,8 +99,76 @@ public class JobMsg
 		this.jobCode = code;
 	}
 	
+	/***
+	 * Gets the correlation id that links a request to its reply. It is not considered when comparing messages.
+	 * @return the correlation id, or 0 if the message is not correlated.
+	 */
+	public int getCorrelationId()
+	{
+		return correlationId;
+	}
+	
+	/***
+	 * Sets the correlation id that links a request to its reply.
+	 * @param correlationId - the correlation id, or 0 if the message is not correlated.
+	 */
+	public void setCorrelationId(int correlationId)
+	{
+		this.correlationId = correlationId;
+	}
+	
+	/***
+	 * Gets the typed data fields of the message. They are not considered when comparing messages.
+	 * @return the payload, or null if the message has none.
+	 */
+	public JobPayload getPayload()
+	{
+		return payload;
+	}
+	
+	/***
+	 * Sets the typed data fields of the message.
+	 * @param payload - the payload, or null to remove it.
+	 */
+	public void setPayload(JobPayload payload)
+	{
+		this.payload = payload;
+	}
+	
+	/***
+	 * 
+	 * @return true if the message was marked as urgent, see {@link JobPriority}.
+	 */
+	public boolean isUrgent()
+	{
+		return urgent;
+	}
+	
+	/***
+	 * Marks the message as urgent such that it is sent and delivered ahead of normal traffic, see {@link JobPriority}.
+	 * @param urgent - true to send the message in the urgent lane.
+	 */
+	public void setUrgent(boolean urgent)
+	{
+		this.urgent = urgent;
+	}
+	
+	long getReceivedAt()
+	{
+		return receivedAt;
+	}
+	
+	void setReceivedAt(long receivedAt)
+	{
+		this.receivedAt = receivedAt;
+	}
+	
 	public String toString()
 	{
+		if (payload != null)
+		{
+			return String.format("Job info: %s, Job ID: %d, Payload: %s", jobInfo, jobCode, payload);
+		}
 		return String.format("Job info: %s, Job ID: %d", jobInfo, jobCode);
 	}
 }
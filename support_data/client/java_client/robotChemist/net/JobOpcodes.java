@@ -0,0 +1,83 @@
+package robotChemist.net;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/***
+ * The dictionary of well known job infos used by the version 2 job protocol. Known job infos are sent as a single
+ * integer opcode instead of a string, and are decoded back to the interned string constant, so that no string
+ * decoding happens for them on the receiving side. Opcodes must only ever be appended to the table, since both
+ * peers rely on the same numbering. The number of opcodes known by each peer is exchanged when negotiating the
+ * protocol, and job infos appended after the ones the peer knows are sent literally, so peers with different
+ * revisions of the table can talk to each other.
+ * @author stoic-roboticist
+ *
+ */
+public final class JobOpcodes 
+{
+	/***
+	 * Opcode used for a job info that is not in the dictionary and is sent literally.
+	 */
+	public static final int LITERAL = 0;
+	
+	/***
+	 * The number of opcodes of the first revision of the dictionary, assumed for peers that do not advertise theirs.
+	 */
+	static final int INITIAL_COUNT = 10;
+	
+	private static final String[] INFOS = {
+		null,
+		JobControl.HEARTBEAT,
+		JobControl.HELLO,
+		"goto_charge",
+		"started_charging",
+		"done_charging",
+		"goto_calibrate",
+		"done_calibrating",
+		"need_to_resume",
+		"app_resumed",
+	};
+	
+	private static final Map<String, Integer> OPCODES = new HashMap<String, Integer>();
+	
+	static
+	{
+		for (int i = 1; i < INFOS.length; i++)
+		{
+			OPCODES.put(INFOS[i], i);
+		}
+	}
+	
+	private JobOpcodes()
+	{}
+	
+	/***
+	 * Gets the opcode of a job info.
+	 * @param jobInfo - the job info.
+	 * @return the opcode, or {@link #LITERAL} if the job info is not in the dictionary.
+	 */
+	public static int opcodeOf(String jobInfo)
+	{
+		Integer opcode = OPCODES.get(jobInfo);
+		return opcode != null ? opcode : LITERAL;
+	}
+	
+	/***
+	 * 
+	 * @return the number of opcodes in the dictionary, {@link #LITERAL} included.
+	 */
+	public static int count()
+	{
+		return INFOS.length;
+	}
+	
+	/***
+	 * Gets the job info of an opcode.
+	 * @param opcode - the opcode.
+	 * @return the interned job info, or null if the opcode is unknown.
+	 */
+	public static String infoOf(int opcode)
+	{
+		return opcode > LITERAL && opcode < INFOS.length ? INFOS[opcode] : null;
+	}
+}
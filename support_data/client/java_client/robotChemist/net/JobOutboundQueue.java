@@ -0,0 +1,317 @@
+package robotChemist.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/***
+ * A per-connection queue of outbound {@link JobMsg} that decouples the threads sending messages from the 
+ * selector thread writing them to the socket. Senders only enqueue and return, while the selector thread 
+ * drains the queue when the channel becomes writable using gathering writes, such that a burst of messages
+ * goes out in a single system call and short writes are simply finished on the next writable event.
+ * Messages are encoded when they are written, using the protocol version negotiated for the connection.
+ * Urgent messages, see {@link JobPriority}, have a lane of their own that is always drained first, and normal 
+ * messages are only taken while less than {@link #MAX_BATCH_BYTES} are waiting to be written, such that an urgent 
+ * message never waits behind more than one batch of normal traffic. Messages keep their order within a lane.
+ * @author stoic-roboticist
+ *
+ */
+public class JobOutboundQueue 
+{
+	private static final int MAX_GATHER = 64;
+	
+	/***
+	 * The amount of normal traffic in bytes taken from the queue for writing at once.
+	 */
+	public static final int MAX_BATCH_BYTES = 16 * 1024;
+	
+	private ConcurrentLinkedQueue<JobMsg> urgentPending;
+	private ConcurrentLinkedQueue<JobMsg> pending;
+	private AtomicBoolean flushRequested;
+	private JobEncoder encoder;
+	private JobCodecV2 codecV2;
+	
+	// only accessed by the selector thread
+	private int version;
+	private boolean held;
+	private JobMsg handshake;
+	private ArrayDeque<JobMsg> retry;
+	private ByteBuffer[] inFlight;
+	private JobMsg[] inFlightMsgs;
+	private int inFlightStart;
+	private int inFlightEnd;
+	
+	/***
+	 * Constructs an empty outbound queue.
+	 */
+	public JobOutboundQueue()
+	{
+		this.urgentPending = new ConcurrentLinkedQueue<JobMsg>();
+		this.pending = new ConcurrentLinkedQueue<JobMsg>();
+		this.flushRequested = new AtomicBoolean(false);
+		this.encoder = new JobEncoder();
+		this.codecV2 = new JobCodecV2();
+		this.version = JobControl.PROTOCOL_V1;
+		this.held = false;
+		this.retry = new ArrayDeque<JobMsg>();
+		this.inFlight = new ByteBuffer[MAX_GATHER];
+		this.inFlightMsgs = new JobMsg[MAX_GATHER];
+		this.inFlightStart = 0;
+		this.inFlightEnd = 0;
+	}
+	
+	/***
+	 * Adds the given message to the lane of its priority. This method is thread safe and never blocks.
+	 * @param msg - the message to be sent.
+	 * @return true if the selector thread has to be woken up to flush the queue, false if a flush was
+	 * already requested.
+	 */
+	public boolean enqueue(JobMsg msg)
+	{
+		if (JobPriority.of(msg) == JobPriority.URGENT)
+		{
+			urgentPending.offer(msg);
+		}
+		else
+		{
+			pending.offer(msg);
+		}
+		return flushRequested.compareAndSet(false, true);
+	}
+	
+	/***
+	 * 
+	 * @return true if there are messages waiting to be written to the channel.
+	 */
+	public boolean isFlushRequested()
+	{
+		return flushRequested.get();
+	}
+	
+	/***
+	 * Sets the protocol version used to encode the messages that have not been taken from the queue yet.
+	 * Must only be called from the selector thread.
+	 * @param version - the protocol version.
+	 */
+	public void setVersion(int version)
+	{
+		this.version = version;
+	}
+	
+	/***
+	 * Sets the number of opcodes known by the peer, see {@link JobCodecV2#setPeerOpcodeCount(int)}. Must only be 
+	 * called from the selector thread.
+	 * @param count - the number of opcodes known by the peer.
+	 */
+	public void setPeerOpcodeCount(int count)
+	{
+		codecV2.setPeerOpcodeCount(count);
+	}
+	
+	/***
+	 * Queues a protocol negotiation message ahead of every other message. It is always encoded with the version 1 
+	 * format and is written even while the queue is held. Must only be called from the selector thread.
+	 * @param msg - the negotiation message.
+	 */
+	public void sendHandshake(JobMsg msg)
+	{
+		handshake = msg;
+		flushRequested.set(true);
+	}
+	
+	/***
+	 * Holds or releases the regular messages, e.g. while the protocol version is being negotiated. 
+	 * Must only be called from the selector thread.
+	 * @param held - true to only write the handshake message.
+	 */
+	public void setHeld(boolean held)
+	{
+		this.held = held;
+		if (!held)
+		{
+			flushRequested.set(true);
+		}
+	}
+	
+	/***
+	 * Writes as many queued messages as the channel accepts without blocking. Must only be called from 
+	 * the selector thread.
+	 * @param channel - the channel to write to.
+	 * @return true if the queue was completely flushed, false if some data is still waiting for the 
+	 * channel to become writable again.
+	 * @throws IOException if writing to the channel fails.
+	 */
+	public boolean flush(GatheringByteChannel channel) throws IOException
+	{
+		while (true)
+		{
+			fillInFlight();
+			if (inFlightStart == inFlightEnd)
+			{
+				flushRequested.set(false);
+				// a message might have been enqueued after the queue was found empty
+				if (held || isEmpty() || !flushRequested.compareAndSet(false, true))
+				{
+					return true;
+				}
+				continue;
+			}
+			channel.write(inFlight, inFlightStart, inFlightEnd - inFlightStart);
+			while (inFlightStart < inFlightEnd && !inFlight[inFlightStart].hasRemaining())
+			{
+				inFlight[inFlightStart] = null;
+				inFlightMsgs[inFlightStart] = null;
+				inFlightStart++;
+			}
+			if (inFlightStart < inFlightEnd)
+			{
+				return false;
+			}
+		}
+	}
+	
+	/***
+	 * Puts back the messages already taken from the queue but not completely written, such that they are sent again 
+	 * in full and in order. Must be called from the selector thread after the connection is lost and before writing 
+	 * to a new one. The protocol version goes back to version 1 until a new one is negotiated.
+	 */
+	public void rewind()
+	{
+		for (int i = inFlightEnd - 1; i >= inFlightStart; i--)
+		{
+			if (inFlightMsgs[i] != null)
+			{
+				retry.addFirst(inFlightMsgs[i]);
+			}
+			inFlight[i] = null;
+			inFlightMsgs[i] = null;
+		}
+		inFlightStart = 0;
+		inFlightEnd = 0;
+		handshake = null;
+		held = false;
+		version = JobControl.PROTOCOL_V1;
+		if (!retry.isEmpty())
+		{
+			flushRequested.set(true);
+		}
+	}
+	
+	/***
+	 * Checks whether the given message object is waiting in the queue. Must only be called from the selector thread.
+	 * @param msg - the message instance to look for.
+	 * @return true if the very same message instance is queued and has not been taken for writing yet.
+	 */
+	public boolean isQueued(JobMsg msg)
+	{
+		for (JobMsg queued : retry)
+		{
+			if (queued == msg)
+			{
+				return true;
+			}
+		}
+		for (JobMsg queued : urgentPending)
+		{
+			if (queued == msg)
+			{
+				return true;
+			}
+		}
+		for (JobMsg queued : pending)
+		{
+			if (queued == msg)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private boolean isEmpty()
+	{
+		return urgentPending.isEmpty() && pending.isEmpty() && retry.isEmpty();
+	}
+	
+	/***
+	 * Drops all the queued messages, including any partially written one.
+	 */
+	public void clear()
+	{
+		urgentPending.clear();
+		pending.clear();
+		retry.clear();
+		for (int i = inFlightStart; i < inFlightEnd; i++)
+		{
+			inFlight[i] = null;
+			inFlightMsgs[i] = null;
+		}
+		inFlightStart = 0;
+		inFlightEnd = 0;
+		handshake = null;
+		flushRequested.set(false);
+	}
+	
+	private void fillInFlight()
+	{
+		if (inFlightStart == inFlightEnd)
+		{
+			inFlightStart = 0;
+			inFlightEnd = 0;
+		}
+		else if (inFlightStart > 0)
+		{
+			int count = inFlightEnd - inFlightStart;
+			System.arraycopy(inFlight, inFlightStart, inFlight, 0, count);
+			System.arraycopy(inFlightMsgs, inFlightStart, inFlightMsgs, 0, count);
+			for (int i = count; i < inFlightEnd; i++)
+			{
+				inFlight[i] = null;
+				inFlightMsgs[i] = null;
+			}
+			inFlightEnd = count;
+			inFlightStart = 0;
+		}
+		if (handshake != null && inFlightEnd < MAX_GATHER)
+		{
+			inFlightMsgs[inFlightEnd] = null;
+			inFlight[inFlightEnd++] = encoder.encode(handshake);
+			handshake = null;
+		}
+		if (held)
+		{
+			return;
+		}
+		while (inFlightEnd < MAX_GATHER && !retry.isEmpty())
+		{
+			JobMsg msg = retry.pollFirst();
+			inFlightMsgs[inFlightEnd] = msg;
+			inFlight[inFlightEnd++] = encode(msg);
+		}
+		JobMsg msg;
+		while (inFlightEnd < MAX_GATHER && (msg = urgentPending.poll()) != null)
+		{
+			inFlightMsgs[inFlightEnd] = msg;
+			inFlight[inFlightEnd++] = encode(msg);
+		}
+		int batchBytes = 0;
+		for (int i = 0; i < inFlightEnd; i++)
+		{
+			batchBytes += inFlight[i].remaining();
+		}
+		while (inFlightEnd < MAX_GATHER && batchBytes < MAX_BATCH_BYTES && (msg = pending.poll()) != null)
+		{
+			inFlightMsgs[inFlightEnd] = msg;
+			inFlight[inFlightEnd] = encode(msg);
+			batchBytes += inFlight[inFlightEnd++].remaining();
+		}
+	}
+	
+	private ByteBuffer encode(JobMsg msg)
+	{
+		return version == JobControl.PROTOCOL_V2 ? codecV2.encode(msg) : encoder.encode(msg);
+	}
+}
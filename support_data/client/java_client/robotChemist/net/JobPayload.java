@@ -0,0 +1,272 @@
+package robotChemist.net;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/***
+ * Typed data fields attached to a {@link JobMsg}. Each field is identified by a small integer key chosen by the
+ * application and holds an int, a long, a double, a pose, a battery state of charge or a string. Payloads are only 
+ * transmitted by the version 2 job protocol; they are dropped when talking to a version 1 peer.
+ * @author stoic-roboticist
+ *
+ */
+public class JobPayload 
+{
+	public static final byte TYPE_INT = 1;
+	public static final byte TYPE_LONG = 2;
+	public static final byte TYPE_DOUBLE = 3;
+	public static final byte TYPE_POSE = 4;
+	public static final byte TYPE_SOC = 5;
+	public static final byte TYPE_STRING = 6;
+	
+	/***
+	 * Number of doubles in a pose field: x, y, z in millimetres and a, b, c in radians.
+	 */
+	public static final int POSE_SIZE = 6;
+	
+	private static class Field
+	{
+		int key;
+		byte type;
+		long number;
+		double[] values;
+		String text;
+	}
+	
+	private List<Field> fields;
+	
+	/***
+	 * Constructs an empty payload.
+	 */
+	public JobPayload()
+	{
+		this.fields = new ArrayList<Field>(4);
+	}
+	
+	/***
+	 * Constructs a copy of the given payload.
+	 * @param payload - the payload to be copied.
+	 */
+	public JobPayload(JobPayload payload)
+	{
+		this.fields = new ArrayList<Field>(payload.fields.size());
+		for (Field f : payload.fields)
+		{
+			Field copy = put(f.key, f.type);
+			copy.number = f.number;
+			copy.values = f.values != null ? f.values.clone() : null;
+			copy.text = f.text;
+		}
+	}
+	
+	public JobPayload putInt(int key, int value)
+	{
+		put(key, TYPE_INT).number = value;
+		return this;
+	}
+	
+	public JobPayload putLong(int key, long value)
+	{
+		put(key, TYPE_LONG).number = value;
+		return this;
+	}
+	
+	public JobPayload putDouble(int key, double value)
+	{
+		put(key, TYPE_DOUBLE).values = new double[] {value};
+		return this;
+	}
+	
+	/***
+	 * Adds a pose field.
+	 * @param key - the field key.
+	 * @param pose - x, y, z, a, b and c values of the pose.
+	 * @return this payload.
+	 * @throws IllegalArgumentException if the pose does not have {@link #POSE_SIZE} values.
+	 */
+	public JobPayload putPose(int key, double[] pose)
+	{
+		if (pose.length != POSE_SIZE)
+		{
+			throw new IllegalArgumentException("a pose needs exactly 6 values");
+		}
+		put(key, TYPE_POSE).values = pose.clone();
+		return this;
+	}
+	
+	/***
+	 * Adds a battery state of charge field.
+	 * @param key - the field key.
+	 * @param soc - the state of charge in percent, between 0 and 100.
+	 * @return this payload.
+	 */
+	public JobPayload putSoc(int key, int soc)
+	{
+		put(key, TYPE_SOC).number = Math.max(0, Math.min(100, soc));
+		return this;
+	}
+	
+	public JobPayload putString(int key, String value)
+	{
+		put(key, TYPE_STRING).text = value;
+		return this;
+	}
+	
+	/***
+	 * 
+	 * @return the number of fields in the payload.
+	 */
+	public int size()
+	{
+		return fields.size();
+	}
+	
+	/***
+	 * 
+	 * @param index - the field position.
+	 * @return the key of the field at the given position.
+	 */
+	public int getKey(int index)
+	{
+		return fields.get(index).key;
+	}
+	
+	/***
+	 * 
+	 * @param index - the field position.
+	 * @return the type of the field at the given position, one of the TYPE_ constants.
+	 */
+	public byte getType(int index)
+	{
+		return fields.get(index).type;
+	}
+	
+	/***
+	 * 
+	 * @param key - the field key.
+	 * @return true if the payload has a field with the given key.
+	 */
+	public boolean has(int key)
+	{
+		return find(key) != null;
+	}
+	
+	public int getInt(int key)
+	{
+		return (int) get(key, TYPE_INT).number;
+	}
+	
+	public long getLong(int key)
+	{
+		return get(key, TYPE_LONG).number;
+	}
+	
+	public double getDouble(int key)
+	{
+		return get(key, TYPE_DOUBLE).values[0];
+	}
+	
+	public double[] getPose(int key)
+	{
+		return get(key, TYPE_POSE).values.clone();
+	}
+	
+	public int getSoc(int key)
+	{
+		return (int) get(key, TYPE_SOC).number;
+	}
+	
+	public String getString(int key)
+	{
+		return get(key, TYPE_STRING).text;
+	}
+	
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder("{");
+		for (Field f : fields)
+		{
+			if (sb.length() > 1)
+			{
+				sb.append(", ");
+			}
+			sb.append(f.key).append('=');
+			if (f.type == TYPE_STRING)
+			{
+				sb.append(f.text);
+			}
+			else if (f.values != null)
+			{
+				sb.append(f.values.length == 1 ? String.valueOf(f.values[0]) : java.util.Arrays.toString(f.values));
+			}
+			else
+			{
+				sb.append(f.number);
+			}
+		}
+		return sb.append('}').toString();
+	}
+	
+	// raw accessors used by the codec
+	long getRawNumber(int index)
+	{
+		return fields.get(index).number;
+	}
+	
+	double[] getRawValues(int index)
+	{
+		return fields.get(index).values;
+	}
+	
+	String getRawText(int index)
+	{
+		return fields.get(index).text;
+	}
+	
+	void putRaw(int key, byte type, long number, double[] values, String text)
+	{
+		Field f = put(key, type);
+		f.number = number;
+		f.values = values;
+		f.text = text;
+	}
+	
+	private Field put(int key, byte type)
+	{
+		Field f = find(key);
+		if (f == null)
+		{
+			f = new Field();
+			f.key = key;
+			fields.add(f);
+		}
+		f.type = type;
+		f.number = 0;
+		f.values = null;
+		f.text = null;
+		return f;
+	}
+	
+	private Field find(int key)
+	{
+		for (int i = 0; i < fields.size(); i++)
+		{
+			if (fields.get(i).key == key)
+			{
+				return fields.get(i);
+			}
+		}
+		return null;
+	}
+	
+	private Field get(int key, byte type)
+	{
+		Field f = find(key);
+		if (f == null || f.type != type)
+		{
+			throw new IllegalArgumentException(String.format("no field %d of type %d in the payload", key, type));
+		}
+		return f;
+	}
+}
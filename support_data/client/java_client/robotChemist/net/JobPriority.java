@@ -0,0 +1,63 @@
+package robotChemist.net;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/***
+ * The priority classes of the job channel. Every connection has one outbound lane per class and the urgent lane is
+ * always written first, so safety and resume messages overtake any status or bulk traffic already queued. Received 
+ * messages are handed over urgent first as well, and the urgent ones left to the message queue are taken from an 
+ * inbound lane of their own, see {@link JobInboundQueue}. A message is urgent if it was marked with 
+ * {@link JobMsg#setUrgent(boolean)}, if it is a connection control message, or if its job info is one of the 
+ * {@link #URGENT_TOPICS}. The urgent flag is carried on the wire by the version 2 protocol only.
+ * @author stoic-roboticist
+ *
+ */
+public final class JobPriority 
+{
+	/***
+	 * The lane of safety, resume and connection control messages.
+	 */
+	public static final int URGENT = 0;
+	
+	/***
+	 * The lane of every other message.
+	 */
+	public static final int NORMAL = 1;
+	
+	/***
+	 * The number of priority lanes.
+	 */
+	public static final int LANES = 2;
+	
+	/***
+	 * Job infos that are always urgent, on both protocol versions.
+	 */
+	public static final Set<String> URGENT_TOPICS;
+	
+	static
+	{
+		Set<String> topics = new HashSet<String>();
+		topics.add("need_to_resume");
+		topics.add("app_resumed");
+		URGENT_TOPICS = Collections.unmodifiableSet(topics);
+	}
+	
+	private JobPriority()
+	{}
+	
+	/***
+	 * Gets the priority class of a message.
+	 * @param msg - the message.
+	 * @return {@link #URGENT} or {@link #NORMAL}.
+	 */
+	public static int of(JobMsg msg)
+	{
+		if (msg.isUrgent() || JobControl.isControl(msg) || URGENT_TOPICS.contains(msg.getJobInfo()))
+		{
+			return URGENT;
+		}
+		return NORMAL;
+	}
+}
@@ -0,0 +1,238 @@
+package robotChemist.net;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+/***
+ * Keeps track of the requests sent over a job channel that are waiting for a reply. Pending requests are indexed
+ * by the job info of their expected reply so that an incoming message is matched without scanning, and requests
+ * with the same expected reply are completed in the order they were sent. Replies that carry a correlation id 
+ * are matched to their exact request.
+ * @author stoic-roboticist
+ *
+ */
+public class JobRequestTracker 
+{
+	private Map<String, LinkedList<JobFuture>> pendingByReply;
+	private int nextCorrelationId;
+	private int pendingCount;
+	
+	/***
+	 * Constructs an empty tracker.
+	 */
+	public JobRequestTracker()
+	{
+		this.pendingByReply = new HashMap<String, LinkedList<JobFuture>>();
+		this.nextCorrelationId = 1;
+		this.pendingCount = 0;
+	}
+	
+	/***
+	 * Creates and registers a new pending request. The request message is assigned a fresh correlation id.
+	 * @param request - the request to be sent.
+	 * @param expectedReply - a message with the job info and code the reply is expected to have.
+	 * @param timeoutMillis - the time to wait for the reply in milliseconds, or 0 to wait indefinitely.
+	 * @return the future that is completed once the reply is received.
+	 */
+	public synchronized JobFuture register(JobMsg request, JobMsg expectedReply, long timeoutMillis)
+	{
+		int correlationId = nextCorrelationId++;
+		if (nextCorrelationId <= 0)
+		{
+			nextCorrelationId = 1;
+		}
+		request.setCorrelationId(correlationId);
+		long deadline = timeoutMillis > 0 ? System.nanoTime() + timeoutMillis * 1000000L : 0;
+		if (deadline == 0 && timeoutMillis > 0)
+		{
+			deadline = 1;
+		}
+		JobFuture future = new JobFuture(request, expectedReply, correlationId, deadline);
+		LinkedList<JobFuture> pending = pendingByReply.get(expectedReply.getJobInfo());
+		if (pending == null)
+		{
+			pending = new LinkedList<JobFuture>();
+			pendingByReply.put(expectedReply.getJobInfo(), pending);
+		}
+		pending.add(future);
+		pendingCount++;
+		return future;
+	}
+	
+	/***
+	 * Registers again a request recovered from a {@link JobJournal}, keeping its original correlation id.
+	 * @param request - the recovered request.
+	 * @param expectedReply - a message with the job info and code the reply is expected to have.
+	 * @return the future that is completed once the reply is received.
+	 */
+	public synchronized JobFuture registerRecovered(JobMsg request, JobMsg expectedReply)
+	{
+		JobFuture future = new JobFuture(request, expectedReply, request.getCorrelationId(), 0);
+		LinkedList<JobFuture> pending = pendingByReply.get(expectedReply.getJobInfo());
+		if (pending == null)
+		{
+			pending = new LinkedList<JobFuture>();
+			pendingByReply.put(expectedReply.getJobInfo(), pending);
+		}
+		pending.add(future);
+		pendingCount++;
+		return future;
+	}
+	
+	/***
+	 * Makes sure new requests get correlation ids above the given one, e.g. above the ids of recovered requests.
+	 * @param correlationId - the highest correlation id in use.
+	 */
+	public synchronized void reserveCorrelationIds(int correlationId)
+	{
+		if (correlationId >= nextCorrelationId && correlationId < Integer.MAX_VALUE)
+		{
+			nextCorrelationId = correlationId + 1;
+		}
+	}
+	
+	/***
+	 * Completes the pending request matching the given message, if any.
+	 * @param msg - a received message.
+	 * @return true if the message was a reply to a pending request and has been consumed.
+	 */
+	public boolean complete(JobMsg msg)
+	{
+		JobFuture matched = null;
+		synchronized (this)
+		{
+			LinkedList<JobFuture> pending = pendingByReply.get(msg.getJobInfo());
+			if (pending == null)
+			{
+				return false;
+			}
+			Iterator<JobFuture> iter = pending.iterator();
+			while (iter.hasNext())
+			{
+				JobFuture future = iter.next();
+				if (future.isDone())
+				{
+					iter.remove();
+					pendingCount--;
+					continue;
+				}
+				boolean correlated = msg.getCorrelationId() == 0 || msg.getCorrelationId() == future.getCorrelationId();
+				if (correlated && future.getExpectedReply().getJobCode() == msg.getJobCode())
+				{
+					iter.remove();
+					pendingCount--;
+					matched = future;
+					break;
+				}
+			}
+			if (pending.isEmpty())
+			{
+				pendingByReply.remove(msg.getJobInfo());
+			}
+		}
+		return matched != null && matched.complete(msg);
+	}
+	
+	/***
+	 * Fails all the pending requests whose deadline has passed with a {@link TimeoutException}.
+	 * @param now - the current {@link System#nanoTime()}.
+	 */
+	public void expire(long now)
+	{
+		List<JobFuture> expired = null;
+		synchronized (this)
+		{
+			if (pendingCount == 0)
+			{
+				return;
+			}
+			Iterator<LinkedList<JobFuture>> lists = pendingByReply.values().iterator();
+			while (lists.hasNext())
+			{
+				LinkedList<JobFuture> pending = lists.next();
+				Iterator<JobFuture> iter = pending.iterator();
+				while (iter.hasNext())
+				{
+					JobFuture future = iter.next();
+					if (future.isDone() || (future.getDeadline() != 0 && now - future.getDeadline() >= 0))
+					{
+						iter.remove();
+						pendingCount--;
+						if (!future.isDone())
+						{
+							if (expired == null)
+							{
+								expired = new ArrayList<JobFuture>();
+							}
+							expired.add(future);
+						}
+					}
+				}
+				if (pending.isEmpty())
+				{
+					lists.remove();
+				}
+			}
+		}
+		if (expired != null)
+		{
+			for (JobFuture future : expired)
+			{
+				future.fail(new TimeoutException("no reply received for " + future.getRequest()));
+			}
+		}
+	}
+	
+	/***
+	 * Gets the time until the earliest pending deadline.
+	 * @param now - the current {@link System#nanoTime()}.
+	 * @return the time in milliseconds until the next deadline (at least 1), or 0 if no pending request has a deadline.
+	 */
+	public synchronized long millisToNextDeadline(long now)
+	{
+		long earliest = 0;
+		boolean found = false;
+		for (LinkedList<JobFuture> pending : pendingByReply.values())
+		{
+			for (JobFuture future : pending)
+			{
+				if (future.getDeadline() != 0 && (!found || future.getDeadline() - earliest < 0))
+				{
+					earliest = future.getDeadline();
+					found = true;
+				}
+			}
+		}
+		if (!found)
+		{
+			return 0;
+		}
+		return Math.max(1, (earliest - now + 999999) / 1000000);
+	}
+	
+	/***
+	 * Cancels all the pending requests, e.g. when the channel is closed.
+	 */
+	public void cancelAll()
+	{
+		List<JobFuture> toCancel = new ArrayList<JobFuture>();
+		synchronized (this)
+		{
+			for (LinkedList<JobFuture> pending : pendingByReply.values())
+			{
+				toCancel.addAll(pending);
+			}
+			pendingByReply.clear();
+			pendingCount = 0;
+		}
+		for (JobFuture future : toCancel)
+		{
+			future.cancel(false);
+		}
+	}
+}
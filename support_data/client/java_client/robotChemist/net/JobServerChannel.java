@@ -0,0 +1,67 @@
+package robotChemist.net;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/***
+ * The server side of a job channel, implemented over sockets by {@link AsyncJobServer} and inside the JVM by 
+ * {@link LoopbackJobServer}. Every connected client is served as a separate session.
+ * @author stoic-roboticist
+ *
+ */
+public interface JobServerChannel 
+{
+	/***
+	 * Start the server to begin accepting clients.
+	 */
+	void start();
+	
+	/***
+	 * Terminates the server and all the established sessions.
+	 * @throws InterruptedException
+	 * @throws IOException
+	 */
+	void stop() throws InterruptedException, IOException;
+	
+	/***
+	 * Sends the given {@link JobMsg} to the most recently connected client, for single client use. If no client is
+	 * connected the message is dropped.
+	 * @param msg - the message to be sent.
+	 * @throws IOException
+	 */
+	void sendMessage(JobMsg msg) throws IOException;
+	
+	/***
+	 * Sends the given {@link JobMsg} to all the connected clients. If no client is connected the message is dropped.
+	 * @param msg - the message to be sent.
+	 */
+	void broadcast(JobMsg msg);
+	
+	/***
+	 * Sends the given {@link JobMsg} to the client of the given session only.
+	 * @param sessionId - the id of the destination session.
+	 * @param msg - the message to be sent.
+	 * @return true if the message was queued, false if no such session is open.
+	 */
+	boolean sendMessage(int sessionId, JobMsg msg);
+	
+	/***
+	 * Gets the ids of the currently open sessions in the order they connected.
+	 * @return a snapshot list of session ids.
+	 */
+	List<Integer> getSessionIds();
+	
+	/***
+	 * Gets the messages queue received from the most recently connected client, for single client use.
+	 * @return  the received message queue LinkedBlockingQueue<JobMsg>, or an empty queue if no client is connected.
+	 */
+	LinkedBlockingQueue<JobMsg> getMessageQueue();
+	
+	/***
+	 * Gets the messages queue received from the client of the given session.
+	 * @param sessionId - the session id.
+	 * @return the received message queue LinkedBlockingQueue<JobMsg>, or null if no such session is open.
+	 */
+	LinkedBlockingQueue<JobMsg> getMessageQueue(int sessionId);
+}
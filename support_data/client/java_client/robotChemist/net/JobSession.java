@@ -0,0 +1,166 @@
+package robotChemist.net;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/***
+ * A single client connection accepted by an {@link AsyncJobServer}. Every session has its own receive buffer, 
+ * inbound message queue and outbound write queue, so that several LBR applications or monitoring tools
+ * can share one server without interfering with each other.
+ * @author stoic-roboticist
+ *
+ */
+public class JobSession 
+{
+	private final int id;
+	private final AsyncJobServer server;
+	private final SocketChannel channel;
+	private final SocketAddress remoteAddress;
+	private SelectionKey key;
+	
+	private JobStreamDecoder decoder;
+	private JobOutboundQueue outBoundMsgQueue;
+	private JobInboundQueue inBoundMsgQueue;
+	
+	private volatile boolean open;
+	// only accessed by the event loop thread, in System.nanoTime()
+	private long lastReceived;
+	private boolean heartbeating;
+	
+	JobSession(int id, AsyncJobServer server, SocketChannel channel)
+	{
+		this.id = id;
+		this.server = server;
+		this.channel = channel;
+		this.remoteAddress = channel.socket().getRemoteSocketAddress();
+		this.decoder = new JobStreamDecoder();
+		this.outBoundMsgQueue = new JobOutboundQueue();
+		this.inBoundMsgQueue = new JobInboundQueue();
+		this.open = true;
+		this.lastReceived = System.nanoTime();
+		this.heartbeating = false;
+	}
+	
+	/***
+	 * 
+	 * @return the id the server assigned to this session.
+	 */
+	public int getId()
+	{
+		return id;
+	}
+	
+	/***
+	 * 
+	 * @return the address of the connected client.
+	 */
+	public SocketAddress getRemoteAddress()
+	{
+		return remoteAddress;
+	}
+	
+	/***
+	 * 
+	 * @return true until the connection is closed by either side.
+	 */
+	public boolean isOpen()
+	{
+		return open;
+	}
+	
+	/***
+	 * Sends the given {@link JobMsg} asynchronously to this session's client only, e.g. to reply to a message read from
+	 * its queue.
+	 * @param msg - the message to be sent.
+	 * @return true if the message was queued, false if the session is closed.
+	 */
+	public boolean send(JobMsg msg)
+	{
+		if (!open)
+		{
+			return false;
+		}
+		server.enqueue(this, msg);
+		return true;
+	}
+	
+	/***
+	 * Gets the messages queue received from this session's client.
+	 * @return  the received message queue.
+	 */
+	public JobInboundQueue getMessageQueue()
+	{
+		return inBoundMsgQueue;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return String.format("session %d (%s)", id, remoteAddress);
+	}
+	
+	SocketChannel getChannel()
+	{
+		return channel;
+	}
+	
+	SelectionKey getKey()
+	{
+		return key;
+	}
+	
+	void setKey(SelectionKey key)
+	{
+		this.key = key;
+	}
+	
+	JobStreamDecoder getDecoder()
+	{
+		return decoder;
+	}
+	
+	JobOutboundQueue getOutboundQueue()
+	{
+		return outBoundMsgQueue;
+	}
+	
+	long getLastReceived()
+	{
+		return lastReceived;
+	}
+	
+	void setLastReceived(long now)
+	{
+		this.lastReceived = now;
+	}
+	
+	/***
+	 * 
+	 * @return true once the client sent a heartbeat, so that its silence means it is dead.
+	 */
+	boolean isHeartbeating()
+	{
+		return heartbeating;
+	}
+	
+	void setHeartbeating()
+	{
+		this.heartbeating = true;
+	}
+	
+	void close()
+	{
+		open = false;
+		outBoundMsgQueue.clear();
+		try
+		{
+			channel.close();
+		}
+		catch (IOException e)
+		{
+			// the session is discarded anyway
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package robotChemist.net;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/***
+ * A per-connection decoder that reassembles {@link JobMsg} frames out of a byte stream. TCP gives no guarantee
+ * that a single read holds exactly one message, so the received bytes are accumulated in an internal buffer
+ * and messages are only decoded once all of their bytes have arrived. This handles several messages received 
+ * in one read, a message spread over several reads, and messages larger than the initial buffer size.
+ * The decoder starts with the version 1 format and can be switched to another version between two messages.
+ * Decoded messages are only discarded from the buffer when more bytes are read, so a burst of small messages is
+ * decoded without moving the remaining bytes after each of them.
+ * @author stoic-roboticist
+ *
+ */
+public class JobStreamDecoder 
+{
+	private static final int INITIAL_CAPACITY = 256;
+	
+	// kept ready for reading from the channel, the received bytes not decoded yet start at the read index
+	private ByteBuffer buffer;
+	private int readIndex;
+	// the length of the incomplete frame at the read index, once known to exceed the buffer
+	private int pendingFrameLength;
+	private JobDecoder decoder;
+	private JobCodecV2 codecV2;
+	private int version;
+	
+	/***
+	 * Constructs an empty stream decoder.
+	 */
+	public JobStreamDecoder()
+	{
+		this.buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+		this.decoder = new JobDecoder();
+		this.codecV2 = new JobCodecV2();
+		this.version = JobControl.PROTOCOL_V1;
+	}
+	
+	/***
+	 * Sets the protocol version used to decode the messages following the last one returned by {@link #nextMessage()}.
+	 * @param version - the protocol version.
+	 */
+	public void setVersion(int version)
+	{
+		this.version = version;
+	}
+	
+	/***
+	 * 
+	 * @return the protocol version currently used to decode messages.
+	 */
+	public int getVersion()
+	{
+		return version;
+	}
+	
+	/***
+	 * Reads all the bytes currently available on the given channel into the internal buffer.
+	 * The buffer is grown whenever it fills up so the channel is drained in one call.
+	 * @param channel - the non-blocking channel to read from.
+	 * @return the number of bytes read, or -1 if the channel reached end-of-stream.
+	 * @throws IOException if reading from the channel fails.
+	 */
+	public int readFrom(ReadableByteChannel channel) throws IOException
+	{
+		discardDecoded();
+		grow(pendingFrameLength);
+		int total = 0;
+		while (true)
+		{
+			if (!buffer.hasRemaining())
+			{
+				grow(buffer.capacity() * 2);
+			}
+			int n = channel.read(buffer);
+			if (n < 0)
+			{
+				return total > 0 ? total : -1;
+			}
+			if (n == 0)
+			{
+				return total;
+			}
+			total += n;
+		}
+	}
+	
+	/***
+	 * Decodes the next complete message available in the internal buffer.
+	 * @return the next {@link JobMsg} or null if no complete message has been received yet.
+	 * @throws IOException if the received stream is corrupt.
+	 */
+	public JobMsg nextMessage() throws IOException
+	{
+		int end = buffer.position();
+		buffer.limit(end);
+		buffer.position(readIndex);
+		try
+		{
+			int frameLen = version == JobControl.PROTOCOL_V2 ? codecV2.frameLength(buffer) : decoder.frameLength(buffer);
+			if (frameLen < 0 || buffer.remaining() < frameLen)
+			{
+				pendingFrameLength = frameLen;
+				return null;
+			}
+			JobMsg msg = version == JobControl.PROTOCOL_V2 ? codecV2.decode(buffer) : decoder.decode(buffer);
+			readIndex = buffer.position();
+			return msg;
+		}
+		catch (IllegalStateException e)
+		{
+			throw new IOException(e.getMessage());
+		}
+		catch (BufferUnderflowException e)
+		{
+			throw new IOException("Malformed message in the received stream");
+		}
+		finally
+		{
+			buffer.limit(buffer.capacity());
+			buffer.position(end);
+		}
+	}
+	
+	/***
+	 * Discards any partially received data and goes back to the version 1 format, e.g. after the connection has been reset.
+	 */
+	public void reset()
+	{
+		buffer.clear();
+		readIndex = 0;
+		pendingFrameLength = 0;
+		version = JobControl.PROTOCOL_V1;
+	}
+	
+	private void discardDecoded()
+	{
+		if (readIndex == 0)
+		{
+			return;
+		}
+		buffer.flip();
+		buffer.position(readIndex);
+		buffer.compact();
+		readIndex = 0;
+	}
+	
+	private void grow(int minCapacity)
+	{
+		int newCapacity = Math.max(minCapacity, buffer.capacity());
+		if (newCapacity == buffer.capacity())
+		{
+			return;
+		}
+		ByteBuffer larger = ByteBuffer.allocate(newCapacity);
+		buffer.flip();
+		larger.put(buffer);
+		buffer = larger;
+	}
+}
@@ -0,0 +1,277 @@
+package robotChemist.net;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.kuka.task.ITaskLogger;
+
+/***
+ * An in-JVM stand-in for {@link AsyncJobClient} that talks to the {@link LoopbackJobServer} bound to the same name.
+ * Messages are copied on send and keep their order; messages sent while no server is bound are kept and delivered once
+ * one is started, the same way the socket client keeps them across reconnections. Only the request timeouts need a
+ * thread, for which the client is bound to a {@link JobEventLoop}.
+ * @author stoic-roboticist
+ *
+ */
+public class LoopbackJobClient implements JobChannel
+{
+	private final String serverName;
+	private LoopbackJobServer.Session session;
+	private List<JobMsg> pendingMsgs;
+
+	private JobInboundQueue inBoundMsgQueue;
+	private JobRequestTracker requestTracker;
+	private JobDispatcher dispatcher;
+	private volatile JobEventLoopGroup group;
+	private volatile JobEventLoop loop;
+	private JobEventHandler handler;
+
+	private volatile boolean running = false;
+	private volatile boolean connected = false;
+	private boolean stopped = false;
+
+	private ITaskLogger logger;
+
+	/***
+	 * Constructs a loopback client for the server bound to the given name.
+	 * @param serverName - the name of the {@link LoopbackJobServer} to connect to.
+	 * @param logger - RoboticsAPI logging interface.
+	 * @throws IOException if the default event loop group cannot be created.
+	 */
+	public LoopbackJobClient(String serverName, ITaskLogger logger) throws IOException
+	{
+		this(serverName, logger, JobEventLoopGroup.acquireDefault(logger));
+	}
+
+	/***
+	 * Constructs a loopback client for the server bound to the given name, whose request timeouts are handled by one of
+	 * the event loops of the given group.
+	 * @param serverName - the name of the {@link LoopbackJobServer} to connect to.
+	 * @param logger - RoboticsAPI logging interface.
+	 * @param group - the event loops shared with other endpoints.
+	 */
+	public LoopbackJobClient(String serverName, ITaskLogger logger, JobEventLoopGroup group)
+	{
+		this.serverName = serverName;
+		this.pendingMsgs = new ArrayList<JobMsg>();
+		this.inBoundMsgQueue = new JobInboundQueue();
+		this.requestTracker = new JobRequestTracker();
+		this.dispatcher = new JobDispatcher(logger);
+		this.group = group;
+		this.loop = group.next();
+		this.logger = logger;
+		this.handler = new JobEventHandler()
+		{
+			@Override
+			public void handleKey(SelectionKey key)
+			{
+				// no channel is registered
+			}
+
+			@Override
+			public long beforeSelect()
+			{
+				long now = System.nanoTime();
+				requestTracker.expire(now);
+				inBoundMsgQueue.evictExpired(now);
+				long timeout = requestTracker.millisToNextDeadline(now);
+				long expiry = inBoundMsgQueue.millisToNextExpiry(now);
+				return timeout == 0 || (expiry > 0 && expiry < timeout) ? expiry : timeout;
+			}
+		};
+	}
+
+	/***
+	 * Connects to the loopback server, or waits for it to be started.
+	 */
+	public void start()
+	{
+		if (!rebind())
+		{
+			return;
+		}
+		running = true;
+		loop.attach(handler);
+		LoopbackJobServer.connect(serverName, this);
+	}
+
+	/***
+	 * Disconnects from the loopback server and cancels the pending requests. If the client is already terminated then
+	 * this method does nothing.
+	 */
+	public void stop()
+	{
+		LoopbackJobServer.Session closed;
+		synchronized (this)
+		{
+			running = false;
+			connected = false;
+			closed = session;
+			session = null;
+		}
+		LoopbackJobServer.disconnect(serverName, this, closed);
+		loop.detach(handler);
+		requestTracker.cancelAll();
+		release();
+	}
+
+	// a client started again after being stopped is bound to a loop anew, its group may have been shut down meanwhile
+	private synchronized boolean rebind()
+	{
+		if (stopped)
+		{
+			try
+			{
+				group = JobEventLoopGroup.reacquire(group, logger);
+			}
+			catch (IOException e)
+			{
+				logger.error(e.getMessage());
+				return false;
+			}
+			loop = group.next();
+			stopped = false;
+		}
+		return true;
+	}
+
+	private synchronized void release()
+	{
+		if (!stopped)
+		{
+			stopped = true;
+			loop.unbind();
+			JobEventLoopGroup.releaseDefault(group);
+		}
+	}
+
+	boolean isRunning()
+	{
+		return running;
+	}
+
+	synchronized void connected(LoopbackJobServer.Session session)
+	{
+		if (!running || !session.isOpen())
+		{
+			return;
+		}
+		this.session = session;
+		for (JobMsg msg : pendingMsgs)
+		{
+			session.deliver(msg);
+		}
+		pendingMsgs.clear();
+		connected = true;
+		logger.info("connection complete");
+	}
+
+	synchronized void disconnected(LoopbackJobServer.Session session)
+	{
+		if (this.session == session)
+		{
+			this.session = null;
+			connected = false;
+			logger.warn("connection closed by the LoopbackJobServer");
+		}
+	}
+
+	void deliver(JobMsg msg)
+	{
+		if (running && !requestTracker.complete(msg) && !dispatcher.dispatch(msg))
+		{
+			inBoundMsgQueue.offer(msg);
+		}
+	}
+
+	/***
+	 * Sends a copy of the given {@link JobMsg} to the server. Messages sent while disconnected are kept and delivered
+	 * once connected.
+	 * @param job - the message to be sent.
+	 */
+	public void sendMessage(JobMsg job)
+	{
+		JobMsg copy = new JobMsg(job);
+		synchronized (this)
+		{
+			if (session == null || !session.deliver(copy))
+			{
+				pendingMsgs.add(copy);
+			}
+		}
+	}
+
+	/***
+	 * Sends the given request to the server and returns a future that is completed as soon as its reply is received.
+	 * The reply is expected to have the same job info as the request and a job code of 1.
+	 * @param request - the request to be sent.
+	 * @return the {@link JobFuture} completed with the reply.
+	 */
+	public JobFuture sendRequest(JobMsg request)
+	{
+		return sendRequest(request, 0);
+	}
+
+	/***
+	 * Sends the given request to the server and returns a future that is completed as soon as its reply is received
+	 * or failed with a {@link java.util.concurrent.TimeoutException} if no reply arrives in time. The reply is expected
+	 * to have the same job info as the request and a job code of 1.
+	 * @param request - the request to be sent.
+	 * @param timeoutMillis - the time to wait for the reply in milliseconds, or 0 to wait indefinitely.
+	 * @return the {@link JobFuture} completed with the reply.
+	 */
+	public JobFuture sendRequest(JobMsg request, long timeoutMillis)
+	{
+		return sendRequest(request, new JobMsg(request.getJobInfo(), 1), timeoutMillis);
+	}
+
+	/***
+	 * Sends the given request to the server and returns a future that is completed as soon as the expected reply
+	 * is received. Matched replies are consumed and do not show up in the message queue.
+	 * @param request - the request to be sent.
+	 * @param expectedReply - a message with the job info and code the reply is expected to have.
+	 * @param timeoutMillis - the time to wait for the reply in milliseconds, or 0 to wait indefinitely.
+	 * @return the {@link JobFuture} completed with the reply.
+	 */
+	public JobFuture sendRequest(JobMsg request, JobMsg expectedReply, long timeoutMillis)
+	{
+		JobFuture future = requestTracker.register(request, expectedReply, timeoutMillis);
+		sendMessage(request);
+		if (timeoutMillis > 0)
+		{
+			loop.wakeup();
+		}
+		return future;
+	}
+
+	/***
+	 * Gets the dispatcher routing received messages to the subscribers of their job info, e.g. 
+	 * {@code getDispatcher().subscribe("goto_charge")} gives a queue of its own to the goto_charge messages.
+	 * @return the {@link JobDispatcher} of this client.
+	 */
+	public JobDispatcher getDispatcher()
+	{
+		return dispatcher;
+	}
+	
+	/***
+	 * Gets the messages queue received from the server that no subscriber or pending request took. The queue evicts
+	 * messages left unconsumed, see {@link JobInboundQueue}.
+	 * @return  the received message queue.
+	 */
+	public JobInboundQueue getMessageQueue()
+	{
+		return inBoundMsgQueue;
+	}
+
+	/***
+	 *
+	 * @return true if connected to the LoopbackJobServer.
+	 */
+	public boolean isConnected()
+	{
+		return connected;
+	}
+}
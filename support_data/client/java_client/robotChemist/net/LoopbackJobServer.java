@@ -0,0 +1,309 @@
+package robotChemist.net;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import com.kuka.task.ITaskLogger;
+
+/***
+ * An in-JVM stand-in for {@link AsyncJobServer} that {@link LoopbackJobClient} instances connect to by name. Messages
+ * are copied straight into the receiver's queue on the sending thread, so they keep their order and arrive within
+ * microseconds, which allows the process state machines to be run against a simulated base much faster than over
+ * sockets. Like the socket server, every client is served as a separate session and clients started before the
+ * server, or disconnected by stopping it, are connected again once a server with the same name is started.
+ * @author stoic-roboticist
+ *
+ */
+public class LoopbackJobServer implements JobServerChannel
+{
+	private static final Map<String, LoopbackJobServer> boundServers = new HashMap<String, LoopbackJobServer>();
+	private static final Map<String, Set<LoopbackJobClient>> waitingClients = new HashMap<String, Set<LoopbackJobClient>>();
+
+	private final String name;
+	private ConcurrentSkipListMap<Integer, Session> sessions;
+	private LinkedBlockingQueue<JobMsg> noSessionMsgQueue;
+	private int nextSessionId = 1;
+	private volatile int topicCapacity = JobInboundQueue.DEFAULT_TOPIC_CAPACITY;
+	private volatile long timeToLive = JobInboundQueue.DEFAULT_TIME_TO_LIVE;
+
+	private ITaskLogger logger;
+
+	/***
+	 * A client connected to a loopback server.
+	 */
+	static class Session
+	{
+		private final int id;
+		private final LoopbackJobServer server;
+		private final LoopbackJobClient client;
+		private final JobInboundQueue inBoundMsgQueue;
+		private volatile boolean open = true;
+
+		Session(int id, LoopbackJobServer server, LoopbackJobClient client)
+		{
+			this.id = id;
+			this.server = server;
+			this.client = client;
+			this.inBoundMsgQueue = new JobInboundQueue();
+		}
+
+		boolean isOpen()
+		{
+			return open;
+		}
+
+		/***
+		 * Delivers a message sent by the client to the server side of the session.
+		 * @param msg - the message, already copied by the client.
+		 * @return false if the session is closed.
+		 */
+		boolean deliver(JobMsg msg)
+		{
+			if (!open)
+			{
+				return false;
+			}
+			inBoundMsgQueue.offer(msg);
+			return true;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("loopback session %d (%s)", id, server.name);
+		}
+	}
+
+	/***
+	 * Constructs a loopback server that clients reach by the given name.
+	 * @param name - the name clients connect to, the counterpart of the TCP/IP address and port.
+	 * @param logger - RoboticsAPI logging interface.
+	 */
+	public LoopbackJobServer(String name, ITaskLogger logger)
+	{
+		this.name = name;
+		this.sessions = new ConcurrentSkipListMap<Integer, Session>();
+		this.noSessionMsgQueue = new LinkedBlockingQueue<JobMsg>();
+		this.logger = logger;
+	}
+
+	/***
+	 * Binds the server to its name and connects the clients waiting for it.
+	 * @throws IllegalStateException if another loopback server is already bound to the same name.
+	 */
+	public void start()
+	{
+		List<Session> accepted = new ArrayList<Session>();
+		synchronized (LoopbackJobServer.class)
+		{
+			LoopbackJobServer bound = boundServers.get(name);
+			if (bound != null && bound != this)
+			{
+				throw new IllegalStateException(String.format("a loopback job server is already bound to %s", name));
+			}
+			boundServers.put(name, this);
+			Set<LoopbackJobClient> waiting = waitingClients.remove(name);
+			if (waiting != null)
+			{
+				for (LoopbackJobClient client : waiting)
+				{
+					accepted.add(accept(client));
+				}
+			}
+		}
+		for (Session session : accepted)
+		{
+			session.client.connected(session);
+		}
+	}
+
+	/***
+	 * Unbinds the server and closes all the established sessions. Clients that are still running wait for a new
+	 * server with the same name.
+	 */
+	public void stop()
+	{
+		List<Session> closed;
+		synchronized (LoopbackJobServer.class)
+		{
+			if (boundServers.get(name) == this)
+			{
+				boundServers.remove(name);
+			}
+			closed = new ArrayList<Session>(sessions.values());
+			sessions.clear();
+			for (Session session : closed)
+			{
+				session.open = false;
+				if (session.client.isRunning())
+				{
+					waitFor(name, session.client);
+				}
+			}
+		}
+		for (Session session : closed)
+		{
+			session.client.disconnected(session);
+		}
+	}
+
+	static void connect(String name, LoopbackJobClient client)
+	{
+		Session session;
+		synchronized (LoopbackJobServer.class)
+		{
+			LoopbackJobServer server = boundServers.get(name);
+			if (server == null)
+			{
+				waitFor(name, client);
+				return;
+			}
+			session = server.accept(client);
+		}
+		client.connected(session);
+	}
+
+	static void disconnect(String name, LoopbackJobClient client, Session session)
+	{
+		synchronized (LoopbackJobServer.class)
+		{
+			Set<LoopbackJobClient> waiting = waitingClients.get(name);
+			if (waiting != null)
+			{
+				waiting.remove(client);
+			}
+		}
+		if (session != null)
+		{
+			session.open = false;
+			session.server.sessions.remove(session.id);
+			session.server.logger.warn(String.format("client closed the connection: %s", session));
+		}
+	}
+
+	private static void waitFor(String name, LoopbackJobClient client)
+	{
+		Set<LoopbackJobClient> waiting = waitingClients.get(name);
+		if (waiting == null)
+		{
+			waiting = new LinkedHashSet<LoopbackJobClient>();
+			waitingClients.put(name, waiting);
+		}
+		waiting.add(client);
+	}
+
+	private Session accept(LoopbackJobClient client)
+	{
+		Session session = new Session(nextSessionId++, this, client);
+		session.inBoundMsgQueue.setTopicCapacity(topicCapacity);
+		session.inBoundMsgQueue.setTimeToLive(timeToLive);
+		sessions.put(session.id, session);
+		logger.info(String.format("client registeration complete: %s", session));
+		return session;
+	}
+
+	/***
+	 * Limits the messages kept in the inbound queue of every session, see {@link JobInboundQueue}. Expired messages
+	 * are evicted whenever a new message is received.
+	 * @param topicCapacity - the number of messages of the same job info that may wait, or 0 for no limit.
+	 * @param timeToLiveMillis - the time in milliseconds a message may wait, or 0 to keep messages until consumed.
+	 */
+	public void setInboundLimits(int topicCapacity, long timeToLiveMillis)
+	{
+		this.topicCapacity = topicCapacity;
+		this.timeToLive = timeToLiveMillis;
+		for (Session session : sessions.values())
+		{
+			session.inBoundMsgQueue.setTopicCapacity(topicCapacity);
+			session.inBoundMsgQueue.setTimeToLive(timeToLiveMillis);
+		}
+	}
+	
+	/***
+	 * Sends the given {@link JobMsg} to the most recently connected client, like 
+	 * {@link AsyncJobServer#sendMessage(JobMsg)}. If no client is connected the message is dropped.
+	 * @param msg - the message to be sent.
+	 */
+	public void sendMessage(JobMsg msg)
+	{
+		Map.Entry<Integer, Session> newest = sessions.lastEntry();
+		if (newest == null || !newest.getValue().isOpen())
+		{
+			logger.warn(String.format("no client connected, dropping message: %s", msg));
+			return;
+		}
+		newest.getValue().client.deliver(new JobMsg(msg));
+	}
+
+	/***
+	 * Sends the given {@link JobMsg} to all the connected clients. If no client is connected the message is dropped.
+	 * @param msg - the message to be sent.
+	 */
+	public void broadcast(JobMsg msg)
+	{
+		if (sessions.isEmpty())
+		{
+			logger.warn(String.format("no client connected, dropping message: %s", msg));
+			return;
+		}
+		for (Session session : sessions.values())
+		{
+			session.client.deliver(new JobMsg(msg));
+		}
+	}
+
+	/***
+	 * Sends the given {@link JobMsg} to the client of the given session only.
+	 * @param sessionId - the id of the destination session.
+	 * @param msg - the message to be sent.
+	 * @return true if the message was delivered, false if no such session is open.
+	 */
+	public boolean sendMessage(int sessionId, JobMsg msg)
+	{
+		Session session = sessions.get(sessionId);
+		if (session == null || !session.isOpen())
+		{
+			logger.warn(String.format("session %d is not connected, dropping message: %s", sessionId, msg));
+			return false;
+		}
+		session.client.deliver(new JobMsg(msg));
+		return true;
+	}
+
+	/***
+	 * Gets the ids of the currently open sessions in the order they connected.
+	 * @return a snapshot list of session ids.
+	 */
+	public List<Integer> getSessionIds()
+	{
+		return new ArrayList<Integer>(sessions.keySet());
+	}
+
+	/***
+	 * Gets the messages queue received from the most recently connected client, like 
+	 * {@link AsyncJobServer#getMessageQueue()}.
+	 * @return  the received message queue LinkedBlockingQueue<JobMsg>, or an empty queue if no client is connected.
+	 */
+	public LinkedBlockingQueue<JobMsg> getMessageQueue()
+	{
+		Map.Entry<Integer, Session> newest = sessions.lastEntry();
+		return newest != null ? newest.getValue().inBoundMsgQueue : noSessionMsgQueue;
+	}
+
+	/***
+	 * Gets the messages queue received from the client of the given session.
+	 * @param sessionId - the session id.
+	 * @return the received message queue LinkedBlockingQueue<JobMsg>, or null if no such session is open.
+	 */
+	public LinkedBlockingQueue<JobMsg> getMessageQueue(int sessionId)
+	{
+		Session session = sessions.get(sessionId);
+		return session != null ? session.inBoundMsgQueue : null;
+	}
+}
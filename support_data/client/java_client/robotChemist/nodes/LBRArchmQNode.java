@@ -1,5 +1,8 @@
 package robotChemist.nodes;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.LinkedBlockingDeque;
 
 import org.ros.message.MessageListener;
@@ -24,6 +27,19 @@ import robotChemist.utility.RobotOpState;
  */
 public class LBRArchmQNode extends LBRBaseNode
 {
+	/***
+	 * A callback notified whenever a command is added to the command queue. Listeners are called on the ROS
+	 * subscriber thread, so they must not block.
+	 */
+	public interface CommandListener
+	{
+		void onCommandQueued(kmriiwa_chemist_msgs.LBRCommand cmd);
+	}
+	
+	/***
+	 * The number of commands the command queue holds, further commands are dropped.
+	 */
+	public static final int COMMAND_QUEUE_CAPACITY = 10;
 	
 	private ConnectedNode node = null;
 	private ITaskLogger logger;
@@ -40,6 +56,7 @@ public class LBRArchmQNode extends LBRBaseNode
 	
 	private int cmdSeqCounter = 0;
 	private LinkedBlockingDeque<kmriiwa_chemist_msgs.LBRCommand> lbrCmdQueue;
+	private CopyOnWriteArrayList<CommandListener> cmdListeners;
 	
 	
 	/***
@@ -50,7 +67,17 @@ public class LBRArchmQNode extends LBRBaseNode
 	{
 		this.robotName = robotName;
 		this.logger = logger;
-		this.lbrCmdQueue = new LinkedBlockingDeque<kmriiwa_chemist_msgs.LBRCommand>(10);
+		this.lbrCmdQueue = new LinkedBlockingDeque<kmriiwa_chemist_msgs.LBRCommand>(COMMAND_QUEUE_CAPACITY);
+		this.cmdListeners = new CopyOnWriteArrayList<CommandListener>();
+	}
+	
+	/***
+	 * Registers a listener notified of every command added to the command queue.
+	 * @param listener - the listener to be notified.
+	 */
+	public void addCommandListener(CommandListener listener)
+	{
+		cmdListeners.add(listener);
 	}
 	
 	/***
@@ -76,40 +103,60 @@ public class LBRArchmQNode extends LBRBaseNode
 			@Override
 			public void onNewMessage(kmriiwa_chemist_msgs.LBRCommand msg)
 			{
-				if (msg.getCmdSeq() > cmdSeqCounter)
+				offerCommand(msg);
+			}
+		});
+		
+		connectedToMaster = true;
+	}
+	
+	/***
+	 * Adds a command to the command queue as received on the <em>[robot_name]/lbr/command</em> topic, priority commands
+	 * first. Commands whose sequence number was already received are ignored. Also used to feed the commands without a
+	 * ROS master, e.g. in simulation.
+	 * @param msg - the received command.
+	 * @return true if the command was added, false if it was ignored or the queue is full.
+	 */
+	public boolean offerCommand(kmriiwa_chemist_msgs.LBRCommand msg)
+	{
+		if (msg.getCmdSeq() > cmdSeqCounter)
+		{
+			if (msg.getCmdSeq() > cmdSeqCounter + 1)
+			{
+				logger.warn("A ROS task message was lost somewhere");
+			}
+			cmdSeqCounter++;
+			boolean msgAdded;
+			try
+			{
+				if(msg.getPriorityTask())
 				{
-					if (msg.getCmdSeq() > cmdSeqCounter + 1)
-					{
-						logger.warn("A ROS task message was lost somewhere");
-					}
-					cmdSeqCounter++;
-					boolean msgAdded;
-					try
-					{
-						if(msg.getPriorityTask())
-						{
-							msgAdded = lbrCmdQueue.offerFirst(msg);
-						}
-						else
-						{
-							msgAdded = lbrCmdQueue.offerLast(msg);
-						}
-						if (!msgAdded)
-						{
-							logger.warn("ROS tasks queue is full, the most recent message couldn't be added to the queue");
-						}
-					}
-					catch (Exception e)
+					msgAdded = lbrCmdQueue.offerFirst(msg);
+				}
+				else
+				{
+					msgAdded = lbrCmdQueue.offerLast(msg);
+				}
+				if (!msgAdded)
+				{
+					logger.warn("ROS tasks queue is full, the most recent message couldn't be added to the queue");
+				}
+				else
+				{
+					for (CommandListener listener : cmdListeners)
 					{
-						e.printStackTrace();
-						logger.error("failed to retrieve message on callback");
+						listener.onCommandQueued(msg);
 					}
 				}
-				
+				return msgAdded;
 			}
-		});
-		
-		connectedToMaster = true;
+			catch (Exception e)
+			{
+				e.printStackTrace();
+				logger.error("failed to retrieve message on callback");
+			}
+		}
+		return false;
 	}
 	
 	/***
@@ -122,6 +169,16 @@ public class LBRArchmQNode extends LBRBaseNode
 		return lbrCmdQueue.peek();
 	}
 	
+	/***
+	 * Gets the commands waiting in the command queue received via the <em>[robot_name]/lbr/command</em> topic, without
+	 * deleting them.
+	 * @return a copy of the command queue, the next command first.
+	 */
+	public List<kmriiwa_chemist_msgs.LBRCommand> getCommandBacklog()
+	{
+		return new ArrayList<kmriiwa_chemist_msgs.LBRCommand>(lbrCmdQueue);
+	}
+	
 	/***
 	 * Remove the LBRCommand at the head of the command queue. This method is used after the command message has
 	 * been executed.
@@ -167,9 +224,18 @@ public class LBRArchmQNode extends LBRBaseNode
 	 * @param taskStatus - updated task status reported using the {@link kmriiwa_chemist_msgs.TaskStatus} enum.
 	 */
 	public synchronized void publishTaskStatus(LBRTaskMonitor taskMonitor) 
+	{
+		publishTaskStatus(taskMonitor.getAssignedTask());
+	}
+	
+	/***
+	 * Publishes the status of the given task on the <em>[robot_name]/lbr/task_status</em> topic, e.g. of a task no
+	 * longer assigned.
+	 * @param task - the task, or null to publish that no task is assigned.
+	 */
+	public synchronized void publishTaskStatus(LBRTask task) 
 	{
 		kmriiwa_chemist_msgs.TaskStatus taskMsg = node.getTopicMessageFactory().newFromType(kmriiwa_chemist_msgs.TaskStatus._TYPE);
-		LBRTask task = taskMonitor.getAssignedTask();
 		if (task != null)
 		{
 			taskMsg.setTaskName(task.getName());
@@ -1,13 +1,15 @@
 package robotChemist.processes;
 
-import java.io.IOException;
-import java.util.Date;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.EnumSet;
 
-import robotChemist.net.AsyncJobClient;
+import robotChemist.net.JobChannel;
+import robotChemist.net.JobFuture;
 import robotChemist.net.JobMsg;
+import robotChemist.processes.StateMachineDefinition.Action;
+import robotChemist.processes.StateMachineDefinition.Guard;
 import robotChemist.utility.LBRTask;
 import robotChemist.utility.LBRTaskMonitor;
+import robotChemist.utility.ProcessClock;
 import robotChemist.utility.RobotOpState;
 import robotChemist.utility.RobotOpState.OpState;
 
@@ -31,16 +33,189 @@ public class AutoCalibrationProcess extends StateMachineProcess
 		}
 	};
 	
-	private AsyncJobClient kmrClient;
+	// maximal time between two checks of the calibration deadline when run by a ProcessEventDispatcher
+	private static final long CALIBRATION_CHECK_PERIOD = 60*1000;
+	
+	private JobChannel kmrClient;
 	private IApplicationData appData;
+	private ProcessClock clock;
 	private CalibrationState currentState;
+	private JobFuture pendingReply;
+	private MaintenanceCoordinator maintenanceCoordinator;
+	private boolean calibratingDocked = false;
+	private CompiledStateMachine<CalibrationState> stateMachine;
+	
+	public AutoCalibrationProcess(JobChannel kmrClient, IApplicationData appData, LBRTaskMonitor taskMonitor, RobotOpState robotOpState, ITaskLogger logger)
+	{
+		this(kmrClient, appData, ProcessClock.SYSTEM, taskMonitor, robotOpState, logger);
+	}
 	
-	public AutoCalibrationProcess(AsyncJobClient kmrClient, IApplicationData appData, LBRTaskMonitor taskMonitor, RobotOpState robotOpState, ITaskLogger logger)
+	/***
+	 * Constructs the calibration process with the clock the time since the last calibration is measured on, e.g. a
+	 * simulated clock.
+	 */
+	public AutoCalibrationProcess(JobChannel kmrClient, IApplicationData appData, ProcessClock clock, LBRTaskMonitor taskMonitor, RobotOpState robotOpState, ITaskLogger logger)
 	{
 		super(taskMonitor, robotOpState, logger);
 		this.kmrClient = kmrClient;
 		this.appData = appData;
+		this.clock = clock;
 		this.currentState = CalibrationState.CHECKING_FOR_CALIBRATION;
+		this.stateMachine = defineStateMachine().compile();
+	}
+	
+	private StateMachineDefinition<CalibrationState> defineStateMachine()
+	{
+		return new StateMachineDefinition<CalibrationState>(CalibrationState.class)
+			// a robot docked for charging calibrates there, without a trip of its own or claiming the robot
+			.transition(CalibrationState.CHECKING_FOR_CALIBRATION, CalibrationState.CALIBRATING, new Guard()
+			{
+				@Override
+				public boolean test()
+				{
+					return maintenanceCoordinator != null && maintenanceCoordinator.shouldCalibrateDocked();
+				}
+			}, new Action()
+			{
+				@Override
+				public void run()
+				{
+					calibratingDocked = true;
+					maintenanceCoordinator.setCalibratingDocked(true);
+				}
+			})
+			.transition(CalibrationState.CHECKING_FOR_CALIBRATION, CalibrationState.PREP_CALIBRATTION, new Guard()
+			{
+				@Override
+				public boolean test()
+				{
+					return isCalibrationNeeded() && !isMergedIntoCharging() && robotOpState.claim(OpState.IDLE, OpState.CALIBRATING, AutoCalibrationProcess.this);
+				}
+			})
+			.onEnter(CalibrationState.PREP_CALIBRATTION, new Action()
+			{
+				@Override
+				public void run() throws Exception
+				{
+					pendingReply = wakeOnReply(kmrClient.sendRequest(new JobMsg("goto_calibrate",0)));
+				}
+			})
+			.transition(CalibrationState.PREP_CALIBRATTION, CalibrationState.CALIBRATING, new Guard()
+			{
+				@Override
+				public boolean test()
+				{
+					return pendingReply != null && pendingReply.isReplied();
+				}
+			}, new Action()
+			{
+				@Override
+				public void run()
+				{
+					pendingReply = null;
+				}
+			})
+			.onEnter(CalibrationState.CALIBRATING, new Action()
+			{
+				@Override
+				public void run()
+				{
+					logger.info("Robot is calibrating");
+					LBRTask task = new LBRTask("ReferenceArm", true);
+					taskMonitor.assignTask(task);
+				}
+			})
+			.transition(CalibrationState.CALIBRATING, CalibrationState.CHECKING_FOR_CALIBRATION, new Guard()
+			{
+				@Override
+				public boolean test()
+				{
+					return calibratingDocked && taskMonitor.isTaskFinished();
+				}
+			}, new Action()
+			{
+				@Override
+				public void run()
+				{
+					calibratingDocked = false;
+					maintenanceCoordinator.setCalibratingDocked(false);
+				}
+			})
+			.transition(CalibrationState.CALIBRATING, CalibrationState.POST_CALIBRATION, new Guard()
+			{
+				@Override
+				public boolean test()
+				{
+					return taskMonitor.isTaskFinished();
+				}
+			})
+			.onEnter(CalibrationState.POST_CALIBRATION, new Action()
+			{
+				@Override
+				public void run() throws Exception
+				{
+					kmrClient.sendMessage(new JobMsg("done_calibrating",0));
+				}
+			})
+			.transition(CalibrationState.POST_CALIBRATION, CalibrationState.CHECKING_FOR_CALIBRATION, new Guard()
+			{
+				@Override
+				public boolean test()
+				{
+					return true;
+				}
+			}, new Action()
+			{
+				@Override
+				public void run()
+				{
+					robotOpState.release(AutoCalibrationProcess.this, OpState.IDLE);
+				}
+			});
+	}
+	
+	/***
+	 * Sets the coordinator merging the calibration trips with the charging trips. The same coordinator must be set on
+	 * the {@link AutoChargingProcess}.
+	 * @param maintenanceCoordinator - the coordinator, or null to calibrate independently of the chargings.
+	 */
+	public void setMaintenanceCoordinator(MaintenanceCoordinator maintenanceCoordinator)
+	{
+		this.maintenanceCoordinator = maintenanceCoordinator;
+		if (maintenanceCoordinator != null)
+		{
+			maintenanceCoordinator.addListener(new MaintenanceCoordinator.Listener()
+			{
+				@Override
+				public void onMaintenanceChanged()
+				{
+					wakeAfter(0);
+				}
+			});
+		}
+	}
+	
+	private boolean isMergedIntoCharging()
+	{
+		return maintenanceCoordinator != null && maintenanceCoordinator.mergeCalibrationIntoCharging();
+	}
+	
+	private boolean isCalibrationNeeded()
+	{
+		boolean needToCalibrate = false;
+		long lastCalibration = Long.parseLong((String) appData.getProcessData("lastCalibrationOfArm").getValue());
+		int noCalibrationDuration = (Integer) appData.getProcessData("maximal_time_without_calibration").getValue();
+		long sinceCalibration = clock.currentTimeMillis() - lastCalibration;
+		if (sinceCalibration > noCalibrationDuration*60*1000)
+		{
+			needToCalibrate = true;
+		}
+		else
+		{
+			// the process data may be edited meanwhile, so it is checked again at least every check period
+			wakeAfter(Math.min(noCalibrationDuration*60*1000 - sinceCalibration + 1, CALIBRATION_CHECK_PERIOD));
+		}
+		return needToCalibrate;
 	}
 	
 	@Override
@@ -48,26 +223,15 @@ public class AutoCalibrationProcess extends StateMachineProcess
 	{
 		try
 		{
-			if (currentState == CalibrationState.PREP_CALIBRATTION)
-			{
-				kmrClient.sendMessage(new JobMsg("goto_calibrate",0));
-				
-			}
-			else if (currentState == CalibrationState.CALIBRATING)
-			{
-				logger.info("Robot is calibrating");
-				LBRTask task = new LBRTask("ReferenceArm", true);
-				taskMonitor.assignTask(task);
-			}
-			else if (currentState == CalibrationState.POST_CALIBRATION)
-			{
-				kmrClient.sendMessage(new JobMsg("done_calibrating",0));
-				
-			}
+			stateMachine.enter(currentState);
 		}
-		catch (IOException e)
+		catch (RuntimeException e)
+		{
+			throw e;
+		}
+		catch (Exception e)
 		{
-			logger.error("An IOException error occured in the auto calibration process when state executing");
+			logger.error(String.format("An %s error occured in the auto calibration process when state executing", e.getClass().getSimpleName()));
 			logger.error(e.toString());
 		}
 	}
@@ -78,50 +242,20 @@ public class AutoCalibrationProcess extends StateMachineProcess
 		boolean transitionOccured = false;
 		try
 		{
-			if (currentState == CalibrationState.CHECKING_FOR_CALIBRATION)
+			CalibrationState nextState = stateMachine.step(currentState);
+			if (nextState != null)
 			{
-				boolean needToCalibrate = false;
-				long lastCalibration = Long.parseLong((String) appData.getProcessData("lastCalibrationOfArm").getValue());
-				int noCalibrationDuration = (Integer) appData.getProcessData("maximal_time_without_calibration").getValue();
-				if ((new Date().getTime() - lastCalibration) > noCalibrationDuration*60*1000)
-				{
-					needToCalibrate = true;
-				}
-				if (needToCalibrate)
-				{
-					robotOpState.setCurrentState(OpState.CALIBRATING);
-					currentState = CalibrationState.PREP_CALIBRATTION;
-					transitionOccured = true;
-				}
-			}
-			else if (currentState == CalibrationState.PREP_CALIBRATTION)
-			{
-				LinkedBlockingQueue<JobMsg> msgQueue = kmrClient.getMessageQueue();
-				if (!msgQueue.isEmpty() && msgQueue.remove(new JobMsg("goto_calibrate", 1)))
-				{
-					currentState = CalibrationState.CALIBRATING;
-					transitionOccured = true;
-				}
-			}
-			else if (currentState == CalibrationState.CALIBRATING)
-			{
-				if (taskMonitor.isTaskFinished())
-				{
-					currentState = CalibrationState.POST_CALIBRATION;
-					transitionOccured = true;
-				}
-
-			}
-			else if (currentState == CalibrationState.POST_CALIBRATION)
-			{
-				robotOpState.setCurrentState(OpState.IDLE);
-				currentState = CalibrationState.CHECKING_FOR_CALIBRATION;
+				currentState = nextState;
 				transitionOccured = true;
 			}
 		}
+		catch (RuntimeException e)
+		{
+			throw e;
+		}
 		catch (Exception e)
 		{
-			logger.error("An InterruptedException error occured in the auto calibration process while state transitioning");
+			logger.error(String.format("An %s error occured in the auto calibration process while state transitioning", e.getClass().getSimpleName()));
 			logger.error(e.toString());
 		}
 		return transitionOccured;
@@ -131,14 +265,60 @@ public class AutoCalibrationProcess extends StateMachineProcess
 	public String getCurrentState() {
 		return currentState.name();
 	}
+	
+	@Override
+	public int getCurrentStateOrdinal() {
+		return currentState.ordinal();
+	}
 
 	@Override
 	public void execute() 
 	{
-		if (robotOpState.getCurrentState() == OpState.IDLE || robotOpState.getCurrentState() == OpState.CALIBRATING)
+		OpState opState = robotOpState.getCurrentState();
+		if (opState == OpState.IDLE || opState == OpState.CALIBRATING
+				|| (opState == OpState.CHARGING && maintenanceCoordinator != null && maintenanceCoordinator.isDocked()))
 		{
 			updateStateMachine();
 		}	
 	}
+	
+	@Override
+	protected ProcessCheckpoint.Record createCheckpointRecord()
+	{
+		if (calibratingDocked)
+		{
+			// the robot is owned by the charging process, the calibration is run again once docked
+			return new ProcessCheckpoint.Record(CalibrationState.CHECKING_FOR_CALIBRATION.name(), null, null);
+		}
+		return new ProcessCheckpoint.Record(currentState.name(), pendingReply, null);
+	}
+	
+	@Override
+	protected void resumeFrom(ProcessCheckpoint.Record record) throws Exception
+	{
+		currentState = CalibrationState.valueOf(record.getState());
+		robotOpState.setCurrentState(OpState.CALIBRATING, this);
+		if (record.hasPendingRequest())
+		{
+			pendingReply = resumeRequest(kmrClient, record);
+		}
+		else
+		{
+			// an interrupted calibration is started again
+			stateMachine.enter(currentState);
+		}
+	}
+	
+	@Override
+	protected EnumSet<ProcessEvent> getWakeEvents()
+	{
+		return EnumSet.of(ProcessEvent.TIMER, ProcessEvent.JOB_MESSAGE, ProcessEvent.TASK_STATUS, ProcessEvent.OP_STATE);
+	}
+	
+	@Override
+	public StateMachineDefinition<?> getStateMachineDefinition()
+	{
+		return stateMachine.getDefinition();
+	}
 
 }
@@ -1,14 +1,17 @@
 package robotChemist.processes;
 
-import java.io.IOException;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.EnumSet;
 
 import com.kuka.task.ITaskLogger;
 
 import robotChemist.interfaces.BatteryChargeManager;
-import robotChemist.net.AsyncJobClient;
+import robotChemist.net.JobChannel;
+import robotChemist.net.JobFuture;
 import robotChemist.net.JobMsg;
+import robotChemist.processes.StateMachineDefinition.Action;
+import robotChemist.processes.StateMachineDefinition.Guard;
 import robotChemist.utility.LBRTaskMonitor;
+import robotChemist.utility.ProcessTimer;
 import robotChemist.utility.RobotOpState;
 import robotChemist.utility.RobotOpState.OpState;
 
@@ -20,7 +23,9 @@ public class AutoChargingProcess extends StateMachineProcess
 		CHECKING_FOR_CHARGING("CHECKING_FOR_CHARGING"),
 		PREP_CHARGING("PREP_CHARGING"),
 		READY_TO_CHARGE("READY_TO_CHARGE"),
+		STARTED_CHARGING("STARTED_CHARGING"),
 		CHARGING("CHARGING"),
+		STOPPING_CHARGING("STOPPING_CHARGING"),
 		POST_CHARGE("POST_CHARGE"),
 		FINISH_CHARGING("FINISH_CHARGING");
 	
@@ -31,114 +36,269 @@ public class AutoChargingProcess extends StateMachineProcess
 		}
 	};
 	
+	// time to let the charging settle once switched on before reporting it started
+	private static final long CHARGING_SETTLE_TIME = 30*1000;
+	
 	private BatteryChargeManager batteryManager;
-	private AsyncJobClient kmrClient;
+	private JobChannel kmrClient;
 	private ChargingState currentState;
+	private JobFuture pendingReply;
+	private ProcessTimer timer;
+	private ProcessTimer.Timeout chargingSwitch;
+	private MaintenanceCoordinator maintenanceCoordinator;
+	private CompiledStateMachine<ChargingState> stateMachine;
+	
+	public AutoChargingProcess(JobChannel kmrClient, BatteryChargeManager batteryManager, LBRTaskMonitor taskMonitor, RobotOpState robotOpState, ITaskLogger logger)
+	{
+		this(kmrClient, batteryManager, ProcessTimer.getDefault(logger), taskMonitor, robotOpState, logger);
+	}
 	
-	public AutoChargingProcess(AsyncJobClient kmrClient, BatteryChargeManager batteryManager, LBRTaskMonitor taskMonitor, RobotOpState robotOpState, ITaskLogger logger)
+	/***
+	 * Constructs the charging process with the timer running the charging switching steps and settle delay, so that
+	 * they do not block the other processes.
+	 */
+	public AutoChargingProcess(JobChannel kmrClient, BatteryChargeManager batteryManager, ProcessTimer timer, LBRTaskMonitor taskMonitor, RobotOpState robotOpState, ITaskLogger logger)
 	{
 		super(taskMonitor, robotOpState, logger);
 		this.batteryManager = batteryManager;
+		this.timer = timer;
 		this.kmrClient = kmrClient;
 		this.currentState = ChargingState.CHECKING_FOR_CHARGING;
+		this.stateMachine = defineStateMachine().compile();
 	}
-
-	@Override
-	protected void executeStateProcess()
+	
+	private StateMachineDefinition<ChargingState> defineStateMachine()
 	{
-		try
+		Guard replied = new Guard()
 		{
-			if (currentState == ChargingState.PREP_CHARGING)
+			@Override
+			public boolean test()
 			{
-				kmrClient.sendMessage(new JobMsg("goto_charge",0));
-				
+				return pendingReply != null && pendingReply.isReplied();
 			}
-			else if (currentState == ChargingState.READY_TO_CHARGE)
+		};
+		Action clearReply = new Action()
+		{
+			@Override
+			public void run()
 			{
-				batteryManager.startCharging();
-				Thread.sleep(30*1000);
-				kmrClient.sendMessage(new JobMsg("started_charging",0));
-				logger.info("Robot started charging");
+				pendingReply = null;
 			}
-			else if (currentState == ChargingState.POST_CHARGE)
+		};
+		return new StateMachineDefinition<ChargingState>(ChargingState.class)
+			.transition(ChargingState.CHECKING_FOR_CHARGING, ChargingState.PREP_CHARGING, new Guard()
 			{
-				kmrClient.sendMessage(new JobMsg("done_charging",0));
-			}
-		}
-		catch (IOException e)
-		{
-			logger.error("An IOException error occured in the charging process when state executing");
-			logger.error(e.toString());
-		}
-		catch (InterruptedException e)
-		{
-			logger.error("An InterruptedException error occured in the charging process when state executing");
-			logger.error(e.toString());
-		}
-	}
-
-	@Override
-	protected boolean executeStateTransitions() 
-	{
-		boolean transitionOccured = false;
-		try
-		{
-			if (currentState == ChargingState.CHECKING_FOR_CHARGING)
+				@Override
+				public boolean test()
+				{
+					return (batteryManager.isChargingNeeded() || isChargingRequested()) && robotOpState.claim(OpState.IDLE, OpState.CHARGING, AutoChargingProcess.this);
+				}
+			}, new Action()
 			{
-				if (batteryManager.isChargingNeeded())
+				@Override
+				public void run()
 				{
-					robotOpState.setCurrentState(OpState.CHARGING);
-					currentState = ChargingState.PREP_CHARGING;
-					transitionOccured = true;
+					batteryManager.planChargeTarget();
 				}
-			}
-			else if (currentState == ChargingState.PREP_CHARGING)
+			})
+			.onEnter(ChargingState.PREP_CHARGING, new Action()
 			{
-				LinkedBlockingQueue<JobMsg> msgQueue = kmrClient.getMessageQueue();
-				if (!msgQueue.isEmpty() && msgQueue.remove(new JobMsg("goto_charge", 1)))
+				@Override
+				public void run() throws Exception
 				{
-					currentState = ChargingState.READY_TO_CHARGE;
-					transitionOccured = true;
+					pendingReply = wakeOnReply(kmrClient.sendRequest(new JobMsg("goto_charge",0)));
 				}
-			}
-			else if (currentState == ChargingState.READY_TO_CHARGE)
+			})
+			.transition(ChargingState.PREP_CHARGING, ChargingState.READY_TO_CHARGE, replied, clearReply)
+			.onEnter(ChargingState.READY_TO_CHARGE, new Action()
 			{
-				LinkedBlockingQueue<JobMsg> msgQueue = kmrClient.getMessageQueue();
-				if (!msgQueue.isEmpty() && msgQueue.remove(new JobMsg("started_charging", 1)))
+				@Override
+				public void run()
 				{
-					currentState = ChargingState.CHARGING;
-					transitionOccured = true;
+					chargingSwitch = wakeOnExpiry(batteryManager.startCharging(timer, CHARGING_SETTLE_TIME));
 				}
-			}
-			else if (currentState == ChargingState.CHARGING)
+			})
+			.transition(ChargingState.READY_TO_CHARGE, ChargingState.STARTED_CHARGING, new Guard()
+			{
+				@Override
+				public boolean test()
+				{
+					return isChargingSwitched("on");
+				}
+			})
+			.onEnter(ChargingState.STARTED_CHARGING, new Action()
+			{
+				@Override
+				public void run() throws Exception
+				{
+					pendingReply = wakeOnReply(kmrClient.sendRequest(new JobMsg("started_charging",0)));
+					logger.info("Robot started charging");
+				}
+			})
+			.transition(ChargingState.STARTED_CHARGING, ChargingState.CHARGING, replied, clearReply)
+			.onEnter(ChargingState.CHARGING, new Action()
+			{
+				@Override
+				public void run()
+				{
+					setDocked(true);
+				}
+			})
+			.transition(ChargingState.CHARGING, ChargingState.STOPPING_CHARGING, new Guard()
+			{
+				@Override
+				public boolean test()
+				{
+					if (batteryManager.isChargingProcessNotWorking())
+					{
+						logger.error("Something went wrong in the charging process.");
+						throw new RuntimeException("Charging process stopped for some reason!!!");
+					}
+					// the robot stays docked until the arm calibrating meanwhile is done
+					return batteryManager.isChargingDone() && !isCalibratingDocked();
+				}
+			}, new Action()
+			{
+				@Override
+				public void run()
+				{
+					setDocked(false);
+				}
+			})
+			.onEnter(ChargingState.STOPPING_CHARGING, new Action()
+			{
+				@Override
+				public void run()
+				{
+					chargingSwitch = wakeOnExpiry(batteryManager.stopCharging(timer));
+				}
+			})
+			.transition(ChargingState.STOPPING_CHARGING, ChargingState.POST_CHARGE, new Guard()
 			{
-				if (batteryManager.isChargingProcessNotWorking())
+				@Override
+				public boolean test()
 				{
-					logger.error("Something went wrong in the charging process.");
-					throw new RuntimeException("Charging process stopped for some reason!!!");
+					return isChargingSwitched("off");
 				}
-				if(batteryManager.isChargingDone())
+			}, new Action()
+			{
+				@Override
+				public void run()
 				{
-					batteryManager.stopCharging();
 					batteryManager.updateChargingProcessData();
-					currentState = ChargingState.POST_CHARGE;
-					transitionOccured = true;
 				}
-			}
-			else if (currentState == ChargingState.POST_CHARGE)
+			})
+			.onEnter(ChargingState.POST_CHARGE, new Action()
+			{
+				@Override
+				public void run() throws Exception
+				{
+					pendingReply = wakeOnReply(kmrClient.sendRequest(new JobMsg("done_charging",0)));
+				}
+			})
+			.transition(ChargingState.POST_CHARGE, ChargingState.CHECKING_FOR_CHARGING, replied, new Action()
+			{
+				@Override
+				public void run()
+				{
+					pendingReply = null;
+					robotOpState.release(AutoChargingProcess.this, OpState.IDLE);
+				}
+			});
+	}
+
+	/***
+	 * Sets the coordinator merging the charging trips with the calibration trips. The same coordinator must be set on
+	 * the {@link AutoCalibrationProcess}.
+	 * @param maintenanceCoordinator - the coordinator, or null to charge independently of the calibrations.
+	 */
+	public void setMaintenanceCoordinator(MaintenanceCoordinator maintenanceCoordinator)
+	{
+		this.maintenanceCoordinator = maintenanceCoordinator;
+		if (maintenanceCoordinator != null)
+		{
+			maintenanceCoordinator.addListener(new MaintenanceCoordinator.Listener()
 			{
-				LinkedBlockingQueue<JobMsg> msgQueue = kmrClient.getMessageQueue();
-				if (!msgQueue.isEmpty() && msgQueue.remove(new JobMsg("done_charging", 1)))
+				@Override
+				public void onMaintenanceChanged()
 				{
-					robotOpState.setCurrentState(OpState.IDLE);
-					currentState = ChargingState.CHECKING_FOR_CHARGING;
-					transitionOccured = true;
+					wakeAfter(0);
 				}
+			});
+		}
+	}
+
+	private boolean isChargingRequested()
+	{
+		return maintenanceCoordinator != null && maintenanceCoordinator.isChargingRequested();
+	}
+
+	private boolean isCalibratingDocked()
+	{
+		return maintenanceCoordinator != null && maintenanceCoordinator.isCalibratingDocked();
+	}
+
+	private void setDocked(boolean docked)
+	{
+		if (maintenanceCoordinator != null)
+		{
+			maintenanceCoordinator.setDocked(docked);
+		}
+	}
+
+	private boolean isChargingSwitched(String switchedTo)
+	{
+		if (chargingSwitch != null && chargingSwitch.isCancelled())
+		{
+			logger.error(String.format("Charging could not be switched %s.", switchedTo));
+			throw new RuntimeException(String.format("Charging could not be switched %s!!!", switchedTo));
+		}
+		if (chargingSwitch != null && chargingSwitch.isExpired())
+		{
+			chargingSwitch = null;
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	protected void executeStateProcess()
+	{
+		try
+		{
+			stateMachine.enter(currentState);
+		}
+		catch (RuntimeException e)
+		{
+			throw e;
+		}
+		catch (Exception e)
+		{
+			logger.error(String.format("An %s error occured in the charging process when state executing", e.getClass().getSimpleName()));
+			logger.error(e.toString());
+		}
+	}
+
+	@Override
+	protected boolean executeStateTransitions() 
+	{
+		boolean transitionOccured = false;
+		try
+		{
+			ChargingState nextState = stateMachine.step(currentState);
+			if (nextState != null)
+			{
+				currentState = nextState;
+				transitionOccured = true;
 			}
 		}
-		catch (InterruptedException e)
+		catch (RuntimeException e)
+		{
+			throw e;
+		}
+		catch (Exception e)
 		{
-			logger.error("An InterruptedException error occured in the charging process while state transitioning");
+			logger.error(String.format("An %s error occured in the charging process while state transitioning", e.getClass().getSimpleName()));
 			logger.error(e.toString());
 		}
 		return transitionOccured;
@@ -157,4 +317,45 @@ public class AutoChargingProcess extends StateMachineProcess
 	public String getCurrentState() {
 		return currentState.name();
 	}
+	
+	@Override
+	public int getCurrentStateOrdinal() {
+		return currentState.ordinal();
+	}
+	
+	@Override
+	protected ProcessCheckpoint.Record createCheckpointRecord()
+	{
+		return new ProcessCheckpoint.Record(currentState.name(), pendingReply, null);
+	}
+	
+	@Override
+	protected void resumeFrom(ProcessCheckpoint.Record record) throws Exception
+	{
+		currentState = ChargingState.valueOf(record.getState());
+		robotOpState.setCurrentState(OpState.CHARGING, this);
+		// the coordinator starts undocked, the robot is docked in the same states as when the process ran through them
+		setDocked(currentState == ChargingState.CHARGING);
+		if (record.hasPendingRequest())
+		{
+			pendingReply = resumeRequest(kmrClient, record);
+		}
+		else
+		{
+			// an interrupted switching sequence is run again from its first step
+			stateMachine.enter(currentState);
+		}
+	}
+	
+	@Override
+	protected EnumSet<ProcessEvent> getWakeEvents()
+	{
+		return EnumSet.of(ProcessEvent.SOC_THRESHOLD, ProcessEvent.JOB_MESSAGE, ProcessEvent.TIMER, ProcessEvent.OP_STATE);
+	}
+	
+	@Override
+	public StateMachineDefinition<?> getStateMachineDefinition()
+	{
+		return stateMachine.getDefinition();
+	}
 }
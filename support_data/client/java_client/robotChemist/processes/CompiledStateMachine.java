@@ -0,0 +1,78 @@
+package robotChemist.processes;
+
+import robotChemist.processes.StateMachineDefinition.Action;
+import robotChemist.processes.StateMachineDefinition.Transition;
+
+/***
+ * A {@link StateMachineDefinition} compiled into arrays indexed by the state ordinals, so finding the transitions and
+ * the entry action of the current state is a single array access whatever the number of states. The state itself is
+ * kept by the process, the compiled state machine holds no mutable state and can be inspected through
+ * {@link #getDefinition()}.
+ * @author stoic-roboticist
+ *
+ * @param <S> the enum of the states.
+ */
+public final class CompiledStateMachine<S extends Enum<S>>
+{
+	private final StateMachineDefinition<S> definition;
+	private final Transition<S>[][] transitions;
+	private final Action[] entryActions;
+
+	CompiledStateMachine(StateMachineDefinition<S> definition, Transition<S>[][] transitions, Action[] entryActions)
+	{
+		this.definition = definition;
+		this.transitions = transitions;
+		this.entryActions = entryActions;
+	}
+
+	/***
+	 * Takes the first transition leaving the given state whose guard passes, running its effect.
+	 * @param current - the current state.
+	 * @return the entered state, or null if no transition was taken.
+	 * @throws Exception if the effect of the transition failed, in which case the state is left unchanged.
+	 */
+	public S step(S current) throws Exception
+	{
+		for (Transition<S> transition : transitions[current.ordinal()])
+		{
+			if (transition.getGuard().test())
+			{
+				if (transition.getEffect() != null)
+				{
+					transition.getEffect().run();
+				}
+				return transition.getTo();
+			}
+		}
+		return null;
+	}
+
+	/***
+	 * Runs the entry action of the given state, if any.
+	 * @param state - the entered state.
+	 * @throws Exception if the action failed.
+	 */
+	public void enter(S state) throws Exception
+	{
+		Action action = entryActions[state.ordinal()];
+		if (action != null)
+		{
+			action.run();
+		}
+	}
+
+	/***
+	 *
+	 * @return the definition this state machine was compiled from.
+	 */
+	public StateMachineDefinition<S> getDefinition()
+	{
+		return definition;
+	}
+
+	@Override
+	public String toString()
+	{
+		return definition.toString();
+	}
+}
@@ -0,0 +1,235 @@
+package robotChemist.processes;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import com.kuka.roboticsAPI.applicationModel.IApplicationData;
+import com.kuka.task.ITaskLogger;
+
+import robotChemist.interfaces.BatteryChargeManager;
+import robotChemist.utility.ProcessClock;
+
+/***
+ * Merges the base trips of the {@link AutoChargingProcess} and the {@link AutoCalibrationProcess} when their windows
+ * overlap, so that the arm is referenced while the robot is docked and charging instead of during a trip of its own:
+ * <ul>
+ * <li>a robot docked for charging calibrates as soon as {@link #EARLY_CALIBRATION_FRACTION} of the maximal time
+ * without calibration elapsed, and stays docked until the calibration is done;</li>
+ * <li>a calibration falling due while the state of charge is within {@link #CHARGE_MERGE_MARGIN} percent of the
+ * minimal charge makes the robot go charging instead, and is run once docked.</li>
+ * </ul>
+ * Both processes must be given the same coordinator, see {@link AutoChargingProcess#setMaintenanceCoordinator} and
+ * {@link AutoCalibrationProcess#setMaintenanceCoordinator}.
+ * @author stoic-roboticist
+ *
+ */
+public class MaintenanceCoordinator
+{
+	/***
+	 * A callback notified whenever the robot docks or undocks, a charging is requested or a calibration while docked
+	 * starts or ends, so that the processes waiting for one another are run.
+	 */
+	public interface Listener
+	{
+		void onMaintenanceChanged();
+	}
+
+	/***
+	 * The fraction of the maximal time without calibration after which a docked robot calibrates.
+	 */
+	public static final double EARLY_CALIBRATION_FRACTION = 0.75;
+	/***
+	 * The number of percents above the minimal charge within which a due calibration is merged into a charging.
+	 */
+	public static final int CHARGE_MERGE_MARGIN = 15;
+	// a calibration waiting longer for the robot to dock, e.g. because automated charging is disabled, takes a trip
+	private static final long CHARGE_MERGE_TIMEOUT = 10*60*1000;
+
+	private BatteryChargeManager batteryManager;
+	private IApplicationData appData;
+	private final ProcessClock clock;
+	private volatile boolean docked = false;
+	private volatile boolean calibratingDocked = false;
+	// guarded by this
+	private boolean chargingRequested = false;
+	private long chargingRequestTime;
+	// the last calibration when a merge was abandoned, so that the merge is not retried until the arm is calibrated
+	private long mergeAbandonedAt = -1;
+	private long mergedTrips = 0;
+	private CopyOnWriteArrayList<Listener> listeners;
+
+	private ITaskLogger logger;
+
+	/***
+	 * Constructs a coordinator measuring the time on the system clock.
+	 * @param batteryManager - the battery manager of the charging process.
+	 * @param appData - the process data holding the calibration and charging settings.
+	 * @param logger - RoboticsAPI logging interface.
+	 */
+	public MaintenanceCoordinator(BatteryChargeManager batteryManager, IApplicationData appData, ITaskLogger logger)
+	{
+		this(batteryManager, appData, ProcessClock.SYSTEM, logger);
+	}
+
+	/***
+	 * Constructs a coordinator measuring the time on the given clock.
+	 * @param batteryManager - the battery manager of the charging process.
+	 * @param appData - the process data holding the calibration and charging settings.
+	 * @param clock - the time source, e.g. a simulated clock.
+	 * @param logger - RoboticsAPI logging interface.
+	 */
+	public MaintenanceCoordinator(BatteryChargeManager batteryManager, IApplicationData appData, ProcessClock clock, ITaskLogger logger)
+	{
+		this.batteryManager = batteryManager;
+		this.appData = appData;
+		this.clock = clock;
+		this.listeners = new CopyOnWriteArrayList<Listener>();
+		this.logger = logger;
+	}
+
+	public void addListener(Listener listener)
+	{
+		listeners.add(listener);
+	}
+
+	/***
+	 *
+	 * @return true if the robot is docked and charging.
+	 */
+	public boolean isDocked()
+	{
+		return docked;
+	}
+
+	/***
+	 *
+	 * @return true if the arm is being calibrated while the robot is docked.
+	 */
+	public boolean isCalibratingDocked()
+	{
+		return calibratingDocked;
+	}
+
+	/***
+	 *
+	 * @return true if a due calibration waits for the robot to go charging.
+	 */
+	public synchronized boolean isChargingRequested()
+	{
+		return chargingRequested;
+	}
+
+	/***
+	 *
+	 * @return the number of calibrations run while docked, each saving a trip of the base.
+	 */
+	public synchronized long getMergedTripCount()
+	{
+		return mergedTrips;
+	}
+
+	/***
+	 *
+	 * @return the elapsed fraction of the maximal time without calibration, 1 or more once a calibration is needed.
+	 */
+	public double getCalibrationProgress()
+	{
+		long lastCalibration = getLastCalibration();
+		int noCalibrationDuration = (Integer) appData.getProcessData("maximal_time_without_calibration").getValue();
+		return (double) (clock.currentTimeMillis() - lastCalibration) / (noCalibrationDuration*60*1000);
+	}
+
+	/***
+	 * Decides whether the docked robot should calibrate now.
+	 * @return true if the robot is docked and the calibration is due early enough.
+	 */
+	public boolean shouldCalibrateDocked()
+	{
+		return docked && !calibratingDocked && getCalibrationProgress() >= EARLY_CALIBRATION_FRACTION;
+	}
+
+	/***
+	 * Decides whether a due calibration should wait for a charging instead of taking a trip of its own, and if so
+	 * requests the charging.
+	 * @return true if the calibration should wait for the robot to dock.
+	 */
+	public boolean mergeCalibrationIntoCharging()
+	{
+		int minimalCharge = (Integer) appData.getProcessData("tempMinimalChargeBattery").getValue();
+		long lastCalibration = getLastCalibration();
+		int stateOfCharge = batteryManager.getStateOfCharge();
+		boolean requested = false;
+		synchronized (this)
+		{
+			long now = clock.nanoTime();
+			if (chargingRequested)
+			{
+				if (now - chargingRequestTime <= TimeUnit.MILLISECONDS.toNanos(CHARGE_MERGE_TIMEOUT))
+				{
+					return true;
+				}
+				logger.warn("The robot did not dock for charging, calibrating on a trip of its own");
+				chargingRequested = false;
+				mergeAbandonedAt = lastCalibration;
+				return false;
+			}
+			if (mergeAbandonedAt != lastCalibration && stateOfCharge <= minimalCharge + CHARGE_MERGE_MARGIN)
+			{
+				chargingRequested = true;
+				chargingRequestTime = now;
+				requested = true;
+				logger.info(String.format("Calibration due at %d%% charge, charging first to calibrate while docked", stateOfCharge));
+			}
+		}
+		if (requested)
+		{
+			notifyListeners();
+		}
+		return requested;
+	}
+
+	/***
+	 * Called by the charging process when the robot docks and starts charging, and when it stops charging.
+	 * @param docked - true if the robot is docked.
+	 */
+	void setDocked(boolean docked)
+	{
+		this.docked = docked;
+		notifyListeners();
+	}
+
+	/***
+	 * Called by the calibration process when it starts and ends a calibration while docked.
+	 * @param calibratingDocked - true if the calibration started.
+	 */
+	void setCalibratingDocked(boolean calibratingDocked)
+	{
+		this.calibratingDocked = calibratingDocked;
+		synchronized (this)
+		{
+			if (calibratingDocked)
+			{
+				chargingRequested = false;
+			}
+			else
+			{
+				mergedTrips++;
+				logger.info(String.format("Arm calibrated while docked, %d trips saved", mergedTrips));
+			}
+		}
+		notifyListeners();
+	}
+
+	private long getLastCalibration()
+	{
+		return Long.parseLong((String) appData.getProcessData("lastCalibrationOfArm").getValue());
+	}
+
+	private void notifyListeners()
+	{
+		for (Listener listener : listeners)
+		{
+			listener.onMaintenanceChanged();
+		}
+	}
+}
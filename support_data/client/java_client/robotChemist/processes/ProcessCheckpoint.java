@@ -0,0 +1,428 @@
+package robotChemist.processes;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import com.kuka.task.ITaskLogger;
+
+import robotChemist.net.JobCodecV2;
+import robotChemist.net.JobFuture;
+import robotChemist.net.JobMsg;
+import robotChemist.utility.LBRTask;
+
+/***
+ * A compact snapshot of the state of the {@link StateMachineProcess} instances backed by a memory-mapped file, so
+ * that after a restart of the application the processes resume where they stopped instead of starting over, see
+ * {@link StateMachineProcess#setCheckpoint(ProcessCheckpoint)}. Every process has a record holding its current state,
+ * the request it awaits a reply for and the task it assigned, which is rewritten after each of its transitions.<br>
+ * <br>
+ * The snapshot is written alternately to two slots, each with a sequence number and a checksum, and opening the file
+ * keeps the most recent valid slot, so a snapshot torn by a crash falls back to the previous one. Requests recovered
+ * by the job channel from its journal should be handed over with {@link #addRecoveredRequests(List)}, so a resumed
+ * process waits for the reply of its original request rather than sending it again:
+ * <pre>
+ * AsyncJobClient kmrClient = new AsyncJobClient(address, port, new File("requests.jnl"), logger);
+ * ProcessCheckpoint checkpoint = new ProcessCheckpoint(new File("processes.ckpt"), logger);
+ * checkpoint.addRecoveredRequests(kmrClient.getRecoveredRequests());
+ * chargingProcess.setCheckpoint(checkpoint);
+ * </pre>
+ * @author stoic-roboticist
+ *
+ */
+public class ProcessCheckpoint
+{
+	/***
+	 * The checkpointed state of a process.
+	 */
+	public static final class Record
+	{
+		private final String state;
+		private final JobMsg pendingRequest;
+		private final JobMsg expectedReply;
+		private final int correlationId;
+		private final LBRTask task;
+
+		/***
+		 * Constructs a record.
+		 * @param state - the name of the current state.
+		 * @param pendingReply - the future of the request the process awaits a reply for, or null.
+		 * @param task - the task assigned by the process and not finished yet, or null.
+		 */
+		public Record(String state, JobFuture pendingReply, LBRTask task)
+		{
+			this.state = state;
+			this.pendingRequest = pendingReply != null && !pendingReply.isDone() ? pendingReply.getRequest() : null;
+			this.expectedReply = pendingRequest != null ? pendingReply.getExpectedReply() : null;
+			this.correlationId = pendingRequest != null ? pendingReply.getCorrelationId() : 0;
+			this.task = task;
+		}
+
+		private Record(String state, JobMsg pendingRequest, JobMsg expectedReply, int correlationId, LBRTask task)
+		{
+			this.state = state;
+			this.pendingRequest = pendingRequest;
+			this.expectedReply = expectedReply;
+			this.correlationId = correlationId;
+			this.task = task;
+		}
+
+		public String getState()
+		{
+			return state;
+		}
+
+		/***
+		 *
+		 * @return true if the process was awaiting a reply.
+		 */
+		public boolean hasPendingRequest()
+		{
+			return pendingRequest != null;
+		}
+
+		public JobMsg getPendingRequest()
+		{
+			return pendingRequest;
+		}
+
+		public JobMsg getExpectedReply()
+		{
+			return expectedReply;
+		}
+
+		public int getCorrelationId()
+		{
+			return correlationId;
+		}
+
+		public LBRTask getTask()
+		{
+			return task;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("%s%s%s", state, pendingRequest != null ? ", awaiting " + expectedReply : "",
+					task != null ? ", task " + task.getName() : "");
+		}
+	}
+
+	/***
+	 * Default size of the checkpoint file in bytes.
+	 */
+	public static final int DEFAULT_CAPACITY = 8 * 1024;
+
+	private static final int MAGIC = 0x4C434B50;
+	private static final int FORMAT = 1;
+	private static final int HEADER_SIZE = 8;
+	private static final int SLOT_HEADER_SIZE = 16;
+
+	private RandomAccessFile file;
+	private MappedByteBuffer map;
+	private JobCodecV2 codec;
+	private int slotSize;
+	private long seq;
+	private boolean syncOnWrite;
+	private Map<String, Record> records;
+	private List<JobFuture> recoveredRequests;
+
+	private ITaskLogger logger;
+
+	/***
+	 * Opens the checkpoint stored in the given file, creating it if needed. The records left by a previous run are
+	 * available from {@link #get(String)}.
+	 * @param path - the checkpoint file.
+	 * @param capacity - the file size in bytes, only used when the file is created.
+	 * @param logger - RoboticsAPI logging interface.
+	 * @throws IOException if the file cannot be opened or mapped.
+	 */
+	public ProcessCheckpoint(File path, int capacity, ITaskLogger logger) throws IOException
+	{
+		this.file = new RandomAccessFile(path, "rw");
+		if (file.length() >= HEADER_SIZE + 2 * SLOT_HEADER_SIZE)
+		{
+			capacity = (int) file.length();
+		}
+		this.map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		this.codec = new JobCodecV2();
+		this.slotSize = (capacity - HEADER_SIZE) / 2;
+		this.records = new LinkedHashMap<String, Record>();
+		this.recoveredRequests = new ArrayList<JobFuture>();
+		this.logger = logger;
+		if (map.getInt(0) == MAGIC && map.getInt(4) == FORMAT)
+		{
+			recover();
+		}
+		else
+		{
+			map.putInt(0, MAGIC);
+			map.putInt(4, FORMAT);
+		}
+	}
+
+	/***
+	 * Opens the checkpoint stored in the given file with the {@link #DEFAULT_CAPACITY}.
+	 * @param path - the checkpoint file.
+	 * @param logger - RoboticsAPI logging interface.
+	 * @throws IOException if the file cannot be opened or mapped.
+	 */
+	public ProcessCheckpoint(File path, ITaskLogger logger) throws IOException
+	{
+		this(path, DEFAULT_CAPACITY, logger);
+	}
+
+	/***
+	 * Enables forcing every snapshot to the storage device. This survives power loss but makes every transition
+	 * wait for the device.
+	 * @param syncOnWrite - true to force every write.
+	 */
+	public synchronized void setSyncOnWrite(boolean syncOnWrite)
+	{
+		this.syncOnWrite = syncOnWrite;
+	}
+
+	/***
+	 * Gets the last record saved for the given process.
+	 * @param processName - the name of the process.
+	 * @return the record, or null if the process has none.
+	 */
+	public synchronized Record get(String processName)
+	{
+		return records.get(processName);
+	}
+
+	/***
+	 * Replaces the record of the given process and writes the snapshot.
+	 * @param processName - the name of the process.
+	 * @param record - the new record of the process.
+	 * @throws IOException if the snapshot does not fit in the file.
+	 */
+	public synchronized void save(String processName, Record record) throws IOException
+	{
+		records.put(processName, record);
+		byte[] data = encode();
+		if (SLOT_HEADER_SIZE + data.length > slotSize)
+		{
+			throw new IOException(String.format("process checkpoint full, %d bytes for %d records", data.length, records.size()));
+		}
+		long nextSeq = seq + 1;
+		int offset = HEADER_SIZE + (int) (nextSeq % 2) * slotSize;
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		map.putInt(offset + 8, data.length);
+		map.putInt(offset + 12, (int) crc.getValue());
+		map.position(offset + SLOT_HEADER_SIZE);
+		map.put(data);
+		// the slot becomes the most recent one only once it is completely written
+		map.putLong(offset, nextSeq);
+		seq = nextSeq;
+		if (syncOnWrite)
+		{
+			map.force();
+		}
+	}
+
+	/***
+	 * Hands over the requests recovered by the job channel from its journal, so that a resumed process can take the
+	 * future of its original request.
+	 * @param futures - the recovered request futures.
+	 */
+	public synchronized void addRecoveredRequests(List<JobFuture> futures)
+	{
+		recoveredRequests.addAll(futures);
+	}
+
+	/***
+	 * Takes the recovered future of the request recorded in the given record.
+	 * @param record - the record of a process awaiting a reply.
+	 * @return the future, or null if the request was not recovered.
+	 */
+	public synchronized JobFuture takeRecoveredRequest(Record record)
+	{
+		Iterator<JobFuture> iter = recoveredRequests.iterator();
+		while (iter.hasNext())
+		{
+			JobFuture future = iter.next();
+			if (future.getCorrelationId() == record.getCorrelationId()
+					&& future.getRequest().getJobInfo().equals(record.getPendingRequest().getJobInfo()))
+			{
+				iter.remove();
+				return future;
+			}
+		}
+		return null;
+	}
+
+	/***
+	 * Flushes and closes the checkpoint file.
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException
+	{
+		map.force();
+		file.close();
+	}
+
+	private void recover()
+	{
+		int latest = -1;
+		for (int slot = 0; slot < 2; slot++)
+		{
+			int offset = HEADER_SIZE + slot * slotSize;
+			long slotSeq = map.getLong(offset);
+			if (slotSeq > 0 && (latest < 0 || slotSeq > seq) && isValid(offset))
+			{
+				latest = offset;
+				seq = slotSeq;
+			}
+		}
+		if (latest < 0)
+		{
+			return;
+		}
+		byte[] data = new byte[map.getInt(latest + 8)];
+		ByteBuffer slot = map.duplicate();
+		slot.position(latest + SLOT_HEADER_SIZE);
+		slot.get(data);
+		try
+		{
+			decode(data);
+			logger.info(String.format("recovered process checkpoint: %s", records));
+		}
+		catch (IOException e)
+		{
+			// a snapshot with a valid checksum is complete, so this is a file written by an incompatible version
+			records.clear();
+			logger.warn(String.format("ignoring unreadable process checkpoint: %s", e));
+		}
+	}
+
+	private boolean isValid(int offset)
+	{
+		int length = map.getInt(offset + 8);
+		if (length < 0 || SLOT_HEADER_SIZE + length > slotSize)
+		{
+			return false;
+		}
+		byte[] data = new byte[length];
+		ByteBuffer slot = map.duplicate();
+		slot.position(offset + SLOT_HEADER_SIZE);
+		slot.get(data);
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		return (int) crc.getValue() == map.getInt(offset + 12);
+	}
+
+	private byte[] encode() throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeShort(records.size());
+		for (Map.Entry<String, Record> e : records.entrySet())
+		{
+			Record record = e.getValue();
+			out.writeUTF(e.getKey());
+			out.writeUTF(record.state);
+			out.writeBoolean(record.pendingRequest != null);
+			if (record.pendingRequest != null)
+			{
+				out.writeInt(record.correlationId);
+				writeMsg(out, record.pendingRequest);
+				writeMsg(out, record.expectedReply);
+			}
+			out.writeBoolean(record.task != null);
+			if (record.task != null)
+			{
+				out.writeUTF(record.task.getName());
+				out.writeBoolean(record.task.isPriority());
+				out.writeInt(record.task.getSeq());
+				List<String> params = record.task.getParams();
+				out.writeShort(params != null ? params.size() : -1);
+				if (params != null)
+				{
+					for (String param : params)
+					{
+						out.writeUTF(param);
+					}
+				}
+			}
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private void decode(byte[] data) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		int count = in.readShort();
+		for (int i = 0; i < count; i++)
+		{
+			String processName = in.readUTF();
+			String state = in.readUTF();
+			JobMsg pendingRequest = null;
+			JobMsg expectedReply = null;
+			int correlationId = 0;
+			if (in.readBoolean())
+			{
+				correlationId = in.readInt();
+				pendingRequest = readMsg(in);
+				expectedReply = readMsg(in);
+			}
+			LBRTask task = null;
+			if (in.readBoolean())
+			{
+				String name = in.readUTF();
+				boolean priority = in.readBoolean();
+				int taskSeq = in.readInt();
+				int paramCount = in.readShort();
+				List<String> params = null;
+				if (paramCount >= 0)
+				{
+					params = new ArrayList<String>(paramCount);
+					for (int p = 0; p < paramCount; p++)
+					{
+						params.add(in.readUTF());
+					}
+				}
+				task = new LBRTask(name, params, priority, taskSeq);
+			}
+			records.put(processName, new Record(state, pendingRequest, expectedReply, correlationId, task));
+		}
+	}
+
+	private void writeMsg(DataOutputStream out, JobMsg msg) throws IOException
+	{
+		ByteBuffer encoded = codec.encode(msg);
+		out.writeInt(encoded.remaining());
+		out.write(encoded.array(), encoded.arrayOffset() + encoded.position(), encoded.remaining());
+	}
+
+	private JobMsg readMsg(DataInputStream in) throws IOException
+	{
+		byte[] encoded = new byte[in.readInt()];
+		in.readFully(encoded);
+		try
+		{
+			return codec.decode(ByteBuffer.wrap(encoded));
+		}
+		catch (RuntimeException e)
+		{
+			throw new IOException(String.format("corrupt checkpointed message: %s", e));
+		}
+	}
+}
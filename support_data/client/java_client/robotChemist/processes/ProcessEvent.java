@@ -0,0 +1,24 @@
+package robotChemist.processes;
+
+/***
+ * The events that wake a {@link StateMachineProcess} run by a {@link ProcessEventDispatcher}:</br>
+ * - JOB_MESSAGE: a reply awaited by the process arrived on the job channel</br>
+ * - ROS_COMMAND: a command was added to the ROS command queue</br>
+ * - TASK_STATUS: a task was assigned or the status of the assigned task changed</br>
+ * - OP_STATE: the robot operational state changed</br>
+ * - APP_STATE: the application state changed</br>
+ * - SOC_THRESHOLD: the state of charge crossed one of the charging thresholds</br>
+ * - TIMER: a timer requested by the process fired</br>
+ * @author stoic-roboticist
+ *
+ */
+public enum ProcessEvent
+{
+	JOB_MESSAGE,
+	ROS_COMMAND,
+	TASK_STATUS,
+	OP_STATE,
+	APP_STATE,
+	SOC_THRESHOLD,
+	TIMER
+}
@@ -0,0 +1,488 @@
+package robotChemist.processes;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import com.kuka.roboticsAPI.applicationModel.RoboticsAPIApplicationState;
+import com.kuka.task.ITaskLogger;
+
+import robotChemist.interfaces.BatteryChargeManager;
+import robotChemist.nodes.LBRArchmQNode;
+import robotChemist.utility.AppStateMonitor;
+import robotChemist.utility.LBRTask;
+import robotChemist.utility.LBRTaskMonitor;
+import robotChemist.utility.ProcessClock;
+import robotChemist.utility.RobotOpState;
+import robotChemist.utility.RobotOpState.OpState;
+
+/***
+ * Runs {@link StateMachineProcess} instances only when one of the {@link ProcessEvent} they declared in
+ * {@link StateMachineProcess#getWakeEvents()} occurs, instead of calling {@link StateMachineProcess#execute()} on every
+ * process at every iteration of the application loop. Events are signalled from any thread by the watched sources
+ * (task monitor, operational state, application state, ROS command queue, battery), by the replies a process awaits
+ * and by the timers it requests, while the processes themselves keep running on the single thread calling
+ * {@link #dispatch(long)}, so exceptions thrown by a process propagate to the application loop as before:
+ * <pre>
+ * dispatcher.register(chargingProcess);
+ * dispatcher.watch(robotOpState);
+ * dispatcher.watch(batteryManager, 1000);
+ * while (running)
+ * {
+ *     dispatcher.dispatch(1000);
+ * }
+ * </pre>
+ * A woken process is run again as long as it makes transitions, so a chain of transitions completes without waiting
+ * for further events. Timers and pollers run on a {@link ProcessClock}; against a simulated one, the caller advances
+ * the clock by {@link #nanosToNextWake()} and calls {@link #dispatch(long)} with no timeout instead of waiting.
+ * @author stoic-roboticist
+ *
+ */
+public class ProcessEventDispatcher
+{
+	// a process making more transitions in a row is run again at the next dispatch so it cannot starve the others
+	private static final int MAX_CHAINED_RUNS = 16;
+
+	private class Registration
+	{
+		private final StateMachineProcess process;
+		private final EnumSet<ProcessEvent> events;
+		// all guarded by the dispatcher lock, the deadline is only meaningful while a timer is armed
+		private boolean pending = true;
+		private boolean hasTimer = false;
+		private long timerDeadline;
+		// the first event that woke the process since it last ran, null if woken otherwise
+		private ProcessEvent cause;
+
+		Registration(StateMachineProcess process)
+		{
+			this.process = process;
+			this.events = EnumSet.copyOf(process.getWakeEvents());
+		}
+	}
+
+	private class Poller
+	{
+		private final Runnable task;
+		private final long period;
+		// only accessed by the dispatching thread
+		private long next;
+
+		Poller(Runnable task, long period)
+		{
+			this.task = task;
+			this.period = period;
+			this.next = clock.nanoTime();
+		}
+	}
+
+	private final Object lock = new Object();
+	private final ProcessClock clock;
+	private CopyOnWriteArrayList<Registration> registrations;
+	private CopyOnWriteArrayList<Poller> pollers;
+	private volatile long runCount = 0;
+
+	private ITaskLogger logger;
+
+	/***
+	 * Constructs a dispatcher with no process registered.
+	 * @param logger - RoboticsAPI logging interface.
+	 */
+	public ProcessEventDispatcher(ITaskLogger logger)
+	{
+		this(ProcessClock.SYSTEM, logger);
+	}
+
+	/***
+	 * Constructs a dispatcher with no process registered, whose timers and pollers run on the given clock.
+	 * @param clock - the time source, e.g. a simulated clock.
+	 * @param logger - RoboticsAPI logging interface.
+	 */
+	public ProcessEventDispatcher(ProcessClock clock, ITaskLogger logger)
+	{
+		this.clock = clock;
+		this.registrations = new CopyOnWriteArrayList<Registration>();
+		this.pollers = new CopyOnWriteArrayList<Poller>();
+		this.logger = logger;
+	}
+
+	/***
+	 * Registers a process to be run whenever one of its wake events occurs. The process is run once at the next
+	 * dispatch to evaluate its initial state.
+	 * @param process - the process to be run.
+	 */
+	public void register(StateMachineProcess process)
+	{
+		Registration registration = new Registration(process);
+		process.setEventDispatcher(this);
+		registrations.add(registration);
+		logger.info(String.format("%s woken by %s", process.getClass().getSimpleName(), registration.events));
+		synchronized (lock)
+		{
+			lock.notifyAll();
+		}
+	}
+
+	/***
+	 * Wakes all the processes waiting for the given event.
+	 * @param event - the event that occurred.
+	 */
+	public void signal(ProcessEvent event)
+	{
+		synchronized (lock)
+		{
+			boolean woken = false;
+			for (Registration registration : registrations)
+			{
+				if (registration.events.contains(event))
+				{
+					wakeRegistration(registration, event);
+					woken = true;
+				}
+			}
+			if (woken)
+			{
+				lock.notifyAll();
+			}
+		}
+	}
+
+	/***
+	 * Wakes the given process, whatever its wake events.
+	 * @param process - the registered process to be run.
+	 */
+	public void wake(StateMachineProcess process)
+	{
+		wake(process, null);
+	}
+	
+	void wake(StateMachineProcess process, ProcessEvent cause)
+	{
+		synchronized (lock)
+		{
+			Registration registration = find(process);
+			if (registration != null)
+			{
+				wakeRegistration(registration, cause);
+				lock.notifyAll();
+			}
+		}
+	}
+
+	/***
+	 * Wakes the given process once the given delay elapsed. A process has a single timer, requesting a later one
+	 * while an earlier one is armed keeps the earlier one.
+	 * @param process - the registered process to be run.
+	 * @param delayMillis - the delay in milliseconds.
+	 */
+	public void wakeAfter(StateMachineProcess process, long delayMillis)
+	{
+		long deadline = clock.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+		synchronized (lock)
+		{
+			Registration registration = find(process);
+			if (registration != null)
+			{
+				if (!registration.hasTimer || deadline - registration.timerDeadline < 0)
+				{
+					registration.hasTimer = true;
+					registration.timerDeadline = deadline;
+				}
+				lock.notifyAll();
+			}
+		}
+	}
+
+	/***
+	 * Runs the given task periodically on the dispatching thread, for the event sources that have to be sampled
+	 * because they cannot notify changes themselves. The task is expected to call {@link #signal(ProcessEvent)} when
+	 * it detects a change.
+	 * @param task - the sampling task, it must not block.
+	 * @param periodMillis - the period in milliseconds.
+	 */
+	public void addPoller(Runnable task, long periodMillis)
+	{
+		pollers.add(new Poller(task, TimeUnit.MILLISECONDS.toNanos(Math.max(1, periodMillis))));
+		synchronized (lock)
+		{
+			lock.notifyAll();
+		}
+	}
+
+	/***
+	 * Signals {@link ProcessEvent#TASK_STATUS} whenever a task is assigned or the assigned task changes status.
+	 * @param taskMonitor - the task monitor shared by the processes.
+	 */
+	public void watch(LBRTaskMonitor taskMonitor)
+	{
+		taskMonitor.addListener(new LBRTaskMonitor.Listener()
+		{
+			@Override
+			public void onTaskChanged(LBRTask task)
+			{
+				signal(ProcessEvent.TASK_STATUS);
+			}
+		});
+	}
+
+	/***
+	 * Signals {@link ProcessEvent#OP_STATE} whenever the robot operational state changes.
+	 * @param robotOpState - the operational state shared by the processes.
+	 */
+	public void watch(RobotOpState robotOpState)
+	{
+		robotOpState.addListener(new RobotOpState.Listener()
+		{
+			@Override
+			public void onStateChanged(OpState oldState, OpState newState)
+			{
+				signal(ProcessEvent.OP_STATE);
+			}
+		});
+	}
+
+	/***
+	 * Signals {@link ProcessEvent#APP_STATE} whenever the application state changes.
+	 * @param appStateMonitor - the application state monitor.
+	 */
+	public void watch(AppStateMonitor appStateMonitor)
+	{
+		appStateMonitor.addListener(new AppStateMonitor.Listener()
+		{
+			@Override
+			public void onAppStateChanged(RoboticsAPIApplicationState appState)
+			{
+				signal(ProcessEvent.APP_STATE);
+			}
+		});
+	}
+
+	/***
+	 * Signals {@link ProcessEvent#ROS_COMMAND} whenever a command is added to the command queue of the given node.
+	 * @param lbrNode - the ROS node receiving the commands.
+	 */
+	public void watch(LBRArchmQNode lbrNode)
+	{
+		lbrNode.addCommandListener(new LBRArchmQNode.CommandListener()
+		{
+			@Override
+			public void onCommandQueued(kmriiwa_chemist_msgs.LBRCommand cmd)
+			{
+				signal(ProcessEvent.ROS_COMMAND);
+			}
+		});
+	}
+
+	/***
+	 * Samples the state of charge with the given period and signals {@link ProcessEvent#SOC_THRESHOLD} whenever it
+	 * crosses one of the charging thresholds, see {@link BatteryChargeManager#pollThresholds()}.
+	 * @param batteryManager - the battery manager.
+	 * @param periodMillis - the sampling period in milliseconds.
+	 */
+	public void watch(final BatteryChargeManager batteryManager, long periodMillis)
+	{
+		addPoller(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				if (batteryManager.pollThresholds())
+				{
+					signal(ProcessEvent.SOC_THRESHOLD);
+				}
+			}
+		}, periodMillis);
+	}
+
+	/***
+	 * Waits for events and runs the processes they woke. Must always be called from the same thread.
+	 * @param timeoutMillis - the maximal time to wait for an event in milliseconds.
+	 * @return the number of process runs, 0 if no event occurred before the timeout.
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public int dispatch(long timeoutMillis) throws InterruptedException
+	{
+		long deadline = clock.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		while (true)
+		{
+			long now = clock.nanoTime();
+			runDuePollers(now);
+			List<Registration> ready = takeReady(now);
+			if (!ready.isEmpty())
+			{
+				int runs = 0;
+				for (Registration registration : ready)
+				{
+					runs += run(registration);
+				}
+				return runs;
+			}
+			if (now - deadline >= 0)
+			{
+				return 0;
+			}
+			awaitEvent(deadline);
+		}
+	}
+
+	/***
+	 * Gets the time until a process or a poller is due, so that a simulation can advance its clock to the next
+	 * dispatch instead of waiting for it. Must be called from the dispatching thread.
+	 * @return the time in nanoseconds, 0 if a process is already woken, or -1 if no timer is armed and no poller is
+	 * added.
+	 */
+	public long nanosToNextWake()
+	{
+		long now = clock.nanoTime();
+		long earliest = 0;
+		boolean found = false;
+		synchronized (lock)
+		{
+			for (Registration registration : registrations)
+			{
+				if (registration.pending)
+				{
+					return 0;
+				}
+				if (registration.hasTimer && (!found || registration.timerDeadline - earliest < 0))
+				{
+					earliest = registration.timerDeadline;
+					found = true;
+				}
+			}
+		}
+		for (Poller poller : pollers)
+		{
+			if (!found || poller.next - earliest < 0)
+			{
+				earliest = poller.next;
+				found = true;
+			}
+		}
+		return found ? Math.max(0, earliest - now) : -1;
+	}
+
+	/***
+	 *
+	 * @return the number of process runs since the dispatcher was created.
+	 */
+	public long getRunCount()
+	{
+		return runCount;
+	}
+
+	private int run(Registration registration)
+	{
+		int runs = 0;
+		boolean transitioned = true;
+		while (transitioned && runs < MAX_CHAINED_RUNS)
+		{
+			long transitions = registration.process.getTransitionCount();
+			registration.process.execute();
+			runs++;
+			transitioned = registration.process.getTransitionCount() != transitions;
+		}
+		runCount += runs;
+		registration.process.setWakeCause(null);
+		if (transitioned)
+		{
+			wake(registration.process);
+		}
+		return runs;
+	}
+
+	private void runDuePollers(long now)
+	{
+		for (Poller poller : pollers)
+		{
+			if (now - poller.next >= 0)
+			{
+				poller.next = now + poller.period;
+				poller.task.run();
+			}
+		}
+	}
+
+	private List<Registration> takeReady(long now)
+	{
+		List<Registration> ready = new ArrayList<Registration>();
+		synchronized (lock)
+		{
+			for (Registration registration : registrations)
+			{
+				boolean timerFired = registration.hasTimer && now - registration.timerDeadline >= 0;
+				if (registration.pending || timerFired)
+				{
+					registration.pending = false;
+					if (timerFired)
+					{
+						registration.hasTimer = false;
+						if (registration.cause == null)
+						{
+							registration.cause = ProcessEvent.TIMER;
+						}
+					}
+					registration.process.setWakeCause(registration.cause);
+					registration.cause = null;
+					ready.add(registration);
+				}
+			}
+		}
+		return ready;
+	}
+
+	private void awaitEvent(long deadline) throws InterruptedException
+	{
+		synchronized (lock)
+		{
+			long wakeAt = deadline;
+			for (Registration registration : registrations)
+			{
+				if (registration.pending)
+				{
+					return;
+				}
+				if (registration.hasTimer && registration.timerDeadline - wakeAt < 0)
+				{
+					wakeAt = registration.timerDeadline;
+				}
+			}
+			for (Poller poller : pollers)
+			{
+				if (poller.next - wakeAt < 0)
+				{
+					wakeAt = poller.next;
+				}
+			}
+			long waitNanos = wakeAt - clock.nanoTime();
+			if (waitNanos > 0)
+			{
+				// round up so the wait does not end just before the deadline
+				lock.wait(TimeUnit.NANOSECONDS.toMillis(waitNanos) + 1);
+			}
+		}
+	}
+
+	private void wakeRegistration(Registration registration, ProcessEvent cause)
+	{
+		if (!registration.pending)
+		{
+			registration.cause = cause;
+		}
+		registration.pending = true;
+	}
+	
+	private Registration find(StateMachineProcess process)
+	{
+		for (Registration registration : registrations)
+		{
+			if (registration.process == process)
+			{
+				return registration;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,317 @@
+package robotChemist.processes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import com.kuka.task.ITaskLogger;
+
+import robotChemist.utility.ProcessClock;
+
+/***
+ * Runs {@link StateMachineProcess} instances at a period of their own instead of the rate of the application loop,
+ * e.g. every 50 ms for the task execution and every 10 s for the calibration date checks. Processes are run one after
+ * the other on the thread calling {@link #run()} or {@link #runDue()}, so exceptions they throw propagate to the
+ * caller as with {@link StateMachineProcess#execute()}. The duration of every tick is recorded; a tick taking longer
+ * than the period of its process is an overrun and is logged with the processes it delayed, so a blocking process
+ * cannot starve the others unnoticed. Ticks missed because of an overrun are skipped rather than run in a burst.
+ * @author stoic-roboticist
+ *
+ */
+public class ProcessScheduler
+{
+	/***
+	 * A process scheduled at a fixed period, with the statistics of its ticks.
+	 */
+	public static final class ScheduledProcess
+	{
+		private final StateMachineProcess process;
+		private final long period;
+		// only accessed by the scheduling thread
+		private long nextDue;
+
+		private long tickCount = 0;
+		private long overrunCount = 0;
+		private long skippedCount = 0;
+		private long totalTickNanos = 0;
+		private long lastTickNanos = 0;
+		private long maxTickNanos = 0;
+		private long maxLatenessNanos = 0;
+
+		private ScheduledProcess(StateMachineProcess process, long period, long firstDue)
+		{
+			this.process = process;
+			this.period = period;
+			this.nextDue = firstDue;
+		}
+
+		public StateMachineProcess getProcess()
+		{
+			return process;
+		}
+
+		/***
+		 *
+		 * @return the period of the process in milliseconds.
+		 */
+		public long getPeriodMillis()
+		{
+			return TimeUnit.NANOSECONDS.toMillis(period);
+		}
+
+		public synchronized long getTickCount()
+		{
+			return tickCount;
+		}
+
+		/***
+		 *
+		 * @return the number of ticks that took longer than the period.
+		 */
+		public synchronized long getOverrunCount()
+		{
+			return overrunCount;
+		}
+
+		/***
+		 *
+		 * @return the number of ticks skipped because the process was run too late for them.
+		 */
+		public synchronized long getSkippedCount()
+		{
+			return skippedCount;
+		}
+
+		public synchronized long getLastTickNanos()
+		{
+			return lastTickNanos;
+		}
+
+		public synchronized long getMaxTickNanos()
+		{
+			return maxTickNanos;
+		}
+
+		public synchronized long getMeanTickNanos()
+		{
+			return tickCount > 0 ? totalTickNanos / tickCount : 0;
+		}
+
+		/***
+		 *
+		 * @return the longest time a tick started after it was due, in nanoseconds.
+		 */
+		public synchronized long getMaxLatenessNanos()
+		{
+			return maxLatenessNanos;
+		}
+
+		private synchronized void recordTick(long duration, long lateness, long skipped)
+		{
+			tickCount++;
+			totalTickNanos += duration;
+			lastTickNanos = duration;
+			maxTickNanos = Math.max(maxTickNanos, duration);
+			maxLatenessNanos = Math.max(maxLatenessNanos, lateness);
+			skippedCount += skipped;
+			if (duration > period)
+			{
+				overrunCount++;
+			}
+		}
+
+		@Override
+		public synchronized String toString()
+		{
+			return String.format("%s: period %d ms, %d ticks, mean %d us, max %d us, %d overruns, %d skipped",
+					process.getClass().getSimpleName(), getPeriodMillis(), tickCount,
+					TimeUnit.NANOSECONDS.toMicros(getMeanTickNanos()), TimeUnit.NANOSECONDS.toMicros(maxTickNanos),
+					overrunCount, skippedCount);
+		}
+	}
+
+	private final ProcessClock clock;
+	private CopyOnWriteArrayList<ScheduledProcess> scheduled;
+	private volatile boolean running = false;
+
+	private ITaskLogger logger;
+
+	/***
+	 * Constructs a scheduler using the system clock.
+	 * @param logger - RoboticsAPI logging interface.
+	 */
+	public ProcessScheduler(ITaskLogger logger)
+	{
+		this(ProcessClock.SYSTEM, logger);
+	}
+
+	/***
+	 * Constructs a scheduler using the given clock.
+	 * @param clock - the time source, e.g. a simulated clock.
+	 * @param logger - RoboticsAPI logging interface.
+	 */
+	public ProcessScheduler(ProcessClock clock, ITaskLogger logger)
+	{
+		this.clock = clock;
+		this.scheduled = new CopyOnWriteArrayList<ScheduledProcess>();
+		this.logger = logger;
+	}
+
+	/***
+	 * Schedules a process to be run with the given period, starting at the next call to {@link #runDue()}.
+	 * @param process - the process to be run.
+	 * @param periodMillis - the period in milliseconds.
+	 * @return the scheduled process, holding its tick statistics.
+	 */
+	public ScheduledProcess schedule(StateMachineProcess process, long periodMillis)
+	{
+		if (periodMillis <= 0)
+		{
+			throw new IllegalArgumentException(String.format("invalid process period: %d ms", periodMillis));
+		}
+		ScheduledProcess entry = new ScheduledProcess(process, TimeUnit.MILLISECONDS.toNanos(periodMillis),
+				clock.nanoTime());
+		scheduled.add(entry);
+		return entry;
+	}
+
+	/***
+	 * Stops running the given process.
+	 * @param process - the scheduled process.
+	 */
+	public void unschedule(StateMachineProcess process)
+	{
+		for (ScheduledProcess entry : scheduled)
+		{
+			if (entry.process == process)
+			{
+				scheduled.remove(entry);
+			}
+		}
+	}
+
+	/***
+	 * Runs the processes that are due, the most overdue first.
+	 * @return the time until the next process is due in nanoseconds, 0 if one is already due, or -1 if no process is
+	 * scheduled.
+	 */
+	public long runDue()
+	{
+		List<ScheduledProcess> due = new ArrayList<ScheduledProcess>();
+		long now = clock.nanoTime();
+		for (ScheduledProcess entry : scheduled)
+		{
+			if (now - entry.nextDue >= 0)
+			{
+				due.add(entry);
+			}
+		}
+		sortByDue(due);
+		for (ScheduledProcess entry : due)
+		{
+			tick(entry);
+		}
+		return timeToNextDue();
+	}
+
+	/***
+	 * Runs the scheduled processes on the calling thread until {@link #stop()} is called.
+	 * @throws InterruptedException if interrupted while waiting for the next process.
+	 */
+	public void run() throws InterruptedException
+	{
+		running = true;
+		while (running)
+		{
+			long wait = runDue();
+			clock.sleepNanos(wait >= 0 ? wait : TimeUnit.MILLISECONDS.toNanos(100));
+		}
+	}
+
+	/***
+	 * Makes {@link #run()} return after the current tick.
+	 */
+	public void stop()
+	{
+		running = false;
+	}
+
+	/***
+	 *
+	 * @return a snapshot of the scheduled processes with their statistics.
+	 */
+	public List<ScheduledProcess> getScheduledProcesses()
+	{
+		return new ArrayList<ScheduledProcess>(scheduled);
+	}
+
+	private void tick(ScheduledProcess entry)
+	{
+		long start = clock.nanoTime();
+		long lateness = start - entry.nextDue;
+		entry.process.execute();
+		long end = clock.nanoTime();
+		long duration = end - start;
+		// a process run later than a whole period skips the ticks it missed instead of catching up
+		long skipped = 0;
+		entry.nextDue += entry.period;
+		if (end - entry.nextDue > 0)
+		{
+			skipped = (end - entry.nextDue) / entry.period + 1;
+			entry.nextDue += skipped * entry.period;
+		}
+		entry.recordTick(duration, lateness, skipped);
+		if (duration > entry.period)
+		{
+			logger.warn(String.format("%s overran its %d ms period: tick took %d ms in state %s%s",
+					entry.process.getClass().getSimpleName(), entry.getPeriodMillis(),
+					TimeUnit.NANOSECONDS.toMillis(duration), entry.process.getCurrentState(), describeDelayed(entry, end)));
+		}
+	}
+
+	private String describeDelayed(ScheduledProcess overran, long end)
+	{
+		StringBuilder delayed = new StringBuilder();
+		for (ScheduledProcess entry : scheduled)
+		{
+			if (entry != overran && end - entry.nextDue > 0)
+			{
+				delayed.append(delayed.length() == 0 ? ", delaying " : ", ");
+				delayed.append(String.format("%s by %d ms", entry.process.getClass().getSimpleName(),
+						TimeUnit.NANOSECONDS.toMillis(end - entry.nextDue)));
+			}
+		}
+		return delayed.toString();
+	}
+
+	private long timeToNextDue()
+	{
+		if (scheduled.isEmpty())
+		{
+			return -1;
+		}
+		long now = clock.nanoTime();
+		long wait = Long.MAX_VALUE;
+		for (ScheduledProcess entry : scheduled)
+		{
+			wait = Math.min(wait, Math.max(0, entry.nextDue - now));
+		}
+		return wait;
+	}
+
+	private static void sortByDue(List<ScheduledProcess> due)
+	{
+		Collections.sort(due, new Comparator<ScheduledProcess>()
+		{
+			@Override
+			public int compare(ScheduledProcess a, ScheduledProcess b)
+			{
+				long diff = a.nextDue - b.nextDue;
+				return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+			}
+		});
+	}
+}
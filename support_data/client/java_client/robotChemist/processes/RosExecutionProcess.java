@@ -1,6 +1,10 @@
 package robotChemist.processes;
 
+import java.util.EnumSet;
+
 import robotChemist.nodes.LBRArchmQNode;
+import robotChemist.processes.StateMachineDefinition.Action;
+import robotChemist.processes.StateMachineDefinition.Guard;
 import robotChemist.utility.LBRTask;
 import robotChemist.utility.LBRTaskMonitor;
 import robotChemist.utility.RobotOpState;
@@ -25,12 +29,76 @@ public class RosExecutionProcess extends StateMachineProcess
 	private LBRArchmQNode lbrNode;
 	private RosExecutionState currentState;
 	private kmriiwa_chemist_msgs.LBRCommand currentCmd;
+	private boolean resumeInterruptedCommand = false;
+	private CompiledStateMachine<RosExecutionState> stateMachine;
 	
 	public RosExecutionProcess(LBRArchmQNode lbrNode, LBRTaskMonitor taskMonitor, RobotOpState robotOpState, ITaskLogger logger) 
 	{
 		super(taskMonitor, robotOpState, logger);
 		this.lbrNode = lbrNode;
 		this.currentState = RosExecutionState.WAITING_ON_CMD;
+		this.stateMachine = defineStateMachine().compile();
+	}
+	
+	private StateMachineDefinition<RosExecutionState> defineStateMachine()
+	{
+		return new StateMachineDefinition<RosExecutionState>(RosExecutionState.class)
+			.transition(RosExecutionState.WAITING_ON_CMD, RosExecutionState.EXECUTING, new Guard()
+			{
+				@Override
+				public boolean test()
+				{
+					kmriiwa_chemist_msgs.LBRCommand taskMsg = lbrNode.getLBRCommandfromQueue();
+					if (taskMsg != null && robotOpState.claim(OpState.IDLE, OpState.EXECUTING_ROS_TASK, RosExecutionProcess.this))
+					{
+						currentCmd = taskMsg;
+						return true;
+					}
+					return false;
+				}
+			}, new Action()
+			{
+				@Override
+				public void run()
+				{
+					lbrNode.removeLBRCommandFromQueue(currentCmd);
+				}
+			})
+			.onEnter(RosExecutionState.EXECUTING, new Action()
+			{
+				@Override
+				public void run()
+				{
+					LBRTask task = new LBRTask(currentCmd);
+					taskMonitor.assignTask(task);
+				}
+			})
+			.transition(RosExecutionState.EXECUTING, RosExecutionState.WAITING_ON_CMD, new Guard()
+			{
+				@Override
+				public boolean test()
+				{
+					return taskMonitor.isTaskFinished();
+				}
+			}, new Action()
+			{
+				@Override
+				public void run()
+				{
+					robotOpState.release(RosExecutionProcess.this, OpState.IDLE);
+				}
+			});
+	}
+
+	/***
+	 * Makes the command interrupted by a restart be executed again from its start once resumed from the checkpoint.
+	 * By default it is reported to the base as failed instead, since the arm may have stopped halfway through the
+	 * manipulation.
+	 * @param resumeInterruptedCommand - true to execute the interrupted command again.
+	 */
+	public void setResumeInterruptedCommand(boolean resumeInterruptedCommand)
+	{
+		this.resumeInterruptedCommand = resumeInterruptedCommand;
 	}
 
 	@Override
@@ -38,14 +106,28 @@ public class RosExecutionProcess extends StateMachineProcess
 	{
 		return currentState.name();
 	}
+	
+	@Override
+	public int getCurrentStateOrdinal()
+	{
+		return currentState.ordinal();
+	}
 
 	@Override
 	protected void executeStateProcess() 
 	{
-		if (currentState == RosExecutionState.EXECUTING)
+		try
+		{
+			stateMachine.enter(currentState);
+		}
+		catch (RuntimeException e)
 		{
-			LBRTask task = new LBRTask(currentCmd);
-			taskMonitor.assignTask(task);
+			throw e;
+		}
+		catch (Exception e)
+		{
+			logger.error(String.format("An %s error occured in the ROS execution process when state executing", e.getClass().getSimpleName()));
+			logger.error(e.toString());
 		}
 	}
 
@@ -53,26 +135,23 @@ public class RosExecutionProcess extends StateMachineProcess
 	protected boolean executeStateTransitions() 
 	{
 		boolean transitionOccured = false;
-		if (currentState ==  RosExecutionState.WAITING_ON_CMD)
+		try
 		{
-			kmriiwa_chemist_msgs.LBRCommand taskMsg = lbrNode.getLBRCommandfromQueue();
-			if (taskMsg != null)
+			RosExecutionState nextState = stateMachine.step(currentState);
+			if (nextState != null)
 			{
-				currentCmd = taskMsg;
-				lbrNode.removeLBRCommandFromQueue(taskMsg);
-				robotOpState.setCurrentState(OpState.EXECUTING_ROS_TASK);
-				currentState = RosExecutionState.EXECUTING;
+				currentState = nextState;
 				transitionOccured = true;
 			}
 		}
-		else if (currentState ==  RosExecutionState.EXECUTING)
+		catch (RuntimeException e)
 		{
-			if (taskMonitor.isTaskFinished())
-			{
-				robotOpState.setCurrentState(OpState.IDLE);
-				currentState = RosExecutionState.WAITING_ON_CMD;
-				transitionOccured = true;
-			}
+			throw e;
+		}
+		catch (Exception e)
+		{
+			logger.error(String.format("An %s error occured in the ROS execution process while state transitioning", e.getClass().getSimpleName()));
+			logger.error(e.toString());
 		}
 		return transitionOccured;
 	}
@@ -85,5 +164,49 @@ public class RosExecutionProcess extends StateMachineProcess
 			updateStateMachine();
 		}
 	}
+	
+	@Override
+	protected ProcessCheckpoint.Record createCheckpointRecord()
+	{
+		LBRTask task = currentState == RosExecutionState.EXECUTING ? taskMonitor.getAssignedTask() : null;
+		return new ProcessCheckpoint.Record(currentState.name(), null, task);
+	}
+	
+	@Override
+	protected void resumeFrom(ProcessCheckpoint.Record record)
+	{
+		RosExecutionState state = RosExecutionState.valueOf(record.getState());
+		if (state == RosExecutionState.EXECUTING && record.getTask() != null)
+		{
+			if (resumeInterruptedCommand)
+			{
+				// the interrupted command is executed again under its sequence number so the base gets its status
+				logger.warn(String.format("Executing again the interrupted command %s", record.getTask()));
+				currentState = state;
+				robotOpState.setCurrentState(OpState.EXECUTING_ROS_TASK, this);
+				taskMonitor.assignTask(new LBRTask(record.getTask()));
+			}
+			else
+			{
+				// the base decides what to do with the command, the robot is left idle waiting for the next one
+				logger.warn(String.format("Reporting the interrupted command %s as failed", record.getTask()));
+				LBRTask task = new LBRTask(record.getTask());
+				task.setStatus(kmriiwa_chemist_msgs.TaskStatus.ERROR);
+				lbrNode.publishTaskStatus(task);
+			}
+		}
+	}
+	
+	@Override
+	protected EnumSet<ProcessEvent> getWakeEvents()
+	{
+		return EnumSet.of(ProcessEvent.ROS_COMMAND, ProcessEvent.TASK_STATUS, ProcessEvent.OP_STATE);
+	}
+	
+	@Override
+	public StateMachineDefinition<?> getStateMachineDefinition()
+	{
+		return stateMachine.getDefinition();
+	}
 
 }
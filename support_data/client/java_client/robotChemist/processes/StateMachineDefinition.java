@@ -0,0 +1,213 @@
+package robotChemist.processes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/***
+ * A declarative definition of the states of a {@link StateMachineProcess}: for every state the transitions leaving
+ * it, each with a guard deciding whether it can be taken and an optional effect run when it is, and the action run
+ * when a state is entered. Transitions leaving the same state are tried in the order they were defined. Once complete
+ * the definition is compiled into a {@link CompiledStateMachine} that finds the transitions of a state by its ordinal,
+ * so the cost of a step does not depend on the number of states:
+ * <pre>
+ * stateMachine = new StateMachineDefinition&lt;ChargingState&gt;(ChargingState.class)
+ *     .transition(CHECKING_FOR_CHARGING, PREP_CHARGING, chargingNeeded, setChargingOpState)
+ *     .onEnter(PREP_CHARGING, sendGotoCharge)
+ *     .compile();
+ * </pre>
+ * @author stoic-roboticist
+ *
+ * @param <S> the enum of the states.
+ */
+public class StateMachineDefinition<S extends Enum<S>>
+{
+	/***
+	 * The condition for a transition to be taken.
+	 */
+	public interface Guard
+	{
+		boolean test();
+	}
+
+	/***
+	 * The effect of a transition or the action run when a state is entered.
+	 */
+	public interface Action
+	{
+		void run() throws Exception;
+	}
+
+	/***
+	 * A transition between two states.
+	 */
+	public static final class Transition<S extends Enum<S>>
+	{
+		private final S from;
+		private final S to;
+		private final Guard guard;
+		private final Action effect;
+
+		private Transition(S from, S to, Guard guard, Action effect)
+		{
+			this.from = from;
+			this.to = to;
+			this.guard = guard;
+			this.effect = effect;
+		}
+
+		public S getFrom()
+		{
+			return from;
+		}
+
+		public S getTo()
+		{
+			return to;
+		}
+
+		Guard getGuard()
+		{
+			return guard;
+		}
+
+		Action getEffect()
+		{
+			return effect;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("%s -> %s", from, to);
+		}
+	}
+
+	private final Class<S> stateType;
+	private Map<S, List<Transition<S>>> transitions;
+	private Map<S, Action> entryActions;
+
+	/***
+	 * Constructs an empty definition.
+	 * @param stateType - the enum class of the states.
+	 */
+	public StateMachineDefinition(Class<S> stateType)
+	{
+		this.stateType = stateType;
+		this.transitions = new EnumMap<S, List<Transition<S>>>(stateType);
+		this.entryActions = new EnumMap<S, Action>(stateType);
+	}
+
+	/***
+	 * Adds a transition with no effect.
+	 * @param from - the state the transition leaves.
+	 * @param to - the state the transition enters.
+	 * @param guard - the condition for the transition to be taken.
+	 * @return this definition.
+	 */
+	public StateMachineDefinition<S> transition(S from, S to, Guard guard)
+	{
+		return transition(from, to, guard, null);
+	}
+
+	/***
+	 * Adds a transition.
+	 * @param from - the state the transition leaves.
+	 * @param to - the state the transition enters.
+	 * @param guard - the condition for the transition to be taken.
+	 * @param effect - run when the transition is taken, before the action of the entered state, or null.
+	 * @return this definition.
+	 */
+	public StateMachineDefinition<S> transition(S from, S to, Guard guard, Action effect)
+	{
+		List<Transition<S>> leaving = transitions.get(from);
+		if (leaving == null)
+		{
+			leaving = new ArrayList<Transition<S>>();
+			transitions.put(from, leaving);
+		}
+		leaving.add(new Transition<S>(from, to, guard, effect));
+		return this;
+	}
+
+	/***
+	 * Sets the action run whenever the given state is entered.
+	 * @param state - the entered state.
+	 * @param action - the action to be run.
+	 * @return this definition.
+	 */
+	public StateMachineDefinition<S> onEnter(S state, Action action)
+	{
+		entryActions.put(state, action);
+		return this;
+	}
+
+	/***
+	 * 
+	 * @return the enum class of the states.
+	 */
+	public Class<S> getStateType()
+	{
+		return stateType;
+	}
+	
+	/***
+	 * Gets the transitions leaving the given state in the order they are tried.
+	 * @param from - the state.
+	 * @return an unmodifiable list of transitions, empty if the state has none.
+	 */
+	public List<Transition<S>> getTransitions(S from)
+	{
+		List<Transition<S>> leaving = transitions.get(from);
+		return leaving != null ? Collections.unmodifiableList(leaving) : Collections.<Transition<S>>emptyList();
+	}
+
+	/***
+	 *
+	 * @param state - the state.
+	 * @return true if an action is run when the given state is entered.
+	 */
+	public boolean hasEntryAction(S state)
+	{
+		return entryActions.containsKey(state);
+	}
+
+	/***
+	 * Compiles the definition into arrays indexed by the state ordinals. Later changes to the definition do not
+	 * affect the compiled state machine.
+	 * @return the compiled state machine.
+	 */
+	public CompiledStateMachine<S> compile()
+	{
+		S[] states = stateType.getEnumConstants();
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		Transition<S>[][] compiledTransitions = new Transition[states.length][];
+		Action[] compiledEntryActions = new Action[states.length];
+		for (S state : states)
+		{
+			List<Transition<S>> leaving = getTransitions(state);
+			@SuppressWarnings({"unchecked", "rawtypes"})
+			Transition<S>[] compiled = leaving.toArray(new Transition[leaving.size()]);
+			compiledTransitions[state.ordinal()] = compiled;
+			compiledEntryActions[state.ordinal()] = entryActions.get(state);
+		}
+		return new CompiledStateMachine<S>(this, compiledTransitions, compiledEntryActions);
+	}
+
+	/***
+	 * Lists the states with their entry action and transitions, one state per line.
+	 */
+	@Override
+	public String toString()
+	{
+		StringBuilder description = new StringBuilder(stateType.getSimpleName());
+		for (S state : stateType.getEnumConstants())
+		{
+			description.append(String.format("%n  %s%s: %s", state, hasEntryAction(state) ? " (entry action)" : "",
+					getTransitions(state)));
+		}
+		return description.toString();
+	}
+}
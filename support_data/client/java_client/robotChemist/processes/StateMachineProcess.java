@@ -1,8 +1,14 @@
 package robotChemist.processes;
 
+import java.io.IOException;
+import java.util.EnumSet;
+
 import com.kuka.task.ITaskLogger;
 
+import robotChemist.net.JobChannel;
+import robotChemist.net.JobFuture;
 import robotChemist.utility.LBRTaskMonitor;
+import robotChemist.utility.ProcessTimer;
 import robotChemist.utility.RobotOpState;
 
 public abstract class StateMachineProcess 
@@ -10,6 +16,15 @@ public abstract class StateMachineProcess
 	protected LBRTaskMonitor taskMonitor;
 	protected RobotOpState robotOpState;
 	protected ITaskLogger logger;
+	private ProcessEventDispatcher eventDispatcher;
+	private long transitionCount = 0;
+	private ProcessCheckpoint checkpoint;
+	private ProcessCheckpoint.Record resumeRecord;
+	private TransitionTrace transitionTrace;
+	private int traceId;
+	private boolean transitionLogging = true;
+	// set by the dispatcher while the process runs
+	private ProcessEvent wakeCause;
 
 	public StateMachineProcess(LBRTaskMonitor taskMonitor, RobotOpState robotOpState, ITaskLogger logger)
 	{
@@ -19,20 +34,265 @@ public abstract class StateMachineProcess
 	}
 	
 	public abstract String getCurrentState();
+	public abstract int getCurrentStateOrdinal();
 	protected abstract void executeStateProcess();
 	protected abstract boolean executeStateTransitions();
 	
 	protected void updateStateMachine()
 	{
+		if (resumeRecord != null)
+		{
+			resume();
+			return;
+		}
 		String oldState = getCurrentState();
+		int oldOrdinal = getCurrentStateOrdinal();
 		boolean transitionOccured = executeStateTransitions();
 		if (transitionOccured)
 		{
-			String newState = getCurrentState();
-			logger.info(String.format("state_changed: %s -> %s", oldState, newState));
+			transitionCount++;
+			if (transitionTrace != null)
+			{
+				transitionTrace.record(traceId, oldOrdinal, getCurrentStateOrdinal(), wakeCause);
+			}
+			if (transitionLogging)
+			{
+				String newState = getCurrentState();
+				logger.info(String.format("state_changed: %s -> %s", oldState, newState));
+			}
 			executeStateProcess();
+			saveCheckpoint();
 		}
 	}
 	
 	public abstract void execute();
+	
+	/***
+	 * Gets the definition of the states, guards, actions and transitions of this process, for inspection.
+	 * @return the state machine definition.
+	 */
+	public abstract StateMachineDefinition<?> getStateMachineDefinition();
+	
+	/***
+	 * Gets the events that wake this process when it is run by a {@link ProcessEventDispatcher}. A process must
+	 * declare every event that can make one of its transitions possible. By default it is woken by all of them.
+	 * @return the set of wake events.
+	 */
+	protected EnumSet<ProcessEvent> getWakeEvents()
+	{
+		return EnumSet.allOf(ProcessEvent.class);
+	}
+	
+	/***
+	 * 
+	 * @return the number of transitions made since the process was created.
+	 */
+	public long getTransitionCount()
+	{
+		return transitionCount;
+	}
+	
+	/***
+	 * Records every transition of this process in the given trace.
+	 * @param transitionTrace - the trace shared by the processes.
+	 */
+	public void setTransitionTrace(TransitionTrace transitionTrace)
+	{
+		this.traceId = transitionTrace.register(this);
+		this.transitionTrace = transitionTrace;
+	}
+	
+	/***
+	 * Enables logging every transition, which is the default. Once the transitions are recorded in a
+	 * {@link TransitionTrace} the logging can be disabled to avoid formatting a message on every transition.
+	 * @param transitionLogging - true to log the transitions.
+	 */
+	public void setTransitionLogging(boolean transitionLogging)
+	{
+		this.transitionLogging = transitionLogging;
+	}
+	
+	/***
+	 * Makes this process record its state in the given checkpoint after every transition and, if the checkpoint
+	 * holds a record of this process left in another state than the current one, resume from that record the next
+	 * time it is run. Only the processes overriding {@link #createCheckpointRecord()} are checkpointed.
+	 * @param checkpoint - the checkpoint shared by the processes.
+	 */
+	public void setCheckpoint(ProcessCheckpoint checkpoint)
+	{
+		this.checkpoint = checkpoint;
+		ProcessCheckpoint.Record record = checkpoint.get(getCheckpointName());
+		if (record != null && !record.getState().equals(getCurrentState()))
+		{
+			resumeRecord = record;
+		}
+	}
+	
+	/***
+	 * Creates the record of the current state of this process saved in the checkpoint after every transition.
+	 * @return the record, or null if this process is not checkpointed.
+	 */
+	protected ProcessCheckpoint.Record createCheckpointRecord()
+	{
+		return null;
+	}
+	
+	/***
+	 * Restores the state of this process from its checkpointed record, including the operational state it owns in
+	 * that state and the request or task it was waiting for. Called on the first run after
+	 * {@link #setCheckpoint(ProcessCheckpoint)}, in place of a transition.
+	 * @param record - the record of this process.
+	 * @throws Exception if the process could not resume.
+	 */
+	protected void resumeFrom(ProcessCheckpoint.Record record) throws Exception
+	{
+	}
+	
+	/***
+	 * Resumes waiting for the reply of the request recorded in the given record. The future recovered from the job
+	 * journal is taken if there is one, otherwise the request is sent again.
+	 * @param channel - the channel the request was sent on.
+	 * @param record - the record of a process awaiting a reply.
+	 * @return the future of the request.
+	 * @throws IOException if the request could not be sent again.
+	 */
+	protected JobFuture resumeRequest(JobChannel channel, ProcessCheckpoint.Record record) throws IOException
+	{
+		JobFuture future = checkpoint.takeRecoveredRequest(record);
+		if (future == null)
+		{
+			logger.info(String.format("sending again checkpointed request: %s", record.getPendingRequest()));
+			future = channel.sendRequest(record.getPendingRequest(), record.getExpectedReply(), 0);
+		}
+		return wakeOnReply(future);
+	}
+	
+	private String getCheckpointName()
+	{
+		return getClass().getSimpleName();
+	}
+	
+	private void resume()
+	{
+		ProcessCheckpoint.Record record = resumeRecord;
+		resumeRecord = null;
+		String oldState = getCurrentState();
+		int oldOrdinal = getCurrentStateOrdinal();
+		try
+		{
+			resumeFrom(record);
+		}
+		catch (IllegalArgumentException e)
+		{
+			logger.warn(String.format("%s cannot resume from checkpointed state %s, starting over", getCheckpointName(), record));
+			return;
+		}
+		catch (RuntimeException e)
+		{
+			throw e;
+		}
+		catch (Exception e)
+		{
+			logger.error(String.format("An %s error occured in %s when resuming from the checkpoint", e.getClass().getSimpleName(), getCheckpointName()));
+			logger.error(e.toString());
+		}
+		transitionCount++;
+		if (transitionTrace != null)
+		{
+			transitionTrace.recordResume(traceId, oldOrdinal, getCurrentStateOrdinal());
+		}
+		logger.info(String.format("state_resumed: %s -> %s", oldState, getCurrentState()));
+		saveCheckpoint();
+	}
+	
+	private void saveCheckpoint()
+	{
+		if (checkpoint == null)
+		{
+			return;
+		}
+		ProcessCheckpoint.Record record = createCheckpointRecord();
+		if (record == null)
+		{
+			return;
+		}
+		try
+		{
+			checkpoint.save(getCheckpointName(), record);
+		}
+		catch (IOException e)
+		{
+			logger.error(String.format("%s could not be checkpointed: %s", getCheckpointName(), e));
+		}
+	}
+	
+	void setEventDispatcher(ProcessEventDispatcher eventDispatcher)
+	{
+		this.eventDispatcher = eventDispatcher;
+	}
+	
+	void setWakeCause(ProcessEvent wakeCause)
+	{
+		this.wakeCause = wakeCause;
+	}
+	
+	/***
+	 * Requests a {@link ProcessEvent#TIMER} wake up after the given delay. Does nothing if the process is not run by
+	 * a {@link ProcessEventDispatcher}, in which case it is polled anyway.
+	 * @param delayMillis - the delay in milliseconds.
+	 */
+	protected void wakeAfter(long delayMillis)
+	{
+		if (eventDispatcher != null)
+		{
+			eventDispatcher.wakeAfter(this, delayMillis);
+		}
+	}
+	
+	/***
+	 * Wakes this process with a {@link ProcessEvent#TIMER} once the given timeout expired or was cancelled.
+	 * @param timeout - a timeout the process waits for.
+	 * @return the same timeout.
+	 */
+	protected ProcessTimer.Timeout wakeOnExpiry(ProcessTimer.Timeout timeout)
+	{
+		final ProcessEventDispatcher dispatcher = eventDispatcher;
+		if (dispatcher != null)
+		{
+			final StateMachineProcess process = this;
+			timeout.addListener(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					dispatcher.wake(process, ProcessEvent.TIMER);
+				}
+			});
+		}
+		return timeout;
+	}
+	
+	/***
+	 * Wakes this process with a {@link ProcessEvent#JOB_MESSAGE} once the given request is replied, failed or
+	 * cancelled.
+	 * @param future - the future of a request sent by this process.
+	 * @return the same future.
+	 */
+	protected JobFuture wakeOnReply(JobFuture future)
+	{
+		final ProcessEventDispatcher dispatcher = eventDispatcher;
+		if (dispatcher != null && getWakeEvents().contains(ProcessEvent.JOB_MESSAGE))
+		{
+			final StateMachineProcess process = this;
+			future.addListener(new JobFuture.Listener()
+			{
+				@Override
+				public void onComplete(JobFuture future)
+				{
+					dispatcher.wake(process, ProcessEvent.JOB_MESSAGE);
+				}
+			});
+		}
+		return future;
+	}
 }
@@ -1,10 +1,12 @@
 package robotChemist.processes;
 
-import java.io.IOException;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.EnumSet;
 
-import robotChemist.net.AsyncJobClient;
+import robotChemist.net.JobChannel;
+import robotChemist.net.JobFuture;
 import robotChemist.net.JobMsg;
+import robotChemist.processes.StateMachineDefinition.Action;
+import robotChemist.processes.StateMachineDefinition.Guard;
 import robotChemist.utility.AppStateMonitor;
 import robotChemist.utility.LBRTask;
 import robotChemist.utility.LBRTaskExecutor;
@@ -36,12 +38,14 @@ public class TaskExecutionProcess extends StateMachineProcess
 	
 	private LBRTaskExecutor taskExecutor;
 	private AppStateMonitor appStateMonitor;
-	private AsyncJobClient kmrClient;
+	private JobChannel kmrClient;
 	private TaskExecutionState currentState;
 	private boolean execSuccessful;
-	private OpState previousOpState;
+	private RobotOpState.Snapshot previousOpState;
+	private JobFuture pendingReply;
+	private CompiledStateMachine<TaskExecutionState> stateMachine;
 
-	public TaskExecutionProcess(LBRTaskExecutor taskExecutor, AsyncJobClient kmrClient, AppStateMonitor appStateMonitor, LBRTaskMonitor taskMonitor,RobotOpState robotOpState, ITaskLogger logger) 
+	public TaskExecutionProcess(LBRTaskExecutor taskExecutor, JobChannel kmrClient, AppStateMonitor appStateMonitor, LBRTaskMonitor taskMonitor,RobotOpState robotOpState, ITaskLogger logger) 
 	{
 		super(taskMonitor, robotOpState, logger);
 		this.taskExecutor = taskExecutor;
@@ -49,6 +53,114 @@ public class TaskExecutionProcess extends StateMachineProcess
 		this.kmrClient = kmrClient;
 		this.appStateMonitor = appStateMonitor;
 		this.currentState = TaskExecutionState.CHECKING_FOR_TASK;
+		this.stateMachine = defineStateMachine().compile();
+	}
+	
+	private StateMachineDefinition<TaskExecutionState> defineStateMachine()
+	{
+		return new StateMachineDefinition<TaskExecutionState>(TaskExecutionState.class)
+			.transition(TaskExecutionState.CHECKING_FOR_TASK, TaskExecutionState.CHECKING_APP_STATE, new Guard()
+			{
+				@Override
+				public boolean test()
+				{
+					if (!taskMonitor.isTaskAssigned() || taskMonitor.isTaskFinished())
+					{
+						return false;
+					}
+					// the task is executed on behalf of the current owner, the robot is handed back to it afterwards
+					previousOpState = robotOpState.getSnapshot();
+					return robotOpState.compareAndSet(previousOpState, OpState.EXECUTING, TaskExecutionProcess.this);
+				}
+			}, new Action()
+			{
+				@Override
+				public void run()
+				{
+					execSuccessful = false;
+				}
+			})
+			.transition(TaskExecutionState.CHECKING_APP_STATE, TaskExecutionState.EXECUTING, new Guard()
+			{
+				@Override
+				public boolean test()
+				{
+					return appStateMonitor.getAppState() == RoboticsAPIApplicationState.RESUMING;
+				}
+			})
+			.transition(TaskExecutionState.CHECKING_APP_STATE, TaskExecutionState.REQUEST_APP_RESUME, new Guard()
+			{
+				@Override
+				public boolean test()
+				{
+					return appStateMonitor.getAppState() == RoboticsAPIApplicationState.MOTIONPAUSING;
+				}
+			})
+			.onEnter(TaskExecutionState.REQUEST_APP_RESUME, new Action()
+			{
+				@Override
+				public void run() throws Exception
+				{
+					pendingReply = wakeOnReply(kmrClient.sendRequest(new JobMsg("need_to_resume",0), new JobMsg("app_resumed", 0), 0));
+				}
+			})
+			.transition(TaskExecutionState.REQUEST_APP_RESUME, TaskExecutionState.EXECUTING, new Guard()
+			{
+				@Override
+				public boolean test()
+				{
+					return pendingReply != null && pendingReply.isReplied();
+				}
+			}, new Action()
+			{
+				@Override
+				public void run()
+				{
+					pendingReply = null;
+				}
+			})
+			.onEnter(TaskExecutionState.EXECUTING, new Action()
+			{
+				@Override
+				public void run()
+				{
+					taskMonitor.setTaskToExecuting();
+					LBRTask task = taskMonitor.getAssignedTask();
+					execSuccessful = taskExecutor.execute(task);
+				}
+			})
+			.transition(TaskExecutionState.EXECUTING, TaskExecutionState.CHECKING_FOR_TASK, new Guard()
+			{
+				@Override
+				public boolean test()
+				{
+					return execSuccessful;
+				}
+			}, new Action()
+			{
+				@Override
+				public void run()
+				{
+					// handed back first, so the owner finds the robot back once it sees the task finished
+					robotOpState.restore(TaskExecutionProcess.this, previousOpState);
+					taskMonitor.setTaskToFinished();
+				}
+			})
+			.transition(TaskExecutionState.EXECUTING, TaskExecutionState.ERROR, new Guard()
+			{
+				@Override
+				public boolean test()
+				{
+					return !execSuccessful;
+				}
+			}, new Action()
+			{
+				@Override
+				public void run()
+				{
+					taskMonitor.setTaskToError();
+				}
+			});
 	}
 
 	@Override
@@ -56,26 +168,27 @@ public class TaskExecutionProcess extends StateMachineProcess
 	{
 		return currentState.name();
 	}
+	
+	@Override
+	public int getCurrentStateOrdinal()
+	{
+		return currentState.ordinal();
+	}
 
 	@Override
 	protected void executeStateProcess() 
 	{
 		try
 		{
-			if (currentState == TaskExecutionState.REQUEST_APP_RESUME)
-			{
-				kmrClient.sendMessage(new JobMsg("need_to_resume",0));
-			}
-			else if (currentState == TaskExecutionState.EXECUTING)
-			{
-				taskMonitor.setTaskToExecuting();
-				LBRTask task = taskMonitor.getAssignedTask();
-				execSuccessful = taskExecutor.execute(task);
-			}
+			stateMachine.enter(currentState);
 		}
-		catch (IOException e)
+		catch (RuntimeException e)
+		{
+			throw e;
+		}
+		catch (Exception e)
 		{
-			logger.error("An IOException error occured in the manipulation process when state executing");
+			logger.error(String.format("An %s error occured in the manipulation process when state executing", e.getClass().getSimpleName()));
 			logger.error(e.toString());
 		}
 	}
@@ -86,59 +199,20 @@ public class TaskExecutionProcess extends StateMachineProcess
 		boolean transitionOccured = false;
 		try
 		{
-			if (currentState == TaskExecutionState.CHECKING_FOR_TASK)
-			{
-				if (taskMonitor.isTaskAssigned() && !taskMonitor.isTaskFinished())
-				{
-					execSuccessful = false;
-					previousOpState = robotOpState.getCurrentState();
-					robotOpState.setCurrentState(OpState.EXECUTING);
-					currentState = TaskExecutionState.CHECKING_APP_STATE;
-					transitionOccured = true;
-				}
-			}
-			else if (currentState == TaskExecutionState.CHECKING_APP_STATE)
-			{
-				if (appStateMonitor.getAppState() == RoboticsAPIApplicationState.RESUMING)
-				{
-					currentState = TaskExecutionState.EXECUTING;
-					transitionOccured = true;
-				}
-				else if (appStateMonitor.getAppState() == RoboticsAPIApplicationState.MOTIONPAUSING)
-				{
-					currentState = TaskExecutionState.REQUEST_APP_RESUME;
-					transitionOccured = true;
-				}
-			}
-			else if (currentState == TaskExecutionState.REQUEST_APP_RESUME)
-			{
-				LinkedBlockingQueue<JobMsg> msgQueue = kmrClient.getMessageQueue();
-				if (!msgQueue.isEmpty() && msgQueue.remove(new JobMsg("app_resumed", 0)))
-				{
-					currentState = TaskExecutionState.EXECUTING;
-					transitionOccured = true;
-				}
-			}
-			else if (currentState == TaskExecutionState.EXECUTING)
+			TaskExecutionState nextState = stateMachine.step(currentState);
+			if (nextState != null)
 			{
-				if (execSuccessful)
-				{
-					taskMonitor.setTaskToFinished();
-					robotOpState.setCurrentState(previousOpState);
-					currentState = TaskExecutionState.CHECKING_FOR_TASK;
-					transitionOccured = true;
-				}
-				else
-				{
-					taskMonitor.setTaskToError();
-					currentState = TaskExecutionState.ERROR;
-					transitionOccured = true;
-				}
+				currentState = nextState;
+				transitionOccured = true;
 			}
 		}
+		catch (RuntimeException e)
+		{
+			throw e;
+		}
 		catch (Exception e)
 		{
-			logger.error("An Exception error occured in the manipulation process when executing");
+			logger.error(String.format("An %s error occured in the manipulation process while state transitioning", e.getClass().getSimpleName()));
 			logger.error(e.toString());
 		}
 		return transitionOccured;
@@ -149,5 +223,17 @@ public class TaskExecutionProcess extends StateMachineProcess
 	{
 		updateStateMachine();
 	}
+	
+	@Override
+	protected EnumSet<ProcessEvent> getWakeEvents()
+	{
+		return EnumSet.of(ProcessEvent.TASK_STATUS, ProcessEvent.APP_STATE, ProcessEvent.JOB_MESSAGE, ProcessEvent.OP_STATE);
+	}
+	
+	@Override
+	public StateMachineDefinition<?> getStateMachineDefinition()
+	{
+		return stateMachine.getDefinition();
+	}
 
 }
@@ -0,0 +1,351 @@
+package robotChemist.processes;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.kuka.task.ITaskLogger;
+
+import robotChemist.net.JobChannel;
+import robotChemist.net.JobDispatcher;
+import robotChemist.net.JobMsg;
+import robotChemist.net.JobPayload;
+import robotChemist.utility.ProcessClock;
+
+/***
+ * A preallocated ring buffer keeping the last transitions of the {@link StateMachineProcess} instances for
+ * post-mortems, see {@link StateMachineProcess#setTransitionTrace(TransitionTrace)}. Recording a transition packs the
+ * process id, the ordinals of both states and the cause of the transition into a single word written next to its
+ * timestamp, so it neither allocates nor locks and can stay enabled on the control path. Processes running on
+ * different threads may record concurrently; once the buffer is full the oldest transitions are overwritten.<br>
+ * <br>
+ * The trace is read by {@link #snapshot(int)}, which skips the records overwritten while being read, and can be
+ * dumped on demand over the job channel with {@link #serve(JobChannel)}.
+ * @author stoic-roboticist
+ *
+ */
+public class TransitionTrace
+{
+	/***
+	 * Job info of the requests for a dump of the trace. The job code of the request is the maximal number of
+	 * transitions to be dumped, or 0 for all of them.
+	 */
+	public static final String DUMP_REQUEST = "dump_transitions";
+	/***
+	 * Job info of the messages carrying the dumped transitions, one line per transition in the string field
+	 * {@link #KEY_LINES}. They are sent before the reply to the dump request, whose job code is 1 and whose int field
+	 * {@link #KEY_COUNT} is the number of dumped transitions.
+	 */
+	public static final String DUMP_CHUNK = "transition_trace";
+	public static final int KEY_LINES = 1;
+	public static final int KEY_COUNT = 2;
+
+	/***
+	 * Default number of transitions kept.
+	 */
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	private static final int DUMP_CHUNK_SIZE = 256;
+	private static final int SLOT_SIZE = 3;
+	private static final long WRITING = -1;
+	// causes that are not wake events
+	private static final int CAUSE_POLLED = 0;
+	private static final int CAUSE_RESUMED = 1;
+	private static final int CAUSE_EVENTS = 2;
+
+	/***
+	 * A recorded transition.
+	 */
+	public static final class Entry
+	{
+		private final long seq;
+		private final long timestamp;
+		private final StateMachineProcess process;
+		private final String from;
+		private final String to;
+		private final String cause;
+
+		private Entry(long seq, long timestamp, StateMachineProcess process, String from, String to, String cause)
+		{
+			this.seq = seq;
+			this.timestamp = timestamp;
+			this.process = process;
+			this.from = from;
+			this.to = to;
+			this.cause = cause;
+		}
+
+		public long getSeq()
+		{
+			return seq;
+		}
+
+		/***
+		 *
+		 * @return the time of the transition on the nanosecond clock of the trace.
+		 */
+		public long getTimestampNanos()
+		{
+			return timestamp;
+		}
+
+		public StateMachineProcess getProcess()
+		{
+			return process;
+		}
+
+		public String getFromState()
+		{
+			return from;
+		}
+
+		public String getToState()
+		{
+			return to;
+		}
+
+		/***
+		 *
+		 * @return the wake event that led to the transition, "polled" if the process was run without one or "resumed"
+		 * if it resumed from a checkpoint.
+		 */
+		public String getCause()
+		{
+			return cause;
+		}
+	}
+
+	private final int mask;
+	// slot i holds the sequence number of its record, the timestamp and the packed transition
+	private final AtomicLongArray slots;
+	private final AtomicLong cursor = new AtomicLong();
+	private final long originNanos;
+	private final long originMillis;
+	private final ProcessClock clock;
+	private CopyOnWriteArrayList<StateMachineProcess> processes;
+
+	private ITaskLogger logger;
+
+	/***
+	 * Constructs a trace keeping the last {@link #DEFAULT_CAPACITY} transitions.
+	 * @param logger - RoboticsAPI logging interface, used to report failed dumps.
+	 */
+	public TransitionTrace(ITaskLogger logger)
+	{
+		this(DEFAULT_CAPACITY, logger);
+	}
+
+	/***
+	 * Constructs a trace.
+	 * @param capacity - the number of transitions kept, rounded up to a power of two.
+	 * @param logger - RoboticsAPI logging interface, used to report failed dumps.
+	 */
+	public TransitionTrace(int capacity, ITaskLogger logger)
+	{
+		this(capacity, ProcessClock.SYSTEM, logger);
+	}
+
+	/***
+	 * Constructs a trace timestamping the transitions on the given clock, e.g. a simulated clock.
+	 * @param capacity - the number of transitions kept, rounded up to a power of two.
+	 * @param clock - the clock the transitions are timestamped on.
+	 * @param logger - RoboticsAPI logging interface, used to report failed dumps.
+	 */
+	public TransitionTrace(int capacity, ProcessClock clock, ITaskLogger logger)
+	{
+		if (capacity <= 0)
+		{
+			throw new IllegalArgumentException(String.format("invalid transition trace capacity: %d", capacity));
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity)
+		{
+			size <<= 1;
+		}
+		this.mask = size - 1;
+		this.slots = new AtomicLongArray(size * SLOT_SIZE);
+		for (int i = 0; i < size; i++)
+		{
+			slots.set(i * SLOT_SIZE, WRITING);
+		}
+		this.clock = clock;
+		this.originNanos = clock.nanoTime();
+		this.originMillis = clock.currentTimeMillis();
+		this.processes = new CopyOnWriteArrayList<StateMachineProcess>();
+		this.logger = logger;
+	}
+
+	/***
+	 *
+	 * @return the number of transitions kept.
+	 */
+	public int getCapacity()
+	{
+		return mask + 1;
+	}
+
+	/***
+	 *
+	 * @return the number of transitions recorded since the trace was created, including the overwritten ones.
+	 */
+	public long getRecordedCount()
+	{
+		return cursor.get();
+	}
+
+	/***
+	 * Reads the last recorded transitions, skipping the ones overwritten meanwhile.
+	 * @param maxCount - the maximal number of transitions, or 0 for all the kept ones.
+	 * @return the transitions, the oldest first.
+	 */
+	public List<Entry> snapshot(int maxCount)
+	{
+		long end = cursor.get();
+		long count = Math.min(end, getCapacity());
+		if (maxCount > 0)
+		{
+			count = Math.min(count, maxCount);
+		}
+		List<Entry> entries = new ArrayList<Entry>((int) count);
+		for (long seq = end - count; seq < end; seq++)
+		{
+			int base = (int) (seq & mask) * SLOT_SIZE;
+			if (slots.get(base) != seq)
+			{
+				continue;
+			}
+			long timestamp = slots.get(base + 1);
+			long packed = slots.get(base + 2);
+			if (slots.get(base) != seq)
+			{
+				continue;
+			}
+			entries.add(unpack(seq, timestamp, packed));
+		}
+		return entries;
+	}
+
+	/***
+	 * Answers the {@link #DUMP_REQUEST} messages received on the given channel with the last recorded transitions.
+	 * @param channel - the channel to the peer requesting the dumps.
+	 * @return the subscription, to be cancelled to stop answering.
+	 */
+	public JobDispatcher.Subscription serve(final JobChannel channel)
+	{
+		return channel.getDispatcher().subscribe(DUMP_REQUEST, new JobDispatcher.Listener()
+		{
+			@Override
+			public void onMessage(JobMsg msg)
+			{
+				try
+				{
+					dump(channel, msg);
+				}
+				catch (IOException e)
+				{
+					logger.error(String.format("the transition trace could not be dumped: %s", e));
+				}
+			}
+		});
+	}
+
+	/***
+	 * Formats a transition as one line with its wall clock time.
+	 * @param entry - the transition.
+	 * @return the formatted transition.
+	 */
+	public String format(Entry entry)
+	{
+		long millis = originMillis + TimeUnit.NANOSECONDS.toMillis(entry.timestamp - originNanos);
+		return String.format("%d %s %s: %s -> %s (%s)", entry.seq,
+				new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date(millis)),
+				entry.process.getClass().getSimpleName(), entry.from, entry.to, entry.cause);
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder dump = new StringBuilder();
+		for (Entry entry : snapshot(0))
+		{
+			dump.append(format(entry)).append(String.format("%n"));
+		}
+		return dump.toString();
+	}
+
+	int register(StateMachineProcess process)
+	{
+		processes.addIfAbsent(process);
+		return processes.indexOf(process);
+	}
+
+	void record(int processId, int from, int to, ProcessEvent cause)
+	{
+		write(processId, from, to, cause != null ? CAUSE_EVENTS + cause.ordinal() : CAUSE_POLLED);
+	}
+
+	void recordResume(int processId, int from, int to)
+	{
+		write(processId, from, to, CAUSE_RESUMED);
+	}
+
+	private void write(int processId, int from, int to, int cause)
+	{
+		long seq = cursor.getAndIncrement();
+		int base = (int) (seq & mask) * SLOT_SIZE;
+		// readers skip the slot while it is written
+		slots.set(base, WRITING);
+		slots.set(base + 1, clock.nanoTime());
+		slots.set(base + 2, ((long) (processId & 0xFFFF) << 48) | ((long) (from & 0xFFFF) << 32)
+				| ((long) (to & 0xFFFF) << 16) | (cause & 0xFFFF));
+		slots.set(base, seq);
+	}
+
+	private Entry unpack(long seq, long timestamp, long packed)
+	{
+		StateMachineProcess process = processes.get((int) (packed >>> 48));
+		Enum<?>[] states = process.getStateMachineDefinition().getStateType().getEnumConstants();
+		int cause = (int) (packed & 0xFFFF);
+		String causeName;
+		if (cause == CAUSE_POLLED)
+		{
+			causeName = "polled";
+		}
+		else if (cause == CAUSE_RESUMED)
+		{
+			causeName = "resumed";
+		}
+		else
+		{
+			causeName = ProcessEvent.values()[cause - CAUSE_EVENTS].name();
+		}
+		return new Entry(seq, timestamp, process, states[(int) (packed >>> 32) & 0xFFFF].name(),
+				states[(int) (packed >>> 16) & 0xFFFF].name(), causeName);
+	}
+
+	private void dump(JobChannel channel, JobMsg request) throws IOException
+	{
+		List<Entry> entries = snapshot(request.getJobCode());
+		StringBuilder lines = new StringBuilder();
+		for (int i = 0; i < entries.size(); i++)
+		{
+			lines.append(format(entries.get(i))).append('\n');
+			if ((i + 1) % DUMP_CHUNK_SIZE == 0 || i == entries.size() - 1)
+			{
+				JobMsg chunk = new JobMsg(DUMP_CHUNK, i / DUMP_CHUNK_SIZE);
+				chunk.setPayload(new JobPayload().putString(KEY_LINES, lines.toString()));
+				channel.sendMessage(chunk);
+				lines.setLength(0);
+			}
+		}
+		JobMsg reply = request.createReply(1);
+		reply.setPayload(new JobPayload().putInt(KEY_COUNT, entries.size()));
+		channel.sendMessage(reply);
+	}
+}
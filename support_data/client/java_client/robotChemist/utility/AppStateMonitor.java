@@ -1,14 +1,32 @@
 package robotChemist.utility;
 
+import java.util.concurrent.CopyOnWriteArrayList;
+
 import com.kuka.roboticsAPI.applicationModel.RoboticsAPIApplicationState;
 
 public class AppStateMonitor 
 {
+	/***
+	 * A callback notified whenever the application state changes. Listeners are called on the thread changing the
+	 * state, so they must not block.
+	 */
+	public interface Listener
+	{
+		void onAppStateChanged(RoboticsAPIApplicationState appState);
+	}
+	
 	private RoboticsAPIApplicationState appState;
+	private CopyOnWriteArrayList<Listener> listeners;
 	
 	public AppStateMonitor(RoboticsAPIApplicationState appState)
 	{
 		this.appState = appState;
+		this.listeners = new CopyOnWriteArrayList<Listener>();
+	}
+	
+	public void addListener(Listener listener)
+	{
+		listeners.add(listener);
 	}
 
 	public RoboticsAPIApplicationState getAppState() {
@@ -16,7 +34,15 @@ public class AppStateMonitor
 	}
 
 	public void setAppState(RoboticsAPIApplicationState appState) {
+		boolean changed = this.appState != appState;
 		this.appState = appState;
+		if (changed)
+		{
+			for (Listener listener : listeners)
+			{
+				listener.onAppStateChanged(appState);
+			}
+		}
 	}
 	
 	
@@ -19,6 +19,15 @@ public class LBRTask
 		this.seq = -1;
 	}
 	
+	public LBRTask(String name, List<String> params, boolean priority, int seq)
+	{
+		this.name = name;
+		this.params = params;
+		this.priority = priority;
+		this.status = kmriiwa_chemist_msgs.TaskStatus.WAITING;
+		this.seq = seq;
+	}
+
 	public LBRTask(String name, boolean priority)
 	{
 		this.name = name;
@@ -1,81 +1,324 @@
 package robotChemist.utility;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
 import com.kuka.roboticsAPI.applicationModel.IApplicationData;
 import com.kuka.task.ITaskLogger;
 
 import robotChemist.interfaces.BatteryChargeManager;
 import robotChemist.interfaces.LBRCommander;
 
-public class LBRTaskExecutor 
+/***
+ * Executes the tasks assigned to the LBR arm through handlers registered by task name. Priority tasks and workflow
+ * tasks are indexed apart, so executing a task costs a single hash lookup however many handlers are registered, and
+ * workflow modules plug in their tasks with {@link #registerWorkflowHandler(String, Handler)} instead of extending a
+ * chain of name comparisons. Workflow tasks no handler is registered for are left to
+ * {@link #executeWorkflowTasks(LBRTask)}. Every handler keeps the number and duration of its executions.
+ * @author stoic-roboticist
+ *
+ */
+public class LBRTaskExecutor
 {
+	/***
+	 * Executes the tasks of one name. Handlers run on the thread of the
+	 * {@link robotChemist.processes.TaskExecutionProcess} and may block while the arm moves.
+	 */
+	public interface Handler
+	{
+		/***
+		 * Executes the given task.
+		 * @param task - the task to execute.
+		 * @return true if the task was executed successfully.
+		 */
+		boolean execute(LBRTask task);
+	}
+
+	/***
+	 * A handler registered for a task name, along with its execution statistics.
+	 */
+	public static final class Registration
+	{
+		private final String name;
+		private final boolean priority;
+		private final Handler handler;
+		private final AtomicLong invocations = new AtomicLong();
+		private final AtomicLong failures = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		private Registration(String name, boolean priority, Handler handler)
+		{
+			this.name = name;
+			this.priority = priority;
+			this.handler = handler;
+		}
+
+		/***
+		 *
+		 * @return the name of the tasks executed by the handler.
+		 */
+		public String getName()
+		{
+			return name;
+		}
+
+		/***
+		 *
+		 * @return true if the handler executes priority tasks.
+		 */
+		public boolean isPriority()
+		{
+			return priority;
+		}
+
+		/***
+		 *
+		 * @return the number of tasks executed by the handler.
+		 */
+		public long getInvocationCount()
+		{
+			return invocations.get();
+		}
+
+		/***
+		 *
+		 * @return the number of tasks the handler failed or threw on.
+		 */
+		public long getFailureCount()
+		{
+			return failures.get();
+		}
+
+		/***
+		 *
+		 * @return the total execution time of the handler in nanoseconds.
+		 */
+		public long getTotalNanos()
+		{
+			return totalNanos.get();
+		}
+
+		/***
+		 *
+		 * @return the mean execution time of the handler in nanoseconds, 0 if it never executed.
+		 */
+		public long getMeanNanos()
+		{
+			long count = invocations.get();
+			return count == 0 ? 0 : totalNanos.get() / count;
+		}
+
+		/***
+		 *
+		 * @return the longest execution time of the handler in nanoseconds.
+		 */
+		public long getMaxNanos()
+		{
+			return maxNanos.get();
+		}
+
+		private boolean execute(LBRTask task, ProcessClock clock)
+		{
+			boolean res = false;
+			long start = clock.nanoTime();
+			try
+			{
+				res = handler.execute(task);
+				return res;
+			}
+			finally
+			{
+				long elapsed = clock.nanoTime() - start;
+				invocations.incrementAndGet();
+				totalNanos.addAndGet(elapsed);
+				long max = maxNanos.get();
+				while (elapsed > max && !maxNanos.compareAndSet(max, elapsed))
+				{
+					max = maxNanos.get();
+				}
+				if (!res)
+				{
+					failures.incrementAndGet();
+				}
+			}
+		}
+	}
+
 	protected LBRCommander robot;
 	private BatteryChargeManager battaryManager;
 	protected IApplicationData appData;
 	protected ITaskLogger logger;
-	
+	private final ProcessClock clock;
+	private final ConcurrentHashMap<String, Registration> priorityHandlers;
+	private final ConcurrentHashMap<String, Registration> workflowHandlers;
+
 	public LBRTaskExecutor(LBRCommander robot,BatteryChargeManager battaryManager, IApplicationData appData, ITaskLogger logger)
+	{
+		this(robot, battaryManager, appData, ProcessClock.SYSTEM, logger);
+	}
+
+	/***
+	 * Constructs an executor with the built-in priority task handlers registered.
+	 * @param robot - the robot whose arm executes the tasks.
+	 * @param battaryManager - the battery manager the charge overrides go to.
+	 * @param appData - the process data the auto functions are toggled in.
+	 * @param clock - the clock the execution times of the handlers are measured with.
+	 * @param logger - RoboticsAPI logging interface.
+	 */
+	public LBRTaskExecutor(LBRCommander robot,BatteryChargeManager battaryManager, IApplicationData appData, ProcessClock clock, ITaskLogger logger)
 	{
 		this.robot = robot;
 		this.battaryManager = battaryManager;
 		this.appData = appData;
+		this.clock = clock;
 		this.logger = logger;
+		this.priorityHandlers = new ConcurrentHashMap<String, Registration>();
+		this.workflowHandlers = new ConcurrentHashMap<String, Registration>();
+		registerPriorityHandlers();
 	}
-	
+
 	public boolean execute(LBRTask task)
 	{
-		boolean executionRes = false;
 		if (task.isPriority())
 		{
-			if (task.getName().equals("ArmDrivePos"))
+			Registration registration = priorityHandlers.get(task.getName());
+			if (registration == null)
+			{
+				logger.warn(String.format("no handler is registered for the priority task %s", task.getName()));
+				return false;
+			}
+			return registration.execute(task, clock);
+		}
+		Registration registration = workflowHandlers.get(task.getName());
+		if (registration == null)
+		{
+			return executeWorkflowTasks(task);
+		}
+		return registration.execute(task, clock);
+	}
+
+	/***
+	 * Registers the handler of a priority task, replacing the handler registered before for that name, built-in ones
+	 * included.
+	 * @param name - the name of the task.
+	 * @param handler - the handler executing the task.
+	 * @return the registration holding the statistics of the handler.
+	 */
+	public Registration registerPriorityHandler(String name, Handler handler)
+	{
+		Registration registration = new Registration(name, true, handler);
+		priorityHandlers.put(name, registration);
+		return registration;
+	}
+
+	/***
+	 * Registers the handler of a workflow task, replacing the handler registered before for that name.
+	 * @param name - the name of the task.
+	 * @param handler - the handler executing the task.
+	 * @return the registration holding the statistics of the handler.
+	 */
+	public Registration registerWorkflowHandler(String name, Handler handler)
+	{
+		Registration registration = new Registration(name, false, handler);
+		workflowHandlers.put(name, registration);
+		return registration;
+	}
+
+	/***
+	 * Removes the handler of a task.
+	 * @param name - the name of the task.
+	 * @param priority - true to remove the priority task handler, false for the workflow task one.
+	 * @return true if a handler was registered for the task.
+	 */
+	public boolean unregisterHandler(String name, boolean priority)
+	{
+		return (priority ? priorityHandlers : workflowHandlers).remove(name) != null;
+	}
+
+	/***
+	 *
+	 * @return the registered handlers with their statistics, priority task handlers first.
+	 */
+	public List<Registration> getRegistrations()
+	{
+		List<Registration> registrations = new ArrayList<Registration>(priorityHandlers.values());
+		registrations.addAll(workflowHandlers.values());
+		return registrations;
+	}
+
+	protected boolean executeWorkflowTasks(LBRTask task)
+	{
+		// empty stump method, override in children or register workflow handlers
+		return true;
+	}
+
+	private void registerPriorityHandlers()
+	{
+		registerPriorityHandler("ArmDrivePos", new Handler()
+		{
+			@Override
+			public boolean execute(LBRTask task)
 			{
 				logger.info("Asserting arm in drive position");
 				robot.getArm().assertArmInDrivePos();
-				executionRes = true;
+				return true;
 			}
-			else if (task.getName().equals("ReferenceArm"))
+		});
+		registerPriorityHandler("ReferenceArm", new Handler()
+		{
+			@Override
+			public boolean execute(LBRTask task)
 			{
 				logger.info("Referencing the arm");
 				robot.getArm().Reference();
-				executionRes = true;
+				return true;
 			}
-			else if (task.getName().equals("ChargeRobot"))
+		});
+		registerPriorityHandler("ChargeRobot", new Handler()
+		{
+			@Override
+			public boolean execute(LBRTask task)
 			{
 				logger.info("Attempting manual robot charging");
 				int targetMaxCharge = Integer.valueOf(task.getParams().get(1));
 				battaryManager.forceStartCharging(targetMaxCharge);
-				executionRes = true;
+				return true;
 			}
-			else if (task.getName().equals("StopCharge"))
+		});
+		registerPriorityHandler("StopCharge", new Handler()
+		{
+			@Override
+			public boolean execute(LBRTask task)
 			{
 				logger.info("Attempting manual robot charging stop");
 				battaryManager.forceStopCharging();
-				executionRes = true;
+				return true;
 			}
-			else if (task.getName().equals("DiableAutoFunctions"))
+		});
+		registerPriorityHandler("DiableAutoFunctions", new Handler()
+		{
+			@Override
+			public boolean execute(LBRTask task)
 			{
 				logger.info("Disabling auto charging and calibration.");
 				appData.getProcessData("AllowAutomatedCharging").setValue(false);
 				appData.getProcessData("AllowAutomatedArmCalibration").setValue(false);
-				executionRes = true;
+				return true;
 			}
-			else if (task.getName().equals("EnableAutoFunctions"))
+		});
+		registerPriorityHandler("EnableAutoFunctions", new Handler()
+		{
+			@Override
+			public boolean execute(LBRTask task)
 			{
 				logger.info("Enabling auto charging and calibration.");
 				appData.getProcessData("AllowAutomatedCharging").setValue(true);
 				appData.getProcessData("AllowAutomatedArmCalibration").setValue(true);
-				executionRes = true;
+				return true;
 			}
-		}
-		else
-		{
-			executionRes = executeWorkflowTasks(task);
-		}
-		return executionRes;
-	}
-	
-	protected boolean executeWorkflowTasks(LBRTask task)
-	{
-		// empty stump method, override in children
-		return true;
+		});
 	}
 }
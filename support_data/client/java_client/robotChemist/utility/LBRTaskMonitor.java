@@ -1,12 +1,38 @@
 package robotChemist.utility;
 
+import java.util.concurrent.CopyOnWriteArrayList;
+
 public class LBRTaskMonitor 
 {
+	/***
+	 * A callback notified whenever a task is assigned or the status of the assigned task changes. Listeners are
+	 * called on the thread changing the task, so they must not block.
+	 */
+	public interface Listener
+	{
+		void onTaskChanged(LBRTask task);
+	}
+	
 	private LBRTask task;
+	private CopyOnWriteArrayList<Listener> listeners;
 	
 	public LBRTaskMonitor()
 	{
 		this.task = null;
+		this.listeners = new CopyOnWriteArrayList<Listener>();
+	}
+	
+	public void addListener(Listener listener)
+	{
+		listeners.add(listener);
+	}
+	
+	private void notifyListeners()
+	{
+		for (Listener listener : listeners)
+		{
+			listener.onTaskChanged(task);
+		}
 	}
 	
 	public LBRTask getAssignedTask()
@@ -25,6 +51,7 @@ public class LBRTaskMonitor
 	public void assignTask(LBRTask task)
 	{
 		this.task = new LBRTask(task);
+		notifyListeners();
 	}
 	
 	public void setTaskToExecuting()
@@ -32,6 +59,7 @@ public class LBRTaskMonitor
 		if (task != null)
 		{
 			task.setStatus(kmriiwa_chemist_msgs.TaskStatus.EXECUTING);
+			notifyListeners();
 		}
 	}
 	
@@ -40,6 +68,7 @@ public class LBRTaskMonitor
 		if (task != null && task.getStatus() == kmriiwa_chemist_msgs.TaskStatus.EXECUTING)
 		{
 			task.setStatus(kmriiwa_chemist_msgs.TaskStatus.FINISHED);
+			notifyListeners();
 		}
 	}
 	
@@ -48,6 +77,7 @@ public class LBRTaskMonitor
 		if (task != null && task.getStatus() == kmriiwa_chemist_msgs.TaskStatus.EXECUTING)
 		{
 			task.setStatus(kmriiwa_chemist_msgs.TaskStatus.ERROR);
+			notifyListeners();
 		}
 	}
 	
@@ -0,0 +1,57 @@
+package robotChemist.utility;
+
+/***
+ * The time source of the process scheduling, so that processes can be run against a simulated clock as well as the
+ * system one.
+ * @author stoic-roboticist
+ *
+ */
+public interface ProcessClock
+{
+	/***
+	 * The clock of the JVM, {@link System#nanoTime()}.
+	 */
+	ProcessClock SYSTEM = new ProcessClock()
+	{
+		@Override
+		public long nanoTime()
+		{
+			return System.nanoTime();
+		}
+
+		@Override
+		public long currentTimeMillis()
+		{
+			return System.currentTimeMillis();
+		}
+
+		@Override
+		public void sleepNanos(long nanos) throws InterruptedException
+		{
+			if (nanos > 0)
+			{
+				Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+			}
+		}
+	};
+
+	/***
+	 *
+	 * @return the current time in nanoseconds, only meaningful relative to other values of the same clock.
+	 */
+	long nanoTime();
+
+	/***
+	 *
+	 * @return the current wall clock time in milliseconds since the epoch, for the deadlines stored as dates, e.g. the
+	 * last calibration of the arm.
+	 */
+	long currentTimeMillis();
+
+	/***
+	 * Waits for the given time to elapse on this clock.
+	 * @param nanos - the time to wait in nanoseconds.
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	void sleepNanos(long nanos) throws InterruptedException;
+}
@@ -0,0 +1,405 @@
+package robotChemist.utility;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.kuka.task.ITaskLogger;
+
+/***
+ * A hashed wheel timer for the delays of the state machine processes, so that a process schedules a timed step and
+ * returns at once instead of sleeping and blocking every other process. Timeouts are hashed by deadline into a fixed
+ * ring of buckets that the timer walks one tick at a time, so scheduling and cancelling are constant time whatever the
+ * number of pending timeouts, at the cost of a precision of one tick. Timeouts due in the same tick expire in the order
+ * of their deadlines, then in the order they were scheduled. The timer either runs a thread of its own, see {@link #start()}, or is advanced by the caller
+ * with {@link #advance()}, e.g. from a simulation loop with a simulated {@link ProcessClock}. Tasks run on the thread
+ * advancing the timer and must not block.
+ * @author stoic-roboticist
+ *
+ */
+public class ProcessTimer
+{
+	private static final long DEFAULT_TICK = 100;
+	private static final int DEFAULT_WHEEL_SIZE = 512;
+
+	private static ProcessTimer defaultTimer;
+
+	/***
+	 * A task scheduled on the timer.
+	 */
+	public static final class Timeout
+	{
+		private static final int PENDING = 0;
+		private static final int EXPIRED = 1;
+		private static final int CANCELLED = 2;
+
+		private final ProcessTimer timer;
+		private final Runnable task;
+		// relative to the start time of the timer
+		private final long deadline;
+		private final long sequence;
+		private final AtomicInteger state = new AtomicInteger(PENDING);
+		private List<Runnable> listeners = new ArrayList<Runnable>();
+		// only accessed by the thread advancing the timer
+		private long remainingRounds;
+
+		private Timeout(ProcessTimer timer, Runnable task, long deadline, long sequence)
+		{
+			this.timer = timer;
+			this.task = task;
+			this.deadline = deadline;
+			this.sequence = sequence;
+		}
+
+		/***
+		 * Cancels the timeout so its task is not run.
+		 * @return false if the timeout already expired or was already cancelled.
+		 */
+		public boolean cancel()
+		{
+			if (!state.compareAndSet(PENDING, CANCELLED))
+			{
+				return false;
+			}
+			notifyListeners();
+			return true;
+		}
+
+		public boolean isExpired()
+		{
+			return state.get() == EXPIRED;
+		}
+
+		public boolean isCancelled()
+		{
+			return state.get() == CANCELLED;
+		}
+
+		/***
+		 * Gets the time left until the timeout expires.
+		 * @return the time in milliseconds, 0 if it already expired or is due.
+		 */
+		public long getRemainingMillis()
+		{
+			return isExpired() ? 0 : Math.max(0, TimeUnit.NANOSECONDS.toMillis(timer.startTime + deadline - timer.clock.nanoTime()));
+		}
+
+		/***
+		 * Registers a listener that is called once the timeout expired, after its task, or was cancelled. If it is
+		 * already done, the listener is called immediately on the calling thread.
+		 * @param listener - the listener to be notified, it must not block.
+		 */
+		public void addListener(Runnable listener)
+		{
+			synchronized (this)
+			{
+				if (listeners != null)
+				{
+					listeners.add(listener);
+					return;
+				}
+			}
+			listener.run();
+		}
+
+		private void expire()
+		{
+			if (!state.compareAndSet(PENDING, EXPIRED))
+			{
+				return;
+			}
+			try
+			{
+				if (task != null)
+				{
+					task.run();
+				}
+			}
+			finally
+			{
+				notifyListeners();
+			}
+		}
+		
+		private void notifyListeners()
+		{
+			List<Runnable> notified;
+			synchronized (this)
+			{
+				notified = listeners;
+				listeners = null;
+			}
+			for (Runnable listener : notified)
+			{
+				listener.run();
+			}
+		}
+	}
+
+	private final ProcessClock clock;
+	private final long tick;
+	private final List<LinkedList<Timeout>> wheel;
+	private final int mask;
+	private final long startTime;
+	private final ConcurrentLinkedQueue<Timeout> scheduled;
+	private final AtomicLong sequence = new AtomicLong();
+	// only accessed by the thread advancing the timer
+	private long currentTick = 0;
+
+	private volatile Thread worker;
+	private volatile boolean running = false;
+
+	private ITaskLogger logger;
+
+	/***
+	 * Constructs a timer on the system clock with a tick of 100 ms.
+	 * @param logger - RoboticsAPI logging interface, used to report failing tasks.
+	 */
+	public ProcessTimer(ITaskLogger logger)
+	{
+		this(ProcessClock.SYSTEM, DEFAULT_TICK, DEFAULT_WHEEL_SIZE, logger);
+	}
+
+	/***
+	 * Constructs a timer.
+	 * @param clock - the time source.
+	 * @param tickMillis - the duration of a tick in milliseconds, the precision of the timeouts.
+	 * @param wheelSize - the number of buckets, rounded up to a power of two. Timeouts further away than a full turn
+	 * of the wheel wait for as many turns as needed.
+	 * @param logger - RoboticsAPI logging interface, used to report failing tasks.
+	 */
+	public ProcessTimer(ProcessClock clock, long tickMillis, int wheelSize, ITaskLogger logger)
+	{
+		if (tickMillis <= 0 || wheelSize <= 0)
+		{
+			throw new IllegalArgumentException(String.format("invalid timer tick or wheel size: %d ms, %d", tickMillis, wheelSize));
+		}
+		int size = Integer.highestOneBit(wheelSize);
+		if (size < wheelSize)
+		{
+			size <<= 1;
+		}
+		this.clock = clock;
+		this.tick = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		this.wheel = new ArrayList<LinkedList<Timeout>>(size);
+		for (int i = 0; i < size; i++)
+		{
+			wheel.add(new LinkedList<Timeout>());
+		}
+		this.mask = size - 1;
+		this.startTime = clock.nanoTime();
+		this.scheduled = new ConcurrentLinkedQueue<Timeout>();
+		this.logger = logger;
+	}
+
+	/***
+	 * Gets the timer shared by the processes constructed without one, started on first use and running on a daemon
+	 * thread.
+	 * @param logger - RoboticsAPI logging interface, used if the timer is created.
+	 * @return the default timer.
+	 */
+	public static synchronized ProcessTimer getDefault(ITaskLogger logger)
+	{
+		if (defaultTimer == null)
+		{
+			defaultTimer = new ProcessTimer(logger);
+			defaultTimer.start();
+		}
+		return defaultTimer;
+	}
+
+	/***
+	 * Schedules a task to be run once the given delay elapsed.
+	 * @param task - the task to be run, or null to only get a timeout expiring after the delay.
+	 * @param delayMillis - the delay in milliseconds.
+	 * @return the timeout, to be cancelled or polled.
+	 */
+	public Timeout schedule(Runnable task, long delayMillis)
+	{
+		long deadline = clock.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+		Timeout timeout = new Timeout(this, task, deadline, sequence.getAndIncrement());
+		scheduled.add(timeout);
+		return timeout;
+	}
+
+	/***
+	 * Starts a daemon thread advancing the timer at every tick.
+	 */
+	public synchronized void start()
+	{
+		if (worker != null)
+		{
+			return;
+		}
+		running = true;
+		worker = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				runWorker();
+			}
+		}, "process-timer");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/***
+	 * Stops the thread started by {@link #start()}. Pending timeouts are kept and expire if the timer is advanced
+	 * again.
+	 */
+	public synchronized void stop()
+	{
+		running = false;
+		if (worker != null)
+		{
+			worker.interrupt();
+			worker = null;
+		}
+	}
+
+	/***
+	 * Expires the timeouts whose tick elapsed on the clock and runs their tasks on the calling thread. Must not be
+	 * called concurrently, nor while the timer runs its own thread.
+	 * @return the number of expired timeouts.
+	 */
+	public int advance()
+	{
+		long elapsed = clock.nanoTime() - startTime;
+		List<Timeout> expired = new ArrayList<Timeout>();
+		// a tick is processed once it is over, so no timeout expires before its deadline
+		while ((currentTick + 1) * tick <= elapsed)
+		{
+			transferScheduled();
+			collectExpired(wheel.get((int) (currentTick & mask)), (currentTick + 1) * tick, expired);
+			currentTick++;
+		}
+		if (expired.size() > 1)
+		{
+			Collections.sort(expired, new Comparator<Timeout>()
+			{
+				@Override
+				public int compare(Timeout a, Timeout b)
+				{
+					if (a.deadline != b.deadline)
+					{
+						return a.deadline < b.deadline ? -1 : 1;
+					}
+					return a.sequence < b.sequence ? -1 : (a.sequence > b.sequence ? 1 : 0);
+				}
+			});
+		}
+		for (Timeout timeout : expired)
+		{
+			try
+			{
+				timeout.expire();
+			}
+			catch (RuntimeException e)
+			{
+				logger.error(String.format("a process timer task failed: %s", e));
+			}
+		}
+		return expired.size();
+	}
+
+	/***
+	 * Gets the time until {@link #advance()} expires the next pending timeout, so that a simulation can advance its
+	 * clock from one timeout to the next. Scans every pending timeout and must not be called concurrently with
+	 * {@link #advance()}.
+	 * @return the time in nanoseconds, 0 if a timeout is already due, or -1 if no timeout is pending.
+	 */
+	public long nanosToNextExpiry()
+	{
+		long earliest = -1;
+		for (Timeout timeout : scheduled)
+		{
+			earliest = earlierExpiry(timeout, earliest);
+		}
+		for (LinkedList<Timeout> bucket : wheel)
+		{
+			if (bucket.isEmpty())
+			{
+				continue;
+			}
+			for (Timeout timeout : bucket)
+			{
+				earliest = earlierExpiry(timeout, earliest);
+			}
+		}
+		return earliest < 0 ? -1 : Math.max(0, earliest - (clock.nanoTime() - startTime));
+	}
+
+	private long earlierExpiry(Timeout timeout, long earliest)
+	{
+		if (timeout.isCancelled())
+		{
+			return earliest;
+		}
+		// the end of the tick the timeout is due in, see transferScheduled
+		long expiry = (Math.max(currentTick, (timeout.deadline + tick - 1) / tick - 1) + 1) * tick;
+		return earliest < 0 ? expiry : Math.min(earliest, expiry);
+	}
+
+	private void transferScheduled()
+	{
+		Timeout timeout;
+		while ((timeout = scheduled.poll()) != null)
+		{
+			if (timeout.isCancelled())
+			{
+				continue;
+			}
+			// timeouts already due go to the current tick
+			long dueTick = Math.max(currentTick, (timeout.deadline + tick - 1) / tick - 1);
+			timeout.remainingRounds = (dueTick - currentTick) / wheel.size();
+			wheel.get((int) (dueTick & mask)).add(timeout);
+		}
+	}
+
+	private static void collectExpired(LinkedList<Timeout> bucket, long tickEnd, List<Timeout> expired)
+	{
+		Iterator<Timeout> iter = bucket.iterator();
+		while (iter.hasNext())
+		{
+			Timeout timeout = iter.next();
+			if (timeout.isCancelled())
+			{
+				iter.remove();
+			}
+			else if (timeout.remainingRounds <= 0 && timeout.deadline <= tickEnd)
+			{
+				iter.remove();
+				expired.add(timeout);
+			}
+			else
+			{
+				timeout.remainingRounds--;
+			}
+		}
+	}
+
+	private void runWorker()
+	{
+		try
+		{
+			while (running)
+			{
+				long nextTick = (currentTick + 1) * tick - (clock.nanoTime() - startTime);
+				clock.sleepNanos(nextTick);
+				advance();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			// timer stopped
+		}
+	}
+}
@@ -1,4 +1,10 @@
 package robotChemist.utility;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
 /***
  * This class describes and manages the robot operational state. Possible state:</br>
  * - INVALID: robot is not initialised</br>
@@ -6,6 +12,12 @@ package robotChemist.utility;
  * - MANIPULATING: robot is busy executing a manipulation task</br>
  * - CHARGING: robot is charging and not available for tasks </br>
  * - CALIBRATING: robot is calibrating and not available for tasks </br>
+ * <br>
+ * The state is held together with its owner, the process that claimed the robot, in an immutable {@link Snapshot}
+ * swapped atomically, so that processes running on different threads cannot both take the robot: a process claims it
+ * with {@link #claim(OpState, OpState, Object)}, which only succeeds if the robot is in the expected state and owned
+ * by no one, and hands it back with {@link #release(Object, OpState)}. Threads can wait for a state with
+ * {@link #awaitState(OpState, long)} instead of polling it.
  * @author stoic-roboticist
  *
  */
@@ -27,21 +39,240 @@ public class RobotOpState
 		}
 	};
 	
-	private OpState currentState;
+	/***
+	 * A callback notified whenever the operational state changes. Listeners are called on the thread changing the
+	 * state, so they must not block. Changes made concurrently by different threads may be notified out of order.
+	 */
+	public interface Listener
+	{
+		void onStateChanged(OpState oldState, OpState newState);
+	}
+
+	/***
+	 * An operational state with its owner. Snapshots are immutable and every change creates a new one, so a snapshot
+	 * identifies a single change.
+	 */
+	public static final class Snapshot
+	{
+		private final OpState state;
+		private final Object owner;
+
+		private Snapshot(OpState state, Object owner)
+		{
+			this.state = state;
+			this.owner = owner;
+		}
+
+		public OpState getState()
+		{
+			return state;
+		}
+
+		/***
+		 *
+		 * @return the owner of the robot, or null if the robot is not claimed.
+		 */
+		public Object getOwner()
+		{
+			return owner;
+		}
+
+		@Override
+		public String toString()
+		{
+			return owner != null ? String.format("%s (%s)", state, owner.getClass().getSimpleName()) : state.name();
+		}
+	}
+
+	private AtomicReference<Snapshot> current;
+	private CopyOnWriteArrayList<Listener> listeners;
+	private final Object waitLock = new Object();
+	private AtomicInteger waiters = new AtomicInteger();
 	
 	public RobotOpState()
 	{
-		currentState = OpState.INVALID;
+		current = new AtomicReference<Snapshot>(new Snapshot(OpState.INVALID, null));
+		listeners = new CopyOnWriteArrayList<Listener>();
+	}
+
+	public void addListener(Listener listener)
+	{
+		listeners.add(listener);
 	}
 
 	public OpState getCurrentState() 
 	{
-		return currentState;
+		return current.get().state;
 	}
 
-	public void setCurrentState(OpState currentState) 
+	/***
+	 *
+	 * @return the current state with its owner.
+	 */
+	public Snapshot getSnapshot()
 	{
-		this.currentState = currentState;
+		return current.get();
+	}
+
+	/***
+	 * Sets the state unconditionally and clears the owner, e.g. when the application initialises the robot.
+	 * @param currentState - the new state.
+	 */
+	public void setCurrentState(OpState currentState)
+	{
+		setCurrentState(currentState, null);
+	}
+
+	/***
+	 * Sets the state and its owner unconditionally, e.g. when a process resumes a claim it held before a restart.
+	 * @param currentState - the new state.
+	 * @param owner - the new owner, or null.
+	 */
+	public void setCurrentState(OpState currentState, Object owner)
+	{
+		Snapshot update = new Snapshot(currentState, owner);
+		changed(current.getAndSet(update), update);
+	}
+
+	/***
+	 * Claims the robot if it is in the expected state and owned by no one.
+	 * @param expectedState - the state the robot must be in.
+	 * @param newState - the state of the robot once claimed.
+	 * @param owner - the claiming owner.
+	 * @return true if the robot was claimed.
+	 */
+	public boolean claim(OpState expectedState, OpState newState, Object owner)
+	{
+		while (true)
+		{
+			Snapshot expected = current.get();
+			if (expected.state != expectedState || expected.owner != null)
+			{
+				return false;
+			}
+			if (compareAndSet(expected, newState, owner))
+			{
+				return true;
+			}
+		}
+	}
+
+	/***
+	 * Releases the robot if it is owned by the given owner.
+	 * @param owner - the owner releasing the robot.
+	 * @param newState - the state of the robot once released.
+	 * @return true if the robot was released, false if it was not owned by the given owner.
+	 */
+	public boolean release(Object owner, OpState newState)
+	{
+		while (true)
+		{
+			Snapshot expected = current.get();
+			if (expected.owner != owner)
+			{
+				return false;
+			}
+			if (compareAndSet(expected, newState, null))
+			{
+				return true;
+			}
+		}
+	}
+
+	/***
+	 * Changes the state and its owner if no other change happened since the given snapshot was taken, e.g. to take
+	 * the robot over on behalf of its current owner and later hand it back with {@link #restore(Object, Snapshot)}.
+	 * @param expected - the snapshot that must still be current.
+	 * @param newState - the new state.
+	 * @param newOwner - the new owner, or null.
+	 * @return true if the state was changed.
+	 */
+	public boolean compareAndSet(Snapshot expected, OpState newState, Object newOwner)
+	{
+		Snapshot update = new Snapshot(newState, newOwner);
+		if (!current.compareAndSet(expected, update))
+		{
+			return false;
+		}
+		changed(expected, update);
+		return true;
+	}
+
+	/***
+	 * Hands the robot back to the state and owner of the given snapshot if it is owned by the given owner.
+	 * @param owner - the owner handing the robot back.
+	 * @param previous - the snapshot taken before the owner took the robot over.
+	 * @return true if the robot was handed back, false if it was not owned by the given owner.
+	 */
+	public boolean restore(Object owner, Snapshot previous)
+	{
+		while (true)
+		{
+			Snapshot expected = current.get();
+			if (expected.owner != owner)
+			{
+				return false;
+			}
+			if (compareAndSet(expected, previous.state, previous.owner))
+			{
+				return true;
+			}
+		}
+	}
+
+	/***
+	 * Waits until the robot is in the given state.
+	 * @param state - the awaited state.
+	 * @param timeoutMillis - the maximal time to wait in milliseconds.
+	 * @return true if the robot is in the given state, false if the timeout elapsed.
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public boolean awaitState(OpState state, long timeoutMillis) throws InterruptedException
+	{
+		if (getCurrentState() == state)
+		{
+			return true;
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		waiters.incrementAndGet();
+		try
+		{
+			synchronized (waitLock)
+			{
+				while (getCurrentState() != state)
+				{
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0)
+					{
+						return false;
+					}
+					// round up so the wait does not end just before the deadline
+					waitLock.wait(TimeUnit.NANOSECONDS.toMillis(remaining) + 1);
+				}
+				return true;
+			}
+		}
+		finally
+		{
+			waiters.decrementAndGet();
+		}
+	}
+
+	private void changed(Snapshot oldSnapshot, Snapshot newSnapshot)
+	{
+		if (waiters.get() > 0)
+		{
+			synchronized (waitLock)
+			{
+				waitLock.notifyAll();
+			}
+		}
+		if (oldSnapshot.state != newSnapshot.state)
+		{
+			for (Listener listener : listeners)
+			{
+				listener.onStateChanged(oldSnapshot.state, newSnapshot.state);
+			}
+		}
 	}
-	
 }